@@ -0,0 +1,69 @@
+package com.androidexperiments.shadercam.benchmark;
+
+import com.androidexperiments.shadercam.lut.CubeLut;
+import com.androidexperiments.shadercam.lut.CubeLutParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a .cube file and packing it into the RGB8 texture upload, the cold path of a LUT
+ * switch. The file is a generated identity lut of the given edge size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CubeLutBenchmark {
+
+    @Param({"17", "33", "65"})
+    public int size;
+
+    private final CubeLutParser mParser = new CubeLutParser();
+
+    private byte[] mFile;
+
+    private CubeLut mLut;
+
+    private ByteBuffer mQuantized;
+
+    @Setup
+    public void setup() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("TITLE \"identity\"\nLUT_3D_SIZE ").append(size).append('\n');
+        float max = size - 1;
+        for (int b = 0; b < size; b++) {
+            for (int g = 0; g < size; g++) {
+                for (int r = 0; r < size; r++) {
+                    sb.append(String.format(Locale.US, "%.6f %.6f %.6f\n",
+                            r / max, g / max, b / max));
+                }
+            }
+        }
+        mFile = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        mLut = parse();
+        mQuantized = mLut.quantize(null);
+    }
+
+    @Benchmark
+    public CubeLut parse() throws IOException {
+        return mParser.parse(new ByteArrayInputStream(mFile));
+    }
+
+    @Benchmark
+    public ByteBuffer quantize() {
+        return mLut.quantize(mQuantized);
+    }
+}
@@ -0,0 +1,64 @@
+package com.androidexperiments.shadercam.benchmark;
+
+import com.androidexperiments.shadercam.gl.Framebuffer;
+import com.androidexperiments.shadercam.gl.FramebufferPool;
+import com.androidexperiments.shadercam.gl.Gl;
+import com.androidexperiments.shadercam.gl.GlBackend;
+import com.androidexperiments.shadercam.gl.RecordingGlBackend;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One frame's worth of {@link FramebufferPool} traffic: every stage acquires its target and
+ * releases its input, like a RenderStage chain. GL goes to a {@link RecordingGlBackend}, so this
+ * is the pool's own cost, the GL allocations it saves don't show up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FramebufferPoolBenchmark {
+
+    @Param({"2", "8"})
+    public int stages;
+
+    private GlBackend mPreviousBackend;
+
+    private FramebufferPool mPool;
+
+    @Setup
+    public void setup() {
+        mPreviousBackend = Gl.getBackend();
+        Gl.setBackend(new RecordingGlBackend(1024, 16));
+        mPool = new FramebufferPool();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mPool.trim();
+        Gl.setBackend(mPreviousBackend);
+    }
+
+    @Benchmark
+    public int chain() {
+        Framebuffer input = null;
+        for (int i = 0; i < stages; i++) {
+            //alternate half and full size, ex: a blur's downsample and upsample
+            Framebuffer target = (i & 1) == 0
+                    ? mPool.acquire(960, 540) : mPool.acquire(1920, 1080);
+            mPool.release(input);
+            input = target;
+        }
+        mPool.release(input);
+        return mPool.getFreeCount();
+    }
+}
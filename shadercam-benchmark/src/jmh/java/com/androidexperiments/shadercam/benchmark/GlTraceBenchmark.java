@@ -0,0 +1,174 @@
+package com.androidexperiments.shadercam.benchmark;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+import com.androidexperiments.shadercam.gl.GlBackend;
+import com.androidexperiments.shadercam.gl.GlTraceReplayer;
+import com.androidexperiments.shadercam.gl.GlTraceStats;
+import com.androidexperiments.shadercam.gl.RecordingGlBackend;
+import com.androidexperiments.shadercam.gl.TracingGlBackend;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uniform packing into a {@link TracingGlBackend} trace, and replaying it. Each frame is what
+ * VideoRenderer issues for one camera frame: program, texture, the two matrices, a time uniform
+ * and a draw. Scores are per frame.
+ *
+ * With distinctMatrices the texture matrix changes every frame, so every upload is a new blob,
+ * otherwise it's the steady state where the dedupe table turns them into ids.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 20)
+@Measurement(iterations = 50)
+public class GlTraceBenchmark {
+
+    private static final int FRAMES = 1000;
+
+    private static final int TRACE_BYTES = 16 * 1024 * 1024;
+
+    @State(Scope.Thread)
+    public static class Frames {
+
+        @Param({"false", "true"})
+        public boolean distinctMatrices;
+
+        private final float[] mOrthoMatrix = new float[16];
+
+        private final float[] mTextureMatrix = new float[16];
+
+        private int mProgram, mTexture;
+
+        private int mTextureMatrixLocation, mOrthoMatrixLocation, mTimeLocation;
+
+        File mFile;
+
+        @Setup(Level.Trial)
+        public void setupFrames() throws IOException {
+            mFile = File.createTempFile("shadercam-benchmark", ".gltrace");
+            for (int i = 0; i < 16; i += 5) {
+                mOrthoMatrix[i] = 1.f;
+                mTextureMatrix[i] = 1.f;
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void deleteFile() {
+            mFile.delete();
+        }
+
+        TracingGlBackend newTracer(File file) throws IOException {
+            TracingGlBackend tracer = new TracingGlBackend(new RecordingGlBackend(1024, 16),
+                    file, TRACE_BYTES);
+            //jmh runs setup on the thread that runs the benchmark
+            tracer.setTracedThread(Thread.currentThread());
+            mProgram = tracer.glCreateProgram();
+            int[] names = new int[1];
+            tracer.glGenTextures(1, names, 0);
+            mTexture = names[0];
+            mTextureMatrixLocation = tracer.glGetUniformLocation(mProgram, "uTextureMatrix");
+            mOrthoMatrixLocation = tracer.glGetUniformLocation(mProgram, "uOrthoMatrix");
+            mTimeLocation = tracer.glGetUniformLocation(mProgram, "iGlobalTime");
+            return tracer;
+        }
+
+        void draw(TracingGlBackend tracer) {
+            for (int frame = 0; frame < FRAMES; frame++) {
+                if (distinctMatrices) {
+                    //SurfaceTexture's transform, ex: while the crop changes
+                    mTextureMatrix[12] = frame / (float) FRAMES;
+                }
+                drawFrame(tracer, frame);
+                tracer.endFrame();
+            }
+        }
+
+        private void drawFrame(GlBackend gl, int frame) {
+            gl.glUseProgram(mProgram);
+            gl.glActiveTexture(GLES20.GL_TEXTURE0);
+            gl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTexture);
+            gl.glUniformMatrix4fv(mTextureMatrixLocation, 1, false, mTextureMatrix, 0);
+            gl.glUniformMatrix4fv(mOrthoMatrixLocation, 1, false, mOrthoMatrix, 0);
+            gl.glUniform1f(mTimeLocation, frame / 30.f);
+            gl.glDrawArrays(GLES20.GL_TRIANGLES, 0, 6);
+        }
+    }
+
+    /**
+     * a fresh tracer per invocation, so the dedupe tables start cold like a new trace does
+     */
+    @State(Scope.Thread)
+    public static class Trace {
+
+        TracingGlBackend mTracer;
+
+        @Setup(Level.Invocation)
+        public void open(Frames frames) throws IOException {
+            mTracer = frames.newTracer(frames.mFile);
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() throws IOException {
+            mTracer.close();
+        }
+    }
+
+    /**
+     * one trace recorded up front, into its own file
+     */
+    @State(Scope.Thread)
+    public static class Replay {
+
+        private File mFile;
+
+        GlTraceReplayer mReplayer;
+
+        final RecordingGlBackend mTarget = new RecordingGlBackend(1024, 16);
+
+        @Setup(Level.Trial)
+        public void record(Frames frames) throws IOException {
+            mFile = File.createTempFile("shadercam-benchmark", ".gltrace");
+            TracingGlBackend tracer = frames.newTracer(mFile);
+            frames.draw(tracer);
+            tracer.close();
+            mReplayer = new GlTraceReplayer(mFile);
+        }
+
+        @TearDown(Level.Trial)
+        public void deleteFile() {
+            mFile.delete();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int trace(Frames frames, Trace trace) {
+        frames.draw(trace.mTracer);
+        return trace.mTracer.getBytesWritten();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public GlTraceStats replay(Replay replay) throws IOException {
+        replay.mTarget.reset();
+        return replay.mReplayer.replay(replay.mTarget);
+    }
+}
@@ -0,0 +1,72 @@
+package com.androidexperiments.shadercam.benchmark;
+
+import com.androidexperiments.shadercam.shader.ShaderCost;
+import com.androidexperiments.shadercam.shader.ShaderCostAnalyzer;
+import com.androidexperiments.shadercam.utils.ShaderUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading shader source into a string the way ShaderUtils does for assets, and estimating its
+ * cost the way the renderers do when given a ShaderCostAnalyzer, over the example app's shaders
+ * held in memory so disk speed doesn't show up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ShaderSourceBenchmark {
+
+    @Param({"superawesome.frag.glsl", "touchcolor.frag.glsl"})
+    public String asset;
+
+    private byte[] mSource;
+
+    private String mSourceString;
+
+    private final ShaderCostAnalyzer mAnalyzer = new ShaderCostAnalyzer();
+
+    @Setup
+    public void setup() throws IOException {
+        InputStream is = ShaderSourceBenchmark.class.getClassLoader().getResourceAsStream(asset);
+        if (is == null) {
+            throw new IllegalStateException("missing shader " + asset);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        is.close();
+        mSource = out.toByteArray();
+        mSourceString = load();
+    }
+
+    @Benchmark
+    public String load() throws IOException {
+        return ShaderUtils.getStringFromStream(new ByteArrayInputStream(mSource), true);
+    }
+
+    @Benchmark
+    public String loadWithoutNewlines() throws IOException {
+        return ShaderUtils.getStringFromStream(new ByteArrayInputStream(mSource), false);
+    }
+
+    @Benchmark
+    public ShaderCost analyze() {
+        return mAnalyzer.analyze(mSourceString);
+    }
+}
@@ -0,0 +1,84 @@
+package com.androidexperiments.shadercam.benchmark;
+
+import com.androidexperiments.shadercam.camera.SizeNegotiator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preview size and fps range selection, what runs on every camera open and view resize. Sizes
+ * are a typical back camera's SurfaceTexture list, repeated up to the param count.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SizeNegotiatorBenchmark {
+
+    private static final int[][] SIZES = {
+            {4032, 3024}, {4000, 3000}, {3840, 2160}, {3264, 2448}, {3024, 3024},
+            {2560, 1440}, {1920, 1440}, {1920, 1080}, {1600, 1200}, {1440, 1080},
+            {1280, 960}, {1280, 720}, {1024, 768}, {960, 720}, {800, 600},
+            {720, 480}, {640, 480}, {352, 288}, {320, 240}, {176, 144}
+    };
+
+    private static final int[] FPS_LOWERS = {15, 15, 24, 7, 15, 30, 60};
+
+    private static final int[] FPS_UPPERS = {15, 24, 24, 30, 30, 30, 60};
+
+    @Param({"20", "80"})
+    public int sizeCount;
+
+    private final SizeNegotiator mNegotiator = new SizeNegotiator();
+
+    private int[] mWidths;
+
+    private int[] mHeights;
+
+    private long[] mMinFrameDurations;
+
+    private long[] mStallDurations;
+
+    @Setup
+    public void setup() {
+        mWidths = new int[sizeCount];
+        mHeights = new int[sizeCount];
+        mMinFrameDurations = new long[sizeCount];
+        mStallDurations = new long[sizeCount];
+        for (int i = 0; i < sizeCount; i++) {
+            int[] size = SIZES[i % SIZES.length];
+            mWidths[i] = size[0];
+            mHeights[i] = size[1];
+            //past 1080p most sensors drop to 15-24fps
+            long pixels = (long) size[0] * size[1];
+            mMinFrameDurations[i] = pixels > 1920 * 1080 ? 50000000L : 33333333L;
+            mStallDurations[i] = pixels > 1920 * 1080 ? 10000000L : 0;
+        }
+        mNegotiator.setTargetFps(30);
+        mNegotiator.setShaderCost(0.004f, 0.75f);
+    }
+
+    @Benchmark
+    public SizeNegotiator.Choice choosePortrait() {
+        return mNegotiator.choose(1080, 1920, mWidths, mHeights, mMinFrameDurations,
+                mStallDurations);
+    }
+
+    @Benchmark
+    public SizeNegotiator.Choice chooseSquare() {
+        return mNegotiator.choose(1080, 1080, mWidths, mHeights, mMinFrameDurations,
+                mStallDurations);
+    }
+
+    @Benchmark
+    public int chooseFpsRange() {
+        return mNegotiator.chooseFpsRange(FPS_LOWERS, FPS_UPPERS);
+    }
+}
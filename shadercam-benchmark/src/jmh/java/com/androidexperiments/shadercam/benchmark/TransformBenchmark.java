@@ -0,0 +1,65 @@
+package com.androidexperiments.shadercam.benchmark;
+
+import android.opengl.Matrix;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-frame matrix work of VideoRenderer: the ortho projection for the current aspect and
+ * the per-tile projection of drawTile. android-all's Matrix is the same java
+ * code as on device, except multiplyMM/MV which are native there and so not covered here.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TransformBenchmark {
+
+    private final float[] mOrthoMatrix = new float[16];
+
+    private float mOrthoAspect = Float.NaN;
+
+    private float mAspect = 16.f / 9.f;
+
+    private int mTile;
+
+    /**
+     * what the render loop does now, rebuild only when the aspect changed
+     */
+    @Benchmark
+    public float[] orthoCached() {
+        if (mAspect != mOrthoAspect) {
+            Matrix.orthoM(mOrthoMatrix, 0, -mAspect, mAspect, -1, 1, -1, 1);
+            mOrthoAspect = mAspect;
+        }
+        return mOrthoMatrix;
+    }
+
+    /**
+     * what it did before, a rebuild every frame
+     */
+    @Benchmark
+    public float[] orthoEveryFrame() {
+        Matrix.orthoM(mOrthoMatrix, 0, -mAspect, mAspect, -1, 1, -1, 1);
+        return mOrthoMatrix;
+    }
+
+    /**
+     * one tile of a 4x4 tiled capture
+     */
+    @Benchmark
+    public float[] orthoTile() {
+        int tile = mTile++ & 15;
+        float left = (tile & 3) / 4.f;
+        float bottom = (tile >> 2) / 4.f;
+        Matrix.orthoM(mOrthoMatrix, 0, -1.f + 2.f * left, -1.f + 2.f * (left + .25f),
+                -1.f + 2.f * bottom, -1.f + 2.f * (bottom + .25f), -1, 1);
+        return mOrthoMatrix;
+    }
+}
@@ -0,0 +1,46 @@
+package com.androidexperiments.shadercam.processing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link StageStats} updates from a stage's worker threads while something polls it for the
+ * progress display, what an {@link ImageBatchProcessor} run looks like. Lives in the
+ * processing package since updates are package private.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StageStatsBenchmark {
+
+    private final StageStats mStats = new StageStats("decode", 4);
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(4)
+    public void add() {
+        mStats.add(2000000L, 50000L);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public float poll() {
+        return mStats.getCapacityPerSecond() + mStats.getUtilization(1000);
+    }
+
+    @Benchmark
+    @Group("uncontended")
+    @GroupThreads(1)
+    public void addAlone() {
+        mStats.add(2000000L, 50000L);
+    }
+}
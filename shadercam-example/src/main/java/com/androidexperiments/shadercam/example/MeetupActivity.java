@@ -6,6 +6,8 @@ import android.widget.SeekBar;
 
 import com.androidexperiments.shadercam.example.gl.SuperAwesomeRenderer;
 import com.androidexperiments.shadercam.gl.CameraRenderer;
+import com.androidexperiments.shadercam.gl.PrecisionSelector;
+import com.androidexperiments.shadercam.shader.ShaderCostAnalyzer;
 
 /**
  * For our NYC Android Developers Meetup, we've created a super simple
@@ -26,6 +28,10 @@ public class MeetupActivity extends SimpleShaderActivity implements SeekBar.OnSe
     @Override
     protected CameraRenderer getRenderer(SurfaceTexture surface, int width, int height) {
         mMyRenderer = new SuperAwesomeRenderer(this, surface, width, height);
+        //logs a warning if superawesome.frag.glsl looks too slow for this surface
+        mMyRenderer.setShaderCostAnalyzer(new ShaderCostAnalyzer());
+        //mediump if it's faster here and looks the same, measured once per device
+        mMyRenderer.setPrecisionSelector(new PrecisionSelector(this));
         return mMyRenderer;
     }
 
@@ -1,10 +1,12 @@
 package com.androidexperiments.shadercam.example;
 
 import com.androidexperiments.shadercam.example.gl.ExampleVideoRenderer;
+import com.androidexperiments.shadercam.camera.CameraCapabilityCache;
 import com.androidexperiments.shadercam.fragments.PermissionsHelper;
 import com.androidexperiments.shadercam.fragments.VideoFragment;
 import com.androidexperiments.shadercam.gl.CameraRenderer;
 import com.androidexperiments.shadercam.gl.VideoRenderer;
+import com.androidexperiments.shadercam.profile.DeviceProfiles;
 import com.androidexperiments.shadercam.utils.ShaderUtils;
 import com.uncorkedstudios.android.view.recordablesurfaceview.RecordableSurfaceView;
 
@@ -84,6 +86,12 @@ public class SimpleRSVShaderActivity extends FragmentActivity
 
         ButterKnife.bind(this);
 
+        //start reading camera sizes now, they're needed once the camera opens
+        CameraCapabilityCache.getInstance(this);
+
+        //stored gl version etc, before the renderer makes its EglCore
+        DeviceProfiles.getInstance(this);
+
         //setup permissions for M or start normally
         if (PermissionsHelper.isMorHigher()) {
             setupPermissions();
@@ -17,6 +17,8 @@ public class ExampleRenderer extends CameraRenderer
     private float offsetG = 0.5f;
     private float offsetB = 0.5f;
 
+    private int mOffsetRLoc, mOffsetGLoc, mOffsetBLoc;
+
     /**
      * By not modifying anything, our default shaders will be used in the assets folder of shadercam.
      *
@@ -39,13 +41,22 @@ public class ExampleRenderer extends CameraRenderer
     {
         super.setUniformsAndAttribs();
 
-        int offsetRLoc = GLES20.glGetUniformLocation(mCameraShaderProgram, "offsetR");
-        int offsetGLoc = GLES20.glGetUniformLocation(mCameraShaderProgram, "offsetG");
-        int offsetBLoc = GLES20.glGetUniformLocation(mCameraShaderProgram, "offsetB");
+        GLES20.glUniform1f(mOffsetRLoc, offsetR);
+        GLES20.glUniform1f(mOffsetGLoc, offsetG);
+        GLES20.glUniform1f(mOffsetBLoc, offsetB);
+    }
+
+    /**
+     * looked up once per program rather than every frame
+     */
+    @Override
+    protected void resolveLocations()
+    {
+        super.resolveLocations();
 
-        GLES20.glUniform1f(offsetRLoc, offsetR);
-        GLES20.glUniform1f(offsetGLoc, offsetG);
-        GLES20.glUniform1f(offsetBLoc, offsetB);
+        mOffsetRLoc = GLES20.glGetUniformLocation(mCameraShaderProgram, "offsetR");
+        mOffsetGLoc = GLES20.glGetUniformLocation(mCameraShaderProgram, "offsetG");
+        mOffsetBLoc = GLES20.glGetUniformLocation(mCameraShaderProgram, "offsetB");
     }
 
     /**
@@ -15,6 +15,8 @@ import com.androidexperiments.shadercam.gl.CameraRenderer;
 public class SuperAwesomeRenderer extends CameraRenderer {
     private float mTileAmount = 1.f;
 
+    private int mGlobalTimeHandle, mResolutionHandle;
+
     public SuperAwesomeRenderer(Context context, SurfaceTexture texture, int width, int height) {
         super(context, texture, width, height, "superawesome.frag.glsl", "superawesome.vert.glsl");
     }
@@ -24,11 +26,29 @@ public class SuperAwesomeRenderer extends CameraRenderer {
         //always call super so that the built-in fun stuff can be set first
         super.setUniformsAndAttribs();
 
-        int globalTimeHandle = GLES20.glGetUniformLocation(mCameraShaderProgram, "iGlobalTime");
-        GLES20.glUniform1f(globalTimeHandle, SystemClock.currentThreadTimeMillis() / 100.0f);
+        GLES20.glUniform1f(mGlobalTimeHandle, SystemClock.currentThreadTimeMillis() / 100.0f);
+        GLES20.glUniform3f(mResolutionHandle, mTileAmount, mTileAmount, 1.f);
+    }
+
+    /**
+     * looked up once per program rather than every frame
+     */
+    @Override
+    protected void resolveLocations() {
+        super.resolveLocations();
 
-        int resolutionHandle = GLES20.glGetUniformLocation(mCameraShaderProgram, "iResolution");
-        GLES20.glUniform3f(resolutionHandle, mTileAmount, mTileAmount, 1.f);
+        mGlobalTimeHandle = GLES20.glGetUniformLocation(mCameraShaderProgram, "iGlobalTime");
+        mResolutionHandle = GLES20.glGetUniformLocation(mCameraShaderProgram, "iResolution");
+    }
+
+    /**
+     * a fixed time so both precision variants draw the same frame
+     */
+    @Override
+    protected void onBindCalibrationUniforms(int program) {
+        GLES20.glUniform1f(GLES20.glGetUniformLocation(program, "iGlobalTime"), 1.f);
+        GLES20.glUniform3f(GLES20.glGetUniformLocation(program, "iResolution"),
+                mTileAmount, mTileAmount, 1.f);
     }
 
     public void setTileAmount(float tileAmount) {
@@ -16,6 +16,8 @@ import com.androidexperiments.shadercam.gl.VideoRenderer;
 public class TestRenderer extends VideoRenderer {
     private float mTileAmount = 1.f;
 
+    private int mGlobalTimeHandle, mResolutionHandle;
+
     public TestRenderer(Context context) {
         super(context, "superawesome.frag.glsl", "superawesome.vert.glsl");
     }
@@ -25,11 +27,19 @@ public class TestRenderer extends VideoRenderer {
         //always call super so that the built-in fun stuff can be set first
         super.setUniformsAndAttribs();
 
-        int globalTimeHandle = GLES20.glGetUniformLocation(mCameraShaderProgram, "iGlobalTime");
-        GLES20.glUniform1f(globalTimeHandle, SystemClock.currentThreadTimeMillis() / 100.0f);
+        GLES20.glUniform1f(mGlobalTimeHandle, SystemClock.currentThreadTimeMillis() / 100.0f);
+        GLES20.glUniform3f(mResolutionHandle, mTileAmount, mTileAmount, 1.f);
+    }
+
+    /**
+     * looked up once per program rather than every frame
+     */
+    @Override
+    protected void resolveLocations() {
+        super.resolveLocations();
 
-        int resolutionHandle = GLES20.glGetUniformLocation(mCameraShaderProgram, "iResolution");
-        GLES20.glUniform3f(resolutionHandle, mTileAmount, mTileAmount, 1.f);
+        mGlobalTimeHandle = GLES20.glGetUniformLocation(mCameraShaderProgram, "iGlobalTime");
+        mResolutionHandle = GLES20.glGetUniformLocation(mCameraShaderProgram, "iResolution");
     }
 
     public void setTileAmount(float tileAmount) {
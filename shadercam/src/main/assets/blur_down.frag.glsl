@@ -0,0 +1,19 @@
+//dual filter downsample, 5 bilinear taps
+precision mediump float;
+uniform sampler2D sourceTexture;
+
+//half a source texel, scaled by the blur offset
+uniform vec2 halfTexel;
+
+varying vec2 v_TexCoordinate;
+
+void main ()
+{
+    vec2 uv = v_TexCoordinate;
+    vec4 sum = texture2D(sourceTexture, uv) * 4.0;
+    sum += texture2D(sourceTexture, uv - halfTexel);
+    sum += texture2D(sourceTexture, uv + halfTexel);
+    sum += texture2D(sourceTexture, uv + vec2(halfTexel.x, -halfTexel.y));
+    sum += texture2D(sourceTexture, uv - vec2(halfTexel.x, -halfTexel.y));
+    gl_FragColor = sum / 8.0;
+}
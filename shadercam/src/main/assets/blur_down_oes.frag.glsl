@@ -0,0 +1,21 @@
+#extension GL_OES_EGL_image_external : require
+
+//first dual filter downsample, straight from the camera texture
+precision mediump float;
+uniform samplerExternalOES sourceTexture;
+
+//half a source texel, scaled by the blur offset
+uniform vec2 halfTexel;
+
+varying vec2 v_TexCoordinate;
+
+void main ()
+{
+    vec2 uv = v_TexCoordinate;
+    vec4 sum = texture2D(sourceTexture, uv) * 4.0;
+    sum += texture2D(sourceTexture, uv - halfTexel);
+    sum += texture2D(sourceTexture, uv + halfTexel);
+    sum += texture2D(sourceTexture, uv + vec2(halfTexel.x, -halfTexel.y));
+    sum += texture2D(sourceTexture, uv - vec2(halfTexel.x, -halfTexel.y));
+    gl_FragColor = sum / 8.0;
+}
@@ -0,0 +1,23 @@
+//dual filter upsample, 8 bilinear taps in a diamond
+precision mediump float;
+uniform sampler2D sourceTexture;
+
+//half a source texel, scaled by the blur offset
+uniform vec2 halfTexel;
+
+varying vec2 v_TexCoordinate;
+
+void main ()
+{
+    vec2 uv = v_TexCoordinate;
+    vec2 h = halfTexel;
+    vec4 sum = texture2D(sourceTexture, uv + vec2(-h.x * 2.0, 0.0));
+    sum += texture2D(sourceTexture, uv + vec2(-h.x, h.y)) * 2.0;
+    sum += texture2D(sourceTexture, uv + vec2(0.0, h.y * 2.0));
+    sum += texture2D(sourceTexture, uv + vec2(h.x, h.y)) * 2.0;
+    sum += texture2D(sourceTexture, uv + vec2(h.x * 2.0, 0.0));
+    sum += texture2D(sourceTexture, uv + vec2(h.x, -h.y)) * 2.0;
+    sum += texture2D(sourceTexture, uv + vec2(0.0, -h.y * 2.0));
+    sum += texture2D(sourceTexture, uv + vec2(-h.x, -h.y)) * 2.0;
+    gl_FragColor = sum / 12.0;
+}
@@ -0,0 +1,10 @@
+//straight copy of a texture, for blitting offscreen results to other surfaces
+precision mediump float;
+uniform sampler2D sourceTexture;
+
+varying vec2 v_TexCoordinate;
+
+void main ()
+{
+    gl_FragColor = texture2D(sourceTexture, v_TexCoordinate);
+}
@@ -0,0 +1,10 @@
+//fullscreen quad for offscreen passes, texcoords come straight from the position
+attribute vec4 position;
+
+varying vec2 v_TexCoordinate;
+
+void main()
+{
+    v_TexCoordinate = position.xy * 0.5 + 0.5;
+    gl_Position = position;
+}
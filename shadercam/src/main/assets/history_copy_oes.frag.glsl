@@ -0,0 +1,12 @@
+#extension GL_OES_EGL_image_external : require
+
+//copies (and scales) the camera frame into the frame history
+precision mediump float;
+uniform samplerExternalOES sourceTexture;
+
+varying vec2 v_TexCoordinate;
+
+void main ()
+{
+    gl_FragColor = texture2D(sourceTexture, v_TexCoordinate);
+}
@@ -0,0 +1,24 @@
+//counts 64x64 luminance tiles into 16 bins (x), 4 source rows per output row (y)
+precision mediump float;
+uniform sampler2D sourceTexture;
+
+varying vec2 v_TexCoordinate;
+
+void main ()
+{
+    float bin = floor(v_TexCoordinate.x * 16.0);
+    float lo = bin / 16.0;
+    //last bin also takes 1.0
+    float hi = bin < 15.0 ? (bin + 1.0) / 16.0 : 2.0;
+    float row = floor(v_TexCoordinate.y * 16.0) * 4.0;
+
+    float count = 0.0;
+    for (int y = 0; y < 4; y++) {
+        for (int x = 0; x < 64; x++) {
+            vec2 uv = (vec2(float(x), row + float(y)) + 0.5) / 64.0;
+            float l = texture2D(sourceTexture, uv).r;
+            count += step(lo, l) * (1.0 - step(hi, l));
+        }
+    }
+    gl_FragColor = vec4(count / 256.0, 0.0, 0.0, 1.0);
+}
@@ -0,0 +1,14 @@
+//sums the 16 partial histogram rows into one, as a fraction of all tiles
+precision mediump float;
+uniform sampler2D sourceTexture;
+
+varying vec2 v_TexCoordinate;
+
+void main ()
+{
+    float sum = 0.0;
+    for (int y = 0; y < 16; y++) {
+        sum += texture2D(sourceTexture, vec2(v_TexCoordinate.x, (float(y) + 0.5) / 16.0)).r;
+    }
+    gl_FragColor = vec4(sum / 16.0, 0.0, 0.0, 1.0);
+}
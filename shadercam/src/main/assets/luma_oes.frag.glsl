@@ -0,0 +1,22 @@
+#extension GL_OES_EGL_image_external : require
+
+//first luminance reduction step, averages 4 camera taps into (mean, min, max)
+precision mediump float;
+uniform samplerExternalOES sourceTexture;
+
+//a quarter of an output texel
+uniform vec2 tapOffset;
+
+varying vec2 v_TexCoordinate;
+
+const vec3 LUMA = vec3(0.299, 0.587, 0.114);
+
+void main ()
+{
+    vec2 uv = v_TexCoordinate;
+    float a = dot(texture2D(sourceTexture, uv - tapOffset).rgb, LUMA);
+    float b = dot(texture2D(sourceTexture, uv + tapOffset).rgb, LUMA);
+    float c = dot(texture2D(sourceTexture, uv + vec2(tapOffset.x, -tapOffset.y)).rgb, LUMA);
+    float d = dot(texture2D(sourceTexture, uv - vec2(tapOffset.x, -tapOffset.y)).rgb, LUMA);
+    gl_FragColor = vec4((a + b + c + d) * 0.25, min(min(a, b), min(c, d)), max(max(a, b), max(c, d)), 1.0);
+}
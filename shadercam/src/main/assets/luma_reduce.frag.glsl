@@ -0,0 +1,26 @@
+//reduces 4x4 blocks of (mean, min, max) into one
+precision mediump float;
+uniform sampler2D sourceTexture;
+
+//one source texel
+uniform vec2 sourceTexel;
+
+varying vec2 v_TexCoordinate;
+
+void main ()
+{
+    float sum = 0.0;
+    float lo = 1.0;
+    float hi = 0.0;
+    for (int y = 0; y < 4; y++) {
+        for (int x = 0; x < 4; x++) {
+            //lands on source texel centers, so linear filtering doesn't blend
+            vec2 uv = v_TexCoordinate + (vec2(float(x), float(y)) - 1.5) * sourceTexel;
+            vec3 s = texture2D(sourceTexture, uv).rgb;
+            sum += s.r;
+            lo = min(lo, s.g);
+            hi = max(hi, s.b);
+        }
+    }
+    gl_FragColor = vec4(sum / 16.0, lo, hi, 1.0);
+}
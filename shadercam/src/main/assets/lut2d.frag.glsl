@@ -0,0 +1,34 @@
+#extension GL_OES_EGL_image_external : require
+
+//highp so texel offsets stay exact across the size*size wide lut
+precision highp float;
+uniform samplerExternalOES camTexture;
+
+//tiled 2d lut from LutStage, size*size wide and size tall, one tile per blue slice
+uniform sampler2D lutTexture;
+uniform float lutSize;
+uniform float lutIntensity;
+
+varying vec2 v_CamTexCoordinate;
+
+vec3 sampleLut(vec3 color)
+{
+    float maxIndex = lutSize - 1.0;
+    float blue = color.b * maxIndex;
+    float slice0 = floor(blue);
+    float slice1 = min(slice0 + 1.0, maxIndex);
+
+    //red and green pick the texel center inside a tile, blue picks the tile
+    vec2 uv = (color.rg * maxIndex + 0.5) / vec2(lutSize * lutSize, lutSize);
+    vec3 color0 = texture2D(lutTexture, vec2(uv.x + slice0 / lutSize, uv.y)).rgb;
+    vec3 color1 = texture2D(lutTexture, vec2(uv.x + slice1 / lutSize, uv.y)).rgb;
+
+    return mix(color0, color1, blue - slice0);
+}
+
+void main ()
+{
+    vec4 cameraColor = texture2D(camTexture, v_CamTexCoordinate);
+    vec3 graded = sampleLut(clamp(cameraColor.rgb, 0.0, 1.0));
+    gl_FragColor = vec4(mix(cameraColor.rgb, graded, lutIntensity), cameraColor.a);
+}
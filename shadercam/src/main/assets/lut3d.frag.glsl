@@ -0,0 +1,26 @@
+#version 300 es
+#extension GL_OES_EGL_image_external_essl3 : require
+
+precision highp float;
+precision mediump sampler3D;
+uniform samplerExternalOES camTexture;
+
+//3d lut from LutStage
+uniform sampler3D lutTexture;
+uniform float lutSize;
+uniform float lutIntensity;
+
+in vec2 v_CamTexCoordinate;
+
+out vec4 fragColor;
+
+void main ()
+{
+    vec4 cameraColor = texture(camTexture, v_CamTexCoordinate);
+
+    //scale and offset so 0 and 1 land on the first and last texel centers
+    vec3 coord = clamp(cameraColor.rgb, 0.0, 1.0) * ((lutSize - 1.0) / lutSize) + 0.5 / lutSize;
+    vec3 graded = texture(lutTexture, coord).rgb;
+
+    fragColor = vec4(mix(cameraColor.rgb, graded, lutIntensity), cameraColor.a);
+}
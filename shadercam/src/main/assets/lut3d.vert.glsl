@@ -0,0 +1,21 @@
+#version 300 es
+//same as vid.vert.glsl, but in glsl es 3.00 so it can link with lut3d.frag.glsl
+
+//position
+in vec4 position;
+
+//camera transform and texture
+uniform mat4 camTextureTransform;
+uniform mat4 uPMatrix;
+
+in vec4 camTexCoordinate;
+
+//tex coords
+out vec2 v_CamTexCoordinate;
+
+void main()
+{
+    //camera texcoord needs to be manipulated by the transform given back from the system
+    v_CamTexCoordinate = (camTextureTransform * camTexCoordinate).xy;
+    gl_Position =  uPMatrix * position;
+}
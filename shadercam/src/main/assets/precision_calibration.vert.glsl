@@ -0,0 +1,12 @@
+//fullscreen quad for PrecisionCalibrator, feeds the varyings the stock effects read
+attribute vec4 position;
+
+varying vec2 v_CamTexCoordinate;
+varying vec2 v_TexCoordinate;
+
+void main()
+{
+    v_CamTexCoordinate = position.xy * 0.5 + 0.5;
+    v_TexCoordinate = v_CamTexCoordinate;
+    gl_Position = position;
+}
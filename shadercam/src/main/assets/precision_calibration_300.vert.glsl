@@ -0,0 +1,14 @@
+#version 300 es
+
+//precision_calibration.vert.glsl for #version 300 es effects
+in vec4 position;
+
+out vec2 v_CamTexCoordinate;
+out vec2 v_TexCoordinate;
+
+void main()
+{
+    v_CamTexCoordinate = position.xy * 0.5 + 0.5;
+    v_TexCoordinate = v_CamTexCoordinate;
+    gl_Position = position;
+}
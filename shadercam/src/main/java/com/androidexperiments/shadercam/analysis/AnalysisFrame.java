@@ -0,0 +1,98 @@
+package com.androidexperiments.shadercam.analysis;
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A YUV_420_888 camera frame copied out of an {@link Image}, so the image can go straight back
+ * to the camera while analysis runs. Frames and their plane buffers are pooled by
+ * {@link AnalysisStream} and only reallocated if the planes grow.
+ */
+public class AnalysisFrame {
+
+    public static final int PLANE_Y = 0;
+
+    public static final int PLANE_U = 1;
+
+    public static final int PLANE_V = 2;
+
+    private final ByteBuffer[] mPlanes = new ByteBuffer[3];
+
+    private final int[] mRowStrides = new int[3];
+
+    private final int[] mPixelStrides = new int[3];
+
+    private int mWidth, mHeight;
+
+    private long mTimestamp;
+
+    private long mSequence;
+
+    AnalysisFrame() {
+    }
+
+    /**
+     * copies the image planes in, growing our buffers if needed
+     */
+    void copyFrom(Image image, long sequence) {
+        mWidth = image.getWidth();
+        mHeight = image.getHeight();
+        mTimestamp = image.getTimestamp();
+        mSequence = sequence;
+
+        Image.Plane[] planes = image.getPlanes();
+        for (int i = 0; i < mPlanes.length; i++) {
+            ByteBuffer src = planes[i].getBuffer();
+            src.rewind();
+            ByteBuffer dst = mPlanes[i];
+            if (dst == null || dst.capacity() < src.remaining()) {
+                dst = ByteBuffer.allocateDirect(src.remaining());
+                mPlanes[i] = dst;
+            }
+            dst.clear();
+            dst.put(src);
+            dst.flip();
+            mRowStrides[i] = planes[i].getRowStride();
+            mPixelStrides[i] = planes[i].getPixelStride();
+        }
+    }
+
+    /**
+     * @param plane one of {@link #PLANE_Y}, {@link #PLANE_U}, {@link #PLANE_V}
+     * @return plane data, positioned at 0. Shared with the pool, don't hold on to it.
+     */
+    public ByteBuffer getPlane(int plane) {
+        return mPlanes[plane];
+    }
+
+    public int getRowStride(int plane) {
+        return mRowStrides[plane];
+    }
+
+    public int getPixelStride(int plane) {
+        return mPixelStrides[plane];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return sensor timestamp, same timebase as the preview SurfaceTexture
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return index of this frame among all frames the stream received, gaps are dropped frames
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+}
@@ -0,0 +1,243 @@
+package com.androidexperiments.shadercam.analysis;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.util.ArrayDeque;
+
+/**
+ * A second, usually much smaller, YUV_420_888 output for the camera session that feeds
+ * {@link FrameAnalyzer}s on a fixed set of worker threads, next to the shader preview.
+ *
+ * Analysis never holds up the camera: every image is copied into a pooled
+ * {@link AnalysisFrame} and closed right away, and if all the workers are still busy the
+ * newest frame replaces whichever one was waiting - latest frame wins, slow analyzers just see
+ * fewer frames. The pool holds one frame per worker plus one waiting, so in steady state
+ * nothing is allocated.
+ */
+public class AnalysisStream {
+
+    private static final String TAG = AnalysisStream.class.getSimpleName();
+
+    /**
+     * one being copied, one for acquireLatestImage to skip ahead to
+     */
+    private static final int MAX_IMAGES = 2;
+
+    private final FrameAnalyzer mAnalyzer;
+
+    private final ImageReader mImageReader;
+
+    private final HandlerThread mReaderThread;
+
+    private final Thread[] mWorkers;
+
+    private final Object mLock = new Object();
+
+    /**
+     * frames nobody is using, guarded by mLock
+     */
+    private final ArrayDeque<AnalysisFrame> mFree;
+
+    /**
+     * newest frame waiting for a worker, guarded by mLock
+     */
+    private AnalysisFrame mPending;
+
+    private boolean mRunning = true;
+
+    private long mReceived, mDropped, mAnalyzed;
+
+    /**
+     * @param width size of the analysis images, must be a YUV_420_888 output size of the camera.
+     *              see {@link #chooseSize(Size[], int, int)}
+     * @param workers number of threads running the analyzer
+     */
+    public AnalysisStream(int width, int height, int workers, FrameAnalyzer analyzer) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("need at least one worker, was " + workers);
+        }
+        mAnalyzer = analyzer;
+
+        mFree = new ArrayDeque<>(workers + 1);
+        for (int i = 0; i < workers + 1; i++) {
+            mFree.addLast(new AnalysisFrame());
+        }
+
+        mWorkers = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            mWorkers[i] = new Thread(mWorkerLoop, "AnalysisWorker-" + i);
+            mWorkers[i].start();
+        }
+
+        mReaderThread = new HandlerThread("AnalysisReader");
+        mReaderThread.start();
+        mImageReader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, MAX_IMAGES);
+        mImageReader.setOnImageAvailableListener(mOnImageAvailableListener,
+                new Handler(mReaderThread.getLooper()));
+    }
+
+    /**
+     * Picks the largest size that fits within maxWidth x maxHeight, or the smallest one if none
+     * do. Sizes are in sensor orientation, ie: usually landscape.
+     *
+     * @param choices from StreamConfigurationMap.getOutputSizes(ImageFormat.YUV_420_888)
+     */
+    public static Size chooseSize(Size[] choices, int maxWidth, int maxHeight) {
+        Size best = null;
+        Size smallest = null;
+        for (Size size : choices) {
+            long area = (long) size.getWidth() * size.getHeight();
+            if (smallest == null || area < (long) smallest.getWidth() * smallest.getHeight()) {
+                smallest = size;
+            }
+            if (size.getWidth() <= maxWidth && size.getHeight() <= maxHeight
+                    && (best == null || area > (long) best.getWidth() * best.getHeight())) {
+                best = size;
+            }
+        }
+        return best != null ? best : smallest;
+    }
+
+    /**
+     * @return surface to add to the capture session and as a target of the repeating request
+     */
+    public Surface getSurface() {
+        return mImageReader.getSurface();
+    }
+
+    public int getWidth() {
+        return mImageReader.getWidth();
+    }
+
+    public int getHeight() {
+        return mImageReader.getHeight();
+    }
+
+    /**
+     * @return frames delivered by the camera so far
+     */
+    public long getReceivedCount() {
+        synchronized (mLock) {
+            return mReceived;
+        }
+    }
+
+    /**
+     * @return frames replaced by a newer one before any worker got to them
+     */
+    public long getDroppedCount() {
+        synchronized (mLock) {
+            return mDropped;
+        }
+    }
+
+    public long getAnalyzedCount() {
+        synchronized (mLock) {
+            return mAnalyzed;
+        }
+    }
+
+    /**
+     * Stops delivering frames and closes the reader. Close the camera session using
+     * {@link #getSurface()} first. Analyzers already running are left to finish on their own.
+     */
+    public void release() {
+        mImageReader.setOnImageAvailableListener(null, null);
+        mReaderThread.quitSafely();
+        try {
+            mReaderThread.join();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted waiting for reader thread", e);
+        }
+        mImageReader.close();
+
+        synchronized (mLock) {
+            mRunning = false;
+            mPending = null;
+            mLock.notifyAll();
+        }
+    }
+
+    private final ImageReader.OnImageAvailableListener mOnImageAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireLatestImage();
+            if (image == null) {
+                return;
+            }
+
+            AnalysisFrame frame;
+            long sequence;
+            synchronized (mLock) {
+                sequence = mReceived++;
+                frame = mFree.pollFirst();
+                if (frame == null) {
+                    //every worker is busy, overwrite the frame that's been waiting
+                    frame = mPending;
+                    mPending = null;
+                    mDropped++;
+                }
+            }
+
+            try {
+                frame.copyFrom(image, sequence);
+            } finally {
+                image.close();
+            }
+
+            synchronized (mLock) {
+                if (!mRunning) {
+                    return;
+                }
+                if (mPending != null) {
+                    mFree.addLast(mPending);
+                    mDropped++;
+                }
+                mPending = frame;
+                mLock.notify();
+            }
+        }
+    };
+
+    private final Runnable mWorkerLoop = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                AnalysisFrame frame;
+                synchronized (mLock) {
+                    while (mRunning && mPending == null) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (!mRunning) {
+                        return;
+                    }
+                    frame = mPending;
+                    mPending = null;
+                }
+
+                try {
+                    mAnalyzer.analyze(frame);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Analyzer failed on frame " + frame.getSequence(), e);
+                }
+
+                synchronized (mLock) {
+                    mFree.addLast(frame);
+                    mAnalyzed++;
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,14 @@
+package com.androidexperiments.shadercam.analysis;
+
+/**
+ * Runs CPU side analysis (barcodes, ML, ...) on camera frames from an {@link AnalysisStream}.
+ */
+public interface FrameAnalyzer {
+
+    /**
+     * Called on one of the stream's worker threads, possibly on several at once if the stream
+     * has more than one worker. The frame and its buffers are reused once this returns, so
+     * copy out anything you need to keep.
+     */
+    void analyze(AnalysisFrame frame);
+}
@@ -0,0 +1,306 @@
+package com.androidexperiments.shadercam.camera;
+
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.MediaRecorder;
+import android.util.Range;
+import android.util.Size;
+
+/**
+ * What one camera can do, read out of its {@link CameraCharacteristics} once so choosing sizes
+ * and frame rates never goes back to the camera service. Immutable, see
+ * {@link CameraCapabilityCache} for where these come from.
+ */
+public class CameraCapabilities {
+
+    /**
+     * Sizes of one kind of output, with the minimum frame duration and stall duration of each in
+     * nanoseconds, at the same index
+     */
+    public static class Outputs {
+
+        private final Size[] mSizes;
+
+        private final long[] mMinFrameDurations;
+
+        private final long[] mStallDurations;
+
+        Outputs(Size[] sizes, long[] minFrameDurations, long[] stallDurations) {
+            mSizes = sizes;
+            mMinFrameDurations = minFrameDurations;
+            mStallDurations = stallDurations;
+        }
+
+        /**
+         * sizes of the given class, ex: SurfaceTexture.class
+         */
+        static Outputs of(StreamConfigurationMap map, Class<?> klass) {
+            Size[] sizes = map.getOutputSizes(klass);
+            if (sizes == null) {
+                sizes = new Size[0];
+            }
+            long[] minFrame = new long[sizes.length];
+            long[] stall = new long[sizes.length];
+            for (int i = 0; i < sizes.length; i++) {
+                minFrame[i] = map.getOutputMinFrameDuration(klass, sizes[i]);
+                stall[i] = map.getOutputStallDuration(klass, sizes[i]);
+            }
+            return new Outputs(sizes, minFrame, stall);
+        }
+
+        /**
+         * sizes of the given format, ex: ImageFormat.YUV_420_888
+         */
+        static Outputs of(StreamConfigurationMap map, int format) {
+            Size[] sizes = map.getOutputSizes(format);
+            if (sizes == null) {
+                sizes = new Size[0];
+            }
+            long[] minFrame = new long[sizes.length];
+            long[] stall = new long[sizes.length];
+            for (int i = 0; i < sizes.length; i++) {
+                minFrame[i] = map.getOutputMinFrameDuration(format, sizes[i]);
+                stall[i] = map.getOutputStallDuration(format, sizes[i]);
+            }
+            return new Outputs(sizes, minFrame, stall);
+        }
+
+        public int size() {
+            return mSizes.length;
+        }
+
+        public Size getSize(int index) {
+            return mSizes[index];
+        }
+
+        /**
+         * @return a copy of the sizes, in the camera's order
+         */
+        public Size[] getSizes() {
+            return mSizes.clone();
+        }
+
+        public int[] getWidths() {
+            int[] widths = new int[mSizes.length];
+            for (int i = 0; i < mSizes.length; i++) {
+                widths[i] = mSizes[i].getWidth();
+            }
+            return widths;
+        }
+
+        public int[] getHeights() {
+            int[] heights = new int[mSizes.length];
+            for (int i = 0; i < mSizes.length; i++) {
+                heights[i] = mSizes[i].getHeight();
+            }
+            return heights;
+        }
+
+        /**
+         * @return a copy of the minimum frame durations, ns
+         */
+        public long[] getMinFrameDurations() {
+            return mMinFrameDurations.clone();
+        }
+
+        /**
+         * @return a copy of the stall durations, ns
+         */
+        public long[] getStallDurations() {
+            return mStallDurations.clone();
+        }
+
+        /**
+         * best of these for the negotiator's target fps and shader cost, see
+         * {@link SizeNegotiator#choose}
+         */
+        public SizeNegotiator.Choice negotiate(SizeNegotiator negotiator, int targetWidth,
+                int targetHeight) {
+            return negotiator.choose(targetWidth, targetHeight, getWidths(), getHeights(),
+                    mMinFrameDurations, mStallDurations);
+        }
+
+        public long getMinFrameDuration(int index) {
+            return mMinFrameDurations[index];
+        }
+
+        public long getStallDuration(int index) {
+            return mStallDurations[index];
+        }
+
+        /**
+         * @return index of this size, -1 if it isn't one of ours
+         */
+        public int indexOf(Size size) {
+            for (int i = 0; i < mSizes.length; i++) {
+                if (mSizes[i].equals(size)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private final String mCameraId;
+
+    private final CameraCharacteristics mCharacteristics;
+
+    private final int mLensFacing;
+
+    private final int mHardwareLevel;
+
+    private final int mSensorOrientation;
+
+    private final Outputs mPreviewOutputs;
+
+    private final Outputs mVideoOutputs;
+
+    private final Outputs mYuvOutputs;
+
+    private final Outputs mJpegOutputs;
+
+    private final Range<Integer>[] mFpsRanges;
+
+    private final boolean mHighSpeedSupported;
+
+    private final StreamConfigurationMap mStreamConfigurationMap;
+
+    CameraCapabilities(String cameraId, CameraCharacteristics characteristics) {
+        mCameraId = cameraId;
+        mCharacteristics = characteristics;
+        mLensFacing = getInt(characteristics, CameraCharacteristics.LENS_FACING,
+                CameraMetadata.LENS_FACING_BACK);
+        mHardwareLevel = getInt(characteristics,
+                CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL,
+                CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY);
+        mSensorOrientation = getInt(characteristics, CameraCharacteristics.SENSOR_ORIENTATION, 0);
+
+        mStreamConfigurationMap = characteristics
+                .get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        mPreviewOutputs = Outputs.of(mStreamConfigurationMap, SurfaceTexture.class);
+        mVideoOutputs = Outputs.of(mStreamConfigurationMap, MediaRecorder.class);
+        mYuvOutputs = Outputs.of(mStreamConfigurationMap, ImageFormat.YUV_420_888);
+        mJpegOutputs = Outputs.of(mStreamConfigurationMap, ImageFormat.JPEG);
+
+        Range<Integer>[] fpsRanges = characteristics
+                .get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        mFpsRanges = fpsRanges != null ? fpsRanges : newRangeArray(0);
+
+        boolean highSpeed = false;
+        int[] capabilities = characteristics
+                .get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        if (capabilities != null) {
+            for (int capability : capabilities) {
+                if (capability == CameraMetadata
+                        .REQUEST_AVAILABLE_CAPABILITIES_CONSTRAINED_HIGH_SPEED_VIDEO) {
+                    highSpeed = true;
+                }
+            }
+        }
+        mHighSpeedSupported = highSpeed;
+    }
+
+    private static int getInt(CameraCharacteristics characteristics,
+            CameraCharacteristics.Key<Integer> key, int fallback) {
+        Integer value = characteristics.get(key);
+        return value != null ? value : fallback;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Range<Integer>[] newRangeArray(int length) {
+        return (Range<Integer>[]) new Range[length];
+    }
+
+    public String getCameraId() {
+        return mCameraId;
+    }
+
+    /**
+     * everything else, ex: for keys we don't copy out
+     */
+    public CameraCharacteristics getCharacteristics() {
+        return mCharacteristics;
+    }
+
+    /**
+     * @return one of CameraMetadata.LENS_FACING_*
+     */
+    public int getLensFacing() {
+        return mLensFacing;
+    }
+
+    /**
+     * @return one of CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_*
+     */
+    public int getHardwareLevel() {
+        return mHardwareLevel;
+    }
+
+    public int getSensorOrientation() {
+        return mSensorOrientation;
+    }
+
+    /**
+     * SurfaceTexture outputs, what the preview and the renderer get
+     */
+    public Outputs getPreviewOutputs() {
+        return mPreviewOutputs;
+    }
+
+    /**
+     * MediaRecorder outputs
+     */
+    public Outputs getVideoOutputs() {
+        return mVideoOutputs;
+    }
+
+    /**
+     * YUV_420_888 outputs, for ImageReader analysis
+     */
+    public Outputs getYuvOutputs() {
+        return mYuvOutputs;
+    }
+
+    public Outputs getJpegOutputs() {
+        return mJpegOutputs;
+    }
+
+    /**
+     * @return a copy of CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES
+     */
+    public Range<Integer>[] getFpsRanges() {
+        return mFpsRanges.clone();
+    }
+
+    /**
+     * AE target fps range closest to the negotiator's target, see
+     * {@link SizeNegotiator#chooseFpsRange}. null if the camera lists none
+     */
+    public Range<Integer> chooseFpsRange(SizeNegotiator negotiator) {
+        int[] lowers = new int[mFpsRanges.length];
+        int[] uppers = new int[mFpsRanges.length];
+        for (int i = 0; i < mFpsRanges.length; i++) {
+            lowers[i] = mFpsRanges[i].getLower();
+            uppers[i] = mFpsRanges[i].getUpper();
+        }
+        int index = negotiator.chooseFpsRange(lowers, uppers);
+        return index >= 0 ? mFpsRanges[index] : null;
+    }
+
+    /**
+     * whether the camera supports constrained high speed video sessions
+     */
+    public boolean isHighSpeedSupported() {
+        return mHighSpeedSupported;
+    }
+
+    /**
+     * the raw map, for the high speed size and fps range queries
+     */
+    public StreamConfigurationMap getStreamConfigurationMap() {
+        return mStreamConfigurationMap;
+    }
+}
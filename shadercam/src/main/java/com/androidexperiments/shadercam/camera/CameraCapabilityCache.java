@@ -0,0 +1,138 @@
+package com.androidexperiments.shadercam.camera;
+
+import android.content.Context;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process wide cache of {@link CameraCapabilities}, so the camera id list and characteristics
+ * binder calls happen once per process instead of on every preview start.
+ *
+ * The first {@link #getInstance} starts loading every camera on a background thread, so call it
+ * as early as possible, ex: from Application.onCreate or the activity's onCreate. Lookups made
+ * while that's still running wait for the camera they need instead of asking twice.
+ *
+ * Characteristics of a camera never change, but the set of cameras can: an id showing up that
+ * we don't know drops the id list, and an external camera going unavailable, which is also what
+ * unplugging looks like, drops it and its entry.
+ */
+public class CameraCapabilityCache {
+
+    private static final String TAG = CameraCapabilityCache.class.getSimpleName();
+
+    private static CameraCapabilityCache __instance;
+
+    private final CameraManager mCameraManager;
+
+    private final Handler mHandler;
+
+    private String[] mCameraIds;
+
+    private final Map<String, CameraCapabilities> mCapabilities = new HashMap<>();
+
+    private int mLoads;
+
+    public static synchronized CameraCapabilityCache getInstance(Context context) {
+        if (__instance == null) {
+            __instance = new CameraCapabilityCache(context);
+        }
+        return __instance;
+    }
+
+    private CameraCapabilityCache(Context context) {
+        mCameraManager = (CameraManager) context.getApplicationContext()
+                .getSystemService(Context.CAMERA_SERVICE);
+        HandlerThread thread = new HandlerThread("CameraCapabilities");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    for (String id : getCameraIds()) {
+                        get(id);
+                    }
+                    Log.d(TAG, "loaded " + mCapabilities.size() + " cameras in "
+                            + (System.nanoTime() - start) / 1000000 + "ms");
+                } catch (CameraAccessException | RuntimeException e) {
+                    //whoever needs them will hit the same error, and report it, on lookup
+                    Log.e(TAG, "Failed to load camera capabilities", e);
+                }
+            }
+        });
+        mCameraManager.registerAvailabilityCallback(mAvailabilityCallback, mHandler);
+    }
+
+    /**
+     * @return a copy of the camera id list
+     */
+    public synchronized String[] getCameraIds() throws CameraAccessException {
+        if (mCameraIds == null) {
+            mCameraIds = mCameraManager.getCameraIdList();
+            mLoads++;
+        }
+        return mCameraIds.clone();
+    }
+
+    /**
+     * @return capabilities of this camera, from the camera service only the first time
+     */
+    public synchronized CameraCapabilities get(String cameraId) throws CameraAccessException {
+        CameraCapabilities capabilities = mCapabilities.get(cameraId);
+        if (capabilities == null) {
+            CameraCharacteristics characteristics = mCameraManager
+                    .getCameraCharacteristics(cameraId);
+            capabilities = new CameraCapabilities(cameraId, characteristics);
+            mCapabilities.put(cameraId, capabilities);
+            mLoads++;
+        }
+        return capabilities;
+    }
+
+    /**
+     * @return number of binder calls made to fill the cache so far, for checking it's working
+     */
+    public synchronized int getLoadCount() {
+        return mLoads;
+    }
+
+    private synchronized void onCameraChanged(String cameraId, boolean available) {
+        if (mCameraIds != null && !Arrays.asList(mCameraIds).contains(cameraId)) {
+            Log.d(TAG, "new camera " + cameraId + ", reloading ids");
+            mCameraIds = null;
+            return;
+        }
+        CameraCapabilities capabilities = mCapabilities.get(cameraId);
+        if (!available && capabilities != null
+                && capabilities.getLensFacing() == CameraMetadata.LENS_FACING_EXTERNAL) {
+            Log.d(TAG, "external camera " + cameraId + " unavailable, dropping it");
+            mCapabilities.remove(cameraId);
+            mCameraIds = null;
+        }
+    }
+
+    private final CameraManager.AvailabilityCallback mAvailabilityCallback
+            = new CameraManager.AvailabilityCallback() {
+
+        @Override
+        public void onCameraAvailable(@NonNull String cameraId) {
+            onCameraChanged(cameraId, true);
+        }
+
+        @Override
+        public void onCameraUnavailable(@NonNull String cameraId) {
+            onCameraChanged(cameraId, false);
+        }
+    };
+}
@@ -0,0 +1,490 @@
+package com.androidexperiments.shadercam.camera;
+
+import android.content.Context;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraConstrainedHighSpeedCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.List;
+
+/**
+ * Opens, configures and closes a camera entirely on its own "CameraBackground" thread, so the
+ * UI thread never waits on the camera service. Every public method just posts to that thread
+ * and returns.
+ *
+ * The device is opened as soon as {@link #open} is called, ex: from onResume, while the renderer
+ * is still setting up EGL and compiling shaders. The capture session is only created once both
+ * the device is open and {@link #setOutputsReady} says the preview texture exists, whichever
+ * comes last - so the two slow parts of startup overlap instead of running back to back.
+ *
+ * States go CLOSED -> OPENING -> OPENED -> CONFIGURING -> PREVIEWING -> CLOSING -> CLOSED. Calls
+ * only change what's wanted (which camera, open or not), the thread then walks the states toward
+ * it, so close() during OPENING or open() during CLOSING just work once the camera service
+ * answers.
+ *
+ * All {@link Callback} methods run on the camera thread.
+ */
+public class CameraController {
+
+    private static final String TAG = CameraController.class.getSimpleName();
+
+    public static final int STATE_CLOSED = 0;
+
+    public static final int STATE_OPENING = 1;
+
+    public static final int STATE_OPENED = 2;
+
+    public static final int STATE_CONFIGURING = 3;
+
+    public static final int STATE_PREVIEWING = 4;
+
+    public static final int STATE_CLOSING = 5;
+
+    private static final String[] STATE_NAMES = {
+            "CLOSED", "OPENING", "OPENED", "CONFIGURING", "PREVIEWING", "CLOSING"
+    };
+
+    public interface Callback {
+
+        /**
+         * the device is open and the outputs are ready. build the outputs and the preview request,
+         * then call {@link CameraController#createSession}
+         */
+        void onConfigureSession(CameraDevice device) throws CameraAccessException;
+
+        /**
+         * the session is ready, start the preview with {@link CameraController#setRepeatingRequest}
+         */
+        void onSessionConfigured(CameraCaptureSession session) throws CameraAccessException;
+
+        /**
+         * the device is fully closed, surfaces handed to the last session can be released now
+         */
+        void onClosed();
+
+        /**
+         * opening or configuring failed, or the device reported an error. the camera is closed
+         * or closing and won't be reopened until the next {@link CameraController#open}
+         */
+        void onError(Exception e);
+    }
+
+    private final CameraManager mCameraManager;
+
+    private final CameraCapabilityCache mCapabilityCache;
+
+    private final Callback mCallback;
+
+    private final HandlerThread mThread;
+
+    private final Handler mHandler;
+
+    /**
+     * everything below is only touched on the camera thread, apart from the volatile fields
+     * which are read from anywhere
+     */
+    private volatile int mState = STATE_CLOSED;
+
+    private boolean mWantOpen;
+
+    private int mWantIndex;
+
+    private int mOpenIndex;
+
+    private boolean mOutputsReady;
+
+    private boolean mQuitWhenClosed;
+
+    private CameraDevice mDevice;
+
+    private CameraCaptureSession mSession;
+
+    private volatile String mCameraId;
+
+    private long mRequestNs;
+
+    private volatile long mOpenNs, mConfigureNs, mFirstFrameNs;
+
+    public CameraController(Context context, Callback callback) {
+        mCameraManager = (CameraManager) context.getApplicationContext()
+                .getSystemService(Context.CAMERA_SERVICE);
+        mCapabilityCache = CameraCapabilityCache.getInstance(context);
+        mCallback = callback;
+        mThread = new HandlerThread("CameraBackground");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * open the camera at this index of {@link CameraManager#getCameraIdList()}, falling back to
+     * the first one if there aren't that many. if a different camera is open it's closed first,
+     * if the same one is already open or opening this does nothing.
+     */
+    public void open(final int cameraIndex) {
+        final long requestNs = System.nanoTime();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mWantOpen || mWantIndex != cameraIndex || mState == STATE_CLOSING) {
+                    mRequestNs = requestNs;
+                    mOpenNs = mConfigureNs = mFirstFrameNs = 0;
+                }
+                mWantOpen = true;
+                mWantIndex = cameraIndex;
+                advance();
+            }
+        });
+    }
+
+    /**
+     * close the camera, without waiting for it. {@link Callback#onClosed()} says when it's done
+     */
+    public void close() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mWantOpen = false;
+                advance();
+            }
+        });
+    }
+
+    /**
+     * whether the surfaces the session will draw into exist yet. the session isn't created
+     * until they do, and dropping them while previewing closes the session but keeps the device
+     * open, ready for the next set.
+     */
+    public void setOutputsReady(final boolean ready) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mOutputsReady = ready;
+                advance();
+            }
+        });
+    }
+
+    /**
+     * close the camera and end the camera thread once it's closed. the controller can't be used
+     * after this
+     */
+    public void release() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mWantOpen = false;
+                mQuitWhenClosed = true;
+                advance();
+            }
+        });
+    }
+
+    /**
+     * create the capture session for the open device, only from
+     * {@link Callback#onConfigureSession}
+     */
+    public void createSession(List<Surface> outputs) throws CameraAccessException {
+        createSession(outputs, false);
+    }
+
+    /**
+     * @param highSpeed create a constrained high speed session instead, outputs must then be a
+     *                  preview and optionally a video surface, both at a high speed video size
+     */
+    public void createSession(List<Surface> outputs, boolean highSpeed)
+            throws CameraAccessException {
+        checkCameraThread();
+        if (mState != STATE_CONFIGURING) {
+            throw new IllegalStateException("createSession() outside of onConfigureSession()");
+        }
+        if (highSpeed) {
+            mDevice.createConstrainedHighSpeedCaptureSession(outputs, mSessionCallback, mHandler);
+        } else {
+            mDevice.createCaptureSession(outputs, mSessionCallback, mHandler);
+        }
+    }
+
+    /**
+     * start the preview on the current session. capture results are passed on to the given
+     * callback if it's not null, the first one also marks the first frame for
+     * {@link #getFirstFrameMillis()}. on a high speed session the request is expanded into the
+     * burst the session wants and repeated as that.
+     */
+    public void setRepeatingRequest(CaptureRequest request,
+            CameraCaptureSession.CaptureCallback callback) throws CameraAccessException {
+        checkCameraThread();
+        if (mSession == null) {
+            throw new IllegalStateException("No capture session");
+        }
+        if (mSession instanceof CameraConstrainedHighSpeedCaptureSession) {
+            List<CaptureRequest> burst = ((CameraConstrainedHighSpeedCaptureSession) mSession)
+                    .createHighSpeedRequestList(request);
+            mSession.setRepeatingBurst(burst, new FirstFrameCallback(callback), mHandler);
+        } else {
+            mSession.setRepeatingRequest(request, new FirstFrameCallback(callback), mHandler);
+        }
+    }
+
+    /**
+     * @return capabilities of the open, or last opened, camera. call on the camera thread
+     */
+    public CameraCapabilities getCapabilities() throws CameraAccessException {
+        checkCameraThread();
+        return mCapabilityCache.get(mCameraId);
+    }
+
+    /**
+     * the camera thread's handler, for session calls such as capture() that want one
+     */
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    public CameraManager getCameraManager() {
+        return mCameraManager;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * @return id of the open, or last opened, camera. null before the first open
+     */
+    public String getCameraId() {
+        return mCameraId;
+    }
+
+    /**
+     * @return time from {@link #open} to the device being opened, 0 if it hasn't yet
+     */
+    public long getOpenMillis() {
+        return mOpenNs / 1000000;
+    }
+
+    /**
+     * @return time from {@link #open} to the capture session being configured, 0 if it hasn't yet
+     */
+    public long getConfigureMillis() {
+        return mConfigureNs / 1000000;
+    }
+
+    /**
+     * @return time from {@link #open} to the first completed preview capture, 0 if there hasn't
+     * been one yet
+     */
+    public long getFirstFrameMillis() {
+        return mFirstFrameNs / 1000000;
+    }
+
+    /**
+     * move one step from the current state toward what's wanted. states that are waiting on the
+     * camera service do nothing here, their callbacks call back in when they land.
+     */
+    private void advance() {
+        boolean wanted = mWantOpen && mWantIndex == mOpenIndex;
+        switch (mState) {
+            case STATE_CLOSED:
+                if (mWantOpen) {
+                    startOpen();
+                } else if (mQuitWhenClosed) {
+                    mThread.quitSafely();
+                }
+                break;
+            case STATE_OPENED:
+                if (!wanted) {
+                    startClose();
+                } else if (mOutputsReady) {
+                    startConfigure();
+                }
+                break;
+            case STATE_CONFIGURING:
+                //whatever session shows up gets dropped in onConfigured
+                if (!wanted) {
+                    startClose();
+                }
+                break;
+            case STATE_PREVIEWING:
+                if (!wanted) {
+                    startClose();
+                } else if (!mOutputsReady) {
+                    mSession.close();
+                    mSession = null;
+                    setState(STATE_OPENED);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void startOpen() {
+        try {
+            String[] cameraIds = mCapabilityCache.getCameraIds();
+            mOpenIndex = mWantIndex;
+            //make sure we dont get array out of bounds error, default to primary [0] if thats the case
+            int index = mWantIndex < cameraIds.length ? mWantIndex : 0;
+            mCameraId = cameraIds[index];
+            setState(STATE_OPENING);
+            mCameraManager.openCamera(mCameraId, mDeviceCallback, mHandler);
+        } catch (CameraAccessException | SecurityException | NullPointerException e) {
+            // an NPE is thrown when the Camera2API is used but not supported on the device
+            Log.e(TAG, "Failed to open camera " + mCameraId, e);
+            setState(STATE_CLOSED);
+            mWantOpen = false;
+            mCallback.onError(e);
+            advance();
+        }
+    }
+
+    private void startConfigure() {
+        setState(STATE_CONFIGURING);
+        try {
+            mCallback.onConfigureSession(mDevice);
+        } catch (CameraAccessException | IllegalStateException e) {
+            fail(e);
+        }
+    }
+
+    private void startClose() {
+        setState(STATE_CLOSING);
+        mSession = null;
+        mDevice.close();
+    }
+
+    private void fail(Exception e) {
+        Log.e(TAG, "Camera " + mCameraId + " failed in " + STATE_NAMES[mState], e);
+        mWantOpen = false;
+        mCallback.onError(e);
+        if (mState != STATE_CLOSING && mState != STATE_CLOSED && mDevice != null) {
+            startClose();
+        }
+    }
+
+    private void setState(int state) {
+        Log.d(TAG, STATE_NAMES[mState] + " -> " + STATE_NAMES[state]);
+        mState = state;
+    }
+
+    private void checkCameraThread() {
+        if (Thread.currentThread() != mThread) {
+            throw new IllegalStateException("Must be called on the camera thread");
+        }
+    }
+
+    private final CameraDevice.StateCallback mDeviceCallback = new CameraDevice.StateCallback() {
+
+        @Override
+        public void onOpened(@NonNull CameraDevice camera) {
+            mDevice = camera;
+            mOpenNs = System.nanoTime() - mRequestNs;
+            setState(STATE_OPENED);
+            advance();
+        }
+
+        @Override
+        public void onDisconnected(@NonNull CameraDevice camera) {
+            Log.e(TAG, "DISCONNECTED FROM CAMERA " + camera.getId());
+            mDevice = camera;
+            mWantOpen = false;
+            if (mState != STATE_CLOSING) {
+                startClose();
+            }
+        }
+
+        @Override
+        public void onError(@NonNull CameraDevice camera, int error) {
+            mDevice = camera;
+            fail(new RuntimeException("CameraDevice.StateCallback onError() " + error));
+        }
+
+        @Override
+        public void onClosed(@NonNull CameraDevice camera) {
+            if (camera != mDevice) {
+                return;
+            }
+            mDevice = null;
+            mSession = null;
+            setState(STATE_CLOSED);
+            mCallback.onClosed();
+            advance();
+        }
+    };
+
+    private final CameraCaptureSession.StateCallback mSessionCallback
+            = new CameraCaptureSession.StateCallback() {
+
+        @Override
+        public void onConfigured(@NonNull CameraCaptureSession session) {
+            if (mState != STATE_CONFIGURING || session.getDevice() != mDevice) {
+                session.close();
+                return;
+            }
+            if (!mOutputsReady) {
+                session.close();
+                setState(STATE_OPENED);
+                advance();
+                return;
+            }
+            mSession = session;
+            mConfigureNs = System.nanoTime() - mRequestNs;
+            setState(STATE_PREVIEWING);
+            try {
+                mCallback.onSessionConfigured(session);
+            } catch (CameraAccessException | IllegalStateException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+            if (mState != STATE_CONFIGURING || session.getDevice() != mDevice) {
+                return;
+            }
+            fail(new IllegalStateException("CaptureSession Config Failed"));
+        }
+    };
+
+    /**
+     * passes results on, noting when the first one lands
+     */
+    private class FirstFrameCallback extends CameraCaptureSession.CaptureCallback {
+
+        private final CameraCaptureSession.CaptureCallback mWrapped;
+
+        FirstFrameCallback(CameraCaptureSession.CaptureCallback wrapped) {
+            mWrapped = wrapped;
+        }
+
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+            if (mFirstFrameNs == 0 && mRequestNs != 0) {
+                mFirstFrameNs = System.nanoTime() - mRequestNs;
+                Log.d(TAG, "camera " + mCameraId + " open: " + getOpenMillis() + "ms, configured: "
+                        + getConfigureMillis() + "ms, first frame: " + getFirstFrameMillis() + "ms");
+            }
+            if (mWrapped != null) {
+                mWrapped.onCaptureCompleted(session, request, result);
+            }
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
+            if (mWrapped != null) {
+                mWrapped.onCaptureFailed(session, request, failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.androidexperiments.shadercam.camera;
+
+/**
+ * Picks a camera output size that can actually run at the frame rate we want, instead of just
+ * the best aspect match. Each candidate is scored on:
+ *
+ * - whether the camera can deliver it at the target fps, from its minimum frame duration plus
+ *   stall duration (see StreamConfigurationMap.getOutputMinFrameDuration)
+ * - whether the shader can keep up at that many pixels, from an estimated cost per pixel
+ * - how far its aspect ratio is from the target's
+ * - how far its area is from the target's, undersized counting more than oversized
+ *
+ * Missing the frame rate or the shader budget isn't a hard reject, it's a penalty big enough that
+ * any candidate that makes both wins, so there's always an answer and among the ones that can't
+ * keep up the closest one is picked.
+ *
+ * Plain Java on plain arrays, no Android types, so it behaves the same everywhere. Sizes and
+ * targets are orientation agnostic, both are compared long side to long side.
+ */
+public class SizeNegotiator {
+
+    private static final double ASPECT_WEIGHT = 8.0;
+
+    private static final double UNDERSIZE_WEIGHT = 2.0;
+
+    private static final double OVERSIZE_WEIGHT = 1.0;
+
+    private static final double FPS_MISS_PENALTY = 1000.0;
+
+    private static final double SHADER_MISS_PENALTY = 100.0;
+
+    /**
+     * durations within this of the budget still count, 30fps is 33333333ns but devices report
+     * 33333333 or 33333334
+     */
+    private static final double DURATION_TOLERANCE = 1.01;
+
+    private int mTargetFps = 30;
+
+    private float mShaderNsPerPixel = 0.f;
+
+    private float mShaderBudget = 0.75f;
+
+    /**
+     * The result of {@link #choose}
+     */
+    public static class Choice {
+
+        private final int mIndex;
+
+        private final int mWidth;
+
+        private final int mHeight;
+
+        private final float mMaxFps;
+
+        private final boolean mMeetsFps;
+
+        private final boolean mFitsShader;
+
+        private final double mScore;
+
+        Choice(int index, int width, int height, float maxFps, boolean meetsFps,
+                boolean fitsShader, double score) {
+            mIndex = index;
+            mWidth = width;
+            mHeight = height;
+            mMaxFps = maxFps;
+            mMeetsFps = meetsFps;
+            mFitsShader = fitsShader;
+            mScore = score;
+        }
+
+        /**
+         * @return index into the candidate arrays
+         */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * @return fastest this size can go, limited by the camera or the estimated shader cost,
+         * whichever is slower. 0 if neither is known
+         */
+        public float getMaxFps() {
+            return mMaxFps;
+        }
+
+        public boolean meetsTargetFps() {
+            return mMeetsFps;
+        }
+
+        public boolean fitsShaderBudget() {
+            return mFitsShader;
+        }
+
+        /**
+         * @return lower is better, only comparable within one call
+         */
+        public double getScore() {
+            return mScore;
+        }
+
+        @Override
+        public String toString() {
+            return mWidth + "x" + mHeight + " [" + mIndex + "] up to " + mMaxFps + "fps"
+                    + (mMeetsFps ? "" : ", misses fps")
+                    + (mFitsShader ? "" : ", over shader budget");
+        }
+    }
+
+    /**
+     * frame rate the size has to sustain, defaults to 30
+     */
+    public void setTargetFps(int fps) {
+        if (fps <= 0) {
+            throw new IllegalArgumentException("fps must be > 0, was " + fps);
+        }
+        mTargetFps = fps;
+    }
+
+    public int getTargetFps() {
+        return mTargetFps;
+    }
+
+    /**
+     * estimated GPU cost of the shader per camera pixel, 0 (default) to ignore shader cost
+     *
+     * @param nsPerPixel ex: measured frame time / pixels of a previous run, or a static estimate
+     * @param budget     fraction of the frame time the shader may use, ex: 0.75 leaves a quarter
+     *                   for compositing and everything else
+     */
+    public void setShaderCost(float nsPerPixel, float budget) {
+        if (nsPerPixel < 0 || budget <= 0) {
+            throw new IllegalArgumentException("Bad shader cost " + nsPerPixel + "/" + budget);
+        }
+        mShaderNsPerPixel = nsPerPixel;
+        mShaderBudget = budget;
+    }
+
+    /**
+     * Score every candidate and return the best. All arrays are parallel, durations in ns and
+     * either may be null when unknown.
+     *
+     * @param targetWidth  size we're aiming at, usually the view we draw into
+     */
+    public Choice choose(int targetWidth, int targetHeight, int[] widths, int[] heights,
+            long[] minFrameDurations, long[] stallDurations) {
+        if (widths.length == 0 || widths.length != heights.length) {
+            throw new IllegalArgumentException("Need matching, non empty width and height arrays");
+        }
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            throw new IllegalArgumentException(
+                    "Bad target size " + targetWidth + "x" + targetHeight);
+        }
+        double targetAspect = aspect(targetWidth, targetHeight);
+        double targetPixels = (double) targetWidth * targetHeight;
+        double budgetNs = 1e9 / mTargetFps;
+
+        Choice best = null;
+        for (int i = 0; i < widths.length; i++) {
+            int w = widths[i];
+            int h = heights[i];
+            double pixels = (double) w * h;
+
+            long frameNs = (minFrameDurations != null ? minFrameDurations[i] : 0)
+                    + (stallDurations != null ? stallDurations[i] : 0);
+            double shaderNs = pixels * mShaderNsPerPixel;
+            boolean meetsFps = frameNs <= budgetNs * DURATION_TOLERANCE;
+            boolean fitsShader = shaderNs <= budgetNs * mShaderBudget * DURATION_TOLERANCE;
+
+            double score = ASPECT_WEIGHT * Math.abs(Math.log(aspect(w, h) / targetAspect));
+            double area = Math.log(pixels / targetPixels);
+            score += area < 0 ? -area * UNDERSIZE_WEIGHT : area * OVERSIZE_WEIGHT;
+            if (!meetsFps) {
+                score += FPS_MISS_PENALTY + frameNs / budgetNs;
+            }
+            if (!fitsShader) {
+                score += SHADER_MISS_PENALTY + shaderNs / (budgetNs * mShaderBudget);
+            }
+
+            double slowestNs = Math.max(frameNs, shaderNs / mShaderBudget);
+            float maxFps = slowestNs > 0 ? (float) (1e9 / slowestNs) : 0.f;
+
+            //ties go to fewer pixels, then to the earlier candidate
+            if (best == null || score < best.getScore() || (score == best.getScore()
+                    && pixels < (double) best.getWidth() * best.getHeight())) {
+                best = new Choice(i, w, h, maxFps, meetsFps, fitsShader, score);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Pick an AE target fps range for {@link #getTargetFps()}: a fixed range at the target if
+     * there is one, then the range topping out at the target with the highest floor, then the
+     * lowest range reaching past it, then the fastest there is.
+     *
+     * @return index into the arrays, -1 if they're empty
+     */
+    public int chooseFpsRange(int[] lowers, int[] uppers) {
+        int best = -1;
+        int bestRank = Integer.MAX_VALUE;
+        int bestTiebreak = Integer.MAX_VALUE;
+        for (int i = 0; i < lowers.length; i++) {
+            int rank;
+            int tiebreak;
+            if (lowers[i] == mTargetFps && uppers[i] == mTargetFps) {
+                rank = 0;
+                tiebreak = 0;
+            } else if (uppers[i] == mTargetFps) {
+                rank = 1;
+                tiebreak = -lowers[i];
+            } else if (uppers[i] > mTargetFps && lowers[i] <= mTargetFps) {
+                rank = 2;
+                tiebreak = uppers[i];
+            } else {
+                //fastest ceiling, then the steadiest
+                rank = 3;
+                tiebreak = -uppers[i] * 1000 - lowers[i];
+            }
+            if (rank < bestRank || (rank == bestRank && tiebreak < bestTiebreak)) {
+                best = i;
+                bestRank = rank;
+                bestTiebreak = tiebreak;
+            }
+        }
+        return best;
+    }
+
+    private static double aspect(int w, int h) {
+        return (double) Math.max(w, h) / Math.min(w, h);
+    }
+}
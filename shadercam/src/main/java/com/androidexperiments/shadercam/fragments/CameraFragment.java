@@ -1,30 +1,29 @@
 package com.androidexperiments.shadercam.fragments;
 
+import com.androidexperiments.shadercam.analysis.AnalysisStream;
+import com.androidexperiments.shadercam.analysis.FrameAnalyzer;
+import com.androidexperiments.shadercam.camera.CameraCapabilities;
+import com.androidexperiments.shadercam.camera.CameraController;
+import com.androidexperiments.shadercam.camera.SizeNegotiator;
+
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
-import android.content.Context;
 import android.content.DialogInterface;
 import android.graphics.Matrix;
 import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
-import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.TotalCaptureResult;
-import android.hardware.camera2.params.StreamConfigurationMap;
-import android.media.MediaRecorder;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.support.annotation.NonNull;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.app.Fragment;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 import android.view.TextureView;
@@ -33,8 +32,6 @@ import android.widget.Toast;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Fragment for operating the camera, it doesnt have any UI elements, just controllers
@@ -83,14 +80,16 @@ public class CameraFragment extends Fragment {
 
 
     /**
-     * An additional thread for running tasks that shouldn't block the UI.
+     * Opens and configures the camera on its own thread, see {@link CameraController}
      */
-    private HandlerThread mBackgroundThread;
+    private CameraController mCameraController;
+
+    private CameraCapabilities mCapabilities;
 
     /**
-     * A {@link Handler} for running tasks in the background.
+     * AE target fps range asked for with {@link #setFpsRange}, null to leave it to the camera
      */
-    private Handler mBackgroundHandler;
+    private volatile Range<Integer> mRequestedFpsRange;
 
 
     /**
@@ -119,11 +118,13 @@ public class CameraFragment extends Fragment {
     private float mPreviewSurfaceAspectRatio;
 
     /**
-     * A {@link Semaphore} to prevent the app from exiting before closing the camera.
+     * Optional CPU analysis output next to the preview, see {@link #setFrameAnalyzer}
      */
-    private Semaphore mCameraOpenCloseLock = new Semaphore(1);
+    private FrameAnalyzer mFrameAnalyzer;
+
+    private int mAnalysisMaxWidth, mAnalysisMaxHeight, mAnalysisWorkers;
 
-    private boolean mCameraIsOpen = false;
+    private AnalysisStream mAnalysisStream;
 
     /**
      * Get instance of this fragment that sets retain instance true so it is not affected
@@ -145,47 +146,29 @@ public class CameraFragment extends Fragment {
     {
         super.onResume();
 
-        startBackgroundThread();
+        if(mCameraController == null) {
+            mCameraController = new CameraController(getActivity(), mControllerCallback);
+        }
+        mCameraController.setOutputsReady(mPreviewSurface != null);
     }
 
     @Override
-    public void onPause()
+    public void onDestroy()
     {
-        super.onPause();
-
-        stopBackgroundThread();
-    }
+        super.onDestroy();
 
-    /**
-     * Starts a background thread and its {@link Handler}.
-     */
-    private void startBackgroundThread() {
-        mBackgroundThread = new HandlerThread("CameraBackground");
-        mBackgroundThread.start();
-        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
-    }
-
-    /**
-     * Stops the background thread and its {@link Handler}.
-     */
-    private void stopBackgroundThread() {
-        mBackgroundThread.quitSafely();
-        try {
-            mBackgroundThread.join();
-            mBackgroundThread = null;
-            mBackgroundHandler = null;
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        if(mCameraController != null) {
+            mCameraController.release();
+            mCameraController = null;
         }
     }
 
     /**
-     * Switch between the back(primary) camera and the front(selfie) camera
+     * Switch between the back(primary) camera and the front(selfie) camera. The controller closes
+     * the current one and opens the other without blocking the caller.
      */
     public void swapCamera()
     {
-        closeCamera();
-
         if(mCameraToUse == CAMERA_FORWARD)
             mCameraToUse = CAMERA_PRIMARY;
         else
@@ -195,61 +178,61 @@ public class CameraFragment extends Fragment {
     }
 
     /**
-     * Tries to open a CameraDevice. The result is listened by `mStateCallback`.
+     * Asks the controller to open the camera, returns right away. The session is configured on
+     * the camera thread once {@link #setPreviewTexture} has been given a texture too, so this can
+     * be called before the renderer is ready.
      */
     public void openCamera()
     {
         final Activity activity = getActivity();
-        if (null == activity || activity.isFinishing()) {
+        if (null == activity || activity.isFinishing() || mCameraController == null) {
             return;
         }
 
-        //sometimes openCamera gets called multiple times, so lets not get stuck in our semaphore lock
-        if(mCameraDevice != null && mCameraIsOpen)
-            return;
-
-        final CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
-
-        try {
-            if (!mCameraOpenCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
-                throw new RuntimeException("Time out waiting to lock camera opening.");
-            }
-
-            String[] cameraList = manager.getCameraIdList();
-
-            //make sure we dont get array out of bounds error, default to primary [0] if thats the case
-            if(mCameraToUse >= cameraList.length)
-                mCameraToUse = CAMERA_PRIMARY;
-
-            String cameraId = cameraList[mCameraToUse];
-
-            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
-            StreamConfigurationMap streamConfigurationMap = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-
-            //typically these are identical
-            mVideoSize = chooseVideoSize(streamConfigurationMap.getOutputSizes(MediaRecorder.class));
-            mPreviewSize = chooseVideoSize(streamConfigurationMap.getOutputSizes(SurfaceTexture.class));
-
-            //send back for updates to renderer if needed
-            updateViewportSize(mVideoSizeAspectRatio, mPreviewSurfaceAspectRatio);
-
-            Log.i(TAG, "openCamera() videoSize: " + mVideoSize + " previewSize: " + mPreviewSize);
+        mCameraController.open(mCameraToUse);
+    }
 
-            manager.openCamera(cameraId, mStateCallback, null);
+    /**
+     * Ask the camera for a fixed (min == max) or ranged AE target frame rate, snapped to the
+     * closest range it lists. Pass 0, 0 to let the camera choose. Applied right away if previewing.
+     */
+    public void setFpsRange(int min, int max)
+    {
+        if (min == 0 && max == 0) {
+            mRequestedFpsRange = null;
         }
-        catch (CameraAccessException e) {
-            Toast.makeText(activity, "Cannot access the camera.", Toast.LENGTH_SHORT).show();
-            activity.finish();
+        else if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("Bad fps range " + min + "-" + max);
         }
-        catch (NullPointerException e)
-        {
-            e.printStackTrace();
-            // Currently an NPE is thrown when the Camera2API is used but not supported on the device this code runs.
-            new ErrorDialog().show(getFragmentManager(), "dialog");
+        else {
+            mRequestedFpsRange = new Range<>(min, max);
         }
-        catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera opening.");
+
+        if (mCameraController == null) {
+            return;
         }
+        mCameraController.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                if (mPreviewSession == null
+                        || mCameraController.getState() != CameraController.STATE_PREVIEWING) {
+                    return;
+                }
+                try {
+                    updatePreview();
+                }
+                catch (CameraAccessException | IllegalStateException e) {
+                    Log.e(TAG, "Failed to update the fps range", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the camera controller, for its state and startup timing. null before onResume
+     */
+    public CameraController getCameraController() {
+        return mCameraController;
     }
 
     /**
@@ -290,44 +273,59 @@ public class CameraFragment extends Fragment {
     }
 
     /**
-     * {@link CameraDevice.StateCallback} is called when {@link CameraDevice} changes its status.
+     * Called on the camera thread as the {@link CameraController} moves through its states.
      */
-    private CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+    private CameraController.Callback mControllerCallback = new CameraController.Callback() {
 
         @Override
-        public void onOpened(CameraDevice cameraDevice) {
-            mCameraOpenCloseLock.release();
-            mCameraDevice = cameraDevice;
-            mCameraIsOpen = true;
+        public void onConfigureSession(CameraDevice device) throws CameraAccessException {
+            mCameraDevice = device;
             startPreview();
 
             //overkill?
-            if (mTextureView != null) {
-                configureTransform(mTextureView.getWidth(), mTextureView.getHeight());
+            final Activity activity = getActivity();
+            if (mTextureView != null && activity != null) {
+                activity.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        configureTransform(mTextureView.getWidth(), mTextureView.getHeight());
+                    }
+                });
             }
         }
 
         @Override
-        public void onDisconnected(CameraDevice cameraDevice) {
-            mCameraOpenCloseLock.release();
-            cameraDevice.close();
-            mCameraDevice = null;
-            mCameraIsOpen = false;
+        public void onSessionConfigured(CameraCaptureSession session) throws CameraAccessException {
+            mPreviewSession = session;
+            updatePreview();
         }
 
         @Override
-        public void onError(CameraDevice cameraDevice, int error) {
-            mCameraOpenCloseLock.release();
-            cameraDevice.close();
+        public void onClosed() {
             mCameraDevice = null;
-            mCameraIsOpen = false;
-
-            Log.e(TAG, "CameraDevice.StateCallback onError() " + error);
+            mPreviewSession = null;
+            releaseAnalysisStream();
+        }
 
-            Activity activity = getActivity();
-            if (null != activity) {
-                activity.finish();
+        @Override
+        public void onError(final Exception e) {
+            final Activity activity = getActivity();
+            if (null == activity) {
+                return;
             }
+            activity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (e instanceof NullPointerException) {
+                        // Currently an NPE is thrown when the Camera2API is used but not supported on the device this code runs.
+                        new ErrorDialog().show(getFragmentManager(), "dialog");
+                    }
+                    else {
+                        Toast.makeText(activity, "Cannot access the camera.", Toast.LENGTH_SHORT).show();
+                        activity.finish();
+                    }
+                }
+            });
         }
     };
 
@@ -417,89 +415,82 @@ public class CameraFragment extends Fragment {
     }
 
     /**
-     * close camera when not in use/pausing/leaving
+     * close camera when not in use/pausing/leaving, without waiting for it. The preview texture
+     * belongs to the renderer being shut down, so a new one has to be set before reopening.
      */
     public void closeCamera() {
-        try {
-            mCameraOpenCloseLock.acquire();
-            if (null != mCameraDevice) {
-                mCameraDevice.close();
-                mCameraDevice = null;
-                mCameraIsOpen = false;
-            }
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera closing.");
-        } finally {
-            mCameraOpenCloseLock.release();
+        mPreviewSurface = null;
+        if (mCameraController != null) {
+            mCameraController.setOutputsReady(false);
+            mCameraController.close();
         }
     }
 
     /**
-     * Start the camera preview.
+     * Start the camera preview, on the camera thread from
+     * {@link CameraController.Callback#onConfigureSession}
      */
-    private void startPreview()
+    private void startPreview() throws CameraAccessException
     {
-        if (null == mCameraDevice || !mTextureView.isAvailable() || null == mPreviewSize) {
+        if (null == mCameraDevice || !mTextureView.isAvailable() || null == mPreviewSurface) {
             return;
         }
-        try {
-            mPreviewSurface.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
 
-            mPreviewBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
-            List<Surface> surfaces = new ArrayList<>();
+        CameraCapabilities capabilities = mCameraController.getCapabilities();
+        mCapabilities = capabilities;
 
-            assert mPreviewSurface != null;
-            Surface previewSurface = new Surface(mPreviewSurface);
-            surfaces.add(previewSurface);
-            mPreviewBuilder.addTarget(previewSurface);
+        //typically these are identical
+        mVideoSize = chooseVideoSize(capabilities.getVideoOutputs().getSizes());
+        mPreviewSize = chooseVideoSize(capabilities.getPreviewOutputs().getSizes());
 
-            mCameraDevice.createCaptureSession(surfaces, new CameraCaptureSession.StateCallback() {
+        //send back for updates to renderer if needed
+        updateViewportSize(mVideoSizeAspectRatio, mPreviewSurfaceAspectRatio);
 
-                @Override
-                public void onConfigured(CameraCaptureSession cameraCaptureSession) {
-                    mPreviewSession = cameraCaptureSession;
-                    updatePreview();
-                }
+        Log.i(TAG, "startPreview() videoSize: " + mVideoSize + " previewSize: " + mPreviewSize);
 
-                @Override
-                public void onConfigureFailed(CameraCaptureSession cameraCaptureSession) {
-                    Activity activity = getActivity();
-                    Log.e(TAG, "config failed: " + cameraCaptureSession);
-                    if (null != activity) {
-                        Toast.makeText(activity, "CaptureSession Config Failed", Toast.LENGTH_SHORT).show();
-                    }
-                }
-            }, mBackgroundHandler);
-        }
-        catch (CameraAccessException e) {
-            e.printStackTrace();
+        mPreviewSurface.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+
+        mPreviewBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+        List<Surface> surfaces = new ArrayList<>();
+
+        assert mPreviewSurface != null;
+        Surface previewSurface = new Surface(mPreviewSurface);
+        surfaces.add(previewSurface);
+        mPreviewBuilder.addTarget(previewSurface);
+
+        releaseAnalysisStream();
+        if (mFrameAnalyzer != null) {
+            Size analysisSize = AnalysisStream.chooseSize(
+                    capabilities.getYuvOutputs().getSizes(),
+                    mAnalysisMaxWidth, mAnalysisMaxHeight);
+            mAnalysisStream = new AnalysisStream(analysisSize.getWidth(),
+                    analysisSize.getHeight(), mAnalysisWorkers, mFrameAnalyzer);
+            surfaces.add(mAnalysisStream.getSurface());
+            mPreviewBuilder.addTarget(mAnalysisStream.getSurface());
         }
+
+        mCameraController.createSession(surfaces);
     }
 
     /**
      * Update the camera preview. {@link #startPreview()} needs to be called in advance.
      */
-    private void updatePreview() {
-        if (null == mCameraDevice) {
-            return;
-        }
-        try {
-            mPreviewBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
-            mPreviewSession.setRepeatingRequest(mPreviewBuilder.build(), captureCallback, mBackgroundHandler);
+    private void updatePreview() throws CameraAccessException {
+        mPreviewBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+
+        Range<Integer> fpsRange = mRequestedFpsRange;
+        if (fpsRange != null && !Arrays.asList(mCapabilities.getFpsRanges()).contains(fpsRange)) {
+            SizeNegotiator negotiator = new SizeNegotiator();
+            negotiator.setTargetFps(fpsRange.getUpper());
+            fpsRange = mCapabilities.chooseFpsRange(negotiator);
+            Log.w(TAG, "fps range " + mRequestedFpsRange + " not supported, using " + fpsRange);
         }
-        catch (CameraAccessException e) {
-            e.printStackTrace();
+        if (fpsRange != null) {
+            mPreviewBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
         }
+        mCameraController.setRepeatingRequest(mPreviewBuilder.build(), null);
     }
 
-    private CameraCaptureSession.CaptureCallback captureCallback = new CameraCaptureSession.CaptureCallback() {
-        @Override
-        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result)
-        {
-            super.onCaptureCompleted(session, request, result);
-        }
-    };
-
 
     /**
      * Configures the necessary Matrix transformation to `mTextureView`.
@@ -578,6 +569,33 @@ public class CameraFragment extends Fragment {
      */
     public void setPreviewTexture(SurfaceTexture previewSurface) {
         this.mPreviewSurface = previewSurface;
+        if (mCameraController != null) {
+            mCameraController.setOutputsReady(previewSurface != null);
+        }
+    }
+
+    /**
+     * Adds a YUV_420_888 output to the capture session for CPU analysis of raw camera frames,
+     * alongside the preview. Takes effect the next time the camera is opened.
+     *
+     * @param analyzer runs on worker threads, null to turn analysis off
+     * @param maxWidth largest analysis size to use, in sensor orientation (usually landscape)
+     * @param workers number of threads running the analyzer
+     */
+    public void setFrameAnalyzer(FrameAnalyzer analyzer, int maxWidth, int maxHeight, int workers)
+    {
+        mFrameAnalyzer = analyzer;
+        mAnalysisMaxWidth = maxWidth;
+        mAnalysisMaxHeight = maxHeight;
+        mAnalysisWorkers = workers;
+    }
+
+    private void releaseAnalysisStream()
+    {
+        if (mAnalysisStream != null) {
+            mAnalysisStream.release();
+            mAnalysisStream = null;
+        }
     }
 
     public void setOnViewportSizeUpdatedListener(OnViewportSizeUpdatedListener listener) {
@@ -1,41 +1,43 @@
 package com.androidexperiments.shadercam.fragments;
 
+import com.androidexperiments.shadercam.analysis.AnalysisStream;
+import com.androidexperiments.shadercam.analysis.FrameAnalyzer;
+import com.androidexperiments.shadercam.camera.CameraCapabilities;
+import com.androidexperiments.shadercam.camera.CameraCapabilityCache;
+import com.androidexperiments.shadercam.camera.CameraController;
+import com.androidexperiments.shadercam.camera.SizeNegotiator;
+import com.androidexperiments.shadercam.gl.TiledStillCapture;
 import com.androidexperiments.shadercam.gl.VideoRenderer;
 import com.uncorkedstudios.android.view.recordablesurfaceview.RecordableSurfaceView;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
-import android.content.Context;
 import android.content.DialogInterface;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
-import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.support.annotation.NonNull;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.app.Fragment;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 import android.widget.Toast;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Fragment for operating the camera, it doesnt have any UI elements, just controllers
@@ -81,14 +83,34 @@ public class VideoFragment extends Fragment implements VideoRenderer.OnRendererR
 
 
     /**
-     * An additional thread for running tasks that shouldn't block the UI.
+     * Opens and configures the camera on its own thread, see {@link CameraController}
      */
-    private HandlerThread mBackgroundThread;
+    private CameraController mCameraController;
 
     /**
-     * A {@link Handler} for running tasks in the background.
+     * Whether the renderer has its camera texture yet, only touched on the UI thread
      */
-    private Handler mBackgroundHandler;
+    private boolean mRendererReady = false;
+
+    /**
+     * When the swap in progress started, 0 when not swapping. While set, closing the old camera
+     * keeps the SurfaceTexture, so the renderer keeps drawing its last frame until the new one
+     * delivers. Camera thread only, like mSwapSession.
+     */
+    private long mSwapStartNs;
+
+    /**
+     * the other camera's session once it's configured, only its first frame ends the swap.
+     * Results still queued from the old session don't count
+     */
+    private CameraCaptureSession mSwapSession;
+
+    private volatile long mLastSwapMillis;
+
+    /**
+     * Texture name mSurfaceTexture was made for, it can only be reused for the same one
+     */
+    private int mSurfaceTextureName = -1;
 
     private SurfaceTexture mSurfaceTexture;
 
@@ -108,13 +130,76 @@ public class VideoFragment extends Fragment implements VideoRenderer.OnRendererR
      */
     protected int mCameraToUse = CAMERA_PRIMARY;
 
+    /**
+     * Picks the preview size from what the camera can deliver at the target fps, see
+     * {@link #getSizeNegotiator()}
+     */
+    private final SizeNegotiator mSizeNegotiator = new SizeNegotiator();
+
+    /**
+     * Capabilities of the camera the current session is on
+     */
+    private CameraCapabilities mCapabilities;
+
+    /**
+     * AE target fps range asked for with {@link #setFpsRange}, null to leave it to the camera,
+     * and the supported range it was snapped to
+     */
+    private volatile Range<Integer> mRequestedFpsRange;
+
+    private volatile Range<Integer> mFpsRange;
+
+    /**
+     * Constrained high speed session settings, see {@link #setHighSpeed}
+     */
+    private volatile int mHighSpeedFps;
+
+    private volatile Surface mHighSpeedRecorderSurface;
+
+    private volatile boolean mHighSpeedRecording;
+
+    /**
+     * A high speed video size and the fps ranges to use with it, see
+     * {@link #chooseHighSpeedConfig}
+     */
+    private static class HighSpeedConfig {
+
+        final Size mSize;
+
+        final Range<Integer> mPreviewRange;
+
+        final Range<Integer> mRecordRange;
+
+        HighSpeedConfig(Size size, Range<Integer> previewRange, Range<Integer> recordRange) {
+            mSize = size;
+            mPreviewRange = previewRange;
+            mRecordRange = recordRange;
+        }
+    }
+
+    /**
+     * Whether the current session is high speed, and its fps ranges for preview only and for
+     * recording. Camera thread only, set in {@link #startPreview()}
+     */
+    private boolean mHighSpeedSession;
+
+    private Range<Integer> mHighSpeedPreviewRange, mHighSpeedRecordRange;
 
     /**
-     * A {@link Semaphore} to prevent the app from exiting before closing the camera.
+     * Optional CPU analysis output next to the preview, see {@link #setFrameAnalyzer}
      */
-    private Semaphore mCameraOpenCloseLock = new Semaphore(1);
+    private FrameAnalyzer mFrameAnalyzer;
+
+    private int mAnalysisMaxWidth, mAnalysisMaxHeight, mAnalysisWorkers;
 
-    private boolean mCameraIsOpen = false;
+    private AnalysisStream mAnalysisStream;
+
+    /**
+     * Optional full resolution still output, see {@link #setStillCapture}
+     */
+    private TiledStillCapture mStillCapture;
+
+    private Surface mStillSurface;
 
     /**
      * Get instance of this fragment that sets retain instance true so it is not affected
@@ -133,17 +218,32 @@ public class VideoFragment extends Fragment implements VideoRenderer.OnRendererR
     @Override
     public void onResume() {
         super.onResume();
-        startBackgroundThread();
+        if (mCameraController == null) {
+            mCameraController = new CameraController(getActivity(), mControllerCallback);
+        }
+        mCameraController.setOutputsReady(mRendererReady);
+
+        //open now so the camera service works while the renderer sets up EGL and its shaders
+        openCamera();
     }
 
     @Override
     public void onPause() {
         super.onPause();
+        mRendererReady = false;
         closeCamera();
-        stopBackgroundThread();
         mRecordableSurfaceView.setRendererCallbacks(null);
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mCameraController != null) {
+            mCameraController.release();
+            mCameraController = null;
+        }
+    }
+
     public void setVideoRenderer(VideoRenderer videoRenderer) {
         mVideoRenderer = videoRenderer;
         if (mVideoRenderer == null) {
@@ -158,32 +258,23 @@ public class VideoFragment extends Fragment implements VideoRenderer.OnRendererR
 
 
     /**
-     * Starts a background thread and its {@link Handler}.
-     */
-    private void startBackgroundThread() {
-        mBackgroundThread = new HandlerThread("CameraBackground");
-        mBackgroundThread.start();
-        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
-    }
-
-    /**
-     * Stops the background thread and its {@link Handler}.
-     */
-    private void stopBackgroundThread() {
-        Log.e(TAG, "RELEASE TEXTURE");
-        if (mSurfaceTexture != null) {
-            mSurfaceTexture.release();
-            mSurfaceTexture = null;
-            mSurfaces.clear();
-        }
-    }
-
-    /**
-     * Switch between the back(primary) camera and the front(selfie) camera
+     * Switch between the back(primary) camera and the front(selfie) camera. The controller closes
+     * the current one and opens the other without blocking the caller. The GL side is left
+     * alone: the renderer keeps its programs and camera texture, which keeps showing the last
+     * frame until the other camera's first one replaces it. See {@link #getLastSwapMillis()}
      */
     public void swapCamera() {
-        closeCamera();
-
+        if (mCameraController == null) {
+            return;
+        }
+        //queued ahead of the open, so it's set on the camera thread before the old one closes
+        mCameraController.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                mSwapStartNs = System.nanoTime();
+                mSwapSession = null;
+            }
+        });
         if (mCameraToUse == CAMERA_FORWARD) {
             mCameraToUse = CAMERA_PRIMARY;
         } else {
@@ -194,165 +285,239 @@ public class VideoFragment extends Fragment implements VideoRenderer.OnRendererR
     }
 
     /**
-     * Tries to open a CameraDevice. The result is listened by `mStateCallback`.
+     * Asks the controller to open the camera, returns right away. The session is configured on
+     * the camera thread once the renderer is ready too, see {@link #onRendererReady()}
      */
     public void openCamera() {
         final Activity activity = getActivity();
-        if (null == activity || activity.isFinishing()) {
+        if (null == activity || activity.isFinishing() || mCameraController == null) {
             return;
         }
+        mCameraController.open(mCameraToUse);
+    }
 
-        //sometimes openCamera gets called multiple times, so lets not get stuck in our semaphore lock
-        if (mCameraDevice != null && mCameraIsOpen) {
-            return;
+    /**
+     * close camera when not in use/pausing/leaving, without waiting for it. Surfaces are
+     * released once the device is actually closed.
+     */
+    public void closeCamera() {
+        if (mCameraController != null) {
+            mCameraController.getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    mSwapStartNs = 0;
+                    mSwapSession = null;
+                }
+            });
+            mCameraController.setOutputsReady(false);
+            mCameraController.close();
         }
+    }
 
-        final CameraManager manager = (CameraManager) activity
-                .getSystemService(Context.CAMERA_SERVICE);
-
-        try {
-            if (!mCameraOpenCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
-                throw new RuntimeException("Time out waiting to lock camera opening.");
-            }
+    /**
+     * @return the camera controller, for its state and startup timing. null before onResume
+     */
+    public CameraController getCameraController() {
+        return mCameraController;
+    }
 
-            String[] cameraList = manager.getCameraIdList();
+    /**
+     * The negotiator choosing the preview size, set its target fps and the shader's estimated
+     * per pixel cost on it before the camera opens. Defaults to 30fps and no shader cost.
+     */
+    public SizeNegotiator getSizeNegotiator() {
+        return mSizeNegotiator;
+    }
 
-            //make sure we dont get array out of bounds error, default to primary [0] if thats the case
-            if (mCameraToUse >= cameraList.length) {
-                mCameraToUse = CAMERA_PRIMARY;
+    /**
+     * Ask the camera for a fixed (min == max) or ranged AE target frame rate, ex: 30, 30 to stop
+     * it dropping to 15 in low light. Snapped to the closest range the camera lists, applied
+     * right away if previewing. Pass 0, 0 to let the camera choose again.
+     */
+    public void setFpsRange(int min, int max) {
+        if (min == 0 && max == 0) {
+            mRequestedFpsRange = null;
+        } else {
+            if (min <= 0 || max < min) {
+                throw new IllegalArgumentException("Bad fps range " + min + "-" + max);
             }
-
-            String cameraId = cameraList[mCameraToUse];
-
-
-            manager.openCamera(cameraId, mStateCallback, null);
-        } catch (CameraAccessException e) {
-            Toast.makeText(activity, "Cannot access the camera.", Toast.LENGTH_SHORT).show();
-            activity.finish();
-        } catch (NullPointerException e) {
-            e.printStackTrace();
-            // Currently an NPE is thrown when the Camera2API is used but not supported on the device this code runs.
-            new CameraFragment.ErrorDialog().show(getFragmentManager(), "dialog");
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera opening.");
+            mRequestedFpsRange = new Range<>(min, max);
         }
+        refreshRepeatingRequest();
     }
 
+    /**
+     * @return the AE target fps range in use, null if it's left to the camera
+     */
+    public Range<Integer> getFpsRange() {
+        return mFpsRange;
+    }
 
-    private CameraCaptureSession.StateCallback mCaptureSessionStateCallback
-            = new CameraCaptureSession.StateCallback() {
-
-        @Override
-        public void onConfigured(CameraCaptureSession cameraCaptureSession) {
-            mPreviewSession = cameraCaptureSession;
-            Log.e(TAG, "CaptureSession Configured: " + cameraCaptureSession);
-            updatePreview();
-        }
-
-        @Override
-        public void onConfigureFailed(CameraCaptureSession cameraCaptureSession) {
-            Activity activity = getActivity();
-            Log.e(TAG, "config failed: " + cameraCaptureSession);
-            if (null != activity) {
-                Toast.makeText(activity, "CaptureSession Config Failed", Toast.LENGTH_SHORT)
-                        .show();
-            }
-        }
+    /**
+     * Use a constrained high speed session at this fixed fps, ex: 120 or 240, where the camera
+     * supports it. The renderer keeps drawing at display rate, latching every camera frame but
+     * only drawing the newest. Frames go to the recorder straight from the camera, so at these
+     * rates recordings are unshaded. Takes effect the next time the session is configured, ex:
+     * the next open.
+     *
+     * Analysis and still outputs are off while high speed is on, the session only takes two.
+     *
+     * @param fps              0 to go back to normal sessions
+     * @param recorderSurface  optional, input surface of a MediaRecorder or encoder already
+     *                         prepared at {@link #getHighSpeedVideoSize}
+     */
+    public void setHighSpeed(int fps, Surface recorderSurface) {
+        mHighSpeedFps = fps;
+        mHighSpeedRecorderSurface = fps > 0 ? recorderSurface : null;
+        mHighSpeedRecording = false;
+    }
 
-        @Override
-        public void onClosed(@NonNull CameraCaptureSession session) {
-            super.onClosed(session);
-            Log.e(TAG, "onClosed: " + session);
+    /**
+     * Start or stop sending frames to the high speed recorder surface, start the recorder first.
+     * Until then the session runs preview only.
+     */
+    public void setHighSpeedRecording(boolean recording) {
+        mHighSpeedRecording = recording;
+        refreshRepeatingRequest();
+    }
 
+    /**
+     * @return size high speed sessions of the current camera use at this fps, for preparing the
+     * recorder. null if it can't
+     */
+    public Size getHighSpeedVideoSize(int fps) {
+        try {
+            CameraCapabilityCache cache = CameraCapabilityCache.getInstance(getActivity());
+            String[] ids = cache.getCameraIds();
+            CameraCapabilities capabilities = cache
+                    .get(ids[mCameraToUse < ids.length ? mCameraToUse : CAMERA_PRIMARY]);
+            HighSpeedConfig config = chooseHighSpeedConfig(capabilities, fps);
+            return config != null ? config.mSize : null;
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Failed to read high speed sizes", e);
+            return null;
         }
-    };
+    }
 
     /**
-     * {@link CameraDevice.StateCallback} is called when {@link CameraDevice} changes its status.
+     * @return time from the last {@link #swapCamera()} to the other camera's first frame, 0 if
+     * there hasn't been one yet
      */
-    private CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+    public long getLastSwapMillis() {
+        return mLastSwapMillis;
+    }
 
-        @Override
-        public void onOpened(CameraDevice cameraDevice) {
-            mCameraOpenCloseLock.release();
-            mCameraDevice = cameraDevice;
-            mCameraIsOpen = true;
+    private CameraController.Callback mControllerCallback = new CameraController.Callback() {
 
+        @Override
+        public void onConfigureSession(CameraDevice device) throws CameraAccessException {
+            mCameraDevice = device;
             startPreview();
-
         }
 
         @Override
-        public void onDisconnected(CameraDevice cameraDevice) {
-            mCameraOpenCloseLock.release();
-            cameraDevice.close();
-            mCameraDevice = null;
-            mCameraIsOpen = false;
-            Log.e(TAG, "DISCONNECTED FROM CAMERA");
-
+        public void onSessionConfigured(CameraCaptureSession session)
+                throws CameraAccessException {
+            mPreviewSession = session;
+            if (mSwapStartNs != 0) {
+                mSwapSession = session;
+            }
+            Log.d(TAG, "CaptureSession Configured: " + session);
+            updatePreview();
         }
 
         @Override
-        public void onError(CameraDevice cameraDevice, int error) {
-            mCameraOpenCloseLock.release();
-            cameraDevice.close();
+        public void onClosed() {
             mCameraDevice = null;
-            mCameraIsOpen = false;
-
-            Log.e(TAG, "CameraDevice.StateCallback onError() " + error);
-
-            Activity activity = getActivity();
-            if (null != activity) {
-                activity.finish();
+            mPreviewSession = null;
+            mStillSurface = null;
+            releaseAnalysisStream();
+            if (mSwapStartNs != 0) {
+                //keep the texture and its surface for the next camera, see swapCamera()
+                return;
+            }
+            Log.d(TAG, "RELEASE TEXTURE");
+            if (mSurfaceTexture != null) {
+                mSurfaceTexture.release();
+                mSurfaceTexture = null;
+                mSurfaceTextureName = -1;
+            }
+            if (mSurfaces != null) {
+                for (Surface sf : mSurfaces) {
+                    sf.release();
+                }
+                mSurfaces.clear();
             }
         }
-    };
-
 
-    /**
-     * close camera when not in use/pausing/leaving
-     */
-    public void closeCamera() {
-        try {
-            mCameraOpenCloseLock.acquire();
-            if (null != mCameraDevice) {
-                mPreviewSession.stopRepeating();
-                mCameraDevice.close();
-                mCameraDevice = null;
-                mCameraIsOpen = false;
+        @Override
+        public void onError(final Exception e) {
+            final Activity activity = getActivity();
+            if (activity == null) {
+                return;
             }
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera closing.");
-        } catch (CameraAccessException acex) {
-            Log.e(TAG, "Failed to stop repeaing preview request", acex);
-        } finally {
-            mCameraOpenCloseLock.release();
+            activity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (e instanceof NullPointerException) {
+                        // Currently an NPE is thrown when the Camera2API is used but not supported on the device this code runs.
+                        new CameraFragment.ErrorDialog().show(getFragmentManager(), "dialog");
+                    } else {
+                        Toast.makeText(activity, "Cannot access the camera.", Toast.LENGTH_SHORT)
+                                .show();
+                        activity.finish();
+                    }
+                }
+            });
         }
-    }
+    };
 
     private List<Surface> mSurfaces;
 
     /**
-     * Start the camera preview.
+     * Start the camera preview, on the camera thread from
+     * {@link CameraController.Callback#onConfigureSession}
      */
-    private void startPreview() {
-//|| null == mPreviewSize
-        if (null == mCameraDevice ) {
-            return;
+    private void startPreview() throws CameraAccessException {
+        mCapabilities = mCameraController.getCapabilities();
+        Size highSpeedSize = null;
+        mHighSpeedSession = false;
+        int highSpeedFps = mHighSpeedFps;
+        if (highSpeedFps > 0) {
+            HighSpeedConfig config = chooseHighSpeedConfig(mCapabilities, highSpeedFps);
+            if (config == null) {
+                Log.w(TAG, "camera " + mCapabilities.getCameraId() + " can't do " + highSpeedFps
+                        + "fps high speed, using a normal session");
+            } else {
+                highSpeedSize = config.mSize;
+                mHighSpeedPreviewRange = config.mPreviewRange;
+                mHighSpeedRecordRange = config.mRecordRange;
+                mHighSpeedSession = true;
+                Log.d(TAG, "high speed " + highSpeedSize + " preview " + mHighSpeedPreviewRange
+                        + " record " + mHighSpeedRecordRange);
+            }
         }
-        try {
 
-            mPreviewBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-            if (mSurfaces == null) {
-                mSurfaces = new ArrayList<>();
-            }
+        mPreviewBuilder = mCameraDevice.createCaptureRequest(mHighSpeedSession
+                ? CameraDevice.TEMPLATE_RECORD : CameraDevice.TEMPLATE_PREVIEW);
+        if (mSurfaces == null) {
+            mSurfaces = new ArrayList<>();
+        }
 
-            if (mPreviewTexture == -1) {
-                mPreviewTexture = mVideoRenderer.getCameraTexture();
+        if (mPreviewTexture == -1) {
+            mPreviewTexture = mVideoRenderer.getCameraTexture();
+        }
+        assert mPreviewTexture != -1;
+
+        //a new SurfaceTexture starts out black, so reuse the one a swap left behind
+        boolean reuse = mSurfaceTexture != null && mSurfaceTextureName == mPreviewTexture
+                && mSurfaces.size() != 0;
+        if (!reuse) {
+            if (mSurfaceTexture != null) {
+                mSurfaceTexture.release();
             }
-            assert mPreviewTexture != -1;
-
             mSurfaceTexture = new SurfaceTexture(mPreviewTexture);
+            mSurfaceTextureName = mPreviewTexture;
             mVideoRenderer.setSurfaceTexture(mSurfaceTexture);
             if (mSurfaces.size() != 0) {
                 for (Surface sf : mSurfaces) {
@@ -360,66 +525,197 @@ public class VideoFragment extends Fragment implements VideoRenderer.OnRendererR
                 }
                 mSurfaces.clear();
             }
+        }
 
-            final Activity activity = getActivity();
+        CameraCapabilities capabilities = mCapabilities;
 
-            final CameraManager manager = (CameraManager) activity
-                    .getSystemService(Context.CAMERA_SERVICE);
+        Size preViewSize;
+        if (mHighSpeedSession) {
+            //both outputs of a high speed session have to be the high speed size
+            preViewSize = highSpeedSize;
+        } else {
+            CameraCapabilities.Outputs previewOutputs = capabilities.getPreviewOutputs();
+            SizeNegotiator.Choice choice = previewOutputs.negotiate(mSizeNegotiator,
+                    mRecordableSurfaceView.getWidth(), mRecordableSurfaceView.getHeight());
+            Log.d(TAG, "preview size: " + choice);
+            preViewSize = previewOutputs.getSize(choice.getIndex());
+        }
+        mSurfaceTexture.setDefaultBufferSize(preViewSize.getWidth(), preViewSize.getHeight());
+        mVideoRenderer.setPreviewSize(preViewSize.getWidth(), preViewSize.getHeight());
 
-            String[] cameraList = manager.getCameraIdList();
+        float screenAspect = mRecordableSurfaceView.getWidth() * 1.0f/ mRecordableSurfaceView.getHeight();
+        float previewAspect = preViewSize.getHeight() * 1.0f/ preViewSize.getWidth();
 
-            String cameraId = cameraList[mCameraToUse];
+        float screenToTextureAspectRatio = screenAspect / previewAspect;
+        mVideoRenderer.setAspectRatio(screenToTextureAspectRatio);
 
-            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
-            StreamConfigurationMap streamConfigurationMap = characteristics
-                    .get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (!reuse) {
+            mSurfaces.add(new Surface(mSurfaceTexture));
+        }
+        mPreviewBuilder.addTarget(mSurfaces.get(0));
+
+        //the reader owns its surface, so keep it out of mSurfaces which we release
+        List<Surface> outputs = mSurfaces;
+        releaseAnalysisStream();
+        mStillSurface = null;
+        if (mHighSpeedSession) {
+            //high speed sessions only take the preview and one video output
+            if (mFrameAnalyzer != null || mStillCapture != null) {
+                Log.w(TAG, "analysis and still outputs are off during high speed sessions");
+            }
+            if (mHighSpeedRecorderSurface != null) {
+                outputs = new ArrayList<>(mSurfaces);
+                outputs.add(mHighSpeedRecorderSurface);
+            }
+            mCameraController.createSession(outputs, true);
+            return;
+        }
+        if (mFrameAnalyzer != null) {
+            Size analysisSize = AnalysisStream.chooseSize(
+                    capabilities.getYuvOutputs().getSizes(),
+                    mAnalysisMaxWidth, mAnalysisMaxHeight);
+            mAnalysisStream = new AnalysisStream(analysisSize.getWidth(),
+                    analysisSize.getHeight(), mAnalysisWorkers, mFrameAnalyzer);
+            outputs = new ArrayList<>(mSurfaces);
+            outputs.add(mAnalysisStream.getSurface());
+            mPreviewBuilder.addTarget(mAnalysisStream.getSurface());
+        }
 
-            Size  preViewSize = getOptimalPreviewSize(
-                    streamConfigurationMap.getOutputSizes(SurfaceTexture.class),
-                    mRecordableSurfaceView.getWidth(), mRecordableSurfaceView.getHeight());
-            mSurfaceTexture.setDefaultBufferSize(preViewSize.getWidth(), preViewSize.getHeight());
+        if (mStillCapture != null && mStillCapture.getSurface() != null) {
+            Size stillSize = Collections.max(
+                    Arrays.asList(capabilities.getPreviewOutputs().getSizes()),
+                    new CompareSizesByArea());
+            mStillCapture.setStillSize(stillSize.getWidth(), stillSize.getHeight());
+            mStillSurface = mStillCapture.getSurface();
+            if (outputs == mSurfaces) {
+                outputs = new ArrayList<>(mSurfaces);
+            }
+            outputs.add(mStillSurface);
+        }
 
-            float screenAspect = mRecordableSurfaceView.getWidth() * 1.0f/ mRecordableSurfaceView.getHeight();
-            float previewAspect = preViewSize.getHeight() * 1.0f/ preViewSize.getWidth();
+        mCameraController.createSession(outputs);
+    }
 
-            float screenToTextureAspectRatio = screenAspect / previewAspect;
-            mVideoRenderer.setAspectRatio(screenToTextureAspectRatio);
+    /**
+     * Update the camera preview. {@link #startPreview()} needs to be called in advance.
+     */
+    private void updatePreview() throws CameraAccessException {
+        mPreviewBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+
+        Range<Integer> fpsRange;
+        if (mHighSpeedSession) {
+            boolean recording = mHighSpeedRecording && mHighSpeedRecorderSurface != null;
+            if (recording) {
+                mPreviewBuilder.addTarget(mHighSpeedRecorderSurface);
+            } else if (mHighSpeedRecorderSurface != null) {
+                mPreviewBuilder.removeTarget(mHighSpeedRecorderSurface);
+            }
+            fpsRange = recording ? mHighSpeedRecordRange : mHighSpeedPreviewRange;
+        } else {
+            fpsRange = snapFpsRange(mCapabilities, mRequestedFpsRange);
+        }
+        if (fpsRange != null) {
+            mPreviewBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+        }
+        mFpsRange = fpsRange;
+        Log.d(TAG, "fps range: " + fpsRange + (mHighSpeedSession ? " high speed" : ""));
 
-            Surface previewSurface = new Surface(mSurfaceTexture);
-            mSurfaces.add(previewSurface);
-            mPreviewBuilder.addTarget(previewSurface);
+        mCameraController.setRepeatingRequest(mPreviewBuilder.build(), mCaptureCallback);
 
-            mCameraDevice.createCaptureSession(mSurfaces, mCaptureSessionStateCallback,
-                    mBackgroundHandler);
-        } catch (CameraAccessException e) {
-            e.printStackTrace();
-        }
+        mSurfaceTexture.setOnFrameAvailableListener(mVideoRenderer);
     }
 
     /**
-     * Update the camera preview. {@link #startPreview()} needs to be called in advance.
+     * rebuild the repeating request after an fps or recording change, from any thread
      */
-    private void updatePreview() {
-        if (null == mCameraDevice) {
+    private void refreshRepeatingRequest() {
+        if (mCameraController == null) {
             return;
         }
-        try {
-            mPreviewBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
-            mPreviewSession.setRepeatingRequest(mPreviewBuilder.build(), mCaptureCallback,
-                    mBackgroundHandler);
+        mCameraController.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                if (mPreviewSession == null
+                        || mCameraController.getState() != CameraController.STATE_PREVIEWING) {
+                    return;
+                }
+                try {
+                    updatePreview();
+                } catch (CameraAccessException | IllegalStateException e) {
+                    Log.e(TAG, "Failed to update the repeating request", e);
+                }
+            }
+        });
+    }
 
-            mSurfaceTexture.setOnFrameAvailableListener(mVideoRenderer);
-        } catch (CameraAccessException e) {
-            e.printStackTrace();
+    /**
+     * the listed range matching what was asked for, or the closest to its upper end. null to
+     * not set one at all
+     */
+    private static Range<Integer> snapFpsRange(CameraCapabilities capabilities,
+            Range<Integer> requested) {
+        if (requested == null || capabilities == null) {
+            return null;
+        }
+        Range<Integer>[] ranges = capabilities.getFpsRanges();
+        for (Range<Integer> range : ranges) {
+            if (range.equals(requested)) {
+                return range;
+            }
+        }
+        SizeNegotiator negotiator = new SizeNegotiator();
+        negotiator.setTargetFps(requested.getUpper());
+        Range<Integer> range = capabilities.chooseFpsRange(negotiator);
+        Log.w(TAG, "fps range " + requested + " not supported, using " + range);
+        return range;
+    }
+
+    /**
+     * Largest high speed video size that runs at a fixed fps, closest to the view's shape, with
+     * the preview only and recording ranges for it. null if the camera can't. Doesn't touch the
+     * session, so safe from any thread.
+     */
+    private HighSpeedConfig chooseHighSpeedConfig(CameraCapabilities capabilities, int fps) {
+        if (!capabilities.isHighSpeedSupported()) {
+            return null;
+        }
+        StreamConfigurationMap map = capabilities.getStreamConfigurationMap();
+        Range<Integer> fixed = new Range<>(fps, fps);
+        if (!Arrays.asList(map.getHighSpeedVideoFpsRanges()).contains(fixed)) {
+            return null;
+        }
+        Size[] sizes = map.getHighSpeedVideoSizesFor(fixed);
+        int[] widths = new int[sizes.length];
+        int[] heights = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            widths[i] = sizes[i].getWidth();
+            heights[i] = sizes[i].getHeight();
         }
+        Size size = sizes[mSizeNegotiator.choose(mRecordableSurfaceView.getWidth(),
+                mRecordableSurfaceView.getHeight(), widths, heights, null, null).getIndex()];
+
+        //preview only requests need a range starting at 30, recording wants it fixed
+        Range<Integer> preview = fixed;
+        for (Range<Integer> range : map.getHighSpeedVideoFpsRangesFor(size)) {
+            if (range.getLower() == 30 && range.getUpper() == fps) {
+                preview = range;
+            }
+        }
+        return new HighSpeedConfig(size, preview, fixed);
     }
 
     private CameraCaptureSession.CaptureCallback mCaptureCallback
             = new CameraCaptureSession.CaptureCallback() {
         @Override
-        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
-                TotalCaptureResult result) {
-            super.onCaptureCompleted(session, request, result);
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+            long swapStartNs = mSwapStartNs;
+            if (swapStartNs != 0 && session == mSwapSession) {
+                mSwapStartNs = 0;
+                mSwapSession = null;
+                mLastSwapMillis = (System.nanoTime() - swapStartNs) / 1000000;
+                Log.d(TAG, "swap to first frame: " + mLastSwapMillis + "ms");
+            }
         }
     };
 
@@ -434,41 +730,114 @@ public class VideoFragment extends Fragment implements VideoRenderer.OnRendererR
 
     }
 
-    private Size getOptimalPreviewSize(Size[] sizes, int h, int w) {
-        final double ASPECT_TOLERANCE = 0.001;
-        double targetRatio = (double) w / h;
-        List<Size> allSizes = Arrays.asList(sizes);
-
-        Collections.sort(allSizes, new CompareSizesByArea());
-
-        Size optimalSize = null;
-        double minDiff = Double.MAX_VALUE;
+    /**
+     * Adds a YUV_420_888 output to the capture session for CPU analysis of raw camera frames,
+     * alongside the shader preview. Takes effect the next time the camera is opened.
+     *
+     * @param analyzer runs on worker threads, null to turn analysis off
+     * @param maxWidth largest analysis size to use, in sensor orientation (usually landscape).
+     *                 keep it small, ex: 640x480
+     * @param workers  number of threads running the analyzer, if all are busy newer frames
+     *                 replace older ones waiting
+     */
+    public void setFrameAnalyzer(FrameAnalyzer analyzer, int maxWidth, int maxHeight,
+            int workers) {
+        mFrameAnalyzer = analyzer;
+        mAnalysisMaxWidth = maxWidth;
+        mAnalysisMaxHeight = maxHeight;
+        mAnalysisWorkers = workers;
+    }
 
-        int targetHeight = h;
+    /**
+     * @return the running analysis stream, for its size and frame counts. null when off
+     */
+    public AnalysisStream getAnalysisStream() {
+        return mAnalysisStream;
+    }
 
-        for (Size size : allSizes) {
-            double ratio = (double) size.getWidth() / size.getHeight();
+    /**
+     * Adds a full sensor resolution output to the capture session for stills rendered through
+     * the shader, see {@link #takeStill}. The same capture must be added to the renderer with
+     * {@link VideoRenderer#addStage}. Takes effect the next time the camera is opened.
+     */
+    public void setStillCapture(TiledStillCapture capture) {
+        mStillCapture = capture;
+    }
 
-            if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE) {
-                continue;
-            }
-            if (Math.abs(size.getWidth() - targetHeight) < minDiff) {
-                optimalSize = size;
-                minDiff = Math.abs(size.getWidth() - targetHeight);
+    /**
+     * Asks the camera for one full resolution frame and renders it through the current shader to
+     * a JPEG. The preview keeps running meanwhile. The request is made on the camera thread, so
+     * a camera that isn't previewing, or is closed in the meantime, is reported to the listener.
+     *
+     * @param quality  JPEG quality, 1-100
+     * @param listener called on the encoder thread once the file is written, or on the camera
+     *                 thread if the still couldn't be requested
+     */
+    public void takeStill(final File file, final int quality,
+            final TiledStillCapture.OnStillCapturedListener listener) {
+        if (mStillCapture == null) {
+            throw new IllegalStateException("No still output, call setStillCapture before the"
+                    + " camera opens");
+        }
+        final TiledStillCapture capture = mStillCapture;
+        CameraController controller = mCameraController;
+        if (controller == null) {
+            stillFailed(listener, new IllegalStateException("Camera isn't open"));
+            return;
+        }
+        controller.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                requestStill(capture, file, quality, listener);
             }
+        });
+    }
+
+    /**
+     * on the camera thread, which owns the session, device and surfaces
+     */
+    private void requestStill(TiledStillCapture capture, File file, int quality,
+            TiledStillCapture.OnStillCapturedListener listener) {
+        if (mCameraController == null || mStillSurface == null || mPreviewSession == null
+                || mCameraDevice == null
+                || mCameraController.getState() != CameraController.STATE_PREVIEWING) {
+            stillFailed(listener, new IllegalStateException("No still output in the current"
+                    + " session, call setStillCapture before the camera opens"));
+            return;
         }
+        try {
+            capture.capture(file, quality, listener);
+        } catch (IllegalStateException e) {
+            //one already in progress, leave it armed
+            stillFailed(listener, e);
+            return;
+        }
+        try {
+            CaptureRequest.Builder builder = mCameraDevice
+                    .createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            builder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+            builder.addTarget(mStillSurface);
+            builder.addTarget(mSurfaces.get(0));
+            mPreviewSession.capture(builder.build(), null, mCameraController.getHandler());
+        } catch (CameraAccessException | IllegalStateException e) {
+            capture.cancel();
+            stillFailed(listener, e);
+        }
+    }
 
-        if (optimalSize == null) {
-            minDiff = Double.MAX_VALUE;
-            for (Size size : allSizes) {
-                if (Math.abs(size.getWidth() - targetHeight) < minDiff) {
-                    optimalSize = size;
-                    minDiff = Math.abs(size.getWidth() - targetHeight);
-                }
-            }
+    private static void stillFailed(TiledStillCapture.OnStillCapturedListener listener,
+            Exception e) {
+        Log.e(TAG, "Failed to request still", e);
+        if (listener != null) {
+            listener.onStillFailed(e);
         }
+    }
 
-        return optimalSize;
+    private void releaseAnalysisStream() {
+        if (mAnalysisStream != null) {
+            mAnalysisStream.release();
+            mAnalysisStream = null;
+        }
     }
 
     /**
@@ -517,10 +886,17 @@ public class VideoFragment extends Fragment implements VideoRenderer.OnRendererR
 
     @Override
     public void onRendererReady() {
-
-        getActivity().runOnUiThread(new Runnable() {
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+        activity.runOnUiThread(new Runnable() {
             @Override
             public void run() {
+                mRendererReady = true;
+                if (mCameraController != null) {
+                    mCameraController.setOutputsReady(true);
+                }
                 openCamera();
             }
         });
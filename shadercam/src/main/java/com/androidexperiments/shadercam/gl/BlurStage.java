@@ -0,0 +1,227 @@
+package com.androidexperiments.shadercam.gl;
+
+import android.content.Context;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+/**
+ * {@link RenderStage} that blurs the camera frame with a dual filter pyramid: a chain of
+ * downsamples that halve the resolution each step, followed by upsamples back to the first
+ * level. Every pass is only 5 or 8 bilinear taps, and the blur radius comes from how deep the
+ * pyramid goes rather than from kernel size, so it costs a fraction of sampling a wide kernel
+ * over the full resolution camera texture - most passes touch 1/16th of the pixels or less.
+ *
+ * The result is half the camera resolution and lives in the same space as the camera texture,
+ * so sample it exactly like camTexture from your main fragment shader:
+ * <pre>
+ *   uniform sampler2D blurTexture;
+ *   ...
+ *   vec4 blurred = texture2D(blurTexture, v_CamTexCoordinate);
+ * </pre>
+ */
+public class BlurStage extends RenderStage {
+
+    public static final int MAX_LEVELS = 8;
+
+    private static final String VERTEX_SHADER = "fullscreen.vert.glsl";
+
+    private static final String DOWN_OES_FRAGMENT_SHADER = "blur_down_oes.frag.glsl";
+
+    private static final String DOWN_FRAGMENT_SHADER = "blur_down.frag.glsl";
+
+    private static final String UP_FRAGMENT_SHADER = "blur_up.frag.glsl";
+
+    private final Context mContext;
+
+    private volatile int mLevels;
+
+    private volatile float mOffset = 1.f;
+
+    private FullscreenPass mDownOesPass, mDownPass, mUpPass;
+
+    private int mDownOesHalfTexelHandle, mDownOesSourceHandle;
+
+    private int mDownHalfTexelHandle, mDownSourceHandle;
+
+    private int mUpHalfTexelHandle, mUpSourceHandle;
+
+    /**
+     * one target per pyramid level, level 0 is half the camera size and holds the final result
+     */
+    private final Framebuffer[] mLevelBuffers = new Framebuffer[MAX_LEVELS];
+
+    /**
+     * number of levels and source size {@link #mLevelBuffers} were allocated for
+     */
+    private int mAllocatedLevels, mAllocatedWidth, mAllocatedHeight;
+
+    private FramebufferPool mPool;
+
+    private int mTextureUnit;
+
+    private int mProgram = -1;
+
+    private int mBlurTextureHandle;
+
+    public BlurStage(Context context) {
+        this(context, 4);
+    }
+
+    /**
+     * @param levels depth of the pyramid, each level roughly doubles the blur radius
+     */
+    public BlurStage(Context context, int levels) {
+        mContext = context.getApplicationContext();
+        setLevels(levels);
+    }
+
+    /**
+     * Sets the depth of the pyramid, from 1 to {@link #MAX_LEVELS}. Can be called from any thread.
+     */
+    public void setLevels(int levels) {
+        if (levels < 1 || levels > MAX_LEVELS) {
+            throw new IllegalArgumentException("levels must be 1-" + MAX_LEVELS + ", was " + levels);
+        }
+        mLevels = levels;
+    }
+
+    public int getLevels() {
+        return mLevels;
+    }
+
+    /**
+     * Spreads the taps of every pass, in texels. 1 is the textbook filter, going much past 2
+     * starts to show artifacts - add levels instead.
+     */
+    public void setOffset(float offset) {
+        mOffset = offset;
+    }
+
+    /**
+     * @return the blurred texture, or 0 before the first frame
+     */
+    public int getOutputTexture() {
+        return mLevelBuffers[0] != null ? mLevelBuffers[0].getTextureId() : 0;
+    }
+
+    @Override
+    protected void onSetup(VideoRenderer renderer) {
+        mPool = renderer.getFramebufferPool();
+        mTextureUnit = renderer.reserveTextureUnit();
+        mProgram = -1;
+
+        mDownOesPass = FullscreenPass.fromAssets(mContext, VERTEX_SHADER, DOWN_OES_FRAGMENT_SHADER);
+        mDownOesHalfTexelHandle = mDownOesPass.getUniformLocation("halfTexel");
+        mDownOesSourceHandle = mDownOesPass.getUniformLocation("sourceTexture");
+
+        mDownPass = FullscreenPass.fromAssets(mContext, VERTEX_SHADER, DOWN_FRAGMENT_SHADER);
+        mDownHalfTexelHandle = mDownPass.getUniformLocation("halfTexel");
+        mDownSourceHandle = mDownPass.getUniformLocation("sourceTexture");
+
+        mUpPass = FullscreenPass.fromAssets(mContext, VERTEX_SHADER, UP_FRAGMENT_SHADER);
+        mUpHalfTexelHandle = mUpPass.getUniformLocation("halfTexel");
+        mUpSourceHandle = mUpPass.getUniformLocation("sourceTexture");
+    }
+
+    @Override
+    protected void onPreDraw(VideoRenderer renderer) {
+        int levels = mLevels;
+        float offset = mOffset;
+        int width = renderer.getPreviewWidth();
+        int height = renderer.getPreviewHeight();
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+
+        allocateLevels(levels, width, height);
+
+        //first level reads straight from the camera
+        mLevelBuffers[0].bind();
+        mDownOesPass.use();
+        Gl.glActiveTexture(GLES20.GL_TEXTURE0);
+        Gl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, renderer.getCameraTexture());
+        Gl.glUniform1i(mDownOesSourceHandle, 0);
+        Gl.glUniform2f(mDownOesHalfTexelHandle, 0.5f * offset / width, 0.5f * offset / height);
+        mDownOesPass.draw();
+
+        //down the pyramid
+        mDownPass.use();
+        Gl.glUniform1i(mDownSourceHandle, 0);
+        for (int i = 1; i < levels; i++) {
+            Framebuffer src = mLevelBuffers[i - 1];
+            mLevelBuffers[i].bind();
+            Gl.glBindTexture(GLES20.GL_TEXTURE_2D, src.getTextureId());
+            Gl.glUniform2f(mDownHalfTexelHandle,
+                    0.5f * offset / src.getWidth(), 0.5f * offset / src.getHeight());
+            mDownPass.draw();
+        }
+
+        //and back up, ending in level 0
+        mUpPass.use();
+        Gl.glUniform1i(mUpSourceHandle, 0);
+        for (int i = levels - 2; i >= 0; i--) {
+            Framebuffer src = mLevelBuffers[i + 1];
+            mLevelBuffers[i].bind();
+            Gl.glBindTexture(GLES20.GL_TEXTURE_2D, src.getTextureId());
+            Gl.glUniform2f(mUpHalfTexelHandle,
+                    0.5f * offset / src.getWidth(), 0.5f * offset / src.getHeight());
+            mUpPass.draw();
+        }
+
+        Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    @Override
+    protected void onBindUniforms(VideoRenderer renderer, int program) {
+        if (program != mProgram) {
+            mProgram = program;
+            mBlurTextureHandle = Gl.glGetUniformLocation(program, "blurTexture");
+        }
+        if (mBlurTextureHandle < 0 || mLevelBuffers[0] == null) {
+            return;
+        }
+        Gl.glActiveTexture(mTextureUnit);
+        Gl.glBindTexture(GLES20.GL_TEXTURE_2D, mLevelBuffers[0].getTextureId());
+        Gl.glUniform1i(mBlurTextureHandle, mTextureUnit - GLES20.GL_TEXTURE0);
+    }
+
+    @Override
+    protected void onRelease() {
+        releaseLevels();
+        if (mDownOesPass != null) {
+            mDownOesPass.release();
+            mDownPass.release();
+            mUpPass.release();
+            mDownOesPass = mDownPass = mUpPass = null;
+        }
+        mProgram = -1;
+    }
+
+    /**
+     * (re)acquires pyramid targets from the pool, only when the depth or camera size changed
+     */
+    private void allocateLevels(int levels, int width, int height) {
+        if (levels == mAllocatedLevels && width == mAllocatedWidth && height == mAllocatedHeight) {
+            return;
+        }
+        releaseLevels();
+        for (int i = 0; i < levels; i++) {
+            int w = Math.max(1, width >> (i + 1));
+            int h = Math.max(1, height >> (i + 1));
+            mLevelBuffers[i] = mPool.acquire(w, h);
+        }
+        mAllocatedLevels = levels;
+        mAllocatedWidth = width;
+        mAllocatedHeight = height;
+    }
+
+    private void releaseLevels() {
+        for (int i = 0; i < mLevelBuffers.length; i++) {
+            if (mPool != null) {
+                mPool.release(mLevelBuffers[i]);
+            }
+            mLevelBuffers[i] = null;
+        }
+        mAllocatedLevels = mAllocatedWidth = mAllocatedHeight = 0;
+    }
+}
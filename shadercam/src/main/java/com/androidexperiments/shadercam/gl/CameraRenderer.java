@@ -19,6 +19,8 @@ import android.view.Surface;
 import android.widget.Toast;
 
 import com.androidexperiments.shadercam.fragments.CameraFragment;
+import com.androidexperiments.shadercam.shader.ShaderCost;
+import com.androidexperiments.shadercam.shader.ShaderCostAnalyzer;
 import com.androidexperiments.shadercam.utils.ShaderUtils;
 
 import java.io.File;
@@ -32,6 +34,7 @@ import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.TreeMap;
 
 /** *
  * Base camera rendering class. Responsible for rendering to proper window contexts, as well as
@@ -130,6 +133,13 @@ public class CameraRenderer extends Thread implements SurfaceTexture.OnFrameAvai
 
     private int positionHandle;
 
+    /**
+     * uniform locations of our program, looked up once per program by {@link #resolveLocations()}
+     */
+    private int mTextureParamHandle, mTextureTransformHandle;
+
+    private int mLocationsProgram;
+
     /**
      * "arbitrary" maximum number of textures. seems that most phones dont like more than 16
      */
@@ -203,6 +213,51 @@ public class CameraRenderer extends Thread implements SurfaceTexture.OnFrameAvai
      */
     private boolean mIsRecording = false;
 
+    /**
+     * preview in RGB565 without the recordable flag until recording starts,
+     * see {@link #setLowBandwidthPreview(boolean)}
+     */
+    private boolean mLowBandwidthPreview = false;
+
+    private ShaderCostAnalyzer mShaderCostAnalyzer;
+
+    /**
+     * static estimate for fragmentShaderCode, set on the render thread
+     */
+    private volatile ShaderCost mShaderCost;
+
+    private PrecisionSelector mPrecisionSelector;
+
+    /**
+     * builds programs for {@link #swapShaders} off the render thread, exists while GL is set up
+     */
+    private volatile ShaderSwapper mShaderSwapper;
+
+    /**
+     * what setupShaders or a swap built, {@link #mCameraShaderProgram} is this or a variant of
+     * it specialized for the session constants
+     */
+    private int mGenericProgram;
+
+    /**
+     * fragment source mGenericProgram was built from, after precision selection
+     */
+    private String mCompiledFragmentShader;
+
+    /**
+     * see {@link #setSessionConstant}, guarded by itself
+     */
+    private final TreeMap<String, float[]> mSessionConstants = new TreeMap<>();
+
+    private volatile boolean mSessionConstantsChanged;
+
+    private volatile SpecializedPrograms mSpecializedPrograms;
+
+    /**
+     * variant we're waiting on, null once it's drawing or there's nothing to wait for
+     */
+    private String mSpecializationKey;
+
     /**
      * Reference to our users CameraFragment to ease setting viewport size. Thought about decoupling but wasn't
      * worth the listener/callback hastle
@@ -299,6 +354,123 @@ public class CameraRenderer extends Thread implements SurfaceTexture.OnFrameAvai
         if(fragmentShaderCode == null || vertexShaderCode == null) {
             loadFromShadersFromAssets(mFragmentShaderPath, mVertexShaderPath);
         }
+        analyzeShader();
+    }
+
+    private void analyzeShader()
+    {
+        if (mShaderCostAnalyzer == null || fragmentShaderCode == null)
+            return;
+
+        try {
+            mShaderCost = mShaderCostAnalyzer.analyze(fragmentShaderCode);
+        }
+        catch (IllegalArgumentException e) {
+            Log.w(TAG, "Couldn't estimate cost of " + mFragmentShaderPath + ": " + e.getMessage());
+            return;
+        }
+
+        Log.d(TAG, mFragmentShaderPath + ": " + mShaderCost);
+        for (String warning : mShaderCostAnalyzer.check(mShaderCost, mSurfaceWidth, mSurfaceHeight))
+            Log.w(TAG, mFragmentShaderPath + ": " + warning);
+    }
+
+    private void setupShaderSwapper()
+    {
+        int flags = mEglCore.getGlVersion() >= 3 ? EglCore.FLAG_TRY_GLES3 : 0;
+        mShaderSwapper = new ShaderSwapper(mContext, mEglCore.getContext(), flags,
+                new ShaderSwapper.SourceFilter() {
+                    @Override
+                    public String filter(String fragmentPath, String fragmentSource) {
+                        return selectPrecision(fragmentPath, fragmentSource);
+                    }
+                });
+    }
+
+    /**
+     * at a frame boundary, take a program {@link #swapShaders} finished building
+     */
+    private void applyShaderSwap()
+    {
+        ShaderSwapper.Swap swap = mShaderSwapper.poll();
+        if (swap == null)
+            return;
+
+        Gl.glDeleteProgram(mGenericProgram);
+        mGenericProgram = swap.getProgram();
+        mCompiledFragmentShader = swap.getCompiledFragmentSource();
+        //made while the old one was alive, so its name never matches what we resolved before
+        useProgram(mGenericProgram);
+        //specialize the new shader too
+        mSessionConstantsChanged = true;
+        mFragmentShaderPath = swap.getFragmentPath();
+        mVertexShaderPath = swap.getVertexPath();
+        fragmentShaderCode = swap.getFragmentSource();
+        vertexShaderCode = swap.getVertexSource();
+        Log.d(TAG, "swapped in " + mFragmentShaderPath);
+        mShaderCost = null;
+        analyzeShader();
+    }
+
+    private void setupSpecializedPrograms()
+    {
+        int flags = mEglCore.getGlVersion() >= 3 ? EglCore.FLAG_TRY_GLES3 : 0;
+        mSpecializedPrograms = new SpecializedPrograms(mEglCore.getContext(), flags,
+                SpecializedPrograms.DEFAULT_CAPACITY);
+        mSessionConstantsChanged = true;
+    }
+
+    /**
+     * at a frame boundary, after any swap: draw with the variant for the current session
+     * constants if it's built, otherwise the generic program
+     */
+    private void applySpecialization()
+    {
+        if (mSessionConstantsChanged) {
+            mSessionConstantsChanged = false;
+            TreeMap<String, float[]> constants;
+            synchronized (mSessionConstants) {
+                constants = new TreeMap<>(mSessionConstants);
+            }
+            useProgram(mGenericProgram);
+            mSpecializationKey = constants.isEmpty() ? null : mSpecializedPrograms
+                    .request(vertexShaderCode, mCompiledFragmentShader, constants);
+        }
+        if (mSpecializationKey == null)
+            return;
+
+        int program = mSpecializedPrograms.getProgram(mSpecializationKey);
+        if (program != 0) {
+            useProgram(program);
+            mSpecializationKey = null;
+        }
+        else if (!mSpecializedPrograms.isPending(mSpecializationKey)) {
+            //failed to build, already logged, stay generic
+            mSpecializationKey = null;
+        }
+    }
+
+    private void useProgram(int program)
+    {
+        if (program != mCameraShaderProgram) {
+            mCameraShaderProgram = program;
+            mLocationsProgram = 0;
+        }
+    }
+
+    private String selectPrecision(String fragmentPath, String fragmentSource)
+    {
+        PrecisionSelector selector = mPrecisionSelector;
+        if (selector == null)
+            return fragmentSource;
+
+        return selector.select(fragmentPath, fragmentSource,
+                new PrecisionCalibrator.UniformBinder() {
+                    @Override
+                    public void bind(int program) {
+                        onBindCalibrationUniforms(program);
+                    }
+                });
     }
 
     private void setupCameraFragment() {
@@ -412,25 +584,72 @@ public class CameraRenderer extends Thread implements SurfaceTexture.OnFrameAvai
      * the preview as well as the surface that will be used by MediaRecorder for recording
      */
     public void initGL() {
-        mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
+        int flags = mLowBandwidthPreview ? EglCore.FLAG_RGB565 : EglCore.FLAG_RECORDABLE;
+        mEglCore = new EglCore(null, flags | EglCore.FLAG_TRY_GLES3);
 
         //create preview surface
         mWindowSurface = new WindowSurface(mEglCore, mSurfaceTexture);
         mWindowSurface.makeCurrent();
 
-        //create recording surface
-        mRecordSurface = new WindowSurface(mEglCore, mMediaRecorder.getSurface(), false);
+        //create recording surface, or wait for recording to start if the config can't record
+        if (mEglCore.isRecordable())
+            mRecordSurface = new WindowSurface(mEglCore, mMediaRecorder.getSurface(), false);
+
+        Log.d(TAG, "preview surface " + mEglCore.getBytesPerPixel() + " bytes/px, "
+                + getSurfaceBytesPerFrame() / 1024 + "KB/frame");
 
         initGLComponents();
     }
 
+    /**
+     * Move everything over to a recordable RGBA8888 context. The new context shares with the old
+     * one, so textures and programs carry over, and we don't make framebuffers or vertex arrays,
+     * the only objects that don't. The camera's SurfaceTexture is the exception: it's attached
+     * to the context it was first updated on, so it's detached while the old context is still
+     * current and attached to the new one under the same texture name. Workers that build
+     * programs are made lazily, so they're pointed at the new context. Render thread only.
+     */
+    private void switchToRecordableConfig() {
+        long start = System.nanoTime();
+        EglCore recordable = new EglCore(mEglCore.getContext(),
+                EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
+
+        //deletes the texture object, freeing its name for attachToGLContext below
+        mPreviewTexture.detachFromGLContext();
+
+        //the window can only have one EGLSurface, and ours isn't destroyed while it's current
+        mEglCore.makeNothingCurrent();
+        mWindowSurface.release();
+        mEglCore.release();
+        mEglCore = recordable;
+        mShaderSwapper.setShareContext(mEglCore.getContext());
+        mSpecializedPrograms.setShareContext(mEglCore.getContext());
+
+        mWindowSurface = new WindowSurface(mEglCore, mSurfaceTexture);
+        mWindowSurface.makeCurrent();
+        mRecordSurface = new WindowSurface(mEglCore, mMediaRecorder.getSurface(), false);
+
+        mPreviewTexture.attachToGLContext(mTexturesIds[0]);
+
+        Log.d(TAG, "switched to recordable config in " + (System.nanoTime() - start) / 1000000
+                + "ms, now " + getSurfaceBytesPerFrame() / 1024 + "KB/frame");
+    }
+
     protected void initGLComponents() {
         onPreSetupGLComponents();
 
         setupVertexBuffer();
         setupTextures();
         setupCameraTexture();
+        mCompiledFragmentShader = null;
         setupShaders();
+        //here rather than in setupShaders, so an override that doesn't call super still leaves
+        //us owning, and deleting, the program it linked
+        mGenericProgram = mCameraShaderProgram;
+        if (mCompiledFragmentShader == null)
+            mCompiledFragmentShader = fragmentShaderCode;
+        setupShaderSwapper();
+        setupSpecializedPrograms();
 
         onSetupComplete();
     }
@@ -444,7 +663,8 @@ public class CameraRenderer extends Thread implements SurfaceTexture.OnFrameAvai
         deinitGLComponents();
 
         mWindowSurface.release();
-        mRecordSurface.release();
+        if (mRecordSurface != null)
+            mRecordSurface.release();
 
         mEglCore.release();
 
@@ -453,8 +673,21 @@ public class CameraRenderer extends Thread implements SurfaceTexture.OnFrameAvai
     }
 
     protected void deinitGLComponents() {
-        GLES20.glDeleteTextures(MAX_TEXTURES, mTexturesIds, 0);
-        GLES20.glDeleteProgram(mCameraShaderProgram);
+        if (mShaderSwapper != null) {
+            mShaderSwapper.release();
+            mShaderSwapper = null;
+        }
+        if (mSpecializedPrograms != null) {
+            mSpecializedPrograms.release();
+            mSpecializedPrograms = null;
+        }
+        Gl.glDeleteTextures(MAX_TEXTURES, mTexturesIds, 0);
+        //the one program we own, mCameraShaderProgram may be a variant, which went with
+        //mSpecializedPrograms
+        Gl.glDeleteProgram(mGenericProgram);
+        mGenericProgram = 0;
+        mCameraShaderProgram = 0;
+        mLocationsProgram = 0;
 
         mPreviewTexture.release();
         mPreviewTexture.setOnFrameAvailableListener(null);
@@ -498,7 +731,7 @@ public class CameraRenderer extends Thread implements SurfaceTexture.OnFrameAvai
         textureBuffer.position(0);
 
         // Generate the max amount texture ids
-        GLES20.glGenTextures(MAX_TEXTURES, mTexturesIds, 0);
+        Gl.glGenTextures(MAX_TEXTURES, mTexturesIds, 0);
         checkGlError("Texture generate");
     }
 
@@ -508,8 +741,8 @@ public class CameraRenderer extends Thread implements SurfaceTexture.OnFrameAvai
      */
     protected void setupCameraTexture() {
         //set texture[0] to camera texture
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTexturesIds[0]);
+        Gl.glActiveTexture(GLES20.GL_TEXTURE0);
+        Gl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTexturesIds[0]);
         checkGlError("Texture bind");
 
         mPreviewTexture = new SurfaceTexture(mTexturesIds[0]);
@@ -520,32 +753,36 @@ public class CameraRenderer extends Thread implements SurfaceTexture.OnFrameAvai
      * Handling this manually here but check out another impl at {@link GlUtil#createProgram(String, String)}
      */
     protected void setupShaders() {
-        int vertexShaderHandle = GLES20.glCreateShader(GLES20.GL_VERTEX_SHADER);
-        GLES20.glShaderSource(vertexShaderHandle, vertexShaderCode);
-        GLES20.glCompileShader(vertexShaderHandle);
+        int vertexShaderHandle = Gl.glCreateShader(GLES20.GL_VERTEX_SHADER);
+        Gl.glShaderSource(vertexShaderHandle, vertexShaderCode);
+        Gl.glCompileShader(vertexShaderHandle);
         checkGlError("Vertex shader compile");
 
-        Log.d(TAG, "vertexShader info log:\n " + GLES20.glGetShaderInfoLog(vertexShaderHandle));
+        Log.d(TAG, "vertexShader info log:\n " + Gl.glGetShaderInfoLog(vertexShaderHandle));
 
-        int fragmentShaderHandle = GLES20.glCreateShader(GLES20.GL_FRAGMENT_SHADER);
-        GLES20.glShaderSource(fragmentShaderHandle, fragmentShaderCode);
-        GLES20.glCompileShader(fragmentShaderHandle);
+        String fragmentSource = selectPrecision(mFragmentShaderPath, fragmentShaderCode);
+        int fragmentShaderHandle = Gl.glCreateShader(GLES20.GL_FRAGMENT_SHADER);
+        Gl.glShaderSource(fragmentShaderHandle, fragmentSource);
+        Gl.glCompileShader(fragmentShaderHandle);
         checkGlError("Pixel shader compile");
 
-        Log.d(TAG, "fragmentShader info log:\n " + GLES20.glGetShaderInfoLog(fragmentShaderHandle));
+        Log.d(TAG, "fragmentShader info log:\n " + Gl.glGetShaderInfoLog(fragmentShaderHandle));
 
-        mCameraShaderProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(mCameraShaderProgram, vertexShaderHandle);
-        GLES20.glAttachShader(mCameraShaderProgram, fragmentShaderHandle);
-        GLES20.glLinkProgram(mCameraShaderProgram);
+        mCameraShaderProgram = Gl.glCreateProgram();
+        //names get reused, so a new program never counts as already resolved
+        mLocationsProgram = 0;
+        Gl.glAttachShader(mCameraShaderProgram, vertexShaderHandle);
+        Gl.glAttachShader(mCameraShaderProgram, fragmentShaderHandle);
+        Gl.glLinkProgram(mCameraShaderProgram);
         checkGlError("Shader program compile");
 
         int[] status = new int[1];
-        GLES20.glGetProgramiv(mCameraShaderProgram, GLES20.GL_LINK_STATUS, status, 0);
+        Gl.glGetProgramiv(mCameraShaderProgram, GLES20.GL_LINK_STATUS, status, 0);
         if (status[0] != GLES20.GL_TRUE) {
-            String error = GLES20.glGetProgramInfoLog(mCameraShaderProgram);
+            String error = Gl.glGetProgramInfoLog(mCameraShaderProgram);
             Log.e("SurfaceTest", "Error while linking program:\n" + error);
         }
+        mCompiledFragmentShader = fragmentSource;
     }
 
     /**
@@ -617,7 +854,12 @@ public class CameraRenderer extends Thread implements SurfaceTexture.OnFrameAvai
 
         synchronized (this)
         {
+            if (mIsRecording && mRecordSurface == null)
+                switchToRecordableConfig();
+
             updatePreviewTexture();
+            applyShaderSwap();
+            applySpecialization();
 
             if(mEglCore.getGlVersion() >= 3)
             {
@@ -626,16 +868,14 @@ public class CameraRenderer extends Thread implements SurfaceTexture.OnFrameAvai
                 if(mIsRecording) {
                     mRecordSurface.makeCurrentReadFrom(mWindowSurface);
 
-                    GlUtil.checkGlError("before glBlitFramebuffer");
-
-                    GLES30.glBlitFramebuffer(
+                    Gl.glBlitFramebuffer(
                             0, 0, mWindowSurface.getWidth(), mWindowSurface.getHeight(),
                             0, 0, mRecordSurface.getWidth(), mRecordSurface.getHeight(), //must match the mediarecorder surface size
                             GLES30.GL_COLOR_BUFFER_BIT, GLES30.GL_NEAREST
                     );
 
                     int err;
-                    if ((err = GLES30.glGetError()) != GLES30.GL_NO_ERROR)
+                    if ((err = Gl.glGetError()) != GLES30.GL_NO_ERROR)
                         Log.w(TAG, "ERROR: glBlitFramebuffer failed: 0x" + Integer.toHexString(err));
 
                     mRecordSurface.setPresentationTime(surfaceTexture.getTimestamp());
@@ -680,13 +920,13 @@ public class CameraRenderer extends Thread implements SurfaceTexture.OnFrameAvai
      */
     public void draw()
     {
-        GLES20.glViewport(0, 0, mViewportWidth, mViewportHeight);
+        Gl.glViewport(0, 0, mViewportWidth, mViewportHeight);
 
-        GLES20.glClearColor(1.0f, 0.0f, 0.0f, 0.0f);
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        Gl.glClearColor(1.0f, 0.0f, 0.0f, 0.0f);
+        Gl.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
         //set shader
-        GLES20.glUseProgram(mCameraShaderProgram);
+        Gl.glUseProgram(mCameraShaderProgram);
 
         setUniformsAndAttribs();
         setExtraTextures();
@@ -711,24 +951,40 @@ public class CameraRenderer extends Thread implements SurfaceTexture.OnFrameAvai
      */
     protected void setUniformsAndAttribs()
     {
-        int textureParamHandle = GLES20.glGetUniformLocation(mCameraShaderProgram, "camTexture");
-        int textureTranformHandle = GLES20.glGetUniformLocation(mCameraShaderProgram, "camTextureTransform");
-        textureCoordinateHandle = GLES20.glGetAttribLocation(mCameraShaderProgram, "camTexCoordinate");
-        positionHandle = GLES20.glGetAttribLocation(mCameraShaderProgram, "position");
+        if (mCameraShaderProgram != mLocationsProgram)
+            resolveLocations();
 
-
-        GLES20.glEnableVertexAttribArray(positionHandle);
-        GLES20.glVertexAttribPointer(positionHandle, 2, GLES20.GL_FLOAT, false, 4 * 2, vertexBuffer);
+        Gl.glEnableVertexAttribArray(positionHandle);
+        Gl.glVertexAttribPointer(positionHandle, 2, GLES20.GL_FLOAT, false, 4 * 2, vertexBuffer);
 
         //camera texture
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTexturesIds[0]);
-        GLES20.glUniform1i(textureParamHandle, 0);
+        Gl.glActiveTexture(GLES20.GL_TEXTURE0);
+        Gl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTexturesIds[0]);
+        Gl.glUniform1i(mTextureParamHandle, 0);
+
+        Gl.glEnableVertexAttribArray(textureCoordinateHandle);
+        Gl.glVertexAttribPointer(textureCoordinateHandle, 2, GLES20.GL_FLOAT, false, 4 * 2, textureBuffer);
+
+        Gl.glUniformMatrix4fv(mTextureTransformHandle, 1, false, mCameraTransformMatrix, 0);
+    }
 
-        GLES20.glEnableVertexAttribArray(textureCoordinateHandle);
-        GLES20.glVertexAttribPointer(textureCoordinateHandle, 2, GLES20.GL_FLOAT, false, 4 * 2, textureBuffer);
+    /**
+     * look up everything we bind per frame, once per linked program instead of every frame.
+     * Override to look up your own uniforms along with ours, and make sure to call super
+     */
+    protected void resolveLocations()
+    {
+        mLocationsProgram = mCameraShaderProgram;
+        mTextureParamHandle = Gl.glGetUniformLocation(mCameraShaderProgram, "camTexture");
+        mTextureTransformHandle = Gl.glGetUniformLocation(mCameraShaderProgram, "camTextureTransform");
+        textureCoordinateHandle = Gl.glGetAttribLocation(mCameraShaderProgram, "camTexCoordinate");
+        positionHandle = Gl.glGetAttribLocation(mCameraShaderProgram, "position");
 
-        GLES20.glUniformMatrix4fv(textureTranformHandle, 1, false, mCameraTransformMatrix, 0);
+        for(int i = 0; i < mTextureArray.size(); i++)
+        {
+            Texture tex = mTextureArray.get(i);
+            tex.location = Gl.glGetUniformLocation(mCameraShaderProgram, tex.uniformName);
+        }
     }
 
     /**
@@ -762,12 +1018,12 @@ public class CameraRenderer extends Thread implements SurfaceTexture.OnFrameAvai
     {
         int num = mTextureArray.size() + 1;
 
-        GLES20.glActiveTexture(texId);
+        Gl.glActiveTexture(texId);
         checkGlError("Texture generate");
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexturesIds[num]);
+        Gl.glBindTexture(GLES20.GL_TEXTURE_2D, mTexturesIds[num]);
         checkGlError("Texture bind");
-        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        Gl.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        Gl.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
         GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
 
         if(recycle)
@@ -777,6 +1033,8 @@ public class CameraRenderer extends Thread implements SurfaceTexture.OnFrameAvai
 
         if(!mTextureArray.contains(tex)) {
             mTextureArray.add(tex);
+            //picked up by resolveLocations on the next frame
+            mLocationsProgram = 0;
             Log.d(TAG, "addedTexture() " + mTexturesIds[num] + " : " + tex);
         }
 
@@ -790,9 +1048,9 @@ public class CameraRenderer extends Thread implements SurfaceTexture.OnFrameAvai
      */
     public void updateTexture(int texNum, Bitmap drawingCache)
     {
-        GLES20.glActiveTexture(mTextureConsts[texNum - 1]);
+        Gl.glActiveTexture(mTextureConsts[texNum - 1]);
         checkGlError("Texture generate");
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexturesIds[texNum]);
+        Gl.glBindTexture(GLES20.GL_TEXTURE_2D, mTexturesIds[texNum]);
         checkGlError("Texture bind");
         GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, drawingCache);
         checkGlError("Tex Sub Image");
@@ -810,21 +1068,20 @@ public class CameraRenderer extends Thread implements SurfaceTexture.OnFrameAvai
         for(int i = 0; i < mTextureArray.size(); i++)
         {
             Texture tex = mTextureArray.get(i);
-            int imageParamHandle = GLES20.glGetUniformLocation(mCameraShaderProgram, tex.uniformName);
 
-            GLES20.glActiveTexture(tex.texId);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexturesIds[tex.texNum]);
-            GLES20.glUniform1i(imageParamHandle, tex.texNum);
+            Gl.glActiveTexture(tex.texId);
+            Gl.glBindTexture(GLES20.GL_TEXTURE_2D, mTexturesIds[tex.texNum]);
+            Gl.glUniform1i(tex.location, tex.texNum);
         }
     }
 
     protected void drawElements() {
-        GLES20.glDrawElements(GLES20.GL_TRIANGLES, drawOrder.length, GLES20.GL_UNSIGNED_SHORT, drawListBuffer);
+        Gl.glDrawElements(GLES20.GL_TRIANGLES, drawOrder.length, GLES20.GL_UNSIGNED_SHORT, drawListBuffer);
     }
 
     protected void onDrawCleanup() {
-        GLES20.glDisableVertexAttribArray(positionHandle);
-        GLES20.glDisableVertexAttribArray(textureCoordinateHandle);
+        Gl.glDisableVertexAttribArray(positionHandle);
+        Gl.glDisableVertexAttribArray(textureCoordinateHandle);
     }
 
     /**
@@ -833,7 +1090,7 @@ public class CameraRenderer extends Thread implements SurfaceTexture.OnFrameAvai
      */
     public void checkGlError(String op) {
         int error;
-        while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
+        while ((error = Gl.glGetError()) != GLES20.GL_NO_ERROR) {
             Log.e("SurfaceTest", op + ": glError " + GLUtils.getEGLErrorString(error));
         }
     }
@@ -858,6 +1115,115 @@ public class CameraRenderer extends Thread implements SurfaceTexture.OnFrameAvai
         return mHandler;
     }
 
+    /**
+     * Render the preview into a cheaper RGB565 surface without the recordable flag, for
+     * preview-only use on devices short on memory bandwidth. If recording starts anyway, the
+     * renderer switches to a recordable RGBA8888 config before the first recorded frame, which
+     * costs a few ms once. Call before {@link #start()}.
+     */
+    public void setLowBandwidthPreview(boolean lowBandwidth) {
+        if (isAlive())
+            throw new IllegalStateException("setLowBandwidthPreview must be called before start()");
+
+        mLowBandwidthPreview = lowBandwidth;
+    }
+
+    /**
+     * Estimate the fragment shader's cost when it's loaded and log warnings if it's likely to
+     * blow the analyzer's frame budget at the surface size. Call before {@link #start()}.
+     */
+    public void setShaderCostAnalyzer(ShaderCostAnalyzer analyzer) {
+        if (isAlive())
+            throw new IllegalStateException("setShaderCostAnalyzer must be called before start()");
+
+        mShaderCostAnalyzer = analyzer;
+    }
+
+    /**
+     * Compile the fragment shader as mediump or highp, whichever the selector measured to be
+     * fastest without visibly changing the output on this device. The first launch with a new
+     * shader calibrates it during setup. Call before {@link #start()}.
+     */
+    public void setPrecisionSelector(PrecisionSelector selector) {
+        if (isAlive())
+            throw new IllegalStateException("setPrecisionSelector must be called before start()");
+
+        mPrecisionSelector = selector;
+    }
+
+    /**
+     * override to set your fragment shader's own uniforms, ex: a time or resolution, on the
+     * program the {@link PrecisionSelector} calibrates with. Anything left unset is 0. Called on
+     * whichever thread builds the program, which is a worker for {@link #swapShaders}
+     */
+    protected void onBindCalibrationUniforms(int program) {
+
+    }
+
+    /**
+     * Switch to different shader files from /assets/ without restarting the renderer, from any
+     * thread once it's ready. They're compiled and linked on a worker context sharing with ours
+     * and swapped in before the first frame drawn after they've linked, until then the current
+     * program keeps drawing so no frame is dropped. Only the newest of several quick calls is
+     * swapped in, and a pair that fails to build is logged and ignored.
+     *
+     * The first call makes the worker context, which blocks the caller for a few ms.
+     */
+    public void swapShaders(String fragPath, String vertPath) {
+        ShaderSwapper swapper = mShaderSwapper;
+        if (swapper == null)
+            throw new IllegalStateException("swapShaders must be called after onRendererReady()");
+
+        swapper.swap(fragPath, vertPath);
+    }
+
+    /**
+     * Fold a uniform of the fragment shader that won't change for the rest of the session into
+     * it as a #define, so it's constant folded instead of evaluated for every fragment. Any
+     * thread, before or after {@link #start()}.
+     *
+     * The specialized program builds on a worker context while the generic one keeps drawing,
+     * so keep setting the uniform as usual, it's just ignored once the variant takes over. The
+     * last {@link SpecializedPrograms#DEFAULT_CAPACITY} variants stay cached, so flipping back
+     * to earlier values is free.
+     *
+     * @param values one per component, ex: 3 for a vec3. None to make it a plain uniform again
+     */
+    public void setSessionConstant(String name, float... values) {
+        synchronized (mSessionConstants) {
+            if (values.length == 0)
+                mSessionConstants.remove(name);
+            else
+                mSessionConstants.put(name, values.clone());
+        }
+        mSessionConstantsChanged = true;
+
+        SpecializedPrograms programs = mSpecializedPrograms;
+        if (programs != null) //make the worker context here rather than on the render thread
+            programs.prepare();
+    }
+
+    /**
+     * @return estimated cost of the fragment shader, null until the render thread has loaded it
+     * or without an analyzer
+     */
+    public ShaderCost getShaderCost() {
+        return mShaderCost;
+    }
+
+    /**
+     * Bytes written to EGL surfaces per rendered frame, the preview plus the recording surface
+     * while recording. Times the frame rate that's the memory bandwidth
+     * {@link #setLowBandwidthPreview} saves. Render thread only.
+     */
+    public long getSurfaceBytesPerFrame() {
+        long bytes = (long) mWindowSurface.getWidth() * mWindowSurface.getHeight();
+        if (mIsRecording && mRecordSurface != null)
+            bytes += (long) mRecordSurface.getWidth() * mRecordSurface.getHeight();
+
+        return bytes * mEglCore.getBytesPerPixel();
+    }
+
     public void setOnRendererReadyListener(OnRendererReadyListener listener) {
         mOnRendererReadyListener = listener;
 
@@ -937,6 +1303,11 @@ public class CameraRenderer extends Thread implements SurfaceTexture.OnFrameAvai
         public int texId;
         public String uniformName;
 
+        /**
+         * uniformName's location in the current program
+         */
+        public int location = -1;
+
         private Texture(int texNum, int texId, String uniformName) {
             this.texNum = texNum;
             this.texId = texId;
@@ -47,6 +47,26 @@ public final class EglCore {
      */
     public static final int FLAG_TRY_GLES3 = 0x02;
 
+    /**
+     * Constructor flag: make the GLES3 attempt even if {@link #setGlVersionHint} says it will
+     * fail.  For probing.
+     */
+    public static final int FLAG_IGNORE_VERSION_HINT = 0x04;
+
+    /**
+     * Constructor flag: use a 16-bit RGB565 config if there is one, falling back to RGBA8888.
+     * Halves the bytes written and scanned out per pixel, for preview-only surfaces on
+     * devices where memory bandwidth is the limit.  Some banding on smooth gradients.
+     */
+    public static final int FLAG_RGB565 = 0x08;
+
+    /**
+     * Constructor flag: use an RGB888 config without alpha if there is one, falling back to
+     * RGBA8888.  Most gralloc formats still pad to 32 bits, so this mainly skips alpha
+     * blending in the compositor.  Ignored with FLAG_RGB565.
+     */
+    public static final int FLAG_NO_ALPHA = 0x10;
+
     // Android-specific extension.
     private static final int EGL_RECORDABLE_ANDROID = 0x3142;
 
@@ -54,6 +74,10 @@ public final class EglCore {
     private EGLContext mEGLContext = EGL14.EGL_NO_CONTEXT;
     private EGLConfig mEGLConfig = null;
     private int mGlVersion = -1;
+    private int mFlags;
+
+    // Highest GLES version this device is known to support, 0 if unknown.
+    private static volatile int sGlVersionHint = 0;
 
 
     /**
@@ -90,8 +114,16 @@ public final class EglCore {
             throw new RuntimeException("unable to initialize EGL14");
         }
 
-        // Try to get a GLES3 context, if requested.
-        if ((flags & FLAG_TRY_GLES3) != 0) {
+        // Cheaper formats are a preference, not a requirement.
+        if ((flags & (FLAG_RGB565 | FLAG_NO_ALPHA)) != 0 && getConfig(flags, 2) == null) {
+            Log.w(TAG, "no low bandwidth EGLConfig, using RGBA8888");
+            flags &= ~(FLAG_RGB565 | FLAG_NO_ALPHA);
+        }
+        mFlags = flags;
+
+        // Try to get a GLES3 context, if requested and not known to fail.
+        boolean knownGles2 = sGlVersionHint == 2 && (flags & FLAG_IGNORE_VERSION_HINT) == 0;
+        if ((flags & FLAG_TRY_GLES3) != 0 && !knownGles2) {
             //Log.d(TAG, "Trying GLES 3");
             EGLConfig config = getConfig(flags, 3);
             if (config != null) {
@@ -135,6 +167,15 @@ public final class EglCore {
         Log.d(TAG, "EGLContext created, client version " + values[0]);
     }
 
+    /**
+     * Tells every EglCore created after this the highest GLES version the device supports, from
+     * a stored DeviceProfile.  With a hint of 2, FLAG_TRY_GLES3 goes straight to GLES2 instead
+     * of choosing a config and failing a context first.  0 clears it.
+     */
+    public static void setGlVersionHint(int version) {
+        sGlVersionHint = version;
+    }
+
     /**
      * Finds a suitable EGLConfig.
      *
@@ -149,12 +190,21 @@ public final class EglCore {
 
         // The actual surface is generally RGBA or RGBX, so situationally omitting alpha
         // doesn't really help.  It can also lead to a huge performance hit on glReadPixels()
-        // when reading into a GL_RGBA buffer.
+        // when reading into a GL_RGBA buffer.  So only when asked for.
+        int red = 8, green = 8, blue = 8, alpha = 8;
+        if ((flags & FLAG_RGB565) != 0) {
+            red = 5;
+            green = 6;
+            blue = 5;
+            alpha = 0;
+        } else if ((flags & FLAG_NO_ALPHA) != 0) {
+            alpha = 0;
+        }
         int[] attribList = {
-                EGL14.EGL_RED_SIZE, 8,
-                EGL14.EGL_GREEN_SIZE, 8,
-                EGL14.EGL_BLUE_SIZE, 8,
-                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RED_SIZE, red,
+                EGL14.EGL_GREEN_SIZE, green,
+                EGL14.EGL_BLUE_SIZE, blue,
+                EGL14.EGL_ALPHA_SIZE, alpha,
                 //EGL14.EGL_DEPTH_SIZE, 16,
                 //EGL14.EGL_STENCIL_SIZE, 8,
                 EGL14.EGL_RENDERABLE_TYPE, renderableType,
@@ -165,16 +215,37 @@ public final class EglCore {
             attribList[attribList.length - 3] = EGL_RECORDABLE_ANDROID;
             attribList[attribList.length - 2] = 1;
         }
-        EGLConfig[] configs = new EGLConfig[1];
+        // Sizes are minimums and deeper configs sort first, so look for an exact match.
+        EGLConfig[] configs = new EGLConfig[16];
         int[] numConfigs = new int[1];
         if (!EGL14.eglChooseConfig(mEGLDisplay, attribList, 0, configs, 0, configs.length,
-                numConfigs, 0)) {
-            Log.w(TAG, "unable to find RGB8888 / " + version + " EGLConfig");
+                numConfigs, 0) || numConfigs[0] == 0) {
+            Log.w(TAG, "unable to find " + red + green + blue + alpha + " / " + version
+                    + " EGLConfig");
+            return null;
+        }
+        for (int i = 0; i < numConfigs[0]; i++) {
+            if (getConfigAttrib(configs[i], EGL14.EGL_RED_SIZE) == red
+                    && getConfigAttrib(configs[i], EGL14.EGL_GREEN_SIZE) == green
+                    && getConfigAttrib(configs[i], EGL14.EGL_BLUE_SIZE) == blue
+                    && getConfigAttrib(configs[i], EGL14.EGL_ALPHA_SIZE) == alpha) {
+                return configs[i];
+            }
+        }
+        if (alpha != 8) {
+            // only deeper ones, which is what we were trying to avoid
+            Log.w(TAG, "no exact " + red + green + blue + alpha + " / " + version + " EGLConfig");
             return null;
         }
         return configs[0];
     }
 
+    private int getConfigAttrib(EGLConfig config, int attribute) {
+        int[] value = new int[1];
+        EGL14.eglGetConfigAttrib(mEGLDisplay, config, attribute, value, 0);
+        return value[0];
+    }
+
     /**
      * Discards all resources held by this class, notably the EGL context.  This must be
      * called from the thread where the context was created.
@@ -345,6 +416,29 @@ public final class EglCore {
         return mGlVersion;
     }
 
+    /**
+     * Returns the EGLContext, for creating contexts that share with it.
+     */
+    public EGLContext getContext() {
+        return mEGLContext;
+    }
+
+    /**
+     * Returns true if surfaces from this context can be handed to a video encoder.
+     */
+    public boolean isRecordable() {
+        return (mFlags & FLAG_RECORDABLE) != 0;
+    }
+
+    /**
+     * Returns the bytes each pixel of a surface from this context takes in memory: 2 for
+     * RGB565, otherwise 4 (RGB888 is padded to RGBX).  Times width, height and fps, this is
+     * roughly the write bandwidth of presenting frames.
+     */
+    public int getBytesPerPixel() {
+        return getConfigAttrib(mEGLConfig, EGL14.EGL_BUFFER_SIZE) <= 16 ? 2 : 4;
+    }
+
     /**
      * Writes the current display, context, and surface to the log.
      */
@@ -0,0 +1,392 @@
+package com.androidexperiments.shadercam.gl;
+
+import android.content.Context;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+/**
+ * {@link RenderStage} that keeps the last few camera frames around on the GPU, for effects like
+ * echo trails, frame averaging or motion blur.
+ *
+ * Every new camera frame is copied (optionally downscaled) into a fixed ring of textures that
+ * is allocated once, so steady state does no allocation at all. The ring is sized to fit a
+ * memory budget: if the requested frames don't fit we keep fewer of them, and if not even one
+ * does we halve the resolution until it fits.
+ *
+ * Frames are in camera texture space, so sample them with v_CamTexCoordinate. By default the
+ * ring is plain 2D textures and the main shader gets (age 0 is the newest frame):
+ * <pre>
+ *   uniform sampler2D historyTexture0;   // ...up to historyTexture[frames - 1]
+ *   uniform float historyAge[frames];    // seconds between each frame and the newest one
+ * </pre>
+ * With {@link #FrameHistoryStage(Context, int, float, boolean)} and a GLES3 context the ring is a
+ * single texture array instead, which only needs one texture unit but a #version 300 es shader:
+ * <pre>
+ *   uniform mediump sampler2DArray historyTexture;
+ *   uniform float historyLayer[frames];  // layer to sample for each age
+ *   uniform float historyAge[frames];
+ *   ...
+ *   texture(historyTexture, vec3(v_CamTexCoordinate, historyLayer[2]));
+ * </pre>
+ */
+public class FrameHistoryStage extends RenderStage {
+
+    private static final String TAG = FrameHistoryStage.class.getSimpleName();
+
+    public static final int MAX_FRAMES = 8;
+
+    /**
+     * default memory budget, enough for 8 frames at 1280x720
+     */
+    public static final int DEFAULT_BUDGET_BYTES = 32 * 1024 * 1024;
+
+    private static final String VERTEX_SHADER = "fullscreen.vert.glsl";
+
+    private static final String COPY_FRAGMENT_SHADER = "history_copy_oes.frag.glsl";
+
+    private final Context mContext;
+
+    private final int mRequestedFrames;
+
+    private final float mScale;
+
+    private final boolean mWantTextureArray;
+
+    private int mBudgetBytes = DEFAULT_BUDGET_BYTES;
+
+    private FullscreenPass mCopyPass;
+
+    private int mCopySourceHandle;
+
+    private boolean mArrayMode;
+
+    /**
+     * 2D mode: ring of pooled targets. array mode: one texture array and one fbo we re-target
+     */
+    private final Framebuffer[] mFrames = new Framebuffer[MAX_FRAMES];
+
+    private final int[] mArrayTexture = new int[1];
+
+    private final int[] mArrayFramebuffer = new int[1];
+
+    private final long[] mTimestamps = new long[MAX_FRAMES];
+
+    /**
+     * number of slots actually allocated, at most {@link #mRequestedFrames}
+     */
+    private int mFrameSlots;
+
+    private int mFrameWidth, mFrameHeight;
+
+    /**
+     * preview size the ring was allocated for
+     */
+    private int mAllocatedWidth, mAllocatedHeight;
+
+    /**
+     * slot holding the newest frame, and how many slots hold valid frames
+     */
+    private int mHead = -1;
+
+    private int mValidFrames;
+
+    private long mLastFrameNumber = -1;
+
+    private FramebufferPool mPool;
+
+    private final int[] mTextureUnits = new int[MAX_FRAMES];
+
+    private final String[] mUniformNames;
+
+    private final int[] mTextureHandles = new int[MAX_FRAMES];
+
+    private int mAgeHandle, mLayerHandle;
+
+    private final float[] mAges = new float[MAX_FRAMES];
+
+    private final float[] mLayers = new float[MAX_FRAMES];
+
+    private int mProgram = -1;
+
+    /**
+     * Keeps full resolution 2D textures
+     */
+    public FrameHistoryStage(Context context, int frames) {
+        this(context, frames, 1.f, false);
+    }
+
+    /**
+     * @param frames how many frames to keep, 1 to {@link #MAX_FRAMES}
+     * @param scale size of the stored frames relative to the camera, ex: 0.5 for half
+     * @param useTextureArray store frames in a GLES3 texture array when available
+     */
+    public FrameHistoryStage(Context context, int frames, float scale, boolean useTextureArray) {
+        if (frames < 1 || frames > MAX_FRAMES) {
+            throw new IllegalArgumentException("frames must be 1-" + MAX_FRAMES + ", was " + frames);
+        }
+        if (scale <= 0.f || scale > 1.f) {
+            throw new IllegalArgumentException("scale must be in (0, 1], was " + scale);
+        }
+        mContext = context.getApplicationContext();
+        mRequestedFrames = frames;
+        mScale = scale;
+        mWantTextureArray = useTextureArray;
+
+        mUniformNames = new String[frames];
+        for (int i = 0; i < frames; i++) {
+            mUniformNames[i] = "historyTexture" + i;
+        }
+    }
+
+    /**
+     * Caps the GPU memory used for stored frames. Takes effect the next time the ring is
+     * allocated, ie: on setup or when the camera size changes.
+     */
+    public void setMemoryBudget(int bytes) {
+        mBudgetBytes = bytes;
+    }
+
+    /**
+     * @return GPU memory currently used for stored frames, in bytes
+     */
+    public int getMemoryBytes() {
+        return mFrameSlots * mFrameWidth * mFrameHeight * 4;
+    }
+
+    /**
+     * @return number of frames we can hand out right now, grows to the ring size as frames arrive
+     */
+    public int getFrameCount() {
+        return mValidFrames;
+    }
+
+    /**
+     * @param age 0 for the newest frame
+     * @return {@link android.graphics.SurfaceTexture#getTimestamp()} of that frame
+     */
+    public long getTimestamp(int age) {
+        return mTimestamps[slotForAge(age)];
+    }
+
+    /**
+     * @param age 0 for the newest frame
+     * @return the texture holding that frame. in texture array mode this is the array, see
+     * {@link #getLayer(int)}
+     */
+    public int getTexture(int age) {
+        if (mArrayMode) {
+            return mArrayTexture[0];
+        }
+        Framebuffer fb = mFrames[slotForAge(age)];
+        return fb != null ? fb.getTextureId() : 0;
+    }
+
+    /**
+     * @return layer of the texture array holding the frame of this age
+     */
+    public int getLayer(int age) {
+        return slotForAge(age);
+    }
+
+    public boolean isTextureArray() {
+        return mArrayMode;
+    }
+
+    @Override
+    protected void onSetup(VideoRenderer renderer) {
+        mPool = renderer.getFramebufferPool();
+        mArrayMode = mWantTextureArray && GlUtil.getGlesMajorVersion() >= 3;
+        mProgram = -1;
+
+        int units = mArrayMode ? 1 : mRequestedFrames;
+        for (int i = 0; i < units; i++) {
+            mTextureUnits[i] = renderer.reserveTextureUnit();
+        }
+
+        mCopyPass = FullscreenPass.fromAssets(mContext, VERTEX_SHADER, COPY_FRAGMENT_SHADER);
+        mCopySourceHandle = mCopyPass.getUniformLocation("sourceTexture");
+    }
+
+    @Override
+    protected void onPreDraw(VideoRenderer renderer) {
+        long frameNumber = renderer.getFrameNumber();
+        if (frameNumber == mLastFrameNumber) {
+            //redraw without a new camera frame, nothing to store
+            return;
+        }
+        mLastFrameNumber = frameNumber;
+
+        int width = renderer.getPreviewWidth();
+        int height = renderer.getPreviewHeight();
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        allocate(width, height);
+
+        mHead = (mHead + 1) % mFrameSlots;
+        mTimestamps[mHead] = renderer.getFrameTimestamp();
+        if (mValidFrames < mFrameSlots) {
+            mValidFrames++;
+        }
+
+        if (mArrayMode) {
+            Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mArrayFramebuffer[0]);
+            Gl.glFramebufferTextureLayer(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                    mArrayTexture[0], 0, mHead);
+            Gl.glViewport(0, 0, mFrameWidth, mFrameHeight);
+        } else {
+            mFrames[mHead].bind();
+        }
+
+        mCopyPass.use();
+        Gl.glActiveTexture(GLES20.GL_TEXTURE0);
+        Gl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, renderer.getCameraTexture());
+        Gl.glUniform1i(mCopySourceHandle, 0);
+        mCopyPass.draw();
+
+        Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    @Override
+    protected void onBindUniforms(VideoRenderer renderer, int program) {
+        if (program != mProgram) {
+            mProgram = program;
+            if (mArrayMode) {
+                mTextureHandles[0] = Gl.glGetUniformLocation(program, "historyTexture");
+            } else {
+                for (int i = 0; i < mRequestedFrames; i++) {
+                    mTextureHandles[i] = Gl.glGetUniformLocation(program, mUniformNames[i]);
+                }
+            }
+            mAgeHandle = Gl.glGetUniformLocation(program, "historyAge");
+            mLayerHandle = Gl.glGetUniformLocation(program, "historyLayer");
+        }
+        if (mValidFrames == 0) {
+            return;
+        }
+
+        long newest = mTimestamps[mHead];
+        for (int age = 0; age < mRequestedFrames; age++) {
+            int slot = slotForAge(age);
+            mAges[age] = (newest - mTimestamps[slot]) / 1000000000.f;
+            mLayers[age] = slot;
+
+            if (!mArrayMode) {
+                Gl.glActiveTexture(mTextureUnits[age]);
+                Gl.glBindTexture(GLES20.GL_TEXTURE_2D, mFrames[slot].getTextureId());
+                Gl.glUniform1i(mTextureHandles[age], mTextureUnits[age] - GLES20.GL_TEXTURE0);
+            }
+        }
+
+        if (mArrayMode) {
+            Gl.glActiveTexture(mTextureUnits[0]);
+            Gl.glBindTexture(GLES30.GL_TEXTURE_2D_ARRAY, mArrayTexture[0]);
+            Gl.glUniform1i(mTextureHandles[0], mTextureUnits[0] - GLES20.GL_TEXTURE0);
+            Gl.glUniform1fv(mLayerHandle, mRequestedFrames, mLayers, 0);
+        }
+        Gl.glUniform1fv(mAgeHandle, mRequestedFrames, mAges, 0);
+    }
+
+    @Override
+    protected void onRelease() {
+        releaseFrames();
+        if (mCopyPass != null) {
+            mCopyPass.release();
+            mCopyPass = null;
+        }
+        mProgram = -1;
+    }
+
+    /**
+     * ages past what we've stored so far get the oldest frame we have
+     */
+    private int slotForAge(int age) {
+        if (mValidFrames == 0) {
+            return 0;
+        }
+        if (age >= mValidFrames) {
+            age = mValidFrames - 1;
+        }
+        return (mHead - age + mFrameSlots) % mFrameSlots;
+    }
+
+    /**
+     * sizes the ring against the budget, only when the camera size changed
+     */
+    private void allocate(int previewWidth, int previewHeight) {
+        if (previewWidth == mAllocatedWidth && previewHeight == mAllocatedHeight) {
+            return;
+        }
+        releaseFrames();
+
+        int width = Math.max(1, Math.round(previewWidth * mScale));
+        int height = Math.max(1, Math.round(previewHeight * mScale));
+        long frameBytes = (long) width * height * 4;
+        int slots = (int) Math.min(mRequestedFrames, mBudgetBytes / frameBytes);
+        while (slots < 1 && (width > 1 || height > 1)) {
+            width = Math.max(1, width / 2);
+            height = Math.max(1, height / 2);
+            frameBytes = (long) width * height * 4;
+            slots = (int) Math.min(mRequestedFrames, mBudgetBytes / frameBytes);
+        }
+        slots = Math.max(1, slots);
+
+        if (slots < mRequestedFrames || width != Math.round(previewWidth * mScale)) {
+            Log.w(TAG, "Budget of " + mBudgetBytes + " bytes fits " + slots + " of "
+                    + mRequestedFrames + " frames at " + width + "x" + height);
+        }
+
+        if (mArrayMode) {
+            Gl.glGenTextures(1, mArrayTexture, 0);
+            Gl.glBindTexture(GLES30.GL_TEXTURE_2D_ARRAY, mArrayTexture[0]);
+            Gl.glTexStorage3D(GLES30.GL_TEXTURE_2D_ARRAY, 1, GLES30.GL_RGBA8,
+                    width, height, slots);
+            Gl.glTexParameteri(GLES30.GL_TEXTURE_2D_ARRAY, GLES20.GL_TEXTURE_MIN_FILTER,
+                    GLES20.GL_LINEAR);
+            Gl.glTexParameteri(GLES30.GL_TEXTURE_2D_ARRAY, GLES20.GL_TEXTURE_MAG_FILTER,
+                    GLES20.GL_LINEAR);
+            Gl.glTexParameteri(GLES30.GL_TEXTURE_2D_ARRAY, GLES20.GL_TEXTURE_WRAP_S,
+                    GLES20.GL_CLAMP_TO_EDGE);
+            Gl.glTexParameteri(GLES30.GL_TEXTURE_2D_ARRAY, GLES20.GL_TEXTURE_WRAP_T,
+                    GLES20.GL_CLAMP_TO_EDGE);
+            Gl.glGenFramebuffers(1, mArrayFramebuffer, 0);
+            GlUtil.checkGlError("history texture array");
+        } else {
+            for (int i = 0; i < slots; i++) {
+                mFrames[i] = mPool.acquire(width, height);
+            }
+        }
+
+        mFrameSlots = slots;
+        mFrameWidth = width;
+        mFrameHeight = height;
+        mAllocatedWidth = previewWidth;
+        mAllocatedHeight = previewHeight;
+        mHead = -1;
+        mValidFrames = 0;
+    }
+
+    private void releaseFrames() {
+        for (int i = 0; i < mFrames.length; i++) {
+            if (mPool != null) {
+                mPool.release(mFrames[i]);
+            }
+            mFrames[i] = null;
+        }
+        if (mArrayFramebuffer[0] != 0) {
+            Gl.glDeleteFramebuffers(1, mArrayFramebuffer, 0);
+            mArrayFramebuffer[0] = 0;
+        }
+        if (mArrayTexture[0] != 0) {
+            Gl.glDeleteTextures(1, mArrayTexture, 0);
+            mArrayTexture[0] = 0;
+        }
+        mFrameSlots = 0;
+        mFrameWidth = mFrameHeight = 0;
+        mAllocatedWidth = mAllocatedHeight = 0;
+        mHead = -1;
+        mValidFrames = 0;
+    }
+}
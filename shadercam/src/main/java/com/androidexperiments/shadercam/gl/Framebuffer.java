@@ -0,0 +1,90 @@
+package com.androidexperiments.shadercam.gl;
+
+import android.opengl.GLES20;
+
+/**
+ * An offscreen render target: a framebuffer object with a single RGBA texture attached.
+ * Get these from a {@link FramebufferPool} rather than creating them per frame.
+ */
+public class Framebuffer {
+
+    private final int[] mIds = new int[2];
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    /**
+     * Creates the texture and fbo. Must be called on the GL thread.
+     */
+    Framebuffer(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+
+        Gl.glGenTextures(1, mIds, 0);
+        Gl.glBindTexture(GLES20.GL_TEXTURE_2D, mIds[0]);
+        Gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        Gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        Gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        Gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        Gl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GlUtil.checkGlError("framebuffer texture");
+
+        Gl.glGenFramebuffers(1, mIds, 1);
+        Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mIds[1]);
+        Gl.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mIds[0], 0);
+
+        int status = Gl.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            release();
+            throw new RuntimeException("Framebuffer " + width + "x" + height
+                    + " incomplete: 0x" + Integer.toHexString(status));
+        }
+    }
+
+    /**
+     * Binds this as the render target and sets the viewport to cover it.
+     */
+    public void bind() {
+        Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mIds[1]);
+        Gl.glViewport(0, 0, mWidth, mHeight);
+    }
+
+    public int getTextureId() {
+        return mIds[0];
+    }
+
+    public int getFramebufferId() {
+        return mIds[1];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    void release() {
+        if (mIds[1] != 0) {
+            Gl.glDeleteFramebuffers(1, mIds, 1);
+        }
+        if (mIds[0] != 0) {
+            Gl.glDeleteTextures(1, mIds, 0);
+        }
+        mIds[0] = mIds[1] = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "[Framebuffer] " + mWidth + "x" + mHeight + " fbo: " + mIds[1] + " tex: " + mIds[0];
+    }
+}
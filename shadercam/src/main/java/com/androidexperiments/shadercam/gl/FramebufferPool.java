@@ -0,0 +1,69 @@
+package com.androidexperiments.shadercam.gl;
+
+import java.util.ArrayList;
+
+/**
+ * Pool of {@link Framebuffer}s shared by a renderer's {@link RenderStage}s, so stages that
+ * come and go or change size don't thrash GL allocations.
+ *
+ * GL thread only.
+ */
+public class FramebufferPool {
+
+    /**
+     * framebuffers not currently in use, reused by exact size
+     */
+    private final ArrayList<Framebuffer> mFree = new ArrayList<>();
+
+    /**
+     * number of framebuffers currently handed out
+     */
+    private int mInUse = 0;
+
+    /**
+     * Returns a framebuffer of exactly this size, reusing a free one if we have it. Contents are
+     * undefined.
+     */
+    public Framebuffer acquire(int width, int height) {
+        for (int i = mFree.size() - 1; i >= 0; i--) {
+            Framebuffer fb = mFree.get(i);
+            if (fb.getWidth() == width && fb.getHeight() == height) {
+                mFree.remove(i);
+                mInUse++;
+                return fb;
+            }
+        }
+        Framebuffer fb = new Framebuffer(width, height);
+        mInUse++;
+        return fb;
+    }
+
+    /**
+     * Hands a framebuffer back for reuse. Null is ignored.
+     */
+    public void release(Framebuffer fb) {
+        if (fb == null) {
+            return;
+        }
+        mInUse--;
+        mFree.add(fb);
+    }
+
+    /**
+     * Deletes the free framebuffers. Anything still acquired is left alone.
+     */
+    public void trim() {
+        for (int i = 0; i < mFree.size(); i++) {
+            mFree.get(i).release();
+        }
+        mFree.clear();
+    }
+
+    public int getFreeCount() {
+        return mFree.size();
+    }
+
+    public int getInUseCount() {
+        return mInUse;
+    }
+}
@@ -0,0 +1,84 @@
+package com.androidexperiments.shadercam.gl;
+
+import com.androidexperiments.shadercam.utils.ShaderUtils;
+
+import android.content.Context;
+import android.opengl.GLES20;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+
+/**
+ * A program that draws a single fullscreen quad, for offscreen passes run by
+ * {@link RenderStage}s. The vertex shader gets {@code attribute vec4 position} in clip space,
+ * see fullscreen.vert.glsl.
+ *
+ * GL thread only.
+ */
+public class FullscreenPass {
+
+    private static final float QUAD_COORDS[] = {
+            -1.0f, 1.0f,   // top left
+            1.0f, 1.0f,    // top right
+            -1.0f, -1.0f,  // bottom left
+            1.0f, -1.0f,   // bottom right
+    };
+
+    private final FloatBuffer mQuadBuffer = GlUtil.createFloatBuffer(QUAD_COORDS);
+
+    private int mProgram;
+
+    private final int mPositionHandle;
+
+    public FullscreenPass(String vertexSource, String fragmentSource) {
+        mProgram = GlUtil.createProgram(vertexSource, fragmentSource);
+        if (mProgram == 0) {
+            throw new RuntimeException("Could not create fullscreen pass program");
+        }
+        mPositionHandle = Gl.glGetAttribLocation(mProgram, "position");
+        GlUtil.checkLocation(mPositionHandle, "position");
+    }
+
+    /**
+     * Convenience for loading both shaders out of /assets/
+     */
+    public static FullscreenPass fromAssets(Context context, String vertPath, String fragPath) {
+        try {
+            return new FullscreenPass(ShaderUtils.getStringFromFileInAssets(context, vertPath),
+                    ShaderUtils.getStringFromFileInAssets(context, fragPath));
+        } catch (IOException e) {
+            throw new RuntimeException("Could not load pass shaders " + vertPath + ", "
+                    + fragPath + ": " + e.getMessage());
+        }
+    }
+
+    public int getProgram() {
+        return mProgram;
+    }
+
+    public int getUniformLocation(String name) {
+        return Gl.glGetUniformLocation(mProgram, name);
+    }
+
+    public void use() {
+        Gl.glUseProgram(mProgram);
+    }
+
+    /**
+     * Draws the quad into whatever is bound. Call {@link #use()} and set uniforms first.
+     */
+    public void draw() {
+        Gl.glEnableVertexAttribArray(mPositionHandle);
+        Gl.glVertexAttribPointer(mPositionHandle, 2, GLES20.GL_FLOAT, false, 4 * 2,
+                mQuadBuffer);
+        Gl.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        Gl.glDisableVertexAttribArray(mPositionHandle);
+    }
+
+    public void release() {
+        if (mProgram != 0) {
+            Gl.glDeleteProgram(mProgram);
+            mProgram = 0;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.androidexperiments.shadercam.gl;
+
+import java.nio.Buffer;
+
+/**
+ * Static GL facade used throughout shadercam in place of {@link android.opengl.GLES20} and
+ * GLES30, so call sites read the same as before: {@code Gl.glBindTexture(...)}. Constants still
+ * come from GLES20 / GLES30.
+ *
+ * Calls go to {@link GlesBackend} unless {@link #setBackend(GlBackend)} swaps in something else,
+ * ex: a {@link RecordingGlBackend} to count and check calls on a plain JVM. Bitmap uploads
+ * through GLUtils and EGL itself are not covered.
+ */
+public final class Gl {
+
+    /**
+     * volatile so a swap from another thread, ex: GlTracer on the UI thread, reaches render
+     * threads by their next call
+     */
+    private static volatile GlBackend sBackend = new GlesBackend();
+
+    private Gl() {
+    }
+
+    /**
+     * Swaps the backend for every GL call that follows, from any thread and at any time, ex:
+     * in test setup or while rendering, which is how GlTracer starts. A call already running on
+     * another thread finishes on the old backend, so a backend that wraps another has to expect
+     * a few calls either side of the swap, and mustn't release anything those calls use until
+     * they're done, which is why GlTracer stops on the GL thread.
+     */
+    public static void setBackend(GlBackend backend) {
+        sBackend = backend;
+    }
+
+    public static GlBackend getBackend() {
+        return sBackend;
+    }
+
+    public static void glActiveTexture(int texture) {
+        sBackend.glActiveTexture(texture);
+    }
+
+    public static void glAttachShader(int program, int shader) {
+        sBackend.glAttachShader(program, shader);
+    }
+
+    public static void glBindFramebuffer(int target, int framebuffer) {
+        sBackend.glBindFramebuffer(target, framebuffer);
+    }
+
+    public static void glBindTexture(int target, int texture) {
+        sBackend.glBindTexture(target, texture);
+    }
+
+    public static void glBlitFramebuffer(int srcX0, int srcY0, int srcX1, int srcY1, int dstX0,
+            int dstY0, int dstX1, int dstY1, int mask, int filter) {
+        sBackend.glBlitFramebuffer(srcX0, srcY0, srcX1, srcY1, dstX0, dstY0, dstX1, dstY1, mask,
+                filter);
+    }
+
+    public static int glCheckFramebufferStatus(int target) {
+        return sBackend.glCheckFramebufferStatus(target);
+    }
+
+    public static void glClear(int mask) {
+        sBackend.glClear(mask);
+    }
+
+    public static void glClearColor(float red, float green, float blue, float alpha) {
+        sBackend.glClearColor(red, green, blue, alpha);
+    }
+
+    public static void glCompileShader(int shader) {
+        sBackend.glCompileShader(shader);
+    }
+
+    public static int glCreateProgram() {
+        return sBackend.glCreateProgram();
+    }
+
+    public static int glCreateShader(int type) {
+        return sBackend.glCreateShader(type);
+    }
+
+    public static void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+        sBackend.glDeleteFramebuffers(n, framebuffers, offset);
+    }
+
+    public static void glDeleteProgram(int program) {
+        sBackend.glDeleteProgram(program);
+    }
+
+    public static void glDeleteShader(int shader) {
+        sBackend.glDeleteShader(shader);
+    }
+
+    public static void glDeleteTextures(int n, int[] textures, int offset) {
+        sBackend.glDeleteTextures(n, textures, offset);
+    }
+
+    public static void glDisableVertexAttribArray(int index) {
+        sBackend.glDisableVertexAttribArray(index);
+    }
+
+    public static void glDrawArrays(int mode, int first, int count) {
+        sBackend.glDrawArrays(mode, first, count);
+    }
+
+    public static void glDrawElements(int mode, int count, int type, Buffer indices) {
+        sBackend.glDrawElements(mode, count, type, indices);
+    }
+
+    public static void glEnableVertexAttribArray(int index) {
+        sBackend.glEnableVertexAttribArray(index);
+    }
+
+    public static void glFramebufferTexture2D(int target, int attachment, int textarget,
+            int texture, int level) {
+        sBackend.glFramebufferTexture2D(target, attachment, textarget, texture, level);
+    }
+
+    public static void glFramebufferTextureLayer(int target, int attachment, int texture,
+            int level, int layer) {
+        sBackend.glFramebufferTextureLayer(target, attachment, texture, level, layer);
+    }
+
+    public static void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+        sBackend.glGenFramebuffers(n, framebuffers, offset);
+    }
+
+    public static void glGenTextures(int n, int[] textures, int offset) {
+        sBackend.glGenTextures(n, textures, offset);
+    }
+
+    public static int glGetAttribLocation(int program, String name) {
+        return sBackend.glGetAttribLocation(program, name);
+    }
+
+    public static int glGetError() {
+        return sBackend.glGetError();
+    }
+
+    public static void glGetIntegerv(int pname, int[] params, int offset) {
+        sBackend.glGetIntegerv(pname, params, offset);
+    }
+
+    public static String glGetProgramInfoLog(int program) {
+        return sBackend.glGetProgramInfoLog(program);
+    }
+
+    public static void glGetProgramiv(int program, int pname, int[] params, int offset) {
+        sBackend.glGetProgramiv(program, pname, params, offset);
+    }
+
+    public static String glGetShaderInfoLog(int shader) {
+        return sBackend.glGetShaderInfoLog(shader);
+    }
+
+    public static void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+        sBackend.glGetShaderiv(shader, pname, params, offset);
+    }
+
+    public static String glGetString(int name) {
+        return sBackend.glGetString(name);
+    }
+
+    public static int glGetUniformLocation(int program, String name) {
+        return sBackend.glGetUniformLocation(program, name);
+    }
+
+    public static void glLinkProgram(int program) {
+        sBackend.glLinkProgram(program);
+    }
+
+    public static void glPixelStorei(int pname, int param) {
+        sBackend.glPixelStorei(pname, param);
+    }
+
+    public static void glReadPixels(int x, int y, int width, int height, int format, int type,
+            Buffer pixels) {
+        sBackend.glReadPixels(x, y, width, height, format, type, pixels);
+    }
+
+    public static void glShaderSource(int shader, String string) {
+        sBackend.glShaderSource(shader, string);
+    }
+
+    public static void glTexImage2D(int target, int level, int internalformat, int width,
+            int height, int border, int format, int type, Buffer pixels) {
+        sBackend.glTexImage2D(target, level, internalformat, width, height, border, format, type,
+                pixels);
+    }
+
+    public static void glTexImage3D(int target, int level, int internalformat, int width,
+            int height, int depth, int border, int format, int type, Buffer pixels) {
+        sBackend.glTexImage3D(target, level, internalformat, width, height, depth, border, format,
+                type, pixels);
+    }
+
+    public static void glTexParameterf(int target, int pname, float param) {
+        sBackend.glTexParameterf(target, pname, param);
+    }
+
+    public static void glTexParameteri(int target, int pname, int param) {
+        sBackend.glTexParameteri(target, pname, param);
+    }
+
+    public static void glTexStorage3D(int target, int levels, int internalformat, int width,
+            int height, int depth) {
+        sBackend.glTexStorage3D(target, levels, internalformat, width, height, depth);
+    }
+
+    public static void glTexSubImage2D(int target, int level, int xoffset, int yoffset, int width,
+            int height, int format, int type, Buffer pixels) {
+        sBackend.glTexSubImage2D(target, level, xoffset, yoffset, width, height, format, type,
+                pixels);
+    }
+
+    public static void glTexSubImage3D(int target, int level, int xoffset, int yoffset,
+            int zoffset, int width, int height, int depth, int format, int type, Buffer pixels) {
+        sBackend.glTexSubImage3D(target, level, xoffset, yoffset, zoffset, width, height, depth,
+                format, type, pixels);
+    }
+
+    public static void glUniform1f(int location, float x) {
+        sBackend.glUniform1f(location, x);
+    }
+
+    public static void glUniform1fv(int location, int count, float[] v, int offset) {
+        sBackend.glUniform1fv(location, count, v, offset);
+    }
+
+    public static void glUniform1i(int location, int x) {
+        sBackend.glUniform1i(location, x);
+    }
+
+    public static void glUniform2f(int location, float x, float y) {
+        sBackend.glUniform2f(location, x, y);
+    }
+
+    public static void glUniformMatrix4fv(int location, int count, boolean transpose,
+            float[] value, int offset) {
+        sBackend.glUniformMatrix4fv(location, count, transpose, value, offset);
+    }
+
+    public static void glUseProgram(int program) {
+        sBackend.glUseProgram(program);
+    }
+
+    public static void glVertexAttribPointer(int indx, int size, int type, boolean normalized,
+            int stride, Buffer ptr) {
+        sBackend.glVertexAttribPointer(indx, size, type, normalized, stride, ptr);
+    }
+
+    public static void glViewport(int x, int y, int width, int height) {
+        sBackend.glViewport(x, y, width, height);
+    }
+
+    public static void glFinish() {
+        sBackend.glFinish();
+    }
+
+    public static void glFlush() {
+        sBackend.glFlush();
+    }
+
+    public static long glFenceSync(int condition, int flags) {
+        return sBackend.glFenceSync(condition, flags);
+    }
+
+    public static int glClientWaitSync(long sync, int flags, long timeout) {
+        return sBackend.glClientWaitSync(sync, flags, timeout);
+    }
+
+    public static void glWaitSync(long sync, int flags, long timeout) {
+        sBackend.glWaitSync(sync, flags, timeout);
+    }
+
+    public static void glDeleteSync(long sync) {
+        sBackend.glDeleteSync(sync);
+    }
+
+    public static void glGenBuffers(int n, int[] buffers, int offset) {
+        sBackend.glGenBuffers(n, buffers, offset);
+    }
+
+    public static void glDeleteBuffers(int n, int[] buffers, int offset) {
+        sBackend.glDeleteBuffers(n, buffers, offset);
+    }
+
+    public static void glBindBuffer(int target, int buffer) {
+        sBackend.glBindBuffer(target, buffer);
+    }
+
+    public static void glBufferData(int target, int size, Buffer data, int usage) {
+        sBackend.glBufferData(target, size, data, usage);
+    }
+
+    public static void glReadPixels(int x, int y, int width, int height, int format, int type,
+            int offset) {
+        sBackend.glReadPixels(x, y, width, height, format, type, offset);
+    }
+
+    public static Buffer glMapBufferRange(int target, int offset, int length, int access) {
+        return sBackend.glMapBufferRange(target, offset, length, access);
+    }
+
+    public static boolean glUnmapBuffer(int target) {
+        return sBackend.glUnmapBuffer(target);
+    }
+}
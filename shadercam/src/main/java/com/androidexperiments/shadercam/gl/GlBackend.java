@@ -0,0 +1,158 @@
+package com.androidexperiments.shadercam.gl;
+
+import java.nio.Buffer;
+
+/**
+ * The GL entry points we actually use, so everything above them can run against something
+ * other than a real driver. See {@link Gl} for how it's wired in, {@link GlesBackend} for the
+ * real thing and {@link RecordingGlBackend} for a JVM stand-in.
+ *
+ * Method names and arguments match {@link android.opengl.GLES20} / GLES30 one to one. Add
+ * to this as new calls are needed rather than calling GLES directly.
+ */
+public interface GlBackend {
+
+    void glActiveTexture(int texture);
+
+    void glAttachShader(int program, int shader);
+
+    void glBindFramebuffer(int target, int framebuffer);
+
+    void glBindTexture(int target, int texture);
+
+    void glBlitFramebuffer(int srcX0, int srcY0, int srcX1, int srcY1, int dstX0, int dstY0,
+            int dstX1, int dstY1, int mask, int filter);
+
+    int glCheckFramebufferStatus(int target);
+
+    void glClear(int mask);
+
+    void glClearColor(float red, float green, float blue, float alpha);
+
+    void glCompileShader(int shader);
+
+    int glCreateProgram();
+
+    int glCreateShader(int type);
+
+    void glDeleteFramebuffers(int n, int[] framebuffers, int offset);
+
+    void glDeleteProgram(int program);
+
+    void glDeleteShader(int shader);
+
+    void glDeleteTextures(int n, int[] textures, int offset);
+
+    void glDisableVertexAttribArray(int index);
+
+    void glDrawArrays(int mode, int first, int count);
+
+    void glDrawElements(int mode, int count, int type, Buffer indices);
+
+    void glEnableVertexAttribArray(int index);
+
+    void glFramebufferTexture2D(int target, int attachment, int textarget, int texture, int level);
+
+    void glFramebufferTextureLayer(int target, int attachment, int texture, int level, int layer);
+
+    void glGenFramebuffers(int n, int[] framebuffers, int offset);
+
+    void glGenTextures(int n, int[] textures, int offset);
+
+    int glGetAttribLocation(int program, String name);
+
+    int glGetError();
+
+    void glGetIntegerv(int pname, int[] params, int offset);
+
+    String glGetProgramInfoLog(int program);
+
+    void glGetProgramiv(int program, int pname, int[] params, int offset);
+
+    String glGetShaderInfoLog(int shader);
+
+    void glGetShaderiv(int shader, int pname, int[] params, int offset);
+
+    String glGetString(int name);
+
+    int glGetUniformLocation(int program, String name);
+
+    void glLinkProgram(int program);
+
+    void glPixelStorei(int pname, int param);
+
+    void glReadPixels(int x, int y, int width, int height, int format, int type, Buffer pixels);
+
+    void glShaderSource(int shader, String string);
+
+    void glTexImage2D(int target, int level, int internalformat, int width, int height, int border,
+            int format, int type, Buffer pixels);
+
+    void glTexImage3D(int target, int level, int internalformat, int width, int height, int depth,
+            int border, int format, int type, Buffer pixels);
+
+    void glTexParameterf(int target, int pname, float param);
+
+    void glTexParameteri(int target, int pname, int param);
+
+    void glTexStorage3D(int target, int levels, int internalformat, int width, int height,
+            int depth);
+
+    void glTexSubImage2D(int target, int level, int xoffset, int yoffset, int width, int height,
+            int format, int type, Buffer pixels);
+
+    void glTexSubImage3D(int target, int level, int xoffset, int yoffset, int zoffset, int width,
+            int height, int depth, int format, int type, Buffer pixels);
+
+    void glUniform1f(int location, float x);
+
+    void glUniform1fv(int location, int count, float[] v, int offset);
+
+    void glUniform1i(int location, int x);
+
+    void glUniform2f(int location, float x, float y);
+
+    void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset);
+
+    void glUseProgram(int program);
+
+    void glVertexAttribPointer(int indx, int size, int type, boolean normalized, int stride,
+            Buffer ptr);
+
+    void glViewport(int x, int y, int width, int height);
+
+    void glFinish();
+
+    void glFlush();
+
+    /**
+     * GLES3 sync objects, as a long handle like GLES30
+     */
+    long glFenceSync(int condition, int flags);
+
+    int glClientWaitSync(long sync, int flags, long timeout);
+
+    void glWaitSync(long sync, int flags, long timeout);
+
+    void glDeleteSync(long sync);
+
+    /**
+     * GLES3 buffer objects, only used as pixel pack buffers so far
+     */
+    void glGenBuffers(int n, int[] buffers, int offset);
+
+    void glDeleteBuffers(int n, int[] buffers, int offset);
+
+    void glBindBuffer(int target, int buffer);
+
+    void glBufferData(int target, int size, Buffer data, int usage);
+
+    /**
+     * reads into the bound pixel pack buffer at offset instead of into client memory
+     */
+    void glReadPixels(int x, int y, int width, int height, int format, int type, int offset);
+
+    Buffer glMapBufferRange(int target, int offset, int length, int access);
+
+    boolean glUnmapBuffer(int target);
+}
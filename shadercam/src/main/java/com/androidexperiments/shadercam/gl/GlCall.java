@@ -0,0 +1,229 @@
+package com.androidexperiments.shadercam.gl;
+
+/**
+ * Ids for every {@link GlBackend} method, shared by the backends that record or trace calls.
+ */
+public final class GlCall {
+
+    public static final int ACTIVE_TEXTURE = 0;
+
+    public static final int ATTACH_SHADER = 1;
+
+    public static final int BIND_FRAMEBUFFER = 2;
+
+    public static final int BIND_TEXTURE = 3;
+
+    public static final int BLIT_FRAMEBUFFER = 4;
+
+    public static final int CHECK_FRAMEBUFFER_STATUS = 5;
+
+    public static final int CLEAR = 6;
+
+    public static final int CLEAR_COLOR = 7;
+
+    public static final int COMPILE_SHADER = 8;
+
+    public static final int CREATE_PROGRAM = 9;
+
+    public static final int CREATE_SHADER = 10;
+
+    public static final int DELETE_FRAMEBUFFERS = 11;
+
+    public static final int DELETE_PROGRAM = 12;
+
+    public static final int DELETE_SHADER = 13;
+
+    public static final int DELETE_TEXTURES = 14;
+
+    public static final int DISABLE_VERTEX_ATTRIB_ARRAY = 15;
+
+    public static final int DRAW_ARRAYS = 16;
+
+    public static final int DRAW_ELEMENTS = 17;
+
+    public static final int ENABLE_VERTEX_ATTRIB_ARRAY = 18;
+
+    public static final int FRAMEBUFFER_TEXTURE_2D = 19;
+
+    public static final int FRAMEBUFFER_TEXTURE_LAYER = 20;
+
+    public static final int GEN_FRAMEBUFFERS = 21;
+
+    public static final int GEN_TEXTURES = 22;
+
+    public static final int GET_ATTRIB_LOCATION = 23;
+
+    public static final int GET_ERROR = 24;
+
+    public static final int GET_INTEGERV = 25;
+
+    public static final int GET_PROGRAM_INFO_LOG = 26;
+
+    public static final int GET_PROGRAMIV = 27;
+
+    public static final int GET_SHADER_INFO_LOG = 28;
+
+    public static final int GET_SHADERIV = 29;
+
+    public static final int GET_STRING = 30;
+
+    public static final int GET_UNIFORM_LOCATION = 31;
+
+    public static final int LINK_PROGRAM = 32;
+
+    public static final int PIXEL_STOREI = 33;
+
+    public static final int READ_PIXELS = 34;
+
+    public static final int SHADER_SOURCE = 35;
+
+    public static final int TEX_IMAGE_2D = 36;
+
+    public static final int TEX_IMAGE_3D = 37;
+
+    public static final int TEX_PARAMETERF = 38;
+
+    public static final int TEX_PARAMETERI = 39;
+
+    public static final int TEX_STORAGE_3D = 40;
+
+    public static final int TEX_SUB_IMAGE_2D = 41;
+
+    public static final int TEX_SUB_IMAGE_3D = 42;
+
+    public static final int UNIFORM_1F = 43;
+
+    public static final int UNIFORM_1FV = 44;
+
+    public static final int UNIFORM_1I = 45;
+
+    public static final int UNIFORM_2F = 46;
+
+    public static final int UNIFORM_MATRIX_4FV = 47;
+
+    public static final int USE_PROGRAM = 48;
+
+    public static final int VERTEX_ATTRIB_POINTER = 49;
+
+    public static final int VIEWPORT = 50;
+
+    public static final int FINISH = 51;
+
+    public static final int FLUSH = 52;
+
+    public static final int FENCE_SYNC = 53;
+
+    public static final int CLIENT_WAIT_SYNC = 54;
+
+    public static final int WAIT_SYNC = 55;
+
+    public static final int DELETE_SYNC = 56;
+
+    public static final int GEN_BUFFERS = 57;
+
+    public static final int DELETE_BUFFERS = 58;
+
+    public static final int BIND_BUFFER = 59;
+
+    public static final int BUFFER_DATA = 60;
+
+    /**
+     * glReadPixels into a pixel pack buffer
+     */
+    public static final int READ_PIXELS_OFFSET = 61;
+
+    public static final int MAP_BUFFER_RANGE = 62;
+
+    public static final int UNMAP_BUFFER = 63;
+
+    public static final int COUNT = 64;
+
+    private static final String[] NAMES = {
+            "glActiveTexture",
+            "glAttachShader",
+            "glBindFramebuffer",
+            "glBindTexture",
+            "glBlitFramebuffer",
+            "glCheckFramebufferStatus",
+            "glClear",
+            "glClearColor",
+            "glCompileShader",
+            "glCreateProgram",
+            "glCreateShader",
+            "glDeleteFramebuffers",
+            "glDeleteProgram",
+            "glDeleteShader",
+            "glDeleteTextures",
+            "glDisableVertexAttribArray",
+            "glDrawArrays",
+            "glDrawElements",
+            "glEnableVertexAttribArray",
+            "glFramebufferTexture2D",
+            "glFramebufferTextureLayer",
+            "glGenFramebuffers",
+            "glGenTextures",
+            "glGetAttribLocation",
+            "glGetError",
+            "glGetIntegerv",
+            "glGetProgramInfoLog",
+            "glGetProgramiv",
+            "glGetShaderInfoLog",
+            "glGetShaderiv",
+            "glGetString",
+            "glGetUniformLocation",
+            "glLinkProgram",
+            "glPixelStorei",
+            "glReadPixels",
+            "glShaderSource",
+            "glTexImage2D",
+            "glTexImage3D",
+            "glTexParameterf",
+            "glTexParameteri",
+            "glTexStorage3D",
+            "glTexSubImage2D",
+            "glTexSubImage3D",
+            "glUniform1f",
+            "glUniform1fv",
+            "glUniform1i",
+            "glUniform2f",
+            "glUniformMatrix4fv",
+            "glUseProgram",
+            "glVertexAttribPointer",
+            "glViewport",
+            "glFinish",
+            "glFlush",
+            "glFenceSync",
+            "glClientWaitSync",
+            "glWaitSync",
+            "glDeleteSync",
+            "glGenBuffers",
+            "glDeleteBuffers",
+            "glBindBuffer",
+            "glBufferData",
+            "glReadPixels",
+            "glMapBufferRange",
+            "glUnmapBuffer",
+    };
+
+    private GlCall() {
+    }
+
+    /**
+     * @return method name of a call id, ex: "glDrawArrays"
+     */
+    public static String getName(int call) {
+        return NAMES[call];
+    }
+
+    /**
+     * @return call id for a method name, or -1
+     */
+    public static int forName(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
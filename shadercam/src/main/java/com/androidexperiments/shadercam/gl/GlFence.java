@@ -0,0 +1,82 @@
+package com.androidexperiments.shadercam.gl;
+
+import android.opengl.GLES30;
+
+/**
+ * A point in one context's command stream that another context sharing with it can wait for,
+ * ex: a {@link SharedContextPool} worker's texture upload that the render thread is about to
+ * sample from. Sync objects are shared by every context in the share group.
+ *
+ * On GLES2 there are no sync objects, so {@link #insert()} falls back to glFinish, which makes
+ * the work complete before the fence even exists and the waits no-ops.
+ */
+public class GlFence {
+
+    /**
+     * what glClientWaitSync/glWaitSync take for "no timeout"
+     */
+    private static final long TIMEOUT_IGNORED = GLES30.GL_TIMEOUT_IGNORED;
+
+    /**
+     * 0 when already complete, or after {@link #release()}
+     */
+    private long mSync;
+
+    private GlFence(long sync) {
+        mSync = sync;
+    }
+
+    /**
+     * Fence everything issued so far on the current context, and flush so it actually reaches
+     * the GPU, a fence that's never flushed can't be waited on from another context.
+     */
+    public static GlFence insert() {
+        return insert(GlUtil.getGlesMajorVersion() >= 3);
+    }
+
+    /**
+     * {@link #insert()} when the context's version is already known, skips the query
+     */
+    static GlFence insert(boolean gles3) {
+        if (!gles3) {
+            Gl.glFinish();
+            return new GlFence(0);
+        }
+        long sync = Gl.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        Gl.glFlush();
+        return new GlFence(sync);
+    }
+
+    /**
+     * Make the current context's GPU work wait for the fence, without blocking this thread.
+     * What the render thread should usually use.
+     */
+    public void waitOnGpu() {
+        if (mSync != 0) {
+            Gl.glWaitSync(mSync, 0, TIMEOUT_IGNORED);
+        }
+    }
+
+    /**
+     * Block this thread until the fenced work is done on the GPU.
+     *
+     * @return false on timeout or failure
+     */
+    public boolean waitOnCpu(long timeoutNs) {
+        if (mSync == 0) {
+            return true;
+        }
+        int result = Gl.glClientWaitSync(mSync, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, timeoutNs);
+        return result == GLES30.GL_ALREADY_SIGNALED || result == GLES30.GL_CONDITION_SATISFIED;
+    }
+
+    /**
+     * Deletes the sync object, on any context of the share group. Safe to call twice.
+     */
+    public void release() {
+        if (mSync != 0) {
+            Gl.glDeleteSync(mSync);
+            mSync = 0;
+        }
+    }
+}
@@ -0,0 +1,833 @@
+package com.androidexperiments.shadercam.gl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Re-issues a trace written by {@link TracingGlBackend} against any {@link GlBackend}, mapping
+ * traced object names and uniform/attribute locations to the ones the target hands out.
+ *
+ * Replaying into a {@link GlesBackend} with a current context (an {@link EglCore} and
+ * {@link OffscreenSurface} on a worker thread is enough) times the exact GL stream a session
+ * produced, frame by frame, without a camera - turn on {@link #setFinishEachFrame(boolean)} so
+ * the frame times include the GPU. Replaying into a {@link RecordingGlBackend} works on a plain
+ * JVM and gives call counts per frame, handy for diffing two traces of the same effect.
+ *
+ * The camera image itself isn't in the trace, the OES texture samples as whatever the driver
+ * has for an empty external texture. Texture uploads and readbacks are replayed with their
+ * original sizes so bandwidth stays comparable.
+ *
+ * Doesn't reference any android classes, can run from the command line:
+ * <pre>
+ *   java com.androidexperiments.shadercam.gl.GlTraceReplayer trace.bin
+ * </pre>
+ */
+public class GlTraceReplayer {
+
+    private static final int GL_FLOAT = 0x1406;
+
+    private final ByteBuffer mData;
+
+    private final int mLength;
+
+    private final int mFrameCount;
+
+    private boolean mFinishEachFrame = false;
+
+    private final NameMap mPrograms = new NameMap();
+
+    private final NameMap mShaders = new NameMap();
+
+    private final NameMap mTextures = new NameMap();
+
+    private final NameMap mFramebuffers = new NameMap();
+
+    private final NameMap mBuffers = new NameMap();
+
+    /**
+     * traced sync handle to replayed, syncs are 64 bit so they don't fit a NameMap
+     */
+    private final HashMap<Long, Long> mSyncs = new HashMap<>();
+
+    private final LocationMap mUniforms = new LocationMap();
+
+    private final LocationMap mAttribs = new LocationMap();
+
+    private final ArrayList<String> mStrings = new ArrayList<>();
+
+    /**
+     * direct buffers, or float[] for uniform arrays, indexed by blob id
+     */
+    private final ArrayList<Object> mBlobs = new ArrayList<>();
+
+    private int mCurrentProgram;
+
+    private int[] mScratchInts = new int[16];
+
+    private ByteBuffer mScratchPixels;
+
+    public GlTraceReplayer(File trace) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(trace, "r");
+        try {
+            mData = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+        mData.order(ByteOrder.LITTLE_ENDIAN);
+        if (mData.limit() < TracingGlBackend.HEADER_SIZE
+                || mData.getInt(0) != TracingGlBackend.MAGIC) {
+            throw new IOException(trace + " is not a GL trace");
+        }
+        if (mData.getInt(4) < 1 || mData.getInt(4) > TracingGlBackend.VERSION) {
+            throw new IOException("Unsupported trace version " + mData.getInt(4));
+        }
+        mLength = Math.min(mData.getInt(8), mData.limit());
+        mFrameCount = mData.getInt(12);
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Calls glFinish at the end of every replayed frame, so frame times cover the GPU work
+     * rather than just queueing it
+     */
+    public void setFinishEachFrame(boolean finish) {
+        mFinishEachFrame = finish;
+    }
+
+    /**
+     * Replays the whole trace on the calling thread, which must own the backend's context.
+     * Calls after the last frame marker (a truncated trace) are issued but not counted.
+     */
+    public GlTraceStats replay(GlBackend backend) throws IOException {
+        mPrograms.clear();
+        mShaders.clear();
+        mTextures.clear();
+        mFramebuffers.clear();
+        mBuffers.clear();
+        mUniforms.clear();
+        mAttribs.clear();
+        mStrings.clear();
+        mBlobs.clear();
+        mSyncs.clear();
+        mCurrentProgram = 0;
+
+        ByteBuffer in = mData.duplicate();
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        in.limit(mLength);
+        in.position(TracingGlBackend.HEADER_SIZE);
+
+        GlTraceStats stats = new GlTraceStats(mFrameCount);
+        int[] counts = new int[GlCall.COUNT];
+        long frameStart = System.nanoTime();
+        while (in.hasRemaining()) {
+            int op = in.get() & 0xff;
+            if (op == TracingGlBackend.OP_END) {
+                break;
+            }
+            switch (op) {
+                case TracingGlBackend.OP_FRAME:
+                    if (mFinishEachFrame) {
+                        backend.glFinish();
+                    }
+                    long now = System.nanoTime();
+                    stats.addFrame(counts, now - frameStart);
+                    counts = new int[GlCall.COUNT];
+                    frameStart = now;
+                    break;
+                case TracingGlBackend.OP_BLOB:
+                    readBlob(in);
+                    break;
+                case TracingGlBackend.OP_STRING:
+                    readString(in);
+                    break;
+                default:
+                    if (op >= GlCall.COUNT) {
+                        throw new IOException("Bad opcode " + op + " at " + (in.position() - 1));
+                    }
+                    counts[op]++;
+                    issue(op, in, backend);
+                    break;
+            }
+        }
+        return stats;
+    }
+
+    private void readString(ByteBuffer in) throws IOException {
+        int id = in.getInt();
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        if (id != mStrings.size()) {
+            throw new IOException("String " + id + " out of order");
+        }
+        mStrings.add(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    private void readBlob(ByteBuffer in) throws IOException {
+        int id = in.getInt();
+        int type = in.get();
+        int count = in.getInt();
+        if (id != mBlobs.size()) {
+            throw new IOException("Blob " + id + " out of order");
+        }
+        Object blob;
+        switch (type) {
+            case TracingGlBackend.BLOB_BYTES: {
+                ByteBuffer bytes = ByteBuffer.allocateDirect(count).order(ByteOrder.nativeOrder());
+                ByteBuffer src = in.duplicate();
+                src.limit(src.position() + count);
+                bytes.put(src);
+                in.position(in.position() + count);
+                blob = bytes;
+                break;
+            }
+            case TracingGlBackend.BLOB_SHORTS: {
+                ByteBuffer bytes = ByteBuffer.allocateDirect(count * 2)
+                        .order(ByteOrder.nativeOrder());
+                for (int i = 0; i < count; i++) {
+                    bytes.putShort(in.getShort());
+                }
+                bytes.flip();
+                blob = bytes.asShortBuffer();
+                break;
+            }
+            case TracingGlBackend.BLOB_INTS: {
+                ByteBuffer bytes = ByteBuffer.allocateDirect(count * 4)
+                        .order(ByteOrder.nativeOrder());
+                for (int i = 0; i < count; i++) {
+                    bytes.putInt(in.getInt());
+                }
+                bytes.flip();
+                blob = bytes.asIntBuffer();
+                break;
+            }
+            case TracingGlBackend.BLOB_FLOATS: {
+                ByteBuffer bytes = ByteBuffer.allocateDirect(count * 4)
+                        .order(ByteOrder.nativeOrder());
+                for (int i = 0; i < count; i++) {
+                    bytes.putFloat(in.getFloat());
+                }
+                bytes.flip();
+                blob = bytes.asFloatBuffer();
+                break;
+            }
+            case TracingGlBackend.BLOB_FLOAT_ARRAY: {
+                float[] floats = new float[count];
+                for (int i = 0; i < count; i++) {
+                    floats[i] = in.getFloat();
+                }
+                blob = floats;
+                break;
+            }
+            default:
+                throw new IOException("Bad blob type " + type);
+        }
+        mBlobs.add(blob);
+    }
+
+    private Buffer buffer(int ref) {
+        if (ref == TracingGlBackend.NULL_REF) {
+            return null;
+        }
+        Buffer buffer = (Buffer) mBlobs.get(ref);
+        buffer.position(0);
+        return buffer;
+    }
+
+    private float[] floats(int ref) {
+        return ref == TracingGlBackend.NULL_REF ? null : (float[]) mBlobs.get(ref);
+    }
+
+    private int[] scratchInts(int count) {
+        if (mScratchInts.length < count) {
+            mScratchInts = new int[count];
+        }
+        return mScratchInts;
+    }
+
+    private ByteBuffer scratchPixels(int bytes) {
+        if (mScratchPixels == null || mScratchPixels.capacity() < bytes) {
+            mScratchPixels = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        }
+        mScratchPixels.clear();
+        return mScratchPixels;
+    }
+
+    private static int bytesPerPixel(int type) {
+        return type == GL_FLOAT ? 16 : 4;
+    }
+
+    private void issue(int op, ByteBuffer in, GlBackend backend) {
+        switch (op) {
+            case GlCall.ACTIVE_TEXTURE: {
+                int texture = in.getInt();
+                backend.glActiveTexture(texture);
+                break;
+            }
+            case GlCall.ATTACH_SHADER: {
+                int program = mPrograms.get(in.getInt());
+                int shader = mShaders.get(in.getInt());
+                backend.glAttachShader(program, shader);
+                break;
+            }
+            case GlCall.BIND_FRAMEBUFFER: {
+                int target = in.getInt();
+                int framebuffer = mFramebuffers.get(in.getInt());
+                backend.glBindFramebuffer(target, framebuffer);
+                break;
+            }
+            case GlCall.BIND_TEXTURE: {
+                int target = in.getInt();
+                int texture = mTextures.get(in.getInt());
+                backend.glBindTexture(target, texture);
+                break;
+            }
+            case GlCall.BLIT_FRAMEBUFFER: {
+                int srcX0 = in.getInt();
+                int srcY0 = in.getInt();
+                int srcX1 = in.getInt();
+                int srcY1 = in.getInt();
+                int dstX0 = in.getInt();
+                int dstY0 = in.getInt();
+                int dstX1 = in.getInt();
+                int dstY1 = in.getInt();
+                int mask = in.getInt();
+                int filter = in.getInt();
+                backend.glBlitFramebuffer(srcX0, srcY0, srcX1, srcY1, dstX0, dstY0, dstX1, dstY1,
+                        mask, filter);
+                break;
+            }
+            case GlCall.CHECK_FRAMEBUFFER_STATUS: {
+                int target = in.getInt();
+                backend.glCheckFramebufferStatus(target);
+                break;
+            }
+            case GlCall.CLEAR: {
+                int mask = in.getInt();
+                backend.glClear(mask);
+                break;
+            }
+            case GlCall.CLEAR_COLOR: {
+                float red = in.getFloat();
+                float green = in.getFloat();
+                float blue = in.getFloat();
+                float alpha = in.getFloat();
+                backend.glClearColor(red, green, blue, alpha);
+                break;
+            }
+            case GlCall.COMPILE_SHADER: {
+                int shader = mShaders.get(in.getInt());
+                backend.glCompileShader(shader);
+                break;
+            }
+            case GlCall.CREATE_PROGRAM: {
+                mPrograms.put(in.getInt(), backend.glCreateProgram());
+                break;
+            }
+            case GlCall.CREATE_SHADER: {
+                int type = in.getInt();
+                mShaders.put(in.getInt(), backend.glCreateShader(type));
+                break;
+            }
+            case GlCall.DELETE_FRAMEBUFFERS: {
+                int n = in.getInt();
+                int[] framebuffers = scratchInts(n);
+                for (int i = 0; i < n; i++) {
+                    framebuffers[i] = mFramebuffers.get(in.getInt());
+                }
+                backend.glDeleteFramebuffers(n, framebuffers, 0);
+                break;
+            }
+            case GlCall.DELETE_PROGRAM: {
+                int program = mPrograms.get(in.getInt());
+                backend.glDeleteProgram(program);
+                break;
+            }
+            case GlCall.DELETE_SHADER: {
+                int shader = mShaders.get(in.getInt());
+                backend.glDeleteShader(shader);
+                break;
+            }
+            case GlCall.DELETE_TEXTURES: {
+                int n = in.getInt();
+                int[] textures = scratchInts(n);
+                for (int i = 0; i < n; i++) {
+                    textures[i] = mTextures.get(in.getInt());
+                }
+                backend.glDeleteTextures(n, textures, 0);
+                break;
+            }
+            case GlCall.DISABLE_VERTEX_ATTRIB_ARRAY: {
+                int index = mAttribs.get(mCurrentProgram, in.getInt());
+                backend.glDisableVertexAttribArray(index);
+                break;
+            }
+            case GlCall.DRAW_ARRAYS: {
+                int mode = in.getInt();
+                int first = in.getInt();
+                int count = in.getInt();
+                backend.glDrawArrays(mode, first, count);
+                break;
+            }
+            case GlCall.DRAW_ELEMENTS: {
+                int mode = in.getInt();
+                int count = in.getInt();
+                int type = in.getInt();
+                Buffer indices = buffer(in.getInt());
+                backend.glDrawElements(mode, count, type, indices);
+                break;
+            }
+            case GlCall.ENABLE_VERTEX_ATTRIB_ARRAY: {
+                int index = mAttribs.get(mCurrentProgram, in.getInt());
+                backend.glEnableVertexAttribArray(index);
+                break;
+            }
+            case GlCall.FRAMEBUFFER_TEXTURE_2D: {
+                int target = in.getInt();
+                int attachment = in.getInt();
+                int textarget = in.getInt();
+                int texture = mTextures.get(in.getInt());
+                int level = in.getInt();
+                backend.glFramebufferTexture2D(target, attachment, textarget, texture, level);
+                break;
+            }
+            case GlCall.FRAMEBUFFER_TEXTURE_LAYER: {
+                int target = in.getInt();
+                int attachment = mTextures.get(in.getInt());
+                int texture = in.getInt();
+                int level = in.getInt();
+                int layer = in.getInt();
+                backend.glFramebufferTextureLayer(target, attachment, texture, level, layer);
+                break;
+            }
+            case GlCall.GEN_FRAMEBUFFERS: {
+                int n = in.getInt();
+                int[] framebuffers = scratchInts(n);
+                backend.glGenFramebuffers(n, framebuffers, 0);
+                for (int i = 0; i < n; i++) {
+                    mFramebuffers.put(in.getInt(), framebuffers[i]);
+                }
+                break;
+            }
+            case GlCall.GEN_TEXTURES: {
+                int n = in.getInt();
+                int[] textures = scratchInts(n);
+                backend.glGenTextures(n, textures, 0);
+                for (int i = 0; i < n; i++) {
+                    mTextures.put(in.getInt(), textures[i]);
+                }
+                break;
+            }
+            case GlCall.GET_ATTRIB_LOCATION: {
+                int program = mPrograms.get(in.getInt());
+                String name = mStrings.get(in.getInt());
+                int location = backend.glGetAttribLocation(program, name);
+                mAttribs.put(program, in.getInt(), location);
+                break;
+            }
+            case GlCall.GET_ERROR: {
+                backend.glGetError();
+                break;
+            }
+            case GlCall.GET_INTEGERV: {
+                int pname = in.getInt();
+                int[] params = scratchInts(4);
+                backend.glGetIntegerv(pname, params, 0);
+                break;
+            }
+            case GlCall.GET_PROGRAM_INFO_LOG: {
+                int program = mPrograms.get(in.getInt());
+                backend.glGetProgramInfoLog(program);
+                break;
+            }
+            case GlCall.GET_PROGRAMIV: {
+                int program = mPrograms.get(in.getInt());
+                int pname = in.getInt();
+                int[] params = scratchInts(4);
+                backend.glGetProgramiv(program, pname, params, 0);
+                break;
+            }
+            case GlCall.GET_SHADER_INFO_LOG: {
+                int shader = mShaders.get(in.getInt());
+                backend.glGetShaderInfoLog(shader);
+                break;
+            }
+            case GlCall.GET_SHADERIV: {
+                int shader = mShaders.get(in.getInt());
+                int pname = in.getInt();
+                int[] params = scratchInts(4);
+                backend.glGetShaderiv(shader, pname, params, 0);
+                break;
+            }
+            case GlCall.GET_STRING: {
+                int name = in.getInt();
+                backend.glGetString(name);
+                break;
+            }
+            case GlCall.GET_UNIFORM_LOCATION: {
+                int program = mPrograms.get(in.getInt());
+                String name = mStrings.get(in.getInt());
+                int location = backend.glGetUniformLocation(program, name);
+                mUniforms.put(program, in.getInt(), location);
+                break;
+            }
+            case GlCall.LINK_PROGRAM: {
+                int program = mPrograms.get(in.getInt());
+                backend.glLinkProgram(program);
+                break;
+            }
+            case GlCall.PIXEL_STOREI: {
+                int pname = in.getInt();
+                int param = in.getInt();
+                backend.glPixelStorei(pname, param);
+                break;
+            }
+            case GlCall.READ_PIXELS: {
+                int x = in.getInt();
+                int y = in.getInt();
+                int width = in.getInt();
+                int height = in.getInt();
+                int format = in.getInt();
+                int type = in.getInt();
+                backend.glReadPixels(x, y, width, height, format, type,
+                        scratchPixels(width * height * bytesPerPixel(type)));
+                break;
+            }
+            case GlCall.SHADER_SOURCE: {
+                int shader = mShaders.get(in.getInt());
+                String string = mStrings.get(in.getInt());
+                backend.glShaderSource(shader, string);
+                break;
+            }
+            case GlCall.TEX_IMAGE_2D: {
+                int target = in.getInt();
+                int level = in.getInt();
+                int internalformat = in.getInt();
+                int width = in.getInt();
+                int height = in.getInt();
+                int border = in.getInt();
+                int format = in.getInt();
+                int type = in.getInt();
+                Buffer pixels = buffer(in.getInt());
+                backend.glTexImage2D(target, level, internalformat, width, height, border, format,
+                        type, pixels);
+                break;
+            }
+            case GlCall.TEX_IMAGE_3D: {
+                int target = in.getInt();
+                int level = in.getInt();
+                int internalformat = in.getInt();
+                int width = in.getInt();
+                int height = in.getInt();
+                int depth = in.getInt();
+                int border = in.getInt();
+                int format = in.getInt();
+                int type = in.getInt();
+                Buffer pixels = buffer(in.getInt());
+                backend.glTexImage3D(target, level, internalformat, width, height, depth, border,
+                        format, type, pixels);
+                break;
+            }
+            case GlCall.TEX_PARAMETERF: {
+                int target = in.getInt();
+                int pname = in.getInt();
+                float param = in.getFloat();
+                backend.glTexParameterf(target, pname, param);
+                break;
+            }
+            case GlCall.TEX_PARAMETERI: {
+                int target = in.getInt();
+                int pname = in.getInt();
+                int param = in.getInt();
+                backend.glTexParameteri(target, pname, param);
+                break;
+            }
+            case GlCall.TEX_STORAGE_3D: {
+                int target = in.getInt();
+                int levels = in.getInt();
+                int internalformat = in.getInt();
+                int width = in.getInt();
+                int height = in.getInt();
+                int depth = in.getInt();
+                backend.glTexStorage3D(target, levels, internalformat, width, height, depth);
+                break;
+            }
+            case GlCall.TEX_SUB_IMAGE_2D: {
+                int target = in.getInt();
+                int level = in.getInt();
+                int xoffset = in.getInt();
+                int yoffset = in.getInt();
+                int width = in.getInt();
+                int height = in.getInt();
+                int format = in.getInt();
+                int type = in.getInt();
+                Buffer pixels = buffer(in.getInt());
+                backend.glTexSubImage2D(target, level, xoffset, yoffset, width, height, format,
+                        type, pixels);
+                break;
+            }
+            case GlCall.TEX_SUB_IMAGE_3D: {
+                int target = in.getInt();
+                int level = in.getInt();
+                int xoffset = in.getInt();
+                int yoffset = in.getInt();
+                int zoffset = in.getInt();
+                int width = in.getInt();
+                int height = in.getInt();
+                int depth = in.getInt();
+                int format = in.getInt();
+                int type = in.getInt();
+                Buffer pixels = buffer(in.getInt());
+                backend.glTexSubImage3D(target, level, xoffset, yoffset, zoffset, width, height,
+                        depth, format, type, pixels);
+                break;
+            }
+            case GlCall.UNIFORM_1F: {
+                int location = mUniforms.get(mCurrentProgram, in.getInt());
+                float x = in.getFloat();
+                backend.glUniform1f(location, x);
+                break;
+            }
+            case GlCall.UNIFORM_1FV: {
+                int location = mUniforms.get(mCurrentProgram, in.getInt());
+                int count = in.getInt();
+                float[] v = floats(in.getInt());
+                backend.glUniform1fv(location, count, v, 0);
+                break;
+            }
+            case GlCall.UNIFORM_1I: {
+                int location = mUniforms.get(mCurrentProgram, in.getInt());
+                int x = in.getInt();
+                backend.glUniform1i(location, x);
+                break;
+            }
+            case GlCall.UNIFORM_2F: {
+                int location = mUniforms.get(mCurrentProgram, in.getInt());
+                float x = in.getFloat();
+                float y = in.getFloat();
+                backend.glUniform2f(location, x, y);
+                break;
+            }
+            case GlCall.UNIFORM_MATRIX_4FV: {
+                int location = mUniforms.get(mCurrentProgram, in.getInt());
+                int count = in.getInt();
+                boolean transpose = in.get() != 0;
+                float[] value = floats(in.getInt());
+                backend.glUniformMatrix4fv(location, count, transpose, value, 0);
+                break;
+            }
+            case GlCall.USE_PROGRAM: {
+                int program = mPrograms.get(in.getInt());
+                backend.glUseProgram(program);
+                mCurrentProgram = program;
+                break;
+            }
+            case GlCall.VERTEX_ATTRIB_POINTER: {
+                int indx = mAttribs.get(mCurrentProgram, in.getInt());
+                int size = in.getInt();
+                int type = in.getInt();
+                boolean normalized = in.get() != 0;
+                int stride = in.getInt();
+                Buffer ptr = buffer(in.getInt());
+                backend.glVertexAttribPointer(indx, size, type, normalized, stride, ptr);
+                break;
+            }
+            case GlCall.VIEWPORT: {
+                int x = in.getInt();
+                int y = in.getInt();
+                int width = in.getInt();
+                int height = in.getInt();
+                backend.glViewport(x, y, width, height);
+                break;
+            }
+            case GlCall.FINISH: {
+                backend.glFinish();
+                break;
+            }
+            case GlCall.FLUSH: {
+                backend.glFlush();
+                break;
+            }
+            case GlCall.FENCE_SYNC: {
+                int condition = in.getInt();
+                int flags = in.getInt();
+                mSyncs.put(in.getLong(), backend.glFenceSync(condition, flags));
+                break;
+            }
+            case GlCall.CLIENT_WAIT_SYNC: {
+                Long sync = mSyncs.get(in.getLong());
+                int flags = in.getInt();
+                long timeout = in.getLong();
+                //syncs from untraced threads can't be replayed, skip waiting on them
+                if (sync != null) {
+                    backend.glClientWaitSync(sync, flags, timeout);
+                }
+                break;
+            }
+            case GlCall.WAIT_SYNC: {
+                Long sync = mSyncs.get(in.getLong());
+                int flags = in.getInt();
+                long timeout = in.getLong();
+                if (sync != null) {
+                    backend.glWaitSync(sync, flags, timeout);
+                }
+                break;
+            }
+            case GlCall.DELETE_SYNC: {
+                Long sync = mSyncs.remove(in.getLong());
+                if (sync != null) {
+                    backend.glDeleteSync(sync);
+                }
+                break;
+            }
+            case GlCall.GEN_BUFFERS: {
+                int n = in.getInt();
+                int[] buffers = scratchInts(n);
+                backend.glGenBuffers(n, buffers, 0);
+                for (int i = 0; i < n; i++) {
+                    mBuffers.put(in.getInt(), buffers[i]);
+                }
+                break;
+            }
+            case GlCall.DELETE_BUFFERS: {
+                int n = in.getInt();
+                int[] buffers = scratchInts(n);
+                for (int i = 0; i < n; i++) {
+                    buffers[i] = mBuffers.get(in.getInt());
+                }
+                backend.glDeleteBuffers(n, buffers, 0);
+                break;
+            }
+            case GlCall.BIND_BUFFER: {
+                int target = in.getInt();
+                int buffer = mBuffers.get(in.getInt());
+                backend.glBindBuffer(target, buffer);
+                break;
+            }
+            case GlCall.BUFFER_DATA: {
+                int target = in.getInt();
+                int size = in.getInt();
+                Buffer data = buffer(in.getInt());
+                int usage = in.getInt();
+                backend.glBufferData(target, size, data, usage);
+                break;
+            }
+            case GlCall.READ_PIXELS_OFFSET: {
+                int x = in.getInt();
+                int y = in.getInt();
+                int width = in.getInt();
+                int height = in.getInt();
+                int format = in.getInt();
+                int type = in.getInt();
+                int offset = in.getInt();
+                backend.glReadPixels(x, y, width, height, format, type, offset);
+                break;
+            }
+            case GlCall.MAP_BUFFER_RANGE: {
+                int target = in.getInt();
+                int offset = in.getInt();
+                int length = in.getInt();
+                int access = in.getInt();
+                backend.glMapBufferRange(target, offset, length, access);
+                break;
+            }
+            case GlCall.UNMAP_BUFFER: {
+                int target = in.getInt();
+                backend.glUnmapBuffer(target);
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unhandled call " + GlCall.getName(op));
+        }
+    }
+
+    /**
+     * traced name to replayed name, unknown names map to themselves (0 and default objects)
+     */
+    private static class NameMap {
+
+        /**
+         * replayed name + 1, 0 for unmapped
+         */
+        private int[] mMapped = new int[64];
+
+        int get(int traced) {
+            if (traced < 0 || traced >= mMapped.length || mMapped[traced] == 0) {
+                return traced;
+            }
+            return mMapped[traced] - 1;
+        }
+
+        void put(int traced, int replayed) {
+            if (traced < 0) {
+                return;
+            }
+            if (traced >= mMapped.length) {
+                int[] grown = new int[Math.max(traced + 1, mMapped.length * 2)];
+                System.arraycopy(mMapped, 0, grown, 0, mMapped.length);
+                mMapped = grown;
+            }
+            mMapped[traced] = replayed + 1;
+        }
+
+        void clear() {
+            Arrays.fill(mMapped, 0);
+        }
+    }
+
+    /**
+     * traced location to replayed location, per replayed program
+     */
+    private static class LocationMap {
+
+        private NameMap[] mByProgram = new NameMap[16];
+
+        int get(int program, int traced) {
+            if (traced < 0 || program < 0 || program >= mByProgram.length
+                    || mByProgram[program] == null) {
+                return traced;
+            }
+            return mByProgram[program].get(traced);
+        }
+
+        void put(int program, int traced, int replayed) {
+            if (program < 0) {
+                return;
+            }
+            if (program >= mByProgram.length) {
+                NameMap[] grown = new NameMap[Math.max(program + 1, mByProgram.length * 2)];
+                System.arraycopy(mByProgram, 0, grown, 0, mByProgram.length);
+                mByProgram = grown;
+            }
+            if (mByProgram[program] == null) {
+                mByProgram[program] = new NameMap();
+            }
+            mByProgram[program].put(traced, replayed);
+        }
+
+        void clear() {
+            Arrays.fill(mByProgram, null);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: GlTraceReplayer <trace>");
+            System.exit(1);
+        }
+        GlTraceReplayer replayer = new GlTraceReplayer(new File(args[0]));
+        GlTraceStats stats = replayer.replay(new RecordingGlBackend());
+        System.out.print(stats.getSummary());
+    }
+}
@@ -0,0 +1,116 @@
+package com.androidexperiments.shadercam.gl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Per frame results of a {@link GlTraceReplayer} run: how many of each {@link GlCall} every
+ * frame issued and how long it took to replay.
+ *
+ * Frame 0 also carries everything the app did before its first frame (shader compiles,
+ * texture allocation) so {@link #getSummary()} leaves it out when there's more than one frame.
+ */
+public class GlTraceStats {
+
+    private final ArrayList<int[]> mCalls;
+
+    private long[] mNanos;
+
+    GlTraceStats(int expectedFrames) {
+        mCalls = new ArrayList<>(Math.max(1, expectedFrames));
+        mNanos = new long[Math.max(1, expectedFrames)];
+    }
+
+    void addFrame(int[] counts, long nanos) {
+        if (mCalls.size() == mNanos.length) {
+            mNanos = Arrays.copyOf(mNanos, mNanos.length * 2);
+        }
+        mNanos[mCalls.size()] = nanos;
+        mCalls.add(counts);
+    }
+
+    public int getFrameCount() {
+        return mCalls.size();
+    }
+
+    /**
+     * @param call one of the {@link GlCall} ids
+     */
+    public int getCallCount(int frame, int call) {
+        return mCalls.get(frame)[call];
+    }
+
+    public int getCallCount(int frame) {
+        int total = 0;
+        for (int count : mCalls.get(frame)) {
+            total += count;
+        }
+        return total;
+    }
+
+    public int getDrawCount(int frame) {
+        return getCallCount(frame, GlCall.DRAW_ARRAYS) + getCallCount(frame, GlCall.DRAW_ELEMENTS);
+    }
+
+    public long getFrameNanos(int frame) {
+        return mNanos[frame];
+    }
+
+    /**
+     * Plain text report: frame time percentiles, then average calls per frame by type, most
+     * frequent first
+     */
+    public String getSummary() {
+        int frames = mCalls.size();
+        StringBuilder sb = new StringBuilder();
+        sb.append("frames: ").append(frames).append('\n');
+        if (frames == 0) {
+            return sb.toString();
+        }
+        int first = frames > 1 ? 1 : 0;
+        int n = frames - first;
+
+        long[] sorted = Arrays.copyOfRange(mNanos, first, frames);
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long nanos : sorted) {
+            total += nanos;
+        }
+        sb.append(String.format(Locale.US,
+                "frame ms: avg %.3f  p50 %.3f  p95 %.3f  max %.3f\n",
+                total / 1e6 / n, sorted[n / 2] / 1e6, sorted[Math.min(n - 1, n * 95 / 100)] / 1e6,
+                sorted[n - 1] / 1e6));
+
+        final long[] sums = new long[GlCall.COUNT];
+        long calls = 0;
+        for (int f = first; f < frames; f++) {
+            int[] counts = mCalls.get(f);
+            for (int i = 0; i < GlCall.COUNT; i++) {
+                sums[i] += counts[i];
+                calls += counts[i];
+            }
+        }
+        sb.append(String.format(Locale.US, "calls/frame: %.1f\n", (double) calls / n));
+
+        Integer[] order = new Integer[GlCall.COUNT];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(sums[b], sums[a]);
+            }
+        });
+        for (int i : order) {
+            if (sums[i] == 0) {
+                break;
+            }
+            sb.append(String.format(Locale.US, "  %-28s %8.2f\n", GlCall.getName(i),
+                    (double) sums[i] / n));
+        }
+        return sb.toString();
+    }
+}
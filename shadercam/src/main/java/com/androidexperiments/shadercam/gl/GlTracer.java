@@ -0,0 +1,141 @@
+package com.androidexperiments.shadercam.gl;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * {@link RenderStage} that captures every GL call its renderer makes into a trace file, one
+ * frame marker per renderer frame, for replaying later with {@link GlTraceReplayer}:
+ * <pre>
+ *   GlTracer tracer = new GlTracer(new File(getExternalFilesDir(null), "trace.bin"), 64 << 20);
+ *   renderer.addStage(tracer);
+ *   tracer.start();             //before the surface is created, so setup is captured too
+ *   ...
+ *   tracer.stop();              //any thread, the file is finished after the next frame
+ * </pre>
+ *
+ * Tracing swaps the process wide {@link Gl} backend, but only the renderer's GL thread is
+ * traced. It's picked up by the first stage callback after {@link #start()}, the release right
+ * before the surface's setup or else the next frame, not by whichever thread calls GL first.
+ * The file is written through a memory mapping and the cost per call is a handful of buffer
+ * puts, but leave it out of release builds all the same.
+ */
+public class GlTracer extends RenderStage {
+
+    private static final String TAG = GlTracer.class.getSimpleName();
+
+    private final File mFile;
+
+    private final int mMaxBytes;
+
+    private volatile TracingGlBackend mBackend;
+
+    /**
+     * set by {@link #stop()}, acted on by the GL thread, which is the only one writing the trace
+     */
+    private volatile boolean mStopRequested;
+
+    /**
+     * @param maxBytes largest the trace can get, calls past that are dropped
+     */
+    public GlTracer(File file, int maxBytes) {
+        mFile = file;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Installs the tracing backend around whatever backend is current
+     */
+    public synchronized void start() throws IOException {
+        if (mBackend != null) {
+            throw new IllegalStateException("Already tracing");
+        }
+        mStopRequested = false;
+        mBackend = new TracingGlBackend(Gl.getBackend(), mFile, mMaxBytes);
+        Gl.setBackend(mBackend);
+    }
+
+    /**
+     * Asks the GL thread to restore the previous backend and finish the file after the frame
+     * it's drawing, or when the surface goes away. Any thread, the GL thread may be writing the
+     * trace right now so it's never touched from here.
+     */
+    public void stop() {
+        mStopRequested = true;
+    }
+
+    /**
+     * @return true from {@link #start()} until the file is finished
+     */
+    public boolean isTracing() {
+        return mBackend != null;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    @Override
+    protected void onSetup(VideoRenderer renderer) {
+        bindGlThread();
+    }
+
+    @Override
+    protected void onPreDraw(VideoRenderer renderer) {
+        bindGlThread();
+    }
+
+    @Override
+    protected void onPostDraw(VideoRenderer renderer) {
+        TracingGlBackend backend = mBackend;
+        if (backend != null) {
+            backend.endFrame();
+        }
+        if (mStopRequested) {
+            finish();
+        }
+    }
+
+    @Override
+    protected void onRelease() {
+        //no more frames until the surface is back, don't wait for one to stop
+        if (mStopRequested) {
+            finish();
+        } else {
+            //also called right before setup, so setup gets traced
+            bindGlThread();
+        }
+    }
+
+    /**
+     * on the GL thread
+     */
+    private void bindGlThread() {
+        TracingGlBackend backend = mBackend;
+        if (backend != null && backend.getTracedThread() == null) {
+            backend.setTracedThread(Thread.currentThread());
+        }
+    }
+
+    /**
+     * on the GL thread
+     */
+    private synchronized void finish() {
+        TracingGlBackend backend = mBackend;
+        if (backend == null) {
+            return;
+        }
+        Gl.setBackend(backend.getDelegate());
+        mBackend = null;
+        try {
+            backend.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to finish trace " + mFile, e);
+            return;
+        }
+        Log.d(TAG, "wrote " + backend.getFrameCount() + " frames, " + backend.getBytesWritten()
+                + " bytes to " + mFile + (backend.isTruncated() ? " (truncated)" : ""));
+    }
+}
@@ -58,22 +58,22 @@ public class GlUtil {
             return 0;
         }
 
-        int program = GLES20.glCreateProgram();
+        int program = Gl.glCreateProgram();
         checkGlError("glCreateProgram");
         if (program == 0) {
             Log.e(TAG, "Could not create program");
         }
-        GLES20.glAttachShader(program, vertexShader);
+        Gl.glAttachShader(program, vertexShader);
         checkGlError("glAttachShader");
-        GLES20.glAttachShader(program, pixelShader);
+        Gl.glAttachShader(program, pixelShader);
         checkGlError("glAttachShader");
-        GLES20.glLinkProgram(program);
+        Gl.glLinkProgram(program);
         int[] linkStatus = new int[1];
-        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        Gl.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
         if (linkStatus[0] != GLES20.GL_TRUE) {
             Log.e(TAG, "Could not link program: ");
-            Log.e(TAG, GLES20.glGetProgramInfoLog(program));
-            GLES20.glDeleteProgram(program);
+            Log.e(TAG, Gl.glGetProgramInfoLog(program));
+            Gl.glDeleteProgram(program);
             program = 0;
         }
         return program;
@@ -85,16 +85,16 @@ public class GlUtil {
      * @return A handle to the shader, or 0 on failure.
      */
     public static int loadShader(int shaderType, String source) {
-        int shader = GLES20.glCreateShader(shaderType);
+        int shader = Gl.glCreateShader(shaderType);
         checkGlError("glCreateShader type=" + shaderType);
-        GLES20.glShaderSource(shader, source);
-        GLES20.glCompileShader(shader);
+        Gl.glShaderSource(shader, source);
+        Gl.glCompileShader(shader);
         int[] compiled = new int[1];
-        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+        Gl.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
         if (compiled[0] == 0) {
             Log.e(TAG, "Could not compile shader " + shaderType + ":");
-            Log.e(TAG, " " + GLES20.glGetShaderInfoLog(shader));
-            GLES20.glDeleteShader(shader);
+            Log.e(TAG, " " + Gl.glGetShaderInfoLog(shader));
+            Gl.glDeleteShader(shader);
             shader = 0;
         }
         return shader;
@@ -104,7 +104,7 @@ public class GlUtil {
      * Checks to see if a GLES error has been raised.
      */
     public static void checkGlError(String op) {
-        int error = GLES20.glGetError();
+        int error = Gl.glGetError();
         if (error != GLES20.GL_NO_ERROR) {
             String msg = op + ": glError 0x" + Integer.toHexString(error);
             Log.e(TAG, msg);
@@ -137,23 +137,23 @@ public class GlUtil {
         int[] textureHandles = new int[1];
         int textureHandle;
 
-        GLES20.glGenTextures(1, textureHandles, 0);
+        Gl.glGenTextures(1, textureHandles, 0);
         textureHandle = textureHandles[0];
         GlUtil.checkGlError("glGenTextures");
 
         // Bind the texture handle to the 2D texture target.
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle);
+        Gl.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle);
 
         // Configure min/mag filtering, i.e. what scaling method do we use if what we're rendering
         // is smaller or larger than the source image.
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+        Gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
                 GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+        Gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
                 GLES20.GL_LINEAR);
         GlUtil.checkGlError("loadImageTexture");
 
         // Load the data from the buffer into the texture handle.
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, /*level*/ 0, format,
+        Gl.glTexImage2D(GLES20.GL_TEXTURE_2D, /*level*/ 0, format,
                 width, height, /*border*/ 0, format, GLES20.GL_UNSIGNED_BYTE, data);
         GlUtil.checkGlError("loadImageTexture");
 
@@ -173,21 +173,58 @@ public class GlUtil {
         return fb;
     }
 
+    /**
+     * Returns the major version of the current context, parsed from GL_VERSION which is
+     * always "OpenGL ES N.M ...". Falls back to 2 if it can't be parsed.
+     */
+    public static int getGlesMajorVersion() {
+        String version = Gl.glGetString(GLES20.GL_VERSION);
+        if (version != null && version.startsWith("OpenGL ES ") && version.length() > 10) {
+            char major = version.charAt(10);
+            if (major >= '2' && major <= '9') {
+                return major - '0';
+            }
+        }
+        return 2;
+    }
+
+    /**
+     * Returns true if the current context advertises the given GL extension.
+     */
+    public static boolean hasExtension(String name) {
+        String extensions = Gl.glGetString(GLES20.GL_EXTENSIONS);
+        if (extensions == null) {
+            return false;
+        }
+        //match whole names only, some extensions are prefixes of others
+        int index = extensions.indexOf(name);
+        while (index >= 0) {
+            int end = index + name.length();
+            boolean startOk = index == 0 || extensions.charAt(index - 1) == ' ';
+            boolean endOk = end == extensions.length() || extensions.charAt(end) == ' ';
+            if (startOk && endOk) {
+                return true;
+            }
+            index = extensions.indexOf(name, end);
+        }
+        return false;
+    }
+
     /**
      * Writes GL version info to the log.
      */
     public static void logVersionInfo() {
-        Log.i(TAG, "vendor  : " + GLES20.glGetString(GLES20.GL_VENDOR));
-        Log.i(TAG, "renderer: " + GLES20.glGetString(GLES20.GL_RENDERER));
-        Log.i(TAG, "version : " + GLES20.glGetString(GLES20.GL_VERSION));
+        Log.i(TAG, "vendor  : " + Gl.glGetString(GLES20.GL_VENDOR));
+        Log.i(TAG, "renderer: " + Gl.glGetString(GLES20.GL_RENDERER));
+        Log.i(TAG, "version : " + Gl.glGetString(GLES20.GL_VERSION));
 
         if (false) {
             int[] values = new int[1];
-            GLES30.glGetIntegerv(GLES30.GL_MAJOR_VERSION, values, 0);
+            Gl.glGetIntegerv(GLES30.GL_MAJOR_VERSION, values, 0);
             int majorVersion = values[0];
-            GLES30.glGetIntegerv(GLES30.GL_MINOR_VERSION, values, 0);
+            Gl.glGetIntegerv(GLES30.GL_MINOR_VERSION, values, 0);
             int minorVersion = values[0];
-            if (GLES30.glGetError() == GLES30.GL_NO_ERROR) {
+            if (Gl.glGetError() == GLES30.GL_NO_ERROR) {
                 Log.i(TAG, "iversion: " + majorVersion + "." + minorVersion);
             }
         }
@@ -0,0 +1,379 @@
+package com.androidexperiments.shadercam.gl;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs a {@link VideoRenderer}'s full shader pipeline with no window at all, for batch jobs and
+ * background processing.
+ *
+ * We own the GL thread and an EGL context on a 1x1 pbuffer, and the renderer draws into an
+ * offscreen {@link Framebuffer} of whatever size you ask for, independent of any display.
+ * Frames come in through {@link #getInputSurface()} - point a camera session, MediaCodec
+ * decoder or MediaPlayer at it - or {@link #requestRender()} for shaders that don't need input.
+ * Every frame rendered is then:
+ * <ul>
+ * <li>handed to an {@link OnFrameRenderedListener} as RGBA pixels, if one is set</li>
+ * <li>copied to every surface added with {@link #addOutputSurface(Surface)}, ex: MediaCodec
+ * encoder input surfaces, with the frame's timestamp</li>
+ * </ul>
+ * Nothing waits on vsync, so throughput is bounded by shading and by the consumers.
+ *
+ * The renderer must be a fresh one, not also attached to a RecordableSurfaceView.
+ */
+public class HeadlessRenderer {
+
+    private static final String TAG = HeadlessRenderer.class.getSimpleName();
+
+    private static final String VERTEX_SHADER = "fullscreen.vert.glsl";
+
+    private static final String COPY_FRAGMENT_SHADER = "copy.frag.glsl";
+
+    private final VideoRenderer mRenderer;
+
+    private final int mWidth, mHeight;
+
+    private int mInputWidth, mInputHeight;
+
+    private HandlerThread mThread;
+
+    private Handler mHandler;
+
+    private EglCore mEglCore;
+
+    private OffscreenSurface mPbuffer;
+
+    private Framebuffer mTarget;
+
+    private FullscreenPass mCopyPass;
+
+    private int mCopySourceHandle;
+
+    private SurfaceTexture mSurfaceTexture;
+
+    private Surface mInputSurface;
+
+    /**
+     * only touched on {@link #mThread}
+     */
+    private final ArrayList<WindowSurface> mOutputs = new ArrayList<>();
+
+    private final ArrayList<Surface> mOutputSurfaces = new ArrayList<>();
+
+    private volatile OnFrameRenderedListener mListener;
+
+    private ByteBuffer mPixels;
+
+    /**
+     * written on the render thread only, read by the stats getters from any thread
+     */
+    private volatile long mFramesRendered;
+
+    private volatile long mStartTime;
+
+    /**
+     * @param width size of the frames we render, which can differ from the input
+     */
+    public HeadlessRenderer(VideoRenderer renderer, int width, int height) {
+        mRenderer = renderer;
+        mWidth = width;
+        mHeight = height;
+        mInputWidth = width;
+        mInputHeight = height;
+    }
+
+    /**
+     * Size of the buffers coming into {@link #getInputSurface()}, defaults to the output size.
+     * Call before {@link #start()}.
+     */
+    public void setInputSize(int width, int height) {
+        mInputWidth = width;
+        mInputHeight = height;
+    }
+
+    /**
+     * Called on the render thread. The pixel buffer is reused for every frame.
+     */
+    public void setOnFrameRenderedListener(OnFrameRenderedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Spins up the render thread and sets up GL, returning once {@link #getInputSurface()} is
+     * ready.
+     */
+    public void start() {
+        if (mThread != null) {
+            throw new IllegalStateException("already started");
+        }
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        final CountDownLatch ready = new CountDownLatch(1);
+        final RuntimeException[] error = new RuntimeException[1];
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    setup();
+                } catch (RuntimeException e) {
+                    //would otherwise kill the process from the render thread
+                    Log.e(TAG, "Headless setup failed", e);
+                    error[0] = e;
+                } finally {
+                    ready.countDown();
+                }
+            }
+        });
+        try {
+            ready.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted waiting for headless setup");
+        }
+        //the latch orders error[0] and mInputSurface after the render thread's writes
+        if (error[0] != null || mInputSurface == null) {
+            mThread.quitSafely();
+            mThread = null;
+            mHandler = null;
+            if (error[0] != null) {
+                throw error[0];
+            }
+            throw new RuntimeException("Headless setup failed, see log");
+        }
+    }
+
+    /**
+     * Surface to feed frames into, they end up in the renderer's camera texture
+     */
+    public Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    public SurfaceTexture getSurfaceTexture() {
+        return mSurfaceTexture;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Copies every rendered frame to this surface too, ex: an encoder's input surface. It
+     * should be the same size as our output.
+     */
+    public void addOutputSurface(final Surface surface) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mOutputs.add(new WindowSurface(mEglCore, surface, false));
+                mOutputSurfaces.add(surface);
+            }
+        });
+    }
+
+    public void removeOutputSurface(final Surface surface) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int index = mOutputSurfaces.indexOf(surface);
+                if (index >= 0) {
+                    mOutputs.remove(index).release();
+                    mOutputSurfaces.remove(index);
+                }
+            }
+        });
+    }
+
+    /**
+     * Renders a frame without waiting for input, with the current time as its timestamp
+     */
+    public void requestRender() {
+        mHandler.post(mRenderRunnable);
+    }
+
+    /**
+     * @return frames rendered so far
+     */
+    public long getFrameCount() {
+        return mFramesRendered;
+    }
+
+    /**
+     * @return frames rendered per second of wall time since {@link #start()}
+     */
+    public float getFramesPerSecond() {
+        long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+        return elapsed > 0 ? mFramesRendered * 1000.f / elapsed : 0.f;
+    }
+
+    /**
+     * Tears down GL after any frames already queued, and stops the render thread
+     */
+    public void release() {
+        if (mThread == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                teardown();
+            }
+        });
+        mThread.quitSafely();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted waiting for render thread", e);
+        }
+        mThread = null;
+        mHandler = null;
+    }
+
+    private void setup() {
+        mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
+        mPbuffer = new OffscreenSurface(mEglCore, 1, 1);
+        mPbuffer.makeCurrent();
+
+        mRenderer.onSurfaceCreated();
+        mRenderer.onSurfaceChanged(mWidth, mHeight);
+        mRenderer.setPreviewSize(mInputWidth, mInputHeight);
+        //fill the whole target, there's no view to letterbox into
+        mRenderer.setAspectRatio(1.f);
+
+        mTarget = mRenderer.getFramebufferPool().acquire(mWidth, mHeight);
+        mRenderer.setRenderTarget(mTarget);
+
+        mCopyPass = FullscreenPass.fromAssets(mRenderer.getContext(), VERTEX_SHADER,
+                COPY_FRAGMENT_SHADER);
+        mCopySourceHandle = mCopyPass.getUniformLocation("sourceTexture");
+
+        mSurfaceTexture = new SurfaceTexture(mRenderer.getCameraTexture());
+        mSurfaceTexture.setDefaultBufferSize(mInputWidth, mInputHeight);
+        mRenderer.setSurfaceTexture(mSurfaceTexture);
+        //take over frame callbacks so frames render on our thread, the renderer still hears
+        mSurfaceTexture.setOnFrameAvailableListener(mOnFrameAvailableListener, mHandler);
+        mInputSurface = new Surface(mSurfaceTexture);
+
+        mStartTime = SystemClock.elapsedRealtime();
+    }
+
+    private void teardown() {
+        for (int i = 0; i < mOutputs.size(); i++) {
+            mOutputs.get(i).release();
+        }
+        mOutputs.clear();
+        mOutputSurfaces.clear();
+
+        if (mEglCore == null) {
+            return;
+        }
+        mPbuffer.makeCurrent();
+        mRenderer.setRenderTarget(null);
+        mRenderer.getFramebufferPool().release(mTarget);
+        mTarget = null;
+        if (mCopyPass != null) {
+            mCopyPass.release();
+            mCopyPass = null;
+        }
+        mRenderer.onSurfaceDestroyed();
+
+        if (mInputSurface != null) {
+            mInputSurface.release();
+            mInputSurface = null;
+        }
+        if (mSurfaceTexture != null) {
+            mSurfaceTexture.release();
+            mSurfaceTexture = null;
+        }
+        mPbuffer.release();
+        mPbuffer = null;
+        mEglCore.release();
+        mEglCore = null;
+    }
+
+    /**
+     * @param fromInput true when a new input frame is waiting to be latched
+     */
+    private void renderFrame(boolean fromInput) {
+        if (mEglCore == null) {
+            return;
+        }
+        mPbuffer.makeCurrent();
+        mRenderer.onDrawFrame();
+        mFramesRendered++;
+        //the renderer latches the input frame in onDrawFrame, so only now know its timestamp
+        long timestampNs = fromInput ? mRenderer.getFrameTimestamp() : System.nanoTime();
+
+        OnFrameRenderedListener listener = mListener;
+        if (listener != null) {
+            if (mPixels == null) {
+                mPixels = ByteBuffer.allocateDirect(mWidth * mHeight * 4)
+                        .order(ByteOrder.nativeOrder());
+            }
+            mPixels.clear();
+            Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mTarget.getFramebufferId());
+            Gl.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                    mPixels);
+            Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            mPixels.rewind();
+            listener.onFrameRendered(mPixels, mWidth, mHeight, timestampNs);
+        }
+
+        for (int i = 0; i < mOutputs.size(); i++) {
+            WindowSurface output = mOutputs.get(i);
+            output.makeCurrent();
+            Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            Gl.glViewport(0, 0, output.getWidth(), output.getHeight());
+            mCopyPass.use();
+            Gl.glActiveTexture(GLES20.GL_TEXTURE0);
+            Gl.glBindTexture(GLES20.GL_TEXTURE_2D, mTarget.getTextureId());
+            Gl.glUniform1i(mCopySourceHandle, 0);
+            mCopyPass.draw();
+            output.setPresentationTime(timestampNs);
+            output.swapBuffers();
+        }
+    }
+
+    private final SurfaceTexture.OnFrameAvailableListener mOnFrameAvailableListener
+            = new SurfaceTexture.OnFrameAvailableListener() {
+        @Override
+        public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+            mRenderer.onFrameAvailable(surfaceTexture);
+            renderFrame(true);
+        }
+    };
+
+    private final Runnable mRenderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            renderFrame(false);
+        }
+    };
+
+    /**
+     * Called on the render thread
+     */
+    public interface OnFrameRenderedListener {
+
+        /**
+         * @param rgba bottom-up RGBA8 pixels, reused for the next frame
+         * @param timestampNs timestamp of the input frame, or render time if there wasn't one
+         */
+        void onFrameRendered(ByteBuffer rgba, int width, int height, long timestampNs);
+    }
+}
@@ -0,0 +1,269 @@
+package com.androidexperiments.shadercam.gl;
+
+import android.content.Context;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@link RenderStage} that measures the camera frame on the GPU - mean, min and max luminance
+ * plus a {@link LuminanceStats#HISTOGRAM_BINS} bin histogram - for things like exposure
+ * compensation or meters in the UI, without pulling the whole frame back into java.
+ *
+ * The frame is reduced to a 64x64 grid of tiles, then repeatedly by 4x4 down to a single texel,
+ * while a separate pass bins the tiles into the histogram. Both land in a 16x2 target, so only
+ * 128 bytes ever come back. That readback happens a frame late, from a target the GPU had a
+ * whole frame to finish, so it doesn't stall the pipeline the way reading the current frame
+ * would.
+ *
+ * Results go to {@link OnLuminanceStatsListener} on the GL thread, in a {@link LuminanceStats}
+ * that is reused every frame. Nothing is allocated per frame.
+ */
+public class LuminanceStage extends RenderStage {
+
+    private static final String VERTEX_SHADER = "fullscreen.vert.glsl";
+
+    private static final String LUMA_OES_FRAGMENT_SHADER = "luma_oes.frag.glsl";
+
+    private static final String REDUCE_FRAGMENT_SHADER = "luma_reduce.frag.glsl";
+
+    private static final String HISTOGRAM_FRAGMENT_SHADER = "luma_histogram.frag.glsl";
+
+    private static final String HISTOGRAM_SUM_FRAGMENT_SHADER = "luma_histogram_sum.frag.glsl";
+
+    /**
+     * sizes of the reduction chain, each a quarter of the last, ending in 1 texel in the result
+     */
+    private static final int[] REDUCTION_SIZES = {64, 16, 4};
+
+    private static final int RESULT_WIDTH = LuminanceStats.HISTOGRAM_BINS;
+
+    private static final int RESULT_HEIGHT = 2;
+
+    private final Context mContext;
+
+    private volatile OnLuminanceStatsListener mListener;
+
+    private volatile int mInterval = 1;
+
+    private FullscreenPass mLumaPass, mReducePass, mHistogramPass, mHistogramSumPass;
+
+    private int mLumaSourceHandle, mLumaTapOffsetHandle;
+
+    private int mReduceSourceHandle, mReduceTexelHandle;
+
+    private int mHistogramSourceHandle, mHistogramSumSourceHandle;
+
+    private final Framebuffer[] mReductions = new Framebuffer[REDUCTION_SIZES.length];
+
+    private Framebuffer mHistogramRows;
+
+    /**
+     * written on alternating frames, so we can read back the one from last time
+     */
+    private final Framebuffer[] mResults = new Framebuffer[2];
+
+    private int mWriteIndex;
+
+    private boolean mResultPending;
+
+    private long mPendingTimestamp, mPendingFrameNumber;
+
+    private long mLastFrameNumber = -1;
+
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(RESULT_WIDTH * RESULT_HEIGHT * 4)
+            .order(ByteOrder.nativeOrder());
+
+    private final LuminanceStats mStats = new LuminanceStats();
+
+    private FramebufferPool mPool;
+
+    public LuminanceStage(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Listener is called on the GL thread. With no listener set the stage does no work.
+     */
+    public void setOnLuminanceStatsListener(OnLuminanceStatsListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Only measure every nth camera frame, 1 for every frame.
+     */
+    public void setInterval(int frames) {
+        if (frames < 1) {
+            throw new IllegalArgumentException("interval must be at least 1, was " + frames);
+        }
+        mInterval = frames;
+    }
+
+    @Override
+    protected void onSetup(VideoRenderer renderer) {
+        mPool = renderer.getFramebufferPool();
+
+        mLumaPass = FullscreenPass.fromAssets(mContext, VERTEX_SHADER, LUMA_OES_FRAGMENT_SHADER);
+        mLumaSourceHandle = mLumaPass.getUniformLocation("sourceTexture");
+        mLumaTapOffsetHandle = mLumaPass.getUniformLocation("tapOffset");
+
+        mReducePass = FullscreenPass.fromAssets(mContext, VERTEX_SHADER, REDUCE_FRAGMENT_SHADER);
+        mReduceSourceHandle = mReducePass.getUniformLocation("sourceTexture");
+        mReduceTexelHandle = mReducePass.getUniformLocation("sourceTexel");
+
+        mHistogramPass = FullscreenPass.fromAssets(mContext, VERTEX_SHADER, HISTOGRAM_FRAGMENT_SHADER);
+        mHistogramSourceHandle = mHistogramPass.getUniformLocation("sourceTexture");
+
+        mHistogramSumPass = FullscreenPass.fromAssets(mContext, VERTEX_SHADER,
+                HISTOGRAM_SUM_FRAGMENT_SHADER);
+        mHistogramSumSourceHandle = mHistogramSumPass.getUniformLocation("sourceTexture");
+
+        for (int i = 0; i < REDUCTION_SIZES.length; i++) {
+            mReductions[i] = mPool.acquire(REDUCTION_SIZES[i], REDUCTION_SIZES[i]);
+        }
+        mHistogramRows = mPool.acquire(RESULT_WIDTH, RESULT_WIDTH);
+        mResults[0] = mPool.acquire(RESULT_WIDTH, RESULT_HEIGHT);
+        mResults[1] = mPool.acquire(RESULT_WIDTH, RESULT_HEIGHT);
+        mWriteIndex = 0;
+        mResultPending = false;
+    }
+
+    @Override
+    protected void onPreDraw(VideoRenderer renderer) {
+        OnLuminanceStatsListener listener = mListener;
+        if (listener == null) {
+            mResultPending = false;
+            return;
+        }
+
+        long frameNumber = renderer.getFrameNumber();
+        if (frameNumber == mLastFrameNumber) {
+            return;
+        }
+        mLastFrameNumber = frameNumber;
+
+        //last run's result has had a frame to finish, collect it before queueing more work
+        if (mResultPending) {
+            mResultPending = false;
+            readResult(mResults[1 - mWriteIndex]);
+            listener.onLuminanceStats(mStats);
+        }
+
+        if (frameNumber % mInterval != 0) {
+            return;
+        }
+
+        //camera into 64x64 tiles of (mean, min, max)
+        Framebuffer tiles = mReductions[0];
+        tiles.bind();
+        mLumaPass.use();
+        Gl.glActiveTexture(GLES20.GL_TEXTURE0);
+        Gl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, renderer.getCameraTexture());
+        Gl.glUniform1i(mLumaSourceHandle, 0);
+        Gl.glUniform2f(mLumaTapOffsetHandle,
+                0.25f / tiles.getWidth(), 0.25f / tiles.getHeight());
+        mLumaPass.draw();
+
+        //4x4 reductions, the last one into a single texel of the result
+        Framebuffer result = mResults[mWriteIndex];
+        mReducePass.use();
+        Gl.glUniform1i(mReduceSourceHandle, 0);
+        for (int i = 1; i <= mReductions.length; i++) {
+            Framebuffer src = mReductions[i - 1];
+            if (i < mReductions.length) {
+                mReductions[i].bind();
+            } else {
+                Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, result.getFramebufferId());
+                Gl.glViewport(0, 1, 1, 1);
+            }
+            Gl.glBindTexture(GLES20.GL_TEXTURE_2D, src.getTextureId());
+            Gl.glUniform2f(mReduceTexelHandle, 1.f / src.getWidth(), 1.f / src.getHeight());
+            mReducePass.draw();
+        }
+
+        //histogram of the tiles, in 16 partial rows and then summed into the result's first row
+        mHistogramRows.bind();
+        mHistogramPass.use();
+        Gl.glBindTexture(GLES20.GL_TEXTURE_2D, tiles.getTextureId());
+        Gl.glUniform1i(mHistogramSourceHandle, 0);
+        mHistogramPass.draw();
+
+        Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, result.getFramebufferId());
+        Gl.glViewport(0, 0, RESULT_WIDTH, 1);
+        mHistogramSumPass.use();
+        Gl.glBindTexture(GLES20.GL_TEXTURE_2D, mHistogramRows.getTextureId());
+        Gl.glUniform1i(mHistogramSumSourceHandle, 0);
+        mHistogramSumPass.draw();
+
+        Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        mPendingTimestamp = renderer.getFrameTimestamp();
+        mPendingFrameNumber = frameNumber;
+        mResultPending = true;
+        mWriteIndex = 1 - mWriteIndex;
+    }
+
+    @Override
+    protected void onRelease() {
+        for (int i = 0; i < mReductions.length; i++) {
+            release(mReductions[i]);
+            mReductions[i] = null;
+        }
+        release(mHistogramRows);
+        mHistogramRows = null;
+        release(mResults[0]);
+        release(mResults[1]);
+        mResults[0] = mResults[1] = null;
+        mResultPending = false;
+        mLastFrameNumber = -1;
+
+        if (mLumaPass != null) {
+            mLumaPass.release();
+            mReducePass.release();
+            mHistogramPass.release();
+            mHistogramSumPass.release();
+            mLumaPass = mReducePass = mHistogramPass = mHistogramSumPass = null;
+        }
+    }
+
+    private void release(Framebuffer fb) {
+        if (mPool != null) {
+            mPool.release(fb);
+        }
+    }
+
+    /**
+     * row 0 is the histogram, (0, 1) is (mean, min, max)
+     */
+    private void readResult(Framebuffer result) {
+        Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, result.getFramebufferId());
+        mReadBuffer.clear();
+        Gl.glReadPixels(0, 0, RESULT_WIDTH, RESULT_HEIGHT, GLES20.GL_RGBA,
+                GLES20.GL_UNSIGNED_BYTE, mReadBuffer);
+        Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        for (int i = 0; i < LuminanceStats.HISTOGRAM_BINS; i++) {
+            mStats.histogram[i] = unorm(mReadBuffer.get(i * 4));
+        }
+        int stats = RESULT_WIDTH * 4;
+        mStats.mean = unorm(mReadBuffer.get(stats));
+        mStats.min = unorm(mReadBuffer.get(stats + 1));
+        mStats.max = unorm(mReadBuffer.get(stats + 2));
+        mStats.timestamp = mPendingTimestamp;
+        mStats.frameNumber = mPendingFrameNumber;
+    }
+
+    private static float unorm(byte b) {
+        return (b & 0xff) / 255.f;
+    }
+
+    public interface OnLuminanceStatsListener {
+        /**
+         * Called on the GL thread about a frame after the one measured. stats is reused, copy
+         * out anything you want to keep.
+         */
+        void onLuminanceStats(LuminanceStats stats);
+    }
+}
@@ -0,0 +1,49 @@
+package com.androidexperiments.shadercam.gl;
+
+/**
+ * Luminance statistics for one camera frame, filled in by {@link LuminanceStage}.
+ *
+ * The stage reuses a single instance for every frame, so copy out anything you need to keep
+ * past the callback.
+ */
+public class LuminanceStats {
+
+    public static final int HISTOGRAM_BINS = 16;
+
+    /**
+     * mean, min and max luminance, 0-1. min and max are over small tiles rather than single
+     * pixels, so a few hot pixels won't peg them.
+     */
+    public float mean, min, max;
+
+    /**
+     * fraction of the frame falling in each of {@link #HISTOGRAM_BINS} equal luminance bins,
+     * darkest first. Sums to roughly 1.
+     */
+    public final float[] histogram = new float[HISTOGRAM_BINS];
+
+    /**
+     * {@link android.graphics.SurfaceTexture#getTimestamp()} of the frame these describe
+     */
+    public long timestamp;
+
+    /**
+     * frame number these describe, see {@link VideoRenderer#getFrameNumber()}
+     */
+    public long frameNumber;
+
+    public void set(LuminanceStats other) {
+        mean = other.mean;
+        min = other.min;
+        max = other.max;
+        System.arraycopy(other.histogram, 0, histogram, 0, HISTOGRAM_BINS);
+        timestamp = other.timestamp;
+        frameNumber = other.frameNumber;
+    }
+
+    @Override
+    public String toString() {
+        return "[LuminanceStats] frame: " + frameNumber + " mean: " + mean + " min: " + min
+                + " max: " + max;
+    }
+}
@@ -0,0 +1,195 @@
+package com.androidexperiments.shadercam.gl;
+
+import com.androidexperiments.shadercam.lut.LutLoader;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link RenderStage} that color grades with a 3D lut. Luts are parsed and cached in the
+ * background by a {@link LutLoader}, then uploaded on the GL thread at the start of the next
+ * frame, so switching looks never stalls rendering.
+ *
+ * The main shader gets these uniforms:
+ * <pre>
+ *   uniform sampler3D lutTexture;    // or sampler2D when {@link #is3d()} is false
+ *   uniform float lutSize;           // edge length of the cube
+ *   uniform float lutIntensity;      // 0 when no lut is loaded
+ * </pre>
+ * See lut3d.frag.glsl and lut2d.frag.glsl for how to sample them, or just use
+ * {@link LutVideoRenderer}.
+ */
+public class LutStage extends RenderStage implements LutLoader.OnLutLoadedListener {
+
+    private static final String TAG = LutStage.class.getSimpleName();
+
+    private final LutLoader mLoader;
+
+    private final boolean mAllow3d;
+
+    private final LutTexture mTexture = new LutTexture();
+
+    /**
+     * lut handed to us by the loader thread, waiting for the GL thread to pick it up
+     */
+    private final AtomicReference<PendingLut> mPending = new AtomicReference<>();
+
+    /**
+     * last lut we uploaded, kept so we can upload it again if the context is recreated
+     */
+    private PendingLut mCurrent;
+
+    private volatile float mIntensity = 1.f;
+
+    private boolean mUse3d;
+
+    private int mTextureUnit;
+
+    /**
+     * program we looked up uniform locations for
+     */
+    private int mProgram = -1;
+
+    private int mLutTextureHandle;
+
+    private int mLutSizeHandle;
+
+    private int mLutIntensityHandle;
+
+    /**
+     * @param loader loader to parse luts with, can be shared between stages. It's up to u to
+     *               {@link LutLoader#release()} it when done.
+     */
+    public LutStage(LutLoader loader) {
+        this(loader, true);
+    }
+
+    /**
+     * @param allow3d false to always use the tiled 2D lut, ex: if your shader is #version 100
+     *                and so can't declare a sampler3D
+     */
+    public LutStage(LutLoader loader, boolean allow3d) {
+        mLoader = loader;
+        mAllow3d = allow3d;
+    }
+
+    /**
+     * Loads and applies a .cube file. Can be called from any thread.
+     */
+    public void setLut(File cubeFile) {
+        mLoader.load(cubeFile, this);
+    }
+
+    /**
+     * Loads and applies a .cube file from /assets/. Can be called from any thread.
+     */
+    public void setLutAsset(String assetPath) {
+        mLoader.loadAsset(assetPath, this);
+    }
+
+    /**
+     * @param intensity 0 for the original image, 1 for the fully graded one
+     */
+    public void setIntensity(float intensity) {
+        mIntensity = intensity;
+    }
+
+    public float getIntensity() {
+        return mIntensity;
+    }
+
+    /**
+     * Whether this stage will use a real 3D texture in the current context. Only valid on the
+     * GL thread.
+     */
+    public boolean willUse3d() {
+        return mAllow3d && LutTexture.supports3d();
+    }
+
+    /**
+     * Whether the lut is currently a 3D texture, as of the last {@link #onSetup(VideoRenderer)}
+     */
+    public boolean is3d() {
+        return mUse3d;
+    }
+
+    @Override
+    public void onLutLoaded(String key, int size, ByteBuffer rgb) {
+        mPending.set(new PendingLut(size, rgb));
+    }
+
+    @Override
+    public void onLutLoadFailed(String key, Exception e) {
+        Log.e(TAG, "Keeping previous lut, failed to load " + key, e);
+    }
+
+    @Override
+    protected void onSetup(VideoRenderer renderer) {
+        mUse3d = willUse3d();
+        mTextureUnit = renderer.reserveTextureUnit();
+        mProgram = -1;
+
+        if (mCurrent != null && mPending.get() == null) {
+            upload(mCurrent);
+        }
+    }
+
+    @Override
+    protected void onPreDraw(VideoRenderer renderer) {
+        PendingLut pending = mPending.getAndSet(null);
+        if (pending != null) {
+            upload(pending);
+            mCurrent = pending;
+        }
+    }
+
+    @Override
+    protected void onBindUniforms(VideoRenderer renderer, int program) {
+        if (program != mProgram) {
+            mProgram = program;
+            mLutTextureHandle = Gl.glGetUniformLocation(program, "lutTexture");
+            mLutSizeHandle = Gl.glGetUniformLocation(program, "lutSize");
+            mLutIntensityHandle = Gl.glGetUniformLocation(program, "lutIntensity");
+        }
+
+        boolean loaded = mTexture.isLoaded();
+        if (loaded) {
+            mTexture.bind(mTextureUnit);
+        }
+        Gl.glUniform1i(mLutTextureHandle, mTextureUnit - GLES20.GL_TEXTURE0);
+        Gl.glUniform1f(mLutSizeHandle, loaded ? mTexture.getSize() : 2.f);
+        Gl.glUniform1f(mLutIntensityHandle, loaded ? mIntensity : 0.f);
+    }
+
+    @Override
+    protected void onRelease() {
+        mTexture.release();
+        mProgram = -1;
+    }
+
+    private void upload(PendingLut lut) {
+        try {
+            mTexture.upload(lut.size, lut.rgb, mUse3d);
+        } catch (IllegalArgumentException e) {
+            //too big for the 2D fallback on this device
+            Log.e(TAG, "Could not upload lut", e);
+            mTexture.release();
+        }
+    }
+
+    private static class PendingLut {
+
+        private final int size;
+
+        private final ByteBuffer rgb;
+
+        private PendingLut(int size, ByteBuffer rgb) {
+            this.size = size;
+            this.rgb = rgb;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.androidexperiments.shadercam.gl;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+
+/**
+ * GL texture holding a quantized RGB8 3D lut, as produced by
+ * {@link com.androidexperiments.shadercam.lut.LutLoader}.
+ *
+ * On GLES3 it is a real {@link GLES30#GL_TEXTURE_3D}. On GLES2 it falls back to a tiled
+ * {@link GLES20#GL_TEXTURE_2D} that is size*size wide and size tall, where each size*size tile is
+ * one blue slice - see lut2d.frag.glsl for how to sample it.
+ *
+ * Must be used on the GL thread.
+ */
+public class LutTexture {
+
+    /**
+     * extension we need to read the camera's external texture from a #version 300 es shader
+     */
+    private static final String EXT_EXTERNAL_ESSL3 = "GL_OES_EGL_image_external_essl3";
+
+    private final int[] mTextureId = new int[1];
+
+    private boolean mIs3d;
+
+    private int mSize;
+
+    /**
+     * Returns true if the current context can sample a 3D lut alongside the camera texture,
+     * ie: it is GLES3 and supports external textures in ESSL3 shaders.
+     */
+    public static boolean supports3d() {
+        return GlUtil.getGlesMajorVersion() >= 3 && GlUtil.hasExtension(EXT_EXTERNAL_ESSL3);
+    }
+
+    /**
+     * Uploads lut data, reusing the existing texture storage if the size and type match.
+     *
+     * @param size edge length of the cube
+     * @param rgb size^3 rgb triplets, red fastest. position is ignored and left untouched.
+     * @param use3d true for a 3D texture, false for the tiled 2D fallback
+     */
+    public void upload(int size, ByteBuffer rgb, boolean use3d) {
+        ByteBuffer data = rgb.duplicate();
+        boolean reuse = mTextureId[0] != 0 && mSize == size && mIs3d == use3d;
+
+        if (mTextureId[0] == 0 || mIs3d != use3d) {
+            release();
+            Gl.glGenTextures(1, mTextureId, 0);
+            GlUtil.checkGlError("glGenTextures");
+        }
+
+        mIs3d = use3d;
+        mSize = size;
+
+        //rows of rgb bytes aren't 4 byte aligned for most lut sizes
+        Gl.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+
+        if (use3d) {
+            upload3d(size, data, reuse);
+        } else {
+            upload2d(size, data, reuse);
+        }
+
+        Gl.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+        GlUtil.checkGlError("lut upload");
+    }
+
+    private void upload3d(int size, ByteBuffer data, boolean reuse) {
+        int target = GLES30.GL_TEXTURE_3D;
+        Gl.glBindTexture(target, mTextureId[0]);
+
+        if (reuse) {
+            data.position(0);
+            Gl.glTexSubImage3D(target, 0, 0, 0, 0, size, size, size,
+                    GLES20.GL_RGB, GLES20.GL_UNSIGNED_BYTE, data);
+            return;
+        }
+
+        setParameters(target);
+        Gl.glTexParameteri(target, GLES30.GL_TEXTURE_WRAP_R, GLES20.GL_CLAMP_TO_EDGE);
+        data.position(0);
+        Gl.glTexImage3D(target, 0, GLES30.GL_RGB8, size, size, size, 0,
+                GLES20.GL_RGB, GLES20.GL_UNSIGNED_BYTE, data);
+    }
+
+    private void upload2d(int size, ByteBuffer data, boolean reuse) {
+        int width = size * size;
+        int[] maxSize = new int[1];
+        Gl.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxSize, 0);
+        if (width > maxSize[0]) {
+            throw new IllegalArgumentException("LUT size " + size + " needs a " + width
+                    + " wide texture for the 2D fallback, max is " + maxSize[0]);
+        }
+
+        int target = GLES20.GL_TEXTURE_2D;
+        Gl.glBindTexture(target, mTextureId[0]);
+
+        if (!reuse) {
+            setParameters(target);
+            Gl.glTexImage2D(target, 0, GLES20.GL_RGB, width, size, 0,
+                    GLES20.GL_RGB, GLES20.GL_UNSIGNED_BYTE, null);
+        }
+
+        //each blue slice is already a contiguous size x size image, so drop them in side by side
+        int sliceBytes = size * size * 3;
+        for (int b = 0; b < size; b++) {
+            data.position(b * sliceBytes);
+            Gl.glTexSubImage2D(target, 0, b * size, 0, size, size,
+                    GLES20.GL_RGB, GLES20.GL_UNSIGNED_BYTE, data);
+        }
+    }
+
+    private static void setParameters(int target) {
+        Gl.glTexParameteri(target, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        Gl.glTexParameteri(target, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        Gl.glTexParameteri(target, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        Gl.glTexParameteri(target, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+    }
+
+    /**
+     * Binds the lut to the given texture unit, ex: {@link GLES20#GL_TEXTURE15}
+     */
+    public void bind(int textureUnit) {
+        Gl.glActiveTexture(textureUnit);
+        Gl.glBindTexture(getTarget(), mTextureId[0]);
+    }
+
+    public int getTarget() {
+        return mIs3d ? GLES30.GL_TEXTURE_3D : GLES20.GL_TEXTURE_2D;
+    }
+
+    public boolean isLoaded() {
+        return mTextureId[0] != 0;
+    }
+
+    public boolean is3d() {
+        return mIs3d;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public void release() {
+        if (mTextureId[0] != 0) {
+            Gl.glDeleteTextures(1, mTextureId, 0);
+            mTextureId[0] = 0;
+        }
+        mSize = 0;
+    }
+}
@@ -0,0 +1,64 @@
+package com.androidexperiments.shadercam.gl;
+
+import com.androidexperiments.shadercam.lut.LutLoader;
+
+import android.content.Context;
+
+import java.io.File;
+
+/**
+ * {@link VideoRenderer} that color grades the camera with a .cube lut through a {@link LutStage}.
+ *
+ * Uses a real 3D texture and lut3d.frag.glsl where the device supports it, otherwise the tiled
+ * 2D lut and lut2d.frag.glsl. If u want grading on top of your own effect, add a
+ * {@link LutStage} to your renderer instead and borrow the sampling code from those shaders.
+ */
+public class LutVideoRenderer extends VideoRenderer {
+
+    private static final String LUT_2D_FRAGMENT_SHADER = "lut2d.frag.glsl";
+
+    private static final String LUT_2D_VERTEX_SHADER = "vid.vert.glsl";
+
+    private static final String LUT_3D_FRAGMENT_SHADER = "lut3d.frag.glsl";
+
+    private static final String LUT_3D_VERTEX_SHADER = "lut3d.vert.glsl";
+
+    private final LutStage mLutStage;
+
+    /**
+     * @param loader loader used to parse and cache luts, see {@link LutStage#LutStage(LutLoader)}
+     */
+    public LutVideoRenderer(Context context, LutLoader loader) {
+        super(context, LUT_2D_FRAGMENT_SHADER, LUT_2D_VERTEX_SHADER);
+        mLutStage = new LutStage(loader);
+        addStage(mLutStage);
+    }
+
+    @Override
+    protected void onPreSetupGLComponents() {
+        super.onPreSetupGLComponents();
+
+        //pick shaders to match the kind of texture the stage is going to upload
+        if (mLutStage.willUse3d()) {
+            setShaderAssets(LUT_3D_FRAGMENT_SHADER, LUT_3D_VERTEX_SHADER);
+        } else {
+            setShaderAssets(LUT_2D_FRAGMENT_SHADER, LUT_2D_VERTEX_SHADER);
+        }
+    }
+
+    public void setLut(File cubeFile) {
+        mLutStage.setLut(cubeFile);
+    }
+
+    public void setLutAsset(String assetPath) {
+        mLutStage.setLutAsset(assetPath);
+    }
+
+    public void setLutIntensity(float intensity) {
+        mLutStage.setIntensity(intensity);
+    }
+
+    public LutStage getLutStage() {
+        return mLutStage;
+    }
+}
@@ -0,0 +1,303 @@
+package com.androidexperiments.shadercam.gl;
+
+import android.content.Context;
+import android.opengl.GLES20;
+
+import com.androidexperiments.shadercam.shader.PrecisionVariants;
+import com.androidexperiments.shadercam.utils.ShaderUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Locale;
+
+/**
+ * Measures the mediump and highp variants of a fragment shader on this device and picks the
+ * fastest one that still looks right: mediump when its output is within the error threshold of
+ * highp's and it isn't slower, otherwise highp.
+ *
+ * Both variants draw a fullscreen quad over a synthetic test image instead of the camera, every
+ * samplerExternalOES becomes a sampler2D on texture unit 0. Uniforms the effect needs besides
+ * its samplers, ex: a time or resolution, come from the {@link UniformBinder}, anything it
+ * doesn't set is 0. Takes a few tens of ms, which is why PrecisionSelector remembers the result.
+ *
+ * GL thread only, with a context current. Leaves framebuffer 0 bound and the viewport as it was.
+ */
+public class PrecisionCalibrator {
+
+    private static final String VERTEX_SHADER = "precision_calibration.vert.glsl";
+
+    private static final String VERTEX_SHADER_300 = "precision_calibration_300.vert.glsl";
+
+    /**
+     * big enough to be fill bound rather than dominated by per draw overhead
+     */
+    private static final int TIMING_SIZE = 512;
+
+    private static final int DRAWS_PER_ROUND = 4;
+
+    /**
+     * rounds alternate between the variants so clock changes hit both, best round wins
+     */
+    private static final int ROUNDS = 3;
+
+    private static final int IMAGE_SIZE = 256;
+
+    /**
+     * Sets the effect's own uniforms on a calibration program, which is current
+     */
+    public interface UniformBinder {
+        void bind(int program);
+    }
+
+    /**
+     * What was measured and picked
+     */
+    public static class Result {
+
+        private final String mPrecision;
+
+        private final long mMediumpNs;
+
+        private final long mHighpNs;
+
+        private final float mMeanError;
+
+        private final int mMaxError;
+
+        Result(String precision, long mediumpNs, long highpNs, float meanError, int maxError) {
+            mPrecision = precision;
+            mMediumpNs = mediumpNs;
+            mHighpNs = highpNs;
+            mMeanError = meanError;
+            mMaxError = maxError;
+        }
+
+        /**
+         * @return PrecisionVariants.MEDIUMP or HIGHP
+         */
+        public String getPrecision() {
+            return mPrecision;
+        }
+
+        /**
+         * @return best time for one 512x512 draw
+         */
+        public long getMediumpNanos() {
+            return mMediumpNs;
+        }
+
+        public long getHighpNanos() {
+            return mHighpNs;
+        }
+
+        /**
+         * @return mean absolute difference of mediump from highp, in 8 bit levels per channel
+         */
+        public float getMeanError() {
+            return mMeanError;
+        }
+
+        /**
+         * @return largest difference of any channel, in 8 bit levels
+         */
+        public int getMaxError() {
+            return mMaxError;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: mediump %.2fms, highp %.2fms, error %.2f mean"
+                            + " %d max", mPrecision, mMediumpNs / 1e6, mHighpNs / 1e6,
+                    mMeanError, mMaxError);
+        }
+    }
+
+    private static final float QUAD_COORDS[] = {
+            -1.0f, 1.0f,
+            1.0f, 1.0f,
+            -1.0f, -1.0f,
+            1.0f, -1.0f,
+    };
+
+    private final FloatBuffer mQuadBuffer = GlUtil.createFloatBuffer(QUAD_COORDS);
+
+    private final Context mContext;
+
+    private float mMaxMeanError = 1.f;
+
+    private int mMaxError = 16;
+
+    public PrecisionCalibrator(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * How far mediump output may drift from highp's and still be used, in 8 bit levels per
+     * channel. Defaults to 1 on average and 16 at worst, about where banding starts to show.
+     */
+    public void setErrorThreshold(float maxMeanError, int maxError) {
+        if (maxMeanError < 0 || maxError < 0) {
+            throw new IllegalArgumentException("Bad error threshold " + maxMeanError + "/"
+                    + maxError);
+        }
+        mMaxMeanError = maxMeanError;
+        mMaxError = maxError;
+    }
+
+    /**
+     * @param binder sets the effect's other uniforms, may be null
+     * @throws RuntimeException if either variant doesn't compile or link against the
+     *                          calibration vertex shader, ex: an effect with its own varyings
+     */
+    public Result calibrate(String fragmentSource, UniformBinder binder) {
+        boolean gles3 = fragmentSource.trim().startsWith("#version 300");
+        String vertexSource = loadAsset(gles3 ? VERTEX_SHADER_300 : VERTEX_SHADER);
+        String testSource = withoutExternalTextures(fragmentSource);
+
+        int[] viewport = new int[4];
+        Gl.glGetIntegerv(GLES20.GL_VIEWPORT, viewport, 0);
+
+        int mediump = 0;
+        int highp = 0;
+        int image = 0;
+        Framebuffer timing = null;
+        Framebuffer readback = null;
+        try {
+            mediump = createProgram(vertexSource,
+                    PrecisionVariants.withPrecision(testSource, PrecisionVariants.MEDIUMP));
+            highp = createProgram(vertexSource,
+                    PrecisionVariants.withPrecision(testSource, PrecisionVariants.HIGHP));
+            image = createTestImage();
+            timing = new Framebuffer(TIMING_SIZE, TIMING_SIZE);
+            readback = new Framebuffer(IMAGE_SIZE, IMAGE_SIZE);
+
+            //compare first, which also gets any lazy compilation out of the way before timing
+            ByteBuffer mediumpPixels = render(mediump, binder, image, readback);
+            ByteBuffer highpPixels = render(highp, binder, image, readback);
+            int maxError = 0;
+            long totalError = 0;
+            int count = mediumpPixels.capacity();
+            for (int i = 0; i < count; i++) {
+                int error = Math.abs((mediumpPixels.get(i) & 0xff) - (highpPixels.get(i) & 0xff));
+                totalError += error;
+                maxError = Math.max(maxError, error);
+            }
+            float meanError = (float) totalError / count;
+
+            long mediumpNs = Long.MAX_VALUE;
+            long highpNs = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                mediumpNs = Math.min(mediumpNs, time(mediump, binder, image, timing));
+                highpNs = Math.min(highpNs, time(highp, binder, image, timing));
+            }
+
+            boolean acceptable = meanError <= mMaxMeanError && maxError <= mMaxError;
+            String precision = acceptable && mediumpNs <= highpNs
+                    ? PrecisionVariants.MEDIUMP : PrecisionVariants.HIGHP;
+            return new Result(precision, mediumpNs, highpNs, meanError, maxError);
+        } finally {
+            Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            Gl.glViewport(viewport[0], viewport[1], viewport[2], viewport[3]);
+            if (mediump != 0) {
+                Gl.glDeleteProgram(mediump);
+            }
+            if (highp != 0) {
+                Gl.glDeleteProgram(highp);
+            }
+            if (image != 0) {
+                Gl.glDeleteTextures(1, new int[]{image}, 0);
+            }
+            if (timing != null) {
+                timing.release();
+            }
+            if (readback != null) {
+                readback.release();
+            }
+        }
+    }
+
+    private String loadAsset(String name) {
+        try {
+            return ShaderUtils.getStringFromFileInAssets(mContext, name);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not load " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * camera textures can't be filled from here, sample the test image as a plain 2D texture
+     */
+    private static String withoutExternalTextures(String source) {
+        return source
+                .replaceAll("(?m)^[ \\t]*#[ \\t]*extension[ \\t]+GL_OES_EGL_image_external\\w*.*$",
+                        "")
+                .replace("samplerExternalOES", "sampler2D");
+    }
+
+    private static int createProgram(String vertexSource, String fragmentSource) {
+        int program = GlUtil.createProgram(vertexSource, fragmentSource);
+        if (program == 0) {
+            throw new RuntimeException("Effect doesn't build for calibration, see log");
+        }
+        return program;
+    }
+
+    /**
+     * smooth gradients for banding, plus fine detail for coordinate precision to show up in
+     */
+    private static int createTestImage() {
+        ByteBuffer pixels = ByteBuffer.allocateDirect(IMAGE_SIZE * IMAGE_SIZE * 4)
+                .order(ByteOrder.nativeOrder());
+        for (int y = 0; y < IMAGE_SIZE; y++) {
+            for (int x = 0; x < IMAGE_SIZE; x++) {
+                pixels.put((byte) x);
+                pixels.put((byte) y);
+                pixels.put((byte) (127.5 + 127.5 * Math.sin(x * 0.7) * Math.cos(y * 0.9)));
+                pixels.put((byte) 255);
+            }
+        }
+        pixels.flip();
+        return GlUtil.createImageTexture(pixels, IMAGE_SIZE, IMAGE_SIZE, GLES20.GL_RGBA);
+    }
+
+    private void draw(int program, UniformBinder binder, int image, Framebuffer target,
+            int count) {
+        target.bind();
+        Gl.glUseProgram(program);
+        Gl.glActiveTexture(GLES20.GL_TEXTURE0);
+        Gl.glBindTexture(GLES20.GL_TEXTURE_2D, image);
+        if (binder != null) {
+            binder.bind(program);
+        }
+        int position = Gl.glGetAttribLocation(program, "position");
+        Gl.glEnableVertexAttribArray(position);
+        Gl.glVertexAttribPointer(position, 2, GLES20.GL_FLOAT, false, 4 * 2, mQuadBuffer);
+        for (int i = 0; i < count; i++) {
+            Gl.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        }
+        Gl.glDisableVertexAttribArray(position);
+    }
+
+    private ByteBuffer render(int program, UniformBinder binder, int image, Framebuffer target) {
+        draw(program, binder, image, target, 1);
+        ByteBuffer pixels = ByteBuffer.allocateDirect(IMAGE_SIZE * IMAGE_SIZE * 4);
+        Gl.glReadPixels(0, 0, IMAGE_SIZE, IMAGE_SIZE, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                pixels);
+        GlUtil.checkGlError("calibration readback");
+        return pixels;
+    }
+
+    /**
+     * @return ns per draw
+     */
+    private long time(int program, UniformBinder binder, int image, Framebuffer target) {
+        //drain whatever was queued before
+        Gl.glFinish();
+        long start = System.nanoTime();
+        draw(program, binder, image, target, DRAWS_PER_ROUND);
+        Gl.glFinish();
+        return (System.nanoTime() - start) / DRAWS_PER_ROUND;
+    }
+}
@@ -0,0 +1,77 @@
+package com.androidexperiments.shadercam.gl;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.androidexperiments.shadercam.profile.DeviceProfile;
+import com.androidexperiments.shadercam.profile.DeviceProfiles;
+import com.androidexperiments.shadercam.shader.PrecisionVariants;
+
+import java.util.HashMap;
+
+/**
+ * Picks mediump or highp for each effect once per device and remembers it in the
+ * {@link DeviceProfile}, so only the first launch with a new effect, device or driver pays for
+ * the {@link PrecisionCalibrator} run.
+ *
+ * Choices are keyed on the effect's name and a hash of its source, editing a shader calibrates
+ * it again.
+ *
+ * Any thread with a GL context current, ex: a ShaderSwapper worker. Calls are serialized.
+ */
+public class PrecisionSelector {
+
+    private static final String TAG = PrecisionSelector.class.getSimpleName();
+
+    private final DeviceProfiles mProfiles;
+
+    private final PrecisionCalibrator mCalibrator;
+
+    /**
+     * picks made this launch, covers a profile that's still being probed or failed to probe
+     */
+    private final HashMap<String, String> mChosen = new HashMap<>();
+
+    public PrecisionSelector(Context context) {
+        mProfiles = DeviceProfiles.getInstance(context);
+        mCalibrator = new PrecisionCalibrator(context);
+    }
+
+    /**
+     * ex: to change the error threshold
+     */
+    public PrecisionCalibrator getCalibrator() {
+        return mCalibrator;
+    }
+
+    /**
+     * @param name   the effect, ex: its asset path
+     * @param binder sets the effect's other uniforms for calibration, may be null
+     * @return fragmentSource with the precision picked for this device, or unchanged if it can't
+     * be calibrated
+     */
+    public synchronized String select(String name, String fragmentSource,
+            PrecisionCalibrator.UniformBinder binder) {
+        String key = name + "@" + Integer.toHexString(fragmentSource.hashCode());
+        String precision = mChosen.get(key);
+        if (precision == null) {
+            DeviceProfile profile = mProfiles.getProfile();
+            precision = profile == null ? null : profile.getPrecision(key);
+        }
+
+        if (precision == null) {
+            PrecisionCalibrator.Result result;
+            try {
+                result = mCalibrator.calibrate(fragmentSource, binder);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Could not calibrate " + name + ", keeping its precision", e);
+                return fragmentSource;
+            }
+            Log.d(TAG, name + " " + result);
+            precision = result.getPrecision();
+            mProfiles.putPrecision(key, precision);
+        }
+        mChosen.put(key, precision);
+        return PrecisionVariants.withPrecision(fragmentSource, precision);
+    }
+}
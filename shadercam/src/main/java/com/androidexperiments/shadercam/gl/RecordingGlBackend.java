@@ -0,0 +1,609 @@
+package com.androidexperiments.shadercam.gl;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+
+/**
+ * {@link GlBackend} that doesn't draw anything, it just counts and logs calls so frame loop
+ * logic can be checked on a plain JVM: calls per frame, pass ordering, pooling, and with an
+ * allocation counter, allocations per frame.
+ *
+ * Just enough state is faked for the code above to run: names are handed out sequentially,
+ * every shader compiles and links, every framebuffer is complete, uniforms get stable locations
+ * by name and glGetString / glGetIntegerv answer as a configurable GLES version. Recording
+ * itself doesn't allocate once warmed up.
+ *
+ * Doesn't reference any android classes, so it runs without android.jar.
+ */
+public class RecordingGlBackend implements GlBackend {
+
+    private static final int GL_NO_ERROR = 0;
+
+    private static final int GL_TRUE = 1;
+
+    private static final int GL_VENDOR = 0x1F00;
+
+    private static final int GL_RENDERER = 0x1F01;
+
+    private static final int GL_VERSION = 0x1F02;
+
+    private static final int GL_EXTENSIONS = 0x1F03;
+
+    private static final int GL_MAX_TEXTURE_SIZE = 0x0D33;
+
+    private static final int GL_MAJOR_VERSION = 0x821B;
+
+    private static final int GL_FRAMEBUFFER_COMPLETE = 0x8CD5;
+
+    private static final int GL_ALREADY_SIGNALED = 0x911A;
+
+    private final int[] mCounts = new int[GlCall.COUNT];
+
+    /**
+     * every call in order, up to capacity
+     */
+    private final int[] mCallLog;
+
+    private int mCallCount;
+
+    /**
+     * program and framebuffer bound at each draw, up to capacity
+     */
+    private final int[] mDrawPrograms;
+
+    private final int[] mDrawFramebuffers;
+
+    private int mDrawCount;
+
+    private int mProgram, mFramebuffer;
+
+    private int mNextName = 1;
+
+    private final HashMap<String, Integer> mLocations = new HashMap<>();
+
+    private int mGlesVersion = 3;
+
+    private String mExtensions = "GL_OES_EGL_image_external GL_OES_EGL_image_external_essl3";
+
+    private int mMaxTextureSize = 4096;
+
+    /**
+     * handed out by every glMapBufferRange, grown as needed
+     */
+    private ByteBuffer mMapped;
+
+    public RecordingGlBackend() {
+        this(1 << 16, 1 << 12);
+    }
+
+    /**
+     * @param callCapacity number of calls kept in the log, later ones are only counted
+     * @param drawCapacity number of draws kept in the log
+     */
+    public RecordingGlBackend(int callCapacity, int drawCapacity) {
+        mCallLog = new int[callCapacity];
+        mDrawPrograms = new int[drawCapacity];
+        mDrawFramebuffers = new int[drawCapacity];
+    }
+
+    /**
+     * GLES major version to report, 2 or 3
+     */
+    public void setGlesVersion(int version) {
+        mGlesVersion = version;
+    }
+
+    /**
+     * space separated extensions to report from GL_EXTENSIONS
+     */
+    public void setExtensions(String extensions) {
+        mExtensions = extensions;
+    }
+
+    public void setMaxTextureSize(int size) {
+        mMaxTextureSize = size;
+    }
+
+    /**
+     * Clears counts and logs, leaves the faked GL state (names, bindings, locations) alone
+     */
+    public void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mCallCount = 0;
+        mDrawCount = 0;
+    }
+
+    /**
+     * @param call one of the {@link GlCall} ids
+     */
+    public int getCount(int call) {
+        return mCounts[call];
+    }
+
+    /**
+     * @param name method name, ex: "glDrawArrays"
+     */
+    public int getCount(String name) {
+        int call = GlCall.forName(name);
+        if (call < 0) {
+            throw new IllegalArgumentException("Not a recorded call: " + name);
+        }
+        return mCounts[call];
+    }
+
+    /**
+     * @return total calls since the last {@link #reset()}, including ones past the log capacity
+     */
+    public int getCallCount() {
+        return mCallCount;
+    }
+
+    /**
+     * @return the {@link GlCall} id of the index-th call since the last {@link #reset()}
+     */
+    public int getCall(int index) {
+        if (index >= mCallCount || index >= mCallLog.length) {
+            throw new IndexOutOfBoundsException("call " + index + " not in log");
+        }
+        return mCallLog[index];
+    }
+
+
+    public int getDrawCount() {
+        return mDrawCount;
+    }
+
+    /**
+     * @return program in use for the index-th draw
+     */
+    public int getDrawProgram(int index) {
+        return mDrawPrograms[checkDraw(index)];
+    }
+
+    /**
+     * @return framebuffer bound for the index-th draw, 0 for the window
+     */
+    public int getDrawFramebuffer(int index) {
+        return mDrawFramebuffers[checkDraw(index)];
+    }
+
+    /**
+     * @return location handed out for this uniform or attribute name, -1 if never queried
+     */
+    public int getLocation(String name) {
+        Integer location = mLocations.get(name);
+        return location != null ? location : -1;
+    }
+
+    private int checkDraw(int index) {
+        if (index >= mDrawCount || index >= mDrawPrograms.length) {
+            throw new IndexOutOfBoundsException("draw " + index + " not in log");
+        }
+        return index;
+    }
+
+    private void record(int call) {
+        mCounts[call]++;
+        if (mCallCount < mCallLog.length) {
+            mCallLog[mCallCount] = call;
+        }
+        mCallCount++;
+    }
+
+    private void recordDraw() {
+        if (mDrawCount < mDrawPrograms.length) {
+            mDrawPrograms[mDrawCount] = mProgram;
+            mDrawFramebuffers[mDrawCount] = mFramebuffer;
+        }
+        mDrawCount++;
+    }
+
+    private void genNames(int n, int[] names, int offset) {
+        for (int i = 0; i < n; i++) {
+            names[offset + i] = mNextName++;
+        }
+    }
+
+    /**
+     * locations are per name rather than per program, which is all the callers can tell apart
+     */
+    private int location(String name) {
+        Integer location = mLocations.get(name);
+        if (location == null) {
+            location = mLocations.size();
+            mLocations.put(name, location);
+        }
+        return location;
+    }
+
+    private int integer(int pname) {
+        switch (pname) {
+            case GL_MAX_TEXTURE_SIZE:
+                return mMaxTextureSize;
+            case GL_MAJOR_VERSION:
+                return mGlesVersion;
+            default:
+                return 0;
+        }
+    }
+
+    private String string(int name) {
+        switch (name) {
+            case GL_VERSION:
+                return "OpenGL ES " + mGlesVersion + ".0 recording";
+            case GL_EXTENSIONS:
+                return mExtensions;
+            case GL_VENDOR:
+            case GL_RENDERER:
+                return "recording";
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public void glActiveTexture(int texture) {
+        record(GlCall.ACTIVE_TEXTURE);
+    }
+
+    @Override
+    public void glAttachShader(int program, int shader) {
+        record(GlCall.ATTACH_SHADER);
+    }
+
+    @Override
+    public void glBindFramebuffer(int target, int framebuffer) {
+        record(GlCall.BIND_FRAMEBUFFER);
+        mFramebuffer = framebuffer;
+    }
+
+    @Override
+    public void glBindTexture(int target, int texture) {
+        record(GlCall.BIND_TEXTURE);
+    }
+
+    @Override
+    public void glBlitFramebuffer(int srcX0, int srcY0, int srcX1, int srcY1, int dstX0, int dstY0,
+            int dstX1, int dstY1, int mask, int filter) {
+        record(GlCall.BLIT_FRAMEBUFFER);
+    }
+
+    @Override
+    public int glCheckFramebufferStatus(int target) {
+        record(GlCall.CHECK_FRAMEBUFFER_STATUS);
+        return GL_FRAMEBUFFER_COMPLETE;
+    }
+
+    @Override
+    public void glClear(int mask) {
+        record(GlCall.CLEAR);
+    }
+
+    @Override
+    public void glClearColor(float red, float green, float blue, float alpha) {
+        record(GlCall.CLEAR_COLOR);
+    }
+
+    @Override
+    public void glCompileShader(int shader) {
+        record(GlCall.COMPILE_SHADER);
+    }
+
+    @Override
+    public int glCreateProgram() {
+        record(GlCall.CREATE_PROGRAM);
+        return mNextName++;
+    }
+
+    @Override
+    public int glCreateShader(int type) {
+        record(GlCall.CREATE_SHADER);
+        return mNextName++;
+    }
+
+    @Override
+    public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+        record(GlCall.DELETE_FRAMEBUFFERS);
+    }
+
+    @Override
+    public void glDeleteProgram(int program) {
+        record(GlCall.DELETE_PROGRAM);
+    }
+
+    @Override
+    public void glDeleteShader(int shader) {
+        record(GlCall.DELETE_SHADER);
+    }
+
+    @Override
+    public void glDeleteTextures(int n, int[] textures, int offset) {
+        record(GlCall.DELETE_TEXTURES);
+    }
+
+    @Override
+    public void glDisableVertexAttribArray(int index) {
+        record(GlCall.DISABLE_VERTEX_ATTRIB_ARRAY);
+    }
+
+    @Override
+    public void glDrawArrays(int mode, int first, int count) {
+        record(GlCall.DRAW_ARRAYS);
+        recordDraw();
+    }
+
+    @Override
+    public void glDrawElements(int mode, int count, int type, Buffer indices) {
+        record(GlCall.DRAW_ELEMENTS);
+        recordDraw();
+    }
+
+    @Override
+    public void glEnableVertexAttribArray(int index) {
+        record(GlCall.ENABLE_VERTEX_ATTRIB_ARRAY);
+    }
+
+    @Override
+    public void glFramebufferTexture2D(int target, int attachment, int textarget, int texture,
+            int level) {
+        record(GlCall.FRAMEBUFFER_TEXTURE_2D);
+    }
+
+    @Override
+    public void glFramebufferTextureLayer(int target, int attachment, int texture, int level,
+            int layer) {
+        record(GlCall.FRAMEBUFFER_TEXTURE_LAYER);
+    }
+
+    @Override
+    public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+        record(GlCall.GEN_FRAMEBUFFERS);
+        genNames(n, framebuffers, offset);
+    }
+
+    @Override
+    public void glGenTextures(int n, int[] textures, int offset) {
+        record(GlCall.GEN_TEXTURES);
+        genNames(n, textures, offset);
+    }
+
+    @Override
+    public int glGetAttribLocation(int program, String name) {
+        record(GlCall.GET_ATTRIB_LOCATION);
+        return location(name);
+    }
+
+    @Override
+    public int glGetError() {
+        record(GlCall.GET_ERROR);
+        return GL_NO_ERROR;
+    }
+
+    @Override
+    public void glGetIntegerv(int pname, int[] params, int offset) {
+        record(GlCall.GET_INTEGERV);
+        params[offset] = integer(pname);
+    }
+
+    @Override
+    public String glGetProgramInfoLog(int program) {
+        record(GlCall.GET_PROGRAM_INFO_LOG);
+        return "";
+    }
+
+    @Override
+    public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+        record(GlCall.GET_PROGRAMIV);
+        params[offset] = GL_TRUE;
+    }
+
+    @Override
+    public String glGetShaderInfoLog(int shader) {
+        record(GlCall.GET_SHADER_INFO_LOG);
+        return "";
+    }
+
+    @Override
+    public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+        record(GlCall.GET_SHADERIV);
+        params[offset] = GL_TRUE;
+    }
+
+    @Override
+    public String glGetString(int name) {
+        record(GlCall.GET_STRING);
+        return string(name);
+    }
+
+    @Override
+    public int glGetUniformLocation(int program, String name) {
+        record(GlCall.GET_UNIFORM_LOCATION);
+        return location(name);
+    }
+
+    @Override
+    public void glLinkProgram(int program) {
+        record(GlCall.LINK_PROGRAM);
+    }
+
+    @Override
+    public void glPixelStorei(int pname, int param) {
+        record(GlCall.PIXEL_STOREI);
+    }
+
+    @Override
+    public void glReadPixels(int x, int y, int width, int height, int format, int type,
+            Buffer pixels) {
+        record(GlCall.READ_PIXELS);
+    }
+
+    @Override
+    public void glShaderSource(int shader, String string) {
+        record(GlCall.SHADER_SOURCE);
+    }
+
+    @Override
+    public void glTexImage2D(int target, int level, int internalformat, int width, int height,
+            int border, int format, int type, Buffer pixels) {
+        record(GlCall.TEX_IMAGE_2D);
+    }
+
+    @Override
+    public void glTexImage3D(int target, int level, int internalformat, int width, int height,
+            int depth, int border, int format, int type, Buffer pixels) {
+        record(GlCall.TEX_IMAGE_3D);
+    }
+
+    @Override
+    public void glTexParameterf(int target, int pname, float param) {
+        record(GlCall.TEX_PARAMETERF);
+    }
+
+    @Override
+    public void glTexParameteri(int target, int pname, int param) {
+        record(GlCall.TEX_PARAMETERI);
+    }
+
+    @Override
+    public void glTexStorage3D(int target, int levels, int internalformat, int width, int height,
+            int depth) {
+        record(GlCall.TEX_STORAGE_3D);
+    }
+
+    @Override
+    public void glTexSubImage2D(int target, int level, int xoffset, int yoffset, int width,
+            int height, int format, int type, Buffer pixels) {
+        record(GlCall.TEX_SUB_IMAGE_2D);
+    }
+
+    @Override
+    public void glTexSubImage3D(int target, int level, int xoffset, int yoffset, int zoffset,
+            int width, int height, int depth, int format, int type, Buffer pixels) {
+        record(GlCall.TEX_SUB_IMAGE_3D);
+    }
+
+    @Override
+    public void glUniform1f(int location, float x) {
+        record(GlCall.UNIFORM_1F);
+    }
+
+    @Override
+    public void glUniform1fv(int location, int count, float[] v, int offset) {
+        record(GlCall.UNIFORM_1FV);
+    }
+
+    @Override
+    public void glUniform1i(int location, int x) {
+        record(GlCall.UNIFORM_1I);
+    }
+
+    @Override
+    public void glUniform2f(int location, float x, float y) {
+        record(GlCall.UNIFORM_2F);
+    }
+
+    @Override
+    public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value,
+            int offset) {
+        record(GlCall.UNIFORM_MATRIX_4FV);
+    }
+
+    @Override
+    public void glUseProgram(int program) {
+        record(GlCall.USE_PROGRAM);
+        mProgram = program;
+    }
+
+    @Override
+    public void glVertexAttribPointer(int indx, int size, int type, boolean normalized, int stride,
+            Buffer ptr) {
+        record(GlCall.VERTEX_ATTRIB_POINTER);
+    }
+
+    @Override
+    public void glViewport(int x, int y, int width, int height) {
+        record(GlCall.VIEWPORT);
+    }
+
+    @Override
+    public void glFinish() {
+        record(GlCall.FINISH);
+    }
+
+    @Override
+    public void glFlush() {
+        record(GlCall.FLUSH);
+    }
+
+    @Override
+    public long glFenceSync(int condition, int flags) {
+        record(GlCall.FENCE_SYNC);
+        return mNextName++;
+    }
+
+    @Override
+    public int glClientWaitSync(long sync, int flags, long timeout) {
+        record(GlCall.CLIENT_WAIT_SYNC);
+        return GL_ALREADY_SIGNALED;
+    }
+
+    @Override
+    public void glWaitSync(long sync, int flags, long timeout) {
+        record(GlCall.WAIT_SYNC);
+    }
+
+    @Override
+    public void glDeleteSync(long sync) {
+        record(GlCall.DELETE_SYNC);
+    }
+
+    @Override
+    public void glGenBuffers(int n, int[] buffers, int offset) {
+        record(GlCall.GEN_BUFFERS);
+        for (int i = 0; i < n; i++) {
+            buffers[offset + i] = mNextName++;
+        }
+    }
+
+    @Override
+    public void glDeleteBuffers(int n, int[] buffers, int offset) {
+        record(GlCall.DELETE_BUFFERS);
+    }
+
+    @Override
+    public void glBindBuffer(int target, int buffer) {
+        record(GlCall.BIND_BUFFER);
+    }
+
+    @Override
+    public void glBufferData(int target, int size, Buffer data, int usage) {
+        record(GlCall.BUFFER_DATA);
+    }
+
+    @Override
+    public void glReadPixels(int x, int y, int width, int height, int format, int type,
+            int offset) {
+        record(GlCall.READ_PIXELS_OFFSET);
+    }
+
+    @Override
+    public Buffer glMapBufferRange(int target, int offset, int length, int access) {
+        record(GlCall.MAP_BUFFER_RANGE);
+        if (mMapped == null || mMapped.capacity() < length) {
+            mMapped = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+        }
+        mMapped.clear();
+        mMapped.limit(length);
+        return mMapped;
+    }
+
+    @Override
+    public boolean glUnmapBuffer(int target) {
+        record(GlCall.UNMAP_BUFFER);
+        return true;
+    }
+}
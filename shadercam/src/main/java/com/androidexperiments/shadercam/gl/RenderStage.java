@@ -0,0 +1,48 @@
+package com.androidexperiments.shadercam.gl;
+
+/**
+ * Extension point for work that hangs off of a {@link VideoRenderer}'s frame, ex: offscreen
+ * passes that run before the main shader, or extra samplers and uniforms that it needs.
+ *
+ * Stages are added with {@link VideoRenderer#addStage(RenderStage)} and every callback is made
+ * on the GL thread, in the order the stages were added. Override what u need, the defaults
+ * do nothing.
+ */
+public abstract class RenderStage {
+
+    /**
+     * Called once the renderer's own GL setup is done, and again every time the surface
+     * (and so the GL context) is recreated. Create textures, programs and FBOs here, and
+     * grab texture units with {@link VideoRenderer#reserveTextureUnit()}.
+     */
+    protected void onSetup(VideoRenderer renderer) {
+    }
+
+    /**
+     * Called every frame after the camera texture has been updated, before the main program
+     * draws. Offscreen passes go here - make sure the default framebuffer is bound again
+     * before returning.
+     */
+    protected void onPreDraw(VideoRenderer renderer) {
+    }
+
+    /**
+     * Called every frame while the main program is in use, after the renderer has set its
+     * own uniforms and textures. Bind any samplers or uniforms the main shader needs here.
+     */
+    protected void onBindUniforms(VideoRenderer renderer, int program) {
+    }
+
+    /**
+     * Called every frame after the main program has drawn.
+     */
+    protected void onPostDraw(VideoRenderer renderer) {
+    }
+
+    /**
+     * Called when GL resources need to go away, also called before the very first
+     * {@link #onSetup(VideoRenderer)} so don't assume anything was created.
+     */
+    protected void onRelease() {
+    }
+}
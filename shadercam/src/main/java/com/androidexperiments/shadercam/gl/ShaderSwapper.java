@@ -0,0 +1,333 @@
+package com.androidexperiments.shadercam.gl;
+
+import android.content.Context;
+import android.opengl.EGLContext;
+import android.util.Log;
+
+import com.androidexperiments.shadercam.utils.ShaderUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Builds a renderer's next program on a {@link SharedContextPool} worker so switching effects
+ * never stalls the render thread: shader files are read, compiled and linked off screen, and
+ * the render thread only picks the program up with {@link #poll()} once it has fully linked.
+ * Until then it keeps drawing with the old one.
+ *
+ * Only the newest request counts, one that's superseded before its worker gets to it is
+ * skipped, and one that already finished has its program deleted.
+ *
+ * The worker context is only made on the first {@link #swap}, on the thread that calls it, so
+ * renderers that never swap don't pay for one.
+ */
+public class ShaderSwapper {
+
+    private static final String TAG = ShaderSwapper.class.getSimpleName();
+
+    /**
+     * Rewrites fragment source before it's compiled, on the worker, ex: with the precision a
+     * {@link PrecisionSelector} picked. The worker's context is current
+     */
+    public interface SourceFilter {
+        String filter(String fragmentPath, String fragmentSource);
+    }
+
+    /**
+     * A linked program and what it was built from
+     */
+    public static class Swap {
+
+        private final String mFragmentPath;
+
+        private final String mVertexPath;
+
+        private String mFragmentSource;
+
+        private String mVertexSource;
+
+        private String mCompiledFragmentSource;
+
+        private int mProgram;
+
+        Swap(String fragmentPath, String vertexPath) {
+            mFragmentPath = fragmentPath;
+            mVertexPath = vertexPath;
+        }
+
+        /**
+         * @return the program, owned by the caller of {@link #poll()} from then on
+         */
+        public int getProgram() {
+            return mProgram;
+        }
+
+        public String getFragmentPath() {
+            return mFragmentPath;
+        }
+
+        public String getVertexPath() {
+            return mVertexPath;
+        }
+
+        /**
+         * @return fragment source as loaded, before the {@link SourceFilter}
+         */
+        public String getFragmentSource() {
+            return mFragmentSource;
+        }
+
+        public String getVertexSource() {
+            return mVertexSource;
+        }
+
+        /**
+         * @return fragment source the program was actually built from, after the
+         * {@link SourceFilter}
+         */
+        public String getCompiledFragmentSource() {
+            return mCompiledFragmentSource;
+        }
+    }
+
+    /**
+     * one request and its ticket, the swap is filled in on the worker before the ticket is done
+     */
+    private static class Pending {
+
+        final Swap mSwap;
+
+        SharedContextPool.Ticket mTicket;
+
+        Pending(Swap swap) {
+            mSwap = swap;
+        }
+    }
+
+    private final Context mContext;
+
+    private final int mFlags;
+
+    private final SourceFilter mFilter;
+
+    /**
+     * made lazily outside of mLock, so a slow context creation never blocks {@link #poll()}
+     */
+    private final Object mPoolLock = new Object();
+
+    private SharedContextPool mPool;
+
+    /**
+     * guarded by mPoolLock
+     */
+    private EGLContext mShareContext;
+
+    private final Object mLock = new Object();
+
+    /**
+     * newest request, guarded by mLock
+     */
+    private Pending mPending;
+
+    /**
+     * older requests whose programs still need deleting once they're done, guarded by mLock
+     */
+    private final ArrayList<Pending> mSuperseded = new ArrayList<>();
+
+    private boolean mReleased;
+
+    /**
+     * @param shareContext the render context, ex: EGL14.eglGetCurrentContext() on the render
+     *                     thread
+     * @param flags        EglCore flags for the worker, ex: EglCore.FLAG_TRY_GLES3 when the
+     *                     render context is GLES3
+     * @param filter       may be null
+     */
+    public ShaderSwapper(Context context, EGLContext shareContext, int flags,
+            SourceFilter filter) {
+        mContext = context.getApplicationContext();
+        mShareContext = shareContext;
+        mFlags = flags;
+        mFilter = filter;
+    }
+
+    /**
+     * The render context was replaced by one in the same share group, ex: to switch configs.
+     * The worker is made lazily, so it has to share with a context that's still alive. One
+     * that's already running keeps working, the share group outlives the old context.
+     */
+    public void setShareContext(EGLContext shareContext) {
+        synchronized (mPoolLock) {
+            mShareContext = shareContext;
+        }
+    }
+
+    /**
+     * Start building a program from shader files in /assets/, any thread. The first call blocks
+     * for as long as it takes to create the worker's context.
+     */
+    public void swap(String fragmentPath, String vertexPath) {
+        SharedContextPool pool = getPool();
+        final Pending pending = new Pending(new Swap(fragmentPath, vertexPath));
+        synchronized (mLock) {
+            if (mReleased) {
+                throw new IllegalStateException("swapper has been released");
+            }
+            if (mPending != null) {
+                mSuperseded.add(mPending);
+            }
+            mPending = pending;
+            //under mLock so poll() never sees a pending request without its ticket
+            pending.mTicket = pool.submit(new SharedContextPool.Task() {
+                @Override
+                public void run(SharedContextPool.Lease lease) {
+                    build(pending);
+                }
+            });
+        }
+    }
+
+    /**
+     * Render thread, at a frame boundary. Makes the render context wait for the worker's
+     * commands on the GPU, so the program can be used right away.
+     *
+     * @return the newest request once it has linked, null if it's still building or failed, in
+     * which case keep the current program
+     */
+    public Swap poll() {
+        Pending pending = null;
+        ArrayList<Pending> done = null;
+        synchronized (mLock) {
+            for (int i = mSuperseded.size() - 1; i >= 0; i--) {
+                if (mSuperseded.get(i).mTicket.isDone()) {
+                    if (done == null) {
+                        done = new ArrayList<>();
+                    }
+                    done.add(mSuperseded.remove(i));
+                }
+            }
+            if (mPending != null && mPending.mTicket.isDone()) {
+                pending = mPending;
+                mPending = null;
+            }
+        }
+        if (done != null) {
+            for (int i = 0; i < done.size(); i++) {
+                discard(done.get(i));
+            }
+        }
+
+        if (pending == null) {
+            return null;
+        }
+        GlFence fence = pending.mTicket.getFence();
+        if (fence == null) {
+            //build already logged why
+            return null;
+        }
+        fence.waitOnGpu();
+        fence.release();
+        return pending.mSwap;
+    }
+
+    /**
+     * @return true while a request hasn't been picked up by {@link #poll()} yet
+     */
+    public boolean isSwapPending() {
+        synchronized (mLock) {
+            return mPending != null;
+        }
+    }
+
+    /**
+     * Render thread. Stops the worker, waiting for a build in progress, and deletes every
+     * program that was never handed out.
+     */
+    public void release() {
+        synchronized (mLock) {
+            mReleased = true;
+        }
+        synchronized (mPoolLock) {
+            if (mPool != null) {
+                mPool.release();
+                mPool = null;
+            }
+        }
+
+        ArrayList<Pending> left;
+        synchronized (mLock) {
+            left = new ArrayList<>(mSuperseded);
+            if (mPending != null) {
+                left.add(mPending);
+            }
+            mSuperseded.clear();
+            mPending = null;
+        }
+        for (int i = 0; i < left.size(); i++) {
+            discard(left.get(i));
+        }
+    }
+
+    private SharedContextPool getPool() {
+        synchronized (mPoolLock) {
+            synchronized (mLock) {
+                if (mReleased) {
+                    throw new IllegalStateException("swapper has been released");
+                }
+            }
+            if (mPool == null) {
+                mPool = new SharedContextPool(mShareContext, 1, mFlags);
+            }
+            return mPool;
+        }
+    }
+
+    /**
+     * on the worker
+     */
+    private void build(Pending pending) {
+        synchronized (mLock) {
+            if (pending != mPending) {
+                //superseded before it started
+                return;
+            }
+        }
+
+        Swap swap = pending.mSwap;
+        try {
+            swap.mFragmentSource = ShaderUtils.getStringFromFileInAssets(mContext,
+                    swap.mFragmentPath);
+            swap.mVertexSource = ShaderUtils.getStringFromFileInAssets(mContext,
+                    swap.mVertexPath);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not load " + swap.mFragmentPath + " / "
+                    + swap.mVertexPath + ": " + e.getMessage());
+        }
+
+        String fragmentSource = swap.mFragmentSource;
+        if (mFilter != null) {
+            fragmentSource = mFilter.filter(swap.mFragmentPath, fragmentSource);
+        }
+        swap.mCompiledFragmentSource = fragmentSource;
+        //checks the link status, which waits for the driver to finish linking here and not on
+        //the render thread's first draw
+        swap.mProgram = GlUtil.createProgram(swap.mVertexSource, fragmentSource);
+        if (swap.mProgram == 0) {
+            throw new RuntimeException("Could not build " + swap.mFragmentPath + ", see log");
+        }
+        Log.d(TAG, "built " + swap.mFragmentPath + " off the render thread");
+    }
+
+    /**
+     * drop a request nobody will draw with, only once its ticket is done
+     */
+    private static void discard(Pending pending) {
+        GlFence fence = pending.mTicket.getFence();
+        if (fence != null) {
+            fence.release();
+        }
+        if (pending.mSwap.mProgram != 0) {
+            Gl.glDeleteProgram(pending.mSwap.mProgram);
+        }
+    }
+}
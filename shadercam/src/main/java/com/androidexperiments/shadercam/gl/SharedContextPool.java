@@ -0,0 +1,291 @@
+package com.androidexperiments.shadercam.gl;
+
+import android.opengl.EGLContext;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A fixed set of worker threads, each with its own EGL context sharing with the render context
+ * and current on a 1x1 pbuffer, for GL work that shouldn't stall frames: texture uploads,
+ * shader compiles, analysis passes.
+ *
+ * {@link #submit(Task)} queues a task, the next idle worker runs it with a {@link Lease} on its
+ * context, then fences what the task issued. The render thread polls the returned
+ * {@link Ticket} and, once it's done, waits on its fence on the GPU before touching what the
+ * task made:
+ * <pre>
+ *   if (ticket.isDone()) {
+ *       ticket.getFence().waitOnGpu();
+ *       ticket.getFence().release();
+ *       //sample the uploaded texture
+ *   }
+ * </pre>
+ * The other direction works the same way, insert a {@link GlFence} on the render thread and
+ * have the task wait on it before reading the render thread's output.
+ *
+ * Textures, programs, buffers and sync objects are shared between the contexts. Framebuffers
+ * and vertex arrays aren't, a task has to make its own.
+ */
+public class SharedContextPool {
+
+    private static final String TAG = SharedContextPool.class.getSimpleName();
+
+    /**
+     * Work to run on a worker context
+     */
+    public interface Task {
+        void run(Lease lease);
+    }
+
+    /**
+     * A task's hold on one worker context, valid only while the task runs
+     */
+    public static class Lease {
+
+        private final EglCore mEglCore;
+
+        private final int mWorker;
+
+        Lease(EglCore eglCore, int worker) {
+            mEglCore = eglCore;
+            mWorker = worker;
+        }
+
+        public EglCore getEglCore() {
+            return mEglCore;
+        }
+
+        /**
+         * @return which worker this is, 0 to {@link SharedContextPool#getWorkerCount()} - 1
+         */
+        public int getWorker() {
+            return mWorker;
+        }
+    }
+
+    /**
+     * One submitted task. isDone and getFence are safe from any thread
+     */
+    public static class Ticket {
+
+        private final Task mTask;
+
+        private boolean mDone;
+
+        private GlFence mFence;
+
+        private RuntimeException mError;
+
+        Ticket(Task task) {
+            mTask = task;
+        }
+
+        synchronized void finish(GlFence fence, RuntimeException error) {
+            mFence = fence;
+            mError = error;
+            mDone = true;
+            notifyAll();
+        }
+
+        public synchronized boolean isDone() {
+            return mDone;
+        }
+
+        /**
+         * Block until the task has run, not until the GPU has finished it, wait on the fence
+         * for that.
+         */
+        public synchronized void await() throws InterruptedException {
+            while (!mDone) {
+                wait();
+            }
+        }
+
+        /**
+         * @return fence after everything the task issued, null until done or if it failed
+         */
+        public synchronized GlFence getFence() {
+            return mFence;
+        }
+
+        /**
+         * @return what the task threw, or why it never ran, null if it ran fine
+         */
+        public synchronized RuntimeException getError() {
+            return mError;
+        }
+    }
+
+    private final EGLContext mShareContext;
+
+    private final int mFlags;
+
+    private final Thread[] mWorkers;
+
+    private final Object mLock = new Object();
+
+    /**
+     * guarded by mLock
+     */
+    private final ArrayDeque<Ticket> mQueue = new ArrayDeque<>();
+
+    private boolean mRunning = true;
+
+    private int mStarted;
+
+    /**
+     * Creates the contexts on their worker threads and returns once they're all up.
+     *
+     * @param shareContext the render context, ex: EglCore.getContext() or, on the render thread,
+     *                     EGL14.eglGetCurrentContext()
+     * @param workers      number of worker contexts, drivers run them mostly serially on the
+     *                     GPU so 1 or 2 is usually plenty
+     * @param flags        EglCore flags, ex: EglCore.FLAG_TRY_GLES3 for fences
+     */
+    public SharedContextPool(EGLContext shareContext, int workers, int flags) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("need at least one worker, was " + workers);
+        }
+        mShareContext = shareContext;
+        mFlags = flags;
+
+        final CountDownLatch ready = new CountDownLatch(workers);
+        mWorkers = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            final int index = i;
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    workerLoop(index, ready);
+                }
+            }, "GlWorker-" + i);
+            mWorkers[i].start();
+        }
+        try {
+            ready.await();
+        } catch (InterruptedException e) {
+            release();
+            throw new RuntimeException("Interrupted waiting for worker contexts");
+        }
+        synchronized (mLock) {
+            if (mStarted != workers) {
+                release();
+                throw new RuntimeException("Worker context setup failed, see log");
+            }
+        }
+    }
+
+    public int getWorkerCount() {
+        return mWorkers.length;
+    }
+
+    /**
+     * Queue a task for the next idle worker
+     */
+    public Ticket submit(Task task) {
+        Ticket ticket = new Ticket(task);
+        synchronized (mLock) {
+            if (!mRunning) {
+                throw new IllegalStateException("pool has been released");
+            }
+            mQueue.addLast(ticket);
+            mLock.notify();
+        }
+        return ticket;
+    }
+
+    /**
+     * @return tasks waiting for a worker
+     */
+    public int getQueuedCount() {
+        synchronized (mLock) {
+            return mQueue.size();
+        }
+    }
+
+    /**
+     * Stops the workers and destroys their contexts. Running tasks finish, queued ones are
+     * dropped with an error on their ticket. Blocks until the workers are gone.
+     */
+    public void release() {
+        ArrayDeque<Ticket> dropped;
+        synchronized (mLock) {
+            mRunning = false;
+            dropped = new ArrayDeque<>(mQueue);
+            mQueue.clear();
+            mLock.notifyAll();
+        }
+        for (Ticket ticket : dropped) {
+            ticket.finish(null, new IllegalStateException("pool released before task ran"));
+        }
+        for (Thread worker : mWorkers) {
+            if (worker == Thread.currentThread()) {
+                continue;
+            }
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted waiting for " + worker.getName(), e);
+            }
+        }
+    }
+
+    private void workerLoop(int index, CountDownLatch ready) {
+        EglCore eglCore = null;
+        OffscreenSurface surface = null;
+        try {
+            try {
+                eglCore = new EglCore(mShareContext, mFlags);
+                surface = new OffscreenSurface(eglCore, 1, 1);
+                surface.makeCurrent();
+                synchronized (mLock) {
+                    mStarted++;
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to set up worker context " + index, e);
+                return;
+            } finally {
+                ready.countDown();
+            }
+
+            Lease lease = new Lease(eglCore, index);
+            while (true) {
+                Ticket ticket;
+                synchronized (mLock) {
+                    while (mRunning && mQueue.isEmpty()) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (!mRunning) {
+                        return;
+                    }
+                    ticket = mQueue.pollFirst();
+                }
+                run(ticket, lease);
+            }
+        } finally {
+            if (surface != null) {
+                surface.release();
+            }
+            if (eglCore != null) {
+                eglCore.release();
+            }
+        }
+    }
+
+    private static void run(Ticket ticket, Lease lease) {
+        try {
+            ticket.mTask.run(lease);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Task failed on worker " + lease.getWorker(), e);
+            ticket.finish(null, e);
+            return;
+        }
+        ticket.finish(GlFence.insert(lease.getEglCore().getGlVersion() >= 3), null);
+    }
+}
@@ -0,0 +1,247 @@
+package com.androidexperiments.shadercam.gl;
+
+import android.opengl.EGLContext;
+import android.util.Log;
+
+import com.androidexperiments.shadercam.shader.UniformSpecializer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Programs specialized by {@link UniformSpecializer} for a set of session constants, built on a
+ * {@link SharedContextPool} worker and kept in a least recently used cache, so going back to
+ * constants used a moment ago doesn't compile again.
+ *
+ * A renderer {@link #request}s the variant for its current constants and keeps drawing its
+ * generic program until {@link #getProgram} returns one. Variants that fail to build are logged
+ * and stay 0, the generic program still works for them.
+ *
+ * Render thread only, except {@link #prepare()}. The cache owns its programs, so don't delete
+ * them.
+ */
+public class SpecializedPrograms {
+
+    private static final String TAG = SpecializedPrograms.class.getSimpleName();
+
+    public static final int DEFAULT_CAPACITY = 4;
+
+    private static class Variant {
+
+        final String mKey;
+
+        SharedContextPool.Ticket mTicket;
+
+        /**
+         * written on the worker before the ticket is done
+         */
+        int mProgram;
+
+        boolean mReady;
+
+        Variant(String key) {
+            mKey = key;
+        }
+
+        boolean isPending() {
+            return !mReady && !mTicket.isDone();
+        }
+    }
+
+    private final int mFlags;
+
+    private final int mCapacity;
+
+    private final Object mPoolLock = new Object();
+
+    private SharedContextPool mPool;
+
+    /**
+     * guarded by mPoolLock
+     */
+    private EGLContext mShareContext;
+
+    private boolean mReleased;
+
+    /**
+     * in access order, eldest first
+     */
+    private final LinkedHashMap<String, Variant> mVariants = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * the key last asked for, which might be drawing right now so is never evicted
+     */
+    private String mPinned;
+
+    /**
+     * @param shareContext the render context
+     * @param flags        EglCore flags for the worker, ex: EglCore.FLAG_TRY_GLES3 when the
+     *                     render context is GLES3
+     * @param capacity     most variants kept, each is a whole linked program
+     */
+    public SpecializedPrograms(EGLContext shareContext, int flags, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1, was " + capacity);
+        }
+        mShareContext = shareContext;
+        mFlags = flags;
+        mCapacity = capacity;
+    }
+
+    /**
+     * The render context was replaced by one in the same share group, so the worker, which is
+     * made lazily, shares with one that's still alive. A running worker keeps working.
+     */
+    public void setShareContext(EGLContext shareContext) {
+        synchronized (mPoolLock) {
+            mShareContext = shareContext;
+        }
+    }
+
+    /**
+     * Make the worker context now, on this thread, instead of on the render thread with the
+     * first request. Any thread, blocks for a few ms the first time.
+     */
+    public void prepare() {
+        getPool();
+    }
+
+    /**
+     * Start building the variant of a program for these constants, unless it's cached or
+     * already building. Variants are keyed on both sources, so swapping either shader gets a
+     * new one.
+     *
+     * @return key for {@link #getProgram}
+     */
+    public String request(final String vertexSource, final String fragmentSource,
+            SortedMap<String, float[]> constants) {
+        String key = UniformSpecializer.getKey(vertexSource, fragmentSource, constants);
+        mPinned = key;
+        if (mVariants.get(key) != null) {
+            return key;
+        }
+
+        //copy, the worker reads it after the caller may have moved on
+        final TreeMap<String, float[]> values = new TreeMap<>();
+        for (Map.Entry<String, float[]> entry : constants.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().clone());
+        }
+        final Variant variant = new Variant(key);
+        variant.mTicket = getPool().submit(new SharedContextPool.Task() {
+            @Override
+            public void run(SharedContextPool.Lease lease) {
+                build(variant, vertexSource, fragmentSource, values);
+            }
+        });
+        mVariants.put(key, variant);
+        evict();
+        return key;
+    }
+
+    /**
+     * @return the variant's program once it has linked, and the GPU has been told to wait for
+     * the worker's commands, otherwise 0
+     */
+    public int getProgram(String key) {
+        mPinned = key;
+        Variant variant = mVariants.get(key);
+        if (variant == null || variant.isPending()) {
+            return 0;
+        }
+        if (!variant.mReady) {
+            GlFence fence = variant.mTicket.getFence();
+            if (fence != null) {
+                fence.waitOnGpu();
+                fence.release();
+            }
+            variant.mReady = true;
+            //may be over capacity if everything was still building at the last request
+            evict();
+        }
+        return variant.mProgram;
+    }
+
+    /**
+     * @return false once the variant has linked or failed, true while it's still building
+     */
+    public boolean isPending(String key) {
+        Variant variant = mVariants.get(key);
+        return variant != null && variant.isPending();
+    }
+
+    /**
+     * Stops the worker, waiting for a build in progress, and deletes every variant
+     */
+    public void release() {
+        synchronized (mPoolLock) {
+            mReleased = true;
+            if (mPool != null) {
+                mPool.release();
+                mPool = null;
+            }
+        }
+        for (Variant variant : mVariants.values()) {
+            discard(variant);
+        }
+        mVariants.clear();
+        mPinned = null;
+    }
+
+    private SharedContextPool getPool() {
+        synchronized (mPoolLock) {
+            if (mReleased) {
+                throw new IllegalStateException("specialized programs have been released");
+            }
+            if (mPool == null) {
+                mPool = new SharedContextPool(mShareContext, 1, mFlags);
+            }
+            return mPool;
+        }
+    }
+
+    /**
+     * drop least recently used variants that are done and not pinned, until we're at capacity
+     */
+    private void evict() {
+        Iterator<Variant> it = mVariants.values().iterator();
+        while (mVariants.size() > mCapacity && it.hasNext()) {
+            Variant variant = it.next();
+            if (variant.mKey.equals(mPinned) || variant.isPending()) {
+                continue;
+            }
+            it.remove();
+            discard(variant);
+        }
+    }
+
+    /**
+     * on the worker
+     */
+    private static void build(Variant variant, String vertexSource, String fragmentSource,
+            SortedMap<String, float[]> constants) {
+        String specialized = UniformSpecializer.specialize(fragmentSource, constants);
+        variant.mProgram = GlUtil.createProgram(vertexSource, specialized);
+        if (variant.mProgram == 0) {
+            throw new RuntimeException("Could not build variant " + variant.mKey + ", see log");
+        }
+        Log.d(TAG, "built variant " + variant.mKey);
+    }
+
+    /**
+     * only once its ticket is done
+     */
+    private static void discard(Variant variant) {
+        if (!variant.mReady) {
+            GlFence fence = variant.mTicket.getFence();
+            if (fence != null) {
+                fence.release();
+            }
+        }
+        if (variant.mProgram != 0) {
+            Gl.glDeleteProgram(variant.mProgram);
+        }
+    }
+}
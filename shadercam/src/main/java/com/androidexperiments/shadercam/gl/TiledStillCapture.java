@@ -0,0 +1,484 @@
+package com.androidexperiments.shadercam.gl;
+
+import com.androidexperiments.shadercam.processing.StreamingJpegEncoder;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * {@link RenderStage} that takes full sensor resolution stills through the renderer's shader,
+ * rather than the window sized frame {@link EglSurfaceBase#saveFrame(File)} gives.
+ *
+ * We own a second external texture and SurfaceTexture, whose {@link #getSurface()} the camera
+ * session outputs a single full resolution frame to when a still is taken - see
+ * {@link com.androidexperiments.shadercam.fragments.VideoFragment#setStillCapture}. That frame is
+ * drawn through the renderer's program in horizontal bands, each split in tiles no bigger than
+ * GL_MAX_TEXTURE_SIZE and GL_MAX_VIEWPORT_DIMS, one band per preview frame so the preview keeps
+ * going. Bands are read back a frame after they're drawn, once the GPU is done with them, and
+ * handed to a {@link StreamingJpegEncoder} on its own thread. Only a few bands of pixels exist at
+ * any time, all in native buffers.
+ */
+public class TiledStillCapture extends RenderStage {
+
+    private static final String TAG = TiledStillCapture.class.getSimpleName();
+
+    /**
+     * bands are sized to roughly this many bytes of RGBA
+     */
+    private static final int BAND_BYTES = 4 << 20;
+
+    /**
+     * band buffers in flight between readback and the encoder
+     */
+    private static final int BAND_BUFFERS = 3;
+
+    private int mStillWidth, mStillHeight;
+
+    private int[] mTexture = new int[1];
+
+    private SurfaceTexture mSurfaceTexture;
+
+    private Surface mSurface;
+
+    private final float[] mTransform = new float[16];
+
+    private volatile boolean mFrameAvailable = false;
+
+    private int mMaxTileSize;
+
+    private boolean mGles3;
+
+    private ByteBuffer mScratch;
+
+    /**
+     * requested from any thread, started on the GL thread once its frame shows up
+     */
+    private Request mRequest;
+
+    private Capture mCapture;
+
+    /**
+     * Size of the buffers the camera will send, ex: the largest SurfaceTexture output size. Call
+     * before the capture session is created.
+     */
+    public synchronized void setStillSize(int width, int height) {
+        mStillWidth = width;
+        mStillHeight = height;
+        if (mSurfaceTexture != null) {
+            mSurfaceTexture.setDefaultBufferSize(width, height);
+        }
+    }
+
+    /**
+     * @return surface for the camera to send stills to, null until the renderer is set up
+     */
+    public synchronized Surface getSurface() {
+        return mSurface;
+    }
+
+    /**
+     * @return the largest tile we draw, known once set up
+     */
+    public int getMaxTileSize() {
+        return mMaxTileSize;
+    }
+
+    /**
+     * Arms a capture, the next frame that arrives at {@link #getSurface()} is rendered and
+     * written to file as a JPEG. Only one still at a time.
+     *
+     * @param quality JPEG quality, 1-100
+     */
+    public synchronized void capture(File file, int quality, OnStillCapturedListener listener) {
+        if (mRequest != null) {
+            throw new IllegalStateException("Still capture already in progress");
+        }
+        mRequest = new Request(file, quality, listener);
+    }
+
+    /**
+     * Drops an armed capture whose frame hasn't arrived yet, ex: when the camera request failed
+     */
+    public synchronized void cancel() {
+        mRequest = null;
+    }
+
+    public synchronized boolean isBusy() {
+        return mRequest != null;
+    }
+
+    @Override
+    protected void onSetup(VideoRenderer renderer) {
+        int[] values = new int[2];
+        Gl.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, values, 0);
+        int maxTexture = values[0];
+        Gl.glGetIntegerv(GLES20.GL_MAX_VIEWPORT_DIMS, values, 0);
+        mMaxTileSize = Math.min(maxTexture, Math.min(values[0], values[1]));
+        mGles3 = GlUtil.getGlesMajorVersion() >= 3;
+
+        Gl.glGenTextures(1, mTexture, 0);
+        Gl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTexture[0]);
+        Gl.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        Gl.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        Gl.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        Gl.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+
+        synchronized (this) {
+            mSurfaceTexture = new SurfaceTexture(mTexture[0]);
+            if (mStillWidth > 0) {
+                mSurfaceTexture.setDefaultBufferSize(mStillWidth, mStillHeight);
+            }
+            mSurfaceTexture.setOnFrameAvailableListener(mOnFrameAvailableListener);
+            mSurface = new Surface(mSurfaceTexture);
+        }
+        mFrameAvailable = false;
+    }
+
+    @Override
+    protected void onPreDraw(VideoRenderer renderer) {
+        if (mSurfaceTexture == null) {
+            return;
+        }
+        //hold on to a new frame until we're done drawing the one we have
+        if (mFrameAvailable && mCapture == null) {
+            mFrameAvailable = false;
+            mSurfaceTexture.updateTexImage();
+            mSurfaceTexture.getTransformMatrix(mTransform);
+            Request request;
+            synchronized (this) {
+                request = mRequest;
+            }
+            if (request != null) {
+                try {
+                    mCapture = new Capture(request, renderer.getFramebufferPool());
+                } catch (IOException e) {
+                    finish(request, null, e);
+                }
+            }
+        }
+        if (mCapture != null) {
+            try {
+                step(renderer, mCapture);
+            } catch (RuntimeException e) {
+                //the encoder thread reports it
+                mCapture.abort(e);
+                mCapture = null;
+            }
+            Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        }
+    }
+
+    @Override
+    protected void onRelease() {
+        if (mCapture != null) {
+            mCapture.abort(new IllegalStateException("GL torn down mid capture"));
+            mCapture = null;
+        }
+        synchronized (this) {
+            if (mSurface != null) {
+                mSurface.release();
+                mSurface = null;
+            }
+            if (mSurfaceTexture != null) {
+                mSurfaceTexture.release();
+                mSurfaceTexture = null;
+            }
+        }
+        if (mTexture[0] != 0) {
+            Gl.glDeleteTextures(1, mTexture, 0);
+            mTexture[0] = 0;
+        }
+    }
+
+    /**
+     * reads back the band drawn last frame if there's a buffer free for it, then draws the next
+     */
+    private void step(VideoRenderer renderer, Capture capture) {
+        if (capture.drawnBand >= 0) {
+            ByteBuffer band = capture.free.poll();
+            if (band == null) {
+                //encoder is behind, keep the preview going and try again next frame
+                return;
+            }
+            readBand(capture, band);
+            capture.queue.add(new Band(band, capture.bandRows(capture.drawnBand)));
+            capture.drawnBand = -1;
+        }
+
+        if (capture.nextBand == capture.bands) {
+            capture.queue.add(Band.END);
+            capture.releaseTiles();
+            mCapture = null;
+            return;
+        }
+        drawBand(renderer, capture, capture.nextBand);
+        capture.drawnBand = capture.nextBand;
+        capture.nextBand++;
+    }
+
+    private void drawBand(VideoRenderer renderer, Capture capture, int band) {
+        int y = band * capture.bandHeight;
+        int rows = capture.bandRows(band);
+        for (int column = 0; column < capture.columns; column++) {
+            int x = column * capture.tileWidth;
+            int width = Math.min(capture.tileWidth, capture.width - x);
+            Framebuffer tile = capture.tiles[column];
+            if (tile == null || tile.getWidth() != width || tile.getHeight() != rows) {
+                capture.pool.release(tile);
+                tile = capture.pool.acquire(width, rows);
+                capture.tiles[column] = tile;
+            }
+            renderer.drawTile(mTexture[0], mTransform,
+                    (float) x / capture.width, (float) y / capture.height,
+                    (float) (x + width) / capture.width, (float) (y + rows) / capture.height,
+                    tile);
+        }
+        //start the GPU on it, we read it back next frame
+        Gl.glFlush();
+    }
+
+    private void readBand(Capture capture, ByteBuffer band) {
+        int rows = capture.bandRows(capture.drawnBand);
+        int stride = capture.width * 4;
+        band.clear();
+        if (capture.columns == 1) {
+            capture.tiles[0].bind();
+            Gl.glReadPixels(0, 0, capture.width, rows, GLES20.GL_RGBA,
+                    GLES20.GL_UNSIGNED_BYTE, band);
+            return;
+        }
+        if (mGles3) {
+            Gl.glPixelStorei(GLES30.GL_PACK_ROW_LENGTH, capture.width);
+        }
+        for (int column = 0; column < capture.columns; column++) {
+            Framebuffer tile = capture.tiles[column];
+            int x = column * capture.tileWidth;
+            tile.bind();
+            if (mGles3) {
+                //straight into place in the band
+                band.position(x * 4);
+                Gl.glReadPixels(0, 0, tile.getWidth(), rows, GLES20.GL_RGBA,
+                        GLES20.GL_UNSIGNED_BYTE, band);
+            } else {
+                int size = tile.getWidth() * rows * 4;
+                if (mScratch == null || mScratch.capacity() < size) {
+                    mScratch = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+                }
+                mScratch.clear();
+                Gl.glReadPixels(0, 0, tile.getWidth(), rows, GLES20.GL_RGBA,
+                        GLES20.GL_UNSIGNED_BYTE, mScratch);
+                int tileStride = tile.getWidth() * 4;
+                for (int row = 0; row < rows; row++) {
+                    mScratch.limit(row * tileStride + tileStride);
+                    mScratch.position(row * tileStride);
+                    band.position(row * stride + x * 4);
+                    band.put(mScratch);
+                }
+            }
+        }
+        if (mGles3) {
+            Gl.glPixelStorei(GLES30.GL_PACK_ROW_LENGTH, 0);
+        }
+        band.clear();
+    }
+
+    private void finish(Request request, File file, Exception error) {
+        synchronized (this) {
+            if (mRequest == request) {
+                mRequest = null;
+            }
+        }
+        if (request.listener == null) {
+            return;
+        }
+        if (error != null) {
+            Log.e(TAG, "Still capture failed", error);
+            request.listener.onStillFailed(error);
+        } else {
+            request.listener.onStillCaptured(file);
+        }
+    }
+
+    private final SurfaceTexture.OnFrameAvailableListener mOnFrameAvailableListener
+            = new SurfaceTexture.OnFrameAvailableListener() {
+        @Override
+        public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+            mFrameAvailable = true;
+        }
+    };
+
+    private static class Request {
+
+        final File file;
+
+        final int quality;
+
+        final OnStillCapturedListener listener;
+
+        Request(File file, int quality, OnStillCapturedListener listener) {
+            this.file = file;
+            this.quality = quality;
+            this.listener = listener;
+        }
+    }
+
+    private static class Band {
+
+        static final Band END = new Band(null, 0);
+
+        final ByteBuffer pixels;
+
+        final int rows;
+
+        Band(ByteBuffer pixels, int rows) {
+            this.pixels = pixels;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * one still on its way from the GL thread to the encoder thread
+     */
+    private class Capture implements Runnable {
+
+        final Request request;
+
+        final FramebufferPool pool;
+
+        /**
+         * output size, the camera buffer turned upright by its transform
+         */
+        final int width, height;
+
+        final int tileWidth, bandHeight, columns, bands;
+
+        final Framebuffer[] tiles;
+
+        final ArrayBlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BAND_BUFFERS);
+
+        final ArrayBlockingQueue<Band> queue = new ArrayBlockingQueue<>(BAND_BUFFERS + 1);
+
+        final OutputStream out;
+
+        final Thread thread;
+
+        int nextBand = 0;
+
+        int drawnBand = -1;
+
+        volatile Exception aborted;
+
+        Capture(Request request, FramebufferPool pool) throws IOException {
+            this.request = request;
+            this.pool = pool;
+            //a 90 or 270 degree transform puts the buffer's x along the output's y
+            boolean rotated = Math.abs(mTransform[0]) < Math.abs(mTransform[1]);
+            width = rotated ? mStillHeight : mStillWidth;
+            height = rotated ? mStillWidth : mStillHeight;
+            if (width <= 0 || height <= 0) {
+                throw new IOException("Still size was never set");
+            }
+
+            tileWidth = Math.min(width, mMaxTileSize);
+            columns = (width + tileWidth - 1) / tileWidth;
+            int rows = BAND_BYTES / (width * 4);
+            rows = Math.max(StreamingJpegEncoder.STRIP_HEIGHT,
+                    rows / StreamingJpegEncoder.STRIP_HEIGHT * StreamingJpegEncoder.STRIP_HEIGHT);
+            bandHeight = Math.min(Math.min(rows, mMaxTileSize), height);
+            bands = (height + bandHeight - 1) / bandHeight;
+            tiles = new Framebuffer[columns];
+
+            for (int i = 0; i < BAND_BUFFERS; i++) {
+                free.add(ByteBuffer.allocateDirect(width * bandHeight * 4)
+                        .order(ByteOrder.nativeOrder()));
+            }
+            out = new BufferedOutputStream(new FileOutputStream(request.file), 64 * 1024);
+            thread = new Thread(this, TAG + "Encoder");
+            thread.start();
+            Log.d(TAG, "capturing " + width + "x" + height + " in " + bands + " bands of "
+                    + columns + " tiles");
+        }
+
+        int bandRows(int band) {
+            return Math.min(bandHeight, height - band * bandHeight);
+        }
+
+        void abort(Exception reason) {
+            aborted = reason;
+            queue.clear();
+            thread.interrupt();
+            releaseTiles();
+        }
+
+        void releaseTiles() {
+            for (int i = 0; i < tiles.length; i++) {
+                pool.release(tiles[i]);
+                tiles[i] = null;
+            }
+        }
+
+        /**
+         * encoder thread
+         */
+        @Override
+        public void run() {
+            Exception error = null;
+            try {
+                StreamingJpegEncoder encoder = new StreamingJpegEncoder(out, width, height,
+                        request.quality);
+                while (true) {
+                    Band band = queue.take();
+                    if (band == Band.END) {
+                        break;
+                    }
+                    encoder.writeRows(band.pixels, 0, width * 4, band.rows, true);
+                    free.add(band.pixels);
+                }
+                encoder.finish();
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                error = aborted != null ? aborted : new IOException("Still capture interrupted");
+            } finally {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+            if (error != null) {
+                request.file.delete();
+            }
+            finish(request, request.file, error);
+        }
+    }
+
+    /**
+     * Called on the still's encoder thread
+     */
+    public interface OnStillCapturedListener {
+
+        void onStillCaptured(File file);
+
+        void onStillFailed(Exception e);
+    }
+}
@@ -0,0 +1,1284 @@
+package com.androidexperiments.shadercam.gl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * {@link GlBackend} that passes every call through to another backend and also writes it to a
+ * compact binary trace in a memory-mapped file, for replaying a real workload later with
+ * {@link GlTraceReplayer}. Usually installed through {@link GlTracer}.
+ *
+ * Each call is one opcode byte ({@link GlCall} id) followed by its arguments, little-endian.
+ * Object names and locations are stored as the driver handed them out, the replayer maps them
+ * to its own. Uniform arrays, vertex/index data, texture uploads and strings are stored once
+ * per distinct content, keyed by hash, and referenced by id after that - a steady render loop
+ * is mostly small fixed size records. Writing is plain puts into the mapping, no allocation
+ * once the dedupe tables have warmed up, no syscalls.
+ *
+ * When the file fills up tracing just stops, see {@link #isTruncated()}. Only the thread set
+ * with {@link #setTracedThread} is traced, nothing is until then. Calls from other threads, ex:
+ * {@link SharedContextPool} workers or the device profiler, go straight to the delegate.
+ *
+ * Doesn't reference any android classes.
+ */
+public class TracingGlBackend implements GlBackend {
+
+    /**
+     * 'SCGT', little-endian
+     */
+    static final int MAGIC = 0x54474353;
+
+    /**
+     * 2 added the sync calls, 3 the buffer calls, older traces still replay
+     */
+    static final int VERSION = 3;
+
+    /**
+     * magic, version, data length, frame count
+     */
+    static final int HEADER_SIZE = 16;
+
+    static final int OP_FRAME = 0x80;
+
+    static final int OP_BLOB = 0x81;
+
+    static final int OP_STRING = 0x82;
+
+    static final int OP_END = 0x83;
+
+    static final int BLOB_BYTES = 0;
+
+    static final int BLOB_SHORTS = 1;
+
+    static final int BLOB_INTS = 2;
+
+    static final int BLOB_FLOATS = 3;
+
+    /**
+     * floats that replay as a float[] rather than a buffer, for uniforms
+     */
+    static final int BLOB_FLOAT_ARRAY = 4;
+
+    static final int NULL_REF = -1;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final GlBackend mDelegate;
+
+    private final RandomAccessFile mFile;
+
+    private final MappedByteBuffer mOut;
+
+    /**
+     * stops tracing, set once the file is full or closed
+     */
+    private volatile boolean mFull = false;
+
+    private boolean mTruncated = false;
+
+    /**
+     * the one thread whose calls are traced
+     */
+    private volatile Thread mThread;
+
+    private volatile boolean mClosed = false;
+
+    private int mFrames;
+
+    private final HashMap<String, Integer> mStrings = new HashMap<>();
+
+    /**
+     * open addressing table of content hash to blob id, 0 marks an empty slot
+     */
+    private long[] mBlobHashes = new long[256];
+
+    private int[] mBlobIds = new int[256];
+
+    private int mBlobCount;
+
+    /**
+     * @param maxBytes size of the mapping, tracing stops once it's full
+     */
+    public TracingGlBackend(GlBackend delegate, File file, int maxBytes) throws IOException {
+        mDelegate = delegate;
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mOut = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, maxBytes);
+        mOut.order(ByteOrder.LITTLE_ENDIAN);
+        writeHeader();
+        mOut.position(HEADER_SIZE);
+    }
+
+    public GlBackend getDelegate() {
+        return mDelegate;
+    }
+
+    /**
+     * Trace calls from this thread, ex: the renderer's GL thread, from that thread. Any thread
+     * can make GL calls once we're installed, so it has to be picked rather than be whichever
+     * called first.
+     */
+    public void setTracedThread(Thread thread) {
+        mThread = thread;
+    }
+
+    public Thread getTracedThread() {
+        return mThread;
+    }
+
+    /**
+     * Marks the end of a frame, for per-frame statistics on replay
+     */
+    public void endFrame() {
+        if (!skip() && begin(OP_FRAME, 0)) {
+            mFrames++;
+        }
+    }
+
+    /**
+     * @return true if the file filled up and later calls were dropped
+     */
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+
+    public int getFrameCount() {
+        return mFrames;
+    }
+
+    public int getBytesWritten() {
+        return mOut.position();
+    }
+
+    /**
+     * Finishes the trace and trims the file to what was written. Calls after this still go to
+     * the delegate but aren't traced. Only on the traced thread, or once it can't make calls
+     * anymore, since it writes into the mapping without any locking.
+     */
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        //begin() always leaves room for this
+        mOut.put((byte) OP_END);
+        mFull = true;
+        mClosed = true;
+        int length = mOut.position();
+        writeHeader();
+        mOut.putInt(8, length);
+        mOut.force();
+        mFile.setLength(length);
+        mFile.close();
+    }
+
+    private void writeHeader() {
+        mOut.putInt(0, MAGIC);
+        mOut.putInt(4, VERSION);
+        mOut.putInt(8, HEADER_SIZE);
+        mOut.putInt(12, mFrames);
+    }
+
+    /**
+     * true for calls that aren't traced: once full or closed, or from a second thread
+     */
+    private boolean skip() {
+        return mFull || Thread.currentThread() != mThread;
+    }
+
+    /**
+     * writes the opcode if the record and a trailing end marker fit
+     */
+    private boolean begin(int op, int bytes) {
+        if (skip()) {
+            return false;
+        }
+        if (mOut.remaining() < bytes + 2) {
+            mFull = true;
+            mTruncated = true;
+            return false;
+        }
+        mOut.put((byte) op);
+        return true;
+    }
+
+    private void putInts(int[] values, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            mOut.putInt(values[offset + i]);
+        }
+    }
+
+    private int stringRef(String value) {
+        if (value == null) {
+            return NULL_REF;
+        }
+        Integer ref = mStrings.get(value);
+        if (ref != null) {
+            return ref;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int id = mStrings.size();
+        if (!begin(OP_STRING, 8 + bytes.length)) {
+            return NULL_REF;
+        }
+        mOut.putInt(id);
+        mOut.putInt(bytes.length);
+        mOut.put(bytes);
+        mStrings.put(value, id);
+        return id;
+    }
+
+    private int floatsRef(float[] values, int offset, int count) {
+        if (values == null) {
+            return NULL_REF;
+        }
+        long hash = start(BLOB_FLOAT_ARRAY, count);
+        for (int i = 0; i < count; i++) {
+            hash = mix(hash, Float.floatToRawIntBits(values[offset + i]));
+        }
+        int id = findBlob(hash);
+        if (id != NULL_REF) {
+            return id;
+        }
+        id = mBlobCount;
+        if (!beginBlob(id, BLOB_FLOAT_ARRAY, count, 4)) {
+            return NULL_REF;
+        }
+        for (int i = 0; i < count; i++) {
+            mOut.putFloat(values[offset + i]);
+        }
+        addBlob(hash, id);
+        return id;
+    }
+
+    /**
+     * stores position to limit of the buffer, leaving the buffer itself untouched
+     */
+    private int bufferRef(Buffer buffer) {
+        if (buffer == null) {
+            return NULL_REF;
+        }
+        int from = buffer.position();
+        int to = buffer.limit();
+        int count = to - from;
+        int type;
+        int elementSize;
+        long hash;
+        if (buffer instanceof ByteBuffer) {
+            ByteBuffer bytes = (ByteBuffer) buffer;
+            type = BLOB_BYTES;
+            elementSize = 1;
+            hash = start(type, count);
+            int i = from;
+            for (; i + 8 <= to; i += 8) {
+                long value = bytes.getLong(i);
+                hash = mix(mix(hash, (int) value), (int) (value >>> 32));
+            }
+            for (; i < to; i++) {
+                hash = mix(hash, bytes.get(i));
+            }
+        } else if (buffer instanceof FloatBuffer) {
+            FloatBuffer floats = (FloatBuffer) buffer;
+            type = BLOB_FLOATS;
+            elementSize = 4;
+            hash = start(type, count);
+            for (int i = from; i < to; i++) {
+                hash = mix(hash, Float.floatToRawIntBits(floats.get(i)));
+            }
+        } else if (buffer instanceof ShortBuffer) {
+            ShortBuffer shorts = (ShortBuffer) buffer;
+            type = BLOB_SHORTS;
+            elementSize = 2;
+            hash = start(type, count);
+            for (int i = from; i < to; i++) {
+                hash = mix(hash, shorts.get(i));
+            }
+        } else if (buffer instanceof IntBuffer) {
+            IntBuffer ints = (IntBuffer) buffer;
+            type = BLOB_INTS;
+            elementSize = 4;
+            hash = start(type, count);
+            for (int i = from; i < to; i++) {
+                hash = mix(hash, ints.get(i));
+            }
+        } else {
+            throw new IllegalArgumentException("Can't trace " + buffer.getClass().getSimpleName());
+        }
+
+        int id = findBlob(hash);
+        if (id != NULL_REF) {
+            return id;
+        }
+        id = mBlobCount;
+        if (!beginBlob(id, type, count, elementSize)) {
+            return NULL_REF;
+        }
+        switch (type) {
+            case BLOB_BYTES:
+                ByteBuffer bytes = (ByteBuffer) buffer;
+                mOut.put(bytes);
+                bytes.position(from);
+                break;
+            case BLOB_FLOATS:
+                for (int i = from; i < to; i++) {
+                    mOut.putFloat(((FloatBuffer) buffer).get(i));
+                }
+                break;
+            case BLOB_SHORTS:
+                for (int i = from; i < to; i++) {
+                    mOut.putShort(((ShortBuffer) buffer).get(i));
+                }
+                break;
+            default:
+                for (int i = from; i < to; i++) {
+                    mOut.putInt(((IntBuffer) buffer).get(i));
+                }
+                break;
+        }
+        addBlob(hash, id);
+        return id;
+    }
+
+    private boolean beginBlob(int id, int type, int count, int elementSize) {
+        if (!begin(OP_BLOB, 9 + count * elementSize)) {
+            return false;
+        }
+        mOut.putInt(id);
+        mOut.put((byte) type);
+        mOut.putInt(count);
+        return true;
+    }
+
+    private static long start(int type, int count) {
+        return mix(mix(FNV_OFFSET, type), count);
+    }
+
+    private static long mix(long hash, int value) {
+        for (int i = 0; i < 4; i++) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private int findBlob(long hash) {
+        if (hash == 0) {
+            hash = 1;
+        }
+        int mask = mBlobHashes.length - 1;
+        for (int slot = (int) (hash ^ (hash >>> 32)) & mask; ; slot = (slot + 1) & mask) {
+            if (mBlobHashes[slot] == 0) {
+                return NULL_REF;
+            }
+            if (mBlobHashes[slot] == hash) {
+                return mBlobIds[slot];
+            }
+        }
+    }
+
+    private void addBlob(long hash, int id) {
+        if ((mBlobCount + 1) * 2 > mBlobHashes.length) {
+            long[] hashes = mBlobHashes;
+            int[] ids = mBlobIds;
+            mBlobHashes = new long[hashes.length * 2];
+            mBlobIds = new int[hashes.length * 2];
+            for (int i = 0; i < hashes.length; i++) {
+                if (hashes[i] != 0) {
+                    insert(hashes[i], ids[i]);
+                }
+            }
+        }
+        insert(hash == 0 ? 1 : hash, id);
+        mBlobCount++;
+    }
+
+    private void insert(long hash, int id) {
+        int mask = mBlobHashes.length - 1;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while (mBlobHashes[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        mBlobHashes[slot] = hash;
+        mBlobIds[slot] = id;
+    }
+
+    @Override
+    public void glActiveTexture(int texture) {
+        mDelegate.glActiveTexture(texture);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.ACTIVE_TEXTURE, 4)) {
+            mOut.putInt(texture);
+        }
+    }
+
+    @Override
+    public void glAttachShader(int program, int shader) {
+        mDelegate.glAttachShader(program, shader);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.ATTACH_SHADER, 4 + 4)) {
+            mOut.putInt(program);
+            mOut.putInt(shader);
+        }
+    }
+
+    @Override
+    public void glBindFramebuffer(int target, int framebuffer) {
+        mDelegate.glBindFramebuffer(target, framebuffer);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.BIND_FRAMEBUFFER, 4 + 4)) {
+            mOut.putInt(target);
+            mOut.putInt(framebuffer);
+        }
+    }
+
+    @Override
+    public void glBindTexture(int target, int texture) {
+        mDelegate.glBindTexture(target, texture);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.BIND_TEXTURE, 4 + 4)) {
+            mOut.putInt(target);
+            mOut.putInt(texture);
+        }
+    }
+
+    @Override
+    public void glBlitFramebuffer(int srcX0, int srcY0, int srcX1, int srcY1, int dstX0, int dstY0,
+            int dstX1, int dstY1, int mask, int filter) {
+        mDelegate.glBlitFramebuffer(srcX0, srcY0, srcX1, srcY1, dstX0, dstY0, dstX1, dstY1, mask,
+                filter);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.BLIT_FRAMEBUFFER, 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4)) {
+            mOut.putInt(srcX0);
+            mOut.putInt(srcY0);
+            mOut.putInt(srcX1);
+            mOut.putInt(srcY1);
+            mOut.putInt(dstX0);
+            mOut.putInt(dstY0);
+            mOut.putInt(dstX1);
+            mOut.putInt(dstY1);
+            mOut.putInt(mask);
+            mOut.putInt(filter);
+        }
+    }
+
+    @Override
+    public int glCheckFramebufferStatus(int target) {
+        int result = mDelegate.glCheckFramebufferStatus(target);
+        if (skip()) {
+            return result;
+        }
+        if (begin(GlCall.CHECK_FRAMEBUFFER_STATUS, 4)) {
+            mOut.putInt(target);
+        }
+        return result;
+    }
+
+    @Override
+    public void glClear(int mask) {
+        mDelegate.glClear(mask);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.CLEAR, 4)) {
+            mOut.putInt(mask);
+        }
+    }
+
+    @Override
+    public void glClearColor(float red, float green, float blue, float alpha) {
+        mDelegate.glClearColor(red, green, blue, alpha);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.CLEAR_COLOR, 4 + 4 + 4 + 4)) {
+            mOut.putFloat(red);
+            mOut.putFloat(green);
+            mOut.putFloat(blue);
+            mOut.putFloat(alpha);
+        }
+    }
+
+    @Override
+    public void glCompileShader(int shader) {
+        mDelegate.glCompileShader(shader);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.COMPILE_SHADER, 4)) {
+            mOut.putInt(shader);
+        }
+    }
+
+    @Override
+    public int glCreateProgram() {
+        int result = mDelegate.glCreateProgram();
+        if (skip()) {
+            return result;
+        }
+        if (begin(GlCall.CREATE_PROGRAM, 4)) {
+            mOut.putInt(result);
+        }
+        return result;
+    }
+
+    @Override
+    public int glCreateShader(int type) {
+        int result = mDelegate.glCreateShader(type);
+        if (skip()) {
+            return result;
+        }
+        if (begin(GlCall.CREATE_SHADER, 4 + 4)) {
+            mOut.putInt(type);
+            mOut.putInt(result);
+        }
+        return result;
+    }
+
+    @Override
+    public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+        mDelegate.glDeleteFramebuffers(n, framebuffers, offset);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.DELETE_FRAMEBUFFERS, 4 + 4 * n)) {
+            mOut.putInt(n);
+            putInts(framebuffers, offset, n);
+        }
+    }
+
+    @Override
+    public void glDeleteProgram(int program) {
+        mDelegate.glDeleteProgram(program);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.DELETE_PROGRAM, 4)) {
+            mOut.putInt(program);
+        }
+    }
+
+    @Override
+    public void glDeleteShader(int shader) {
+        mDelegate.glDeleteShader(shader);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.DELETE_SHADER, 4)) {
+            mOut.putInt(shader);
+        }
+    }
+
+    @Override
+    public void glDeleteTextures(int n, int[] textures, int offset) {
+        mDelegate.glDeleteTextures(n, textures, offset);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.DELETE_TEXTURES, 4 + 4 * n)) {
+            mOut.putInt(n);
+            putInts(textures, offset, n);
+        }
+    }
+
+    @Override
+    public void glDisableVertexAttribArray(int index) {
+        mDelegate.glDisableVertexAttribArray(index);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.DISABLE_VERTEX_ATTRIB_ARRAY, 4)) {
+            mOut.putInt(index);
+        }
+    }
+
+    @Override
+    public void glDrawArrays(int mode, int first, int count) {
+        mDelegate.glDrawArrays(mode, first, count);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.DRAW_ARRAYS, 4 + 4 + 4)) {
+            mOut.putInt(mode);
+            mOut.putInt(first);
+            mOut.putInt(count);
+        }
+    }
+
+    @Override
+    public void glDrawElements(int mode, int count, int type, Buffer indices) {
+        mDelegate.glDrawElements(mode, count, type, indices);
+        if (skip()) {
+            return;
+        }
+        int indicesRef = bufferRef(indices);
+        if (begin(GlCall.DRAW_ELEMENTS, 4 + 4 + 4 + 4)) {
+            mOut.putInt(mode);
+            mOut.putInt(count);
+            mOut.putInt(type);
+            mOut.putInt(indicesRef);
+        }
+    }
+
+    @Override
+    public void glEnableVertexAttribArray(int index) {
+        mDelegate.glEnableVertexAttribArray(index);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.ENABLE_VERTEX_ATTRIB_ARRAY, 4)) {
+            mOut.putInt(index);
+        }
+    }
+
+    @Override
+    public void glFramebufferTexture2D(int target, int attachment, int textarget, int texture,
+            int level) {
+        mDelegate.glFramebufferTexture2D(target, attachment, textarget, texture, level);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.FRAMEBUFFER_TEXTURE_2D, 4 + 4 + 4 + 4 + 4)) {
+            mOut.putInt(target);
+            mOut.putInt(attachment);
+            mOut.putInt(textarget);
+            mOut.putInt(texture);
+            mOut.putInt(level);
+        }
+    }
+
+    @Override
+    public void glFramebufferTextureLayer(int target, int attachment, int texture, int level,
+            int layer) {
+        mDelegate.glFramebufferTextureLayer(target, attachment, texture, level, layer);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.FRAMEBUFFER_TEXTURE_LAYER, 4 + 4 + 4 + 4 + 4)) {
+            mOut.putInt(target);
+            mOut.putInt(attachment);
+            mOut.putInt(texture);
+            mOut.putInt(level);
+            mOut.putInt(layer);
+        }
+    }
+
+    @Override
+    public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+        mDelegate.glGenFramebuffers(n, framebuffers, offset);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.GEN_FRAMEBUFFERS, 4 + 4 * n)) {
+            mOut.putInt(n);
+            putInts(framebuffers, offset, n);
+        }
+    }
+
+    @Override
+    public void glGenTextures(int n, int[] textures, int offset) {
+        mDelegate.glGenTextures(n, textures, offset);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.GEN_TEXTURES, 4 + 4 * n)) {
+            mOut.putInt(n);
+            putInts(textures, offset, n);
+        }
+    }
+
+    @Override
+    public int glGetAttribLocation(int program, String name) {
+        int result = mDelegate.glGetAttribLocation(program, name);
+        if (skip()) {
+            return result;
+        }
+        int nameRef = stringRef(name);
+        if (begin(GlCall.GET_ATTRIB_LOCATION, 4 + 4 + 4)) {
+            mOut.putInt(program);
+            mOut.putInt(nameRef);
+            mOut.putInt(result);
+        }
+        return result;
+    }
+
+    @Override
+    public int glGetError() {
+        int result = mDelegate.glGetError();
+        if (skip()) {
+            return result;
+        }
+        begin(GlCall.GET_ERROR, 0);
+        return result;
+    }
+
+    @Override
+    public void glGetIntegerv(int pname, int[] params, int offset) {
+        mDelegate.glGetIntegerv(pname, params, offset);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.GET_INTEGERV, 4)) {
+            mOut.putInt(pname);
+        }
+    }
+
+    @Override
+    public String glGetProgramInfoLog(int program) {
+        String result = mDelegate.glGetProgramInfoLog(program);
+        if (skip()) {
+            return result;
+        }
+        if (begin(GlCall.GET_PROGRAM_INFO_LOG, 4)) {
+            mOut.putInt(program);
+        }
+        return result;
+    }
+
+    @Override
+    public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+        mDelegate.glGetProgramiv(program, pname, params, offset);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.GET_PROGRAMIV, 4 + 4)) {
+            mOut.putInt(program);
+            mOut.putInt(pname);
+        }
+    }
+
+    @Override
+    public String glGetShaderInfoLog(int shader) {
+        String result = mDelegate.glGetShaderInfoLog(shader);
+        if (skip()) {
+            return result;
+        }
+        if (begin(GlCall.GET_SHADER_INFO_LOG, 4)) {
+            mOut.putInt(shader);
+        }
+        return result;
+    }
+
+    @Override
+    public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+        mDelegate.glGetShaderiv(shader, pname, params, offset);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.GET_SHADERIV, 4 + 4)) {
+            mOut.putInt(shader);
+            mOut.putInt(pname);
+        }
+    }
+
+    @Override
+    public String glGetString(int name) {
+        String result = mDelegate.glGetString(name);
+        if (skip()) {
+            return result;
+        }
+        if (begin(GlCall.GET_STRING, 4)) {
+            mOut.putInt(name);
+        }
+        return result;
+    }
+
+    @Override
+    public int glGetUniformLocation(int program, String name) {
+        int result = mDelegate.glGetUniformLocation(program, name);
+        if (skip()) {
+            return result;
+        }
+        int nameRef = stringRef(name);
+        if (begin(GlCall.GET_UNIFORM_LOCATION, 4 + 4 + 4)) {
+            mOut.putInt(program);
+            mOut.putInt(nameRef);
+            mOut.putInt(result);
+        }
+        return result;
+    }
+
+    @Override
+    public void glLinkProgram(int program) {
+        mDelegate.glLinkProgram(program);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.LINK_PROGRAM, 4)) {
+            mOut.putInt(program);
+        }
+    }
+
+    @Override
+    public void glPixelStorei(int pname, int param) {
+        mDelegate.glPixelStorei(pname, param);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.PIXEL_STOREI, 4 + 4)) {
+            mOut.putInt(pname);
+            mOut.putInt(param);
+        }
+    }
+
+    @Override
+    public void glReadPixels(int x, int y, int width, int height, int format, int type,
+            Buffer pixels) {
+        mDelegate.glReadPixels(x, y, width, height, format, type, pixels);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.READ_PIXELS, 4 + 4 + 4 + 4 + 4 + 4)) {
+            mOut.putInt(x);
+            mOut.putInt(y);
+            mOut.putInt(width);
+            mOut.putInt(height);
+            mOut.putInt(format);
+            mOut.putInt(type);
+        }
+    }
+
+    @Override
+    public void glShaderSource(int shader, String string) {
+        mDelegate.glShaderSource(shader, string);
+        if (skip()) {
+            return;
+        }
+        int stringRef = stringRef(string);
+        if (begin(GlCall.SHADER_SOURCE, 4 + 4)) {
+            mOut.putInt(shader);
+            mOut.putInt(stringRef);
+        }
+    }
+
+    @Override
+    public void glTexImage2D(int target, int level, int internalformat, int width, int height,
+            int border, int format, int type, Buffer pixels) {
+        mDelegate.glTexImage2D(target, level, internalformat, width, height, border, format, type,
+                pixels);
+        if (skip()) {
+            return;
+        }
+        int pixelsRef = bufferRef(pixels);
+        if (begin(GlCall.TEX_IMAGE_2D, 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4)) {
+            mOut.putInt(target);
+            mOut.putInt(level);
+            mOut.putInt(internalformat);
+            mOut.putInt(width);
+            mOut.putInt(height);
+            mOut.putInt(border);
+            mOut.putInt(format);
+            mOut.putInt(type);
+            mOut.putInt(pixelsRef);
+        }
+    }
+
+    @Override
+    public void glTexImage3D(int target, int level, int internalformat, int width, int height,
+            int depth, int border, int format, int type, Buffer pixels) {
+        mDelegate.glTexImage3D(target, level, internalformat, width, height, depth, border, format,
+                type, pixels);
+        if (skip()) {
+            return;
+        }
+        int pixelsRef = bufferRef(pixels);
+        if (begin(GlCall.TEX_IMAGE_3D, 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4)) {
+            mOut.putInt(target);
+            mOut.putInt(level);
+            mOut.putInt(internalformat);
+            mOut.putInt(width);
+            mOut.putInt(height);
+            mOut.putInt(depth);
+            mOut.putInt(border);
+            mOut.putInt(format);
+            mOut.putInt(type);
+            mOut.putInt(pixelsRef);
+        }
+    }
+
+    @Override
+    public void glTexParameterf(int target, int pname, float param) {
+        mDelegate.glTexParameterf(target, pname, param);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.TEX_PARAMETERF, 4 + 4 + 4)) {
+            mOut.putInt(target);
+            mOut.putInt(pname);
+            mOut.putFloat(param);
+        }
+    }
+
+    @Override
+    public void glTexParameteri(int target, int pname, int param) {
+        mDelegate.glTexParameteri(target, pname, param);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.TEX_PARAMETERI, 4 + 4 + 4)) {
+            mOut.putInt(target);
+            mOut.putInt(pname);
+            mOut.putInt(param);
+        }
+    }
+
+    @Override
+    public void glTexStorage3D(int target, int levels, int internalformat, int width, int height,
+            int depth) {
+        mDelegate.glTexStorage3D(target, levels, internalformat, width, height, depth);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.TEX_STORAGE_3D, 4 + 4 + 4 + 4 + 4 + 4)) {
+            mOut.putInt(target);
+            mOut.putInt(levels);
+            mOut.putInt(internalformat);
+            mOut.putInt(width);
+            mOut.putInt(height);
+            mOut.putInt(depth);
+        }
+    }
+
+    @Override
+    public void glTexSubImage2D(int target, int level, int xoffset, int yoffset, int width,
+            int height, int format, int type, Buffer pixels) {
+        mDelegate.glTexSubImage2D(target, level, xoffset, yoffset, width, height, format, type,
+                pixels);
+        if (skip()) {
+            return;
+        }
+        int pixelsRef = bufferRef(pixels);
+        if (begin(GlCall.TEX_SUB_IMAGE_2D, 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4)) {
+            mOut.putInt(target);
+            mOut.putInt(level);
+            mOut.putInt(xoffset);
+            mOut.putInt(yoffset);
+            mOut.putInt(width);
+            mOut.putInt(height);
+            mOut.putInt(format);
+            mOut.putInt(type);
+            mOut.putInt(pixelsRef);
+        }
+    }
+
+    @Override
+    public void glTexSubImage3D(int target, int level, int xoffset, int yoffset, int zoffset,
+            int width, int height, int depth, int format, int type, Buffer pixels) {
+        mDelegate.glTexSubImage3D(target, level, xoffset, yoffset, zoffset, width, height, depth,
+                format, type, pixels);
+        if (skip()) {
+            return;
+        }
+        int pixelsRef = bufferRef(pixels);
+        if (begin(GlCall.TEX_SUB_IMAGE_3D, 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4)) {
+            mOut.putInt(target);
+            mOut.putInt(level);
+            mOut.putInt(xoffset);
+            mOut.putInt(yoffset);
+            mOut.putInt(zoffset);
+            mOut.putInt(width);
+            mOut.putInt(height);
+            mOut.putInt(depth);
+            mOut.putInt(format);
+            mOut.putInt(type);
+            mOut.putInt(pixelsRef);
+        }
+    }
+
+    @Override
+    public void glUniform1f(int location, float x) {
+        mDelegate.glUniform1f(location, x);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.UNIFORM_1F, 4 + 4)) {
+            mOut.putInt(location);
+            mOut.putFloat(x);
+        }
+    }
+
+    @Override
+    public void glUniform1fv(int location, int count, float[] v, int offset) {
+        mDelegate.glUniform1fv(location, count, v, offset);
+        if (skip()) {
+            return;
+        }
+        int vRef = floatsRef(v, offset, count);
+        if (begin(GlCall.UNIFORM_1FV, 4 + 4 + 4)) {
+            mOut.putInt(location);
+            mOut.putInt(count);
+            mOut.putInt(vRef);
+        }
+    }
+
+    @Override
+    public void glUniform1i(int location, int x) {
+        mDelegate.glUniform1i(location, x);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.UNIFORM_1I, 4 + 4)) {
+            mOut.putInt(location);
+            mOut.putInt(x);
+        }
+    }
+
+    @Override
+    public void glUniform2f(int location, float x, float y) {
+        mDelegate.glUniform2f(location, x, y);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.UNIFORM_2F, 4 + 4 + 4)) {
+            mOut.putInt(location);
+            mOut.putFloat(x);
+            mOut.putFloat(y);
+        }
+    }
+
+    @Override
+    public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value,
+            int offset) {
+        mDelegate.glUniformMatrix4fv(location, count, transpose, value, offset);
+        if (skip()) {
+            return;
+        }
+        int valueRef = floatsRef(value, offset, count * 16);
+        if (begin(GlCall.UNIFORM_MATRIX_4FV, 4 + 4 + 1 + 4)) {
+            mOut.putInt(location);
+            mOut.putInt(count);
+            mOut.put((byte) (transpose ? 1 : 0));
+            mOut.putInt(valueRef);
+        }
+    }
+
+    @Override
+    public void glUseProgram(int program) {
+        mDelegate.glUseProgram(program);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.USE_PROGRAM, 4)) {
+            mOut.putInt(program);
+        }
+    }
+
+    @Override
+    public void glVertexAttribPointer(int indx, int size, int type, boolean normalized, int stride,
+            Buffer ptr) {
+        mDelegate.glVertexAttribPointer(indx, size, type, normalized, stride, ptr);
+        if (skip()) {
+            return;
+        }
+        int ptrRef = bufferRef(ptr);
+        if (begin(GlCall.VERTEX_ATTRIB_POINTER, 4 + 4 + 4 + 1 + 4 + 4)) {
+            mOut.putInt(indx);
+            mOut.putInt(size);
+            mOut.putInt(type);
+            mOut.put((byte) (normalized ? 1 : 0));
+            mOut.putInt(stride);
+            mOut.putInt(ptrRef);
+        }
+    }
+
+    @Override
+    public void glViewport(int x, int y, int width, int height) {
+        mDelegate.glViewport(x, y, width, height);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.VIEWPORT, 4 + 4 + 4 + 4)) {
+            mOut.putInt(x);
+            mOut.putInt(y);
+            mOut.putInt(width);
+            mOut.putInt(height);
+        }
+    }
+
+    @Override
+    public void glFinish() {
+        mDelegate.glFinish();
+        if (skip()) {
+            return;
+        }
+        begin(GlCall.FINISH, 0);
+    }
+
+    @Override
+    public void glFlush() {
+        mDelegate.glFlush();
+        if (skip()) {
+            return;
+        }
+        begin(GlCall.FLUSH, 0);
+    }
+
+    @Override
+    public long glFenceSync(int condition, int flags) {
+        long result = mDelegate.glFenceSync(condition, flags);
+        if (skip()) {
+            return result;
+        }
+        if (begin(GlCall.FENCE_SYNC, 16)) {
+            mOut.putInt(condition);
+            mOut.putInt(flags);
+            mOut.putLong(result);
+        }
+        return result;
+    }
+
+    @Override
+    public int glClientWaitSync(long sync, int flags, long timeout) {
+        int result = mDelegate.glClientWaitSync(sync, flags, timeout);
+        if (skip()) {
+            return result;
+        }
+        if (begin(GlCall.CLIENT_WAIT_SYNC, 20)) {
+            mOut.putLong(sync);
+            mOut.putInt(flags);
+            mOut.putLong(timeout);
+        }
+        return result;
+    }
+
+    @Override
+    public void glWaitSync(long sync, int flags, long timeout) {
+        mDelegate.glWaitSync(sync, flags, timeout);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.WAIT_SYNC, 20)) {
+            mOut.putLong(sync);
+            mOut.putInt(flags);
+            mOut.putLong(timeout);
+        }
+    }
+
+    @Override
+    public void glDeleteSync(long sync) {
+        mDelegate.glDeleteSync(sync);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.DELETE_SYNC, 8)) {
+            mOut.putLong(sync);
+        }
+    }
+
+    @Override
+    public void glGenBuffers(int n, int[] buffers, int offset) {
+        mDelegate.glGenBuffers(n, buffers, offset);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.GEN_BUFFERS, 4 + 4 * n)) {
+            mOut.putInt(n);
+            putInts(buffers, offset, n);
+        }
+    }
+
+    @Override
+    public void glDeleteBuffers(int n, int[] buffers, int offset) {
+        mDelegate.glDeleteBuffers(n, buffers, offset);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.DELETE_BUFFERS, 4 + 4 * n)) {
+            mOut.putInt(n);
+            putInts(buffers, offset, n);
+        }
+    }
+
+    @Override
+    public void glBindBuffer(int target, int buffer) {
+        mDelegate.glBindBuffer(target, buffer);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.BIND_BUFFER, 4 + 4)) {
+            mOut.putInt(target);
+            mOut.putInt(buffer);
+        }
+    }
+
+    @Override
+    public void glBufferData(int target, int size, Buffer data, int usage) {
+        mDelegate.glBufferData(target, size, data, usage);
+        if (skip()) {
+            return;
+        }
+        int dataRef = bufferRef(data);
+        if (begin(GlCall.BUFFER_DATA, 4 + 4 + 4 + 4)) {
+            mOut.putInt(target);
+            mOut.putInt(size);
+            mOut.putInt(dataRef);
+            mOut.putInt(usage);
+        }
+    }
+
+    @Override
+    public void glReadPixels(int x, int y, int width, int height, int format, int type,
+            int offset) {
+        mDelegate.glReadPixels(x, y, width, height, format, type, offset);
+        if (skip()) {
+            return;
+        }
+        if (begin(GlCall.READ_PIXELS_OFFSET, 4 + 4 + 4 + 4 + 4 + 4 + 4)) {
+            mOut.putInt(x);
+            mOut.putInt(y);
+            mOut.putInt(width);
+            mOut.putInt(height);
+            mOut.putInt(format);
+            mOut.putInt(type);
+            mOut.putInt(offset);
+        }
+    }
+
+    @Override
+    public Buffer glMapBufferRange(int target, int offset, int length, int access) {
+        Buffer result = mDelegate.glMapBufferRange(target, offset, length, access);
+        if (skip()) {
+            return result;
+        }
+        if (begin(GlCall.MAP_BUFFER_RANGE, 4 + 4 + 4 + 4)) {
+            mOut.putInt(target);
+            mOut.putInt(offset);
+            mOut.putInt(length);
+            mOut.putInt(access);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean glUnmapBuffer(int target) {
+        boolean result = mDelegate.glUnmapBuffer(target);
+        if (skip()) {
+            return result;
+        }
+        if (begin(GlCall.UNMAP_BUFFER, 4)) {
+            mOut.putInt(target);
+        }
+        return result;
+    }
+}
@@ -1,6 +1,8 @@
 package com.androidexperiments.shadercam.gl;
 
 import com.androidexperiments.shadercam.fragments.VideoFragment;
+import com.androidexperiments.shadercam.shader.ShaderCost;
+import com.androidexperiments.shadercam.shader.ShaderCostAnalyzer;
 import com.androidexperiments.shadercam.utils.ShaderUtils;
 import com.uncorkedstudios.android.view.recordablesurfaceview.RecordableSurfaceView;
 
@@ -8,6 +10,7 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.opengl.GLUtils;
@@ -23,6 +26,8 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
 import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Base camera rendering class. Responsible for rendering to proper window contexts, as well as
@@ -36,7 +41,11 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
 
     private static final String TAG = VideoRenderer.class.getSimpleName();
 
-    int mNeedsRefreshCount = 0;
+    /**
+     * camera frames waiting in our SurfaceTexture, counted up on the camera thread and drained
+     * on ours
+     */
+    final AtomicInteger mNeedsRefreshCount = new AtomicInteger();
 
     /**
      * if you create new files, just override these defaults in your subclass and
@@ -95,6 +104,13 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
 
     private int positionHandle;
 
+    /**
+     * uniform locations of our program, looked up once per program by {@link #resolveLocations()}
+     */
+    private int mTextureParamHandle, mTextureTransformHandle, mPositionMatrixHandle;
+
+    private int mLocationsProgram;
+
     /**
      * "arbitrary" maximum number of textures. seems that most phones dont like more than 16
      */
@@ -139,6 +155,57 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
      */
     private ArrayList<Texture> mTextureArray;
 
+    /**
+     * number of texture units handed out by {@link #reserveTextureUnit()}, counted down
+     * from the top so they never collide with {@link #addTexture(Bitmap, String)}
+     */
+    private int mReservedTextureUnits = 0;
+
+    /**
+     * extra {@link RenderStage}s hooked into our frame, in the order they were added
+     */
+    private ArrayList<RenderStage> mStages = new ArrayList<>();
+
+    /**
+     * offscreen targets shared by our stages, emptied whenever GL is torn down
+     */
+    private FramebufferPool mFramebufferPool = new FramebufferPool();
+
+    /**
+     * size of the camera buffers coming into our SurfaceTexture as last set, from the camera
+     * thread, width in the high 32 bits so both are published together
+     */
+    private volatile long mRequestedPreviewSize;
+
+    /**
+     * mRequestedPreviewSize as of this frame, render thread only, 0 until the fragment tells us
+     */
+    private int mPreviewWidth, mPreviewHeight;
+
+    /**
+     * timestamp of the camera frame currently in our texture, and how many frames we've had
+     */
+    private long mFrameTimestampNs;
+
+    private long mFrameNumber;
+
+    /**
+     * frames latched without being drawn because a newer one came in before the draw
+     */
+    private long mSkippedFrames;
+
+    /**
+     * where our main pass draws, null for the window surface
+     */
+    private Framebuffer mRenderTarget;
+
+    /**
+     * external texture and transform {@link #drawTile} swaps in for the camera's, 0 otherwise
+     */
+    private int mSourceTexture;
+
+    private float[] mSourceTransform;
+
 
     /**
      * matrix for transforming our camera texture, available immediately after {@link #}s
@@ -149,6 +216,11 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
 
     private float mAspectRatio = 1.0f;
 
+    /**
+     * aspect mOrthoMatrix was built for, NaN when it has to be rebuilt
+     */
+    private float mOrthoAspect = Float.NaN;
+
     /**
      * Interface listener for some callbacks to the UI thread when rendering is setup and finished.
      */
@@ -184,6 +256,45 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
 
     private String mVertexShaderPath;
 
+    private ShaderCostAnalyzer mShaderCostAnalyzer;
+
+    /**
+     * static estimate for fragmentShaderCode, null without an analyzer
+     */
+    private ShaderCost mShaderCost;
+
+    private PrecisionSelector mPrecisionSelector;
+
+    /**
+     * builds programs for {@link #swapShaders} off the GL thread, exists while GL is set up
+     */
+    private volatile ShaderSwapper mShaderSwapper;
+
+    /**
+     * what setupShaders or a swap built, {@link #mCameraShaderProgram} is this or a variant of
+     * it specialized for the session constants
+     */
+    private int mGenericProgram;
+
+    /**
+     * fragment source mGenericProgram was built from, after precision selection
+     */
+    private String mCompiledFragmentShader;
+
+    /**
+     * see {@link #setSessionConstant}, guarded by itself
+     */
+    private final TreeMap<String, float[]> mSessionConstants = new TreeMap<>();
+
+    private volatile boolean mSessionConstantsChanged;
+
+    private volatile SpecializedPrograms mSpecializedPrograms;
+
+    /**
+     * variant we're waiting on, null once it's drawing or there's nothing to wait for
+     */
+    private String mSpecializationKey;
+
     /**
      * Simple ctor to use default shaders
      */
@@ -209,6 +320,16 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
         loadFromShadersFromAssets(mFragmentShaderPath, mVertexShaderPath);
     }
 
+    /**
+     * Swap in different shader files from /assets/. Only takes effect the next time our shaders
+     * are compiled, so call this before setup, ex: from {@link #onPreSetupGLComponents()}
+     */
+    protected void setShaderAssets(String fragPath, String vertPath) {
+        this.mFragmentShaderPath = fragPath;
+        this.mVertexShaderPath = vertPath;
+        loadFromShadersFromAssets(mFragmentShaderPath, mVertexShaderPath);
+    }
+
     private void loadFromShadersFromAssets(String pathToFragment, String pathToVertex) {
         try {
             fragmentShaderCode = ShaderUtils
@@ -219,6 +340,7 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
             Log.e(TAG, "loadFromShadersFromAssets() failed. Check paths to assets.\n" + e
                     .getMessage());
         }
+        analyzeShader();
     }
 
 
@@ -227,7 +349,18 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
         setupVertexBuffer();
         setupTextures();
         setupCameraTexture();
+        mCompiledFragmentShader = null;
         setupShaders();
+        //here rather than in setupShaders, so an override that doesn't call super still leaves
+        //us owning, and deleting, the program it linked
+        mGenericProgram = mCameraShaderProgram;
+        if (mCompiledFragmentShader == null) {
+            mCompiledFragmentShader = fragmentShaderCode;
+        }
+        setupShaderSwapper();
+        setupSpecializedPrograms();
+        latchPreviewSize();
+        setupStages();
         onSetupComplete();
     }
 
@@ -240,8 +373,26 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
     }
 
     protected void deinitGLComponents() {
-        GLES20.glDeleteTextures(MAX_TEXTURES, mTexturesIds, 0);
-        GLES20.glDeleteProgram(mCameraShaderProgram);
+        if (mShaderSwapper != null) {
+            mShaderSwapper.release();
+            mShaderSwapper = null;
+        }
+        if (mSpecializedPrograms != null) {
+            mSpecializedPrograms.release();
+            mSpecializedPrograms = null;
+        }
+        mSpecializationKey = null;
+        for (int i = 0; i < mStages.size(); i++) {
+            mStages.get(i).onRelease();
+        }
+        mFramebufferPool.trim();
+        Gl.glDeleteTextures(MAX_TEXTURES, mTexturesIds, 0);
+        //the one program we own, mCameraShaderProgram may be a variant, which went with
+        //mSpecializedPrograms
+        Gl.glDeleteProgram(mGenericProgram);
+        mGenericProgram = 0;
+        mCameraShaderProgram = 0;
+        mLocationsProgram = 0;
 
     }
 
@@ -253,7 +404,7 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
      * override this method if there's anything else u want to accomplish before
      * the main camera setup gets underway
      */
-    private void onPreSetupGLComponents() {
+    protected void onPreSetupGLComponents() {
 
     }
 
@@ -261,6 +412,202 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
         mAspectRatio = aspect;
     }
 
+    /**
+     * Estimate the fragment shader's cost when it's loaded and log warnings whenever the surface
+     * size makes it likely to blow the analyzer's frame budget. Costs nothing per frame.
+     */
+    public void setShaderCostAnalyzer(ShaderCostAnalyzer analyzer) {
+        mShaderCostAnalyzer = analyzer;
+        analyzeShader();
+    }
+
+    /**
+     * @return estimated cost of the fragment shader, null if there's no analyzer, ex: for
+     * SizeNegotiator.setShaderCost via ShaderCostAnalyzer.getNsPerPixel
+     */
+    public ShaderCost getShaderCost() {
+        return mShaderCost;
+    }
+
+    /**
+     * Compile the fragment shader as mediump or highp, whichever the selector measured to be
+     * fastest without visibly changing the output on this device. Only takes effect the next
+     * time our shaders are compiled, so call this before setup.
+     */
+    public void setPrecisionSelector(PrecisionSelector selector) {
+        mPrecisionSelector = selector;
+    }
+
+    /**
+     * override to set your fragment shader's own uniforms, ex: a time or resolution, on the
+     * program the {@link PrecisionSelector} calibrates with. Anything left unset is 0. Called on
+     * whichever thread builds the program, which is a worker for {@link #swapShaders}
+     */
+    protected void onBindCalibrationUniforms(int program) {
+
+    }
+
+    /**
+     * Switch to different shader files from /assets/ without recreating the renderer, any thread
+     * once GL is set up. They're compiled and linked on a worker context that shares with ours,
+     * and swapped in at the start of the first frame after they've linked. Until then frames
+     * keep drawing with the current program, so switching never drops one. Only the newest of
+     * several quick calls gets swapped in, and a pair that fails to build is logged and ignored.
+     *
+     * The first call makes the worker context, which blocks the caller for a few ms.
+     */
+    public void swapShaders(String fragPath, String vertPath) {
+        ShaderSwapper swapper = mShaderSwapper;
+        if (swapper == null) {
+            throw new IllegalStateException("swapShaders needs GL set up, use setShaderAssets"
+                    + " before that");
+        }
+        swapper.swap(fragPath, vertPath);
+    }
+
+    private void setupShaderSwapper() {
+        int flags = GlUtil.getGlesMajorVersion() >= 3 ? EglCore.FLAG_TRY_GLES3 : 0;
+        mShaderSwapper = new ShaderSwapper(mContextWeakReference.get(),
+                EGL14.eglGetCurrentContext(), flags, new ShaderSwapper.SourceFilter() {
+                    @Override
+                    public String filter(String fragmentPath, String fragmentSource) {
+                        return selectPrecision(fragmentPath, fragmentSource);
+                    }
+                });
+    }
+
+    /**
+     * at a frame boundary, take a program {@link #swapShaders} finished building
+     */
+    private void applyShaderSwap() {
+        ShaderSwapper.Swap swap = mShaderSwapper.poll();
+        if (swap == null) {
+            return;
+        }
+        Gl.glDeleteProgram(mGenericProgram);
+        mGenericProgram = swap.getProgram();
+        mCompiledFragmentShader = swap.getCompiledFragmentSource();
+        //the new program was made while the old one was alive, so its name never matches what
+        //we or the stages resolved locations for
+        useProgram(mGenericProgram);
+        //specialize the new shader too
+        mSessionConstantsChanged = true;
+        mFragmentShaderPath = swap.getFragmentPath();
+        mVertexShaderPath = swap.getVertexPath();
+        fragmentShaderCode = swap.getFragmentSource();
+        vertexShaderCode = swap.getVertexSource();
+        Log.d(TAG, "swapped in " + mFragmentShaderPath);
+        analyzeShader();
+        checkShaderBudget(mSurfaceWidth, mSurfaceHeight);
+    }
+
+    /**
+     * Fold a uniform of the fragment shader that won't change for the rest of the session into
+     * it as a #define, so it's constant folded instead of evaluated for every fragment. Any
+     * thread, ex: with the output size or an effect setting once it's known.
+     *
+     * The specialized program builds on a worker context while the generic one keeps drawing,
+     * so keep setting the uniform as usual, it's just ignored once the variant takes over. The
+     * last {@link SpecializedPrograms#DEFAULT_CAPACITY} variants stay cached, so flipping back
+     * to earlier values is free. Also applies to shaders swapped in later, if one doesn't
+     * declare the uniform the generic program is used and the problem logged.
+     *
+     * @param values one per component, ex: 3 for a vec3. None to make it a plain uniform again
+     */
+    public void setSessionConstant(String name, float... values) {
+        synchronized (mSessionConstants) {
+            if (values.length == 0) {
+                mSessionConstants.remove(name);
+            } else {
+                mSessionConstants.put(name, values.clone());
+            }
+        }
+        mSessionConstantsChanged = true;
+        SpecializedPrograms programs = mSpecializedPrograms;
+        if (programs != null) {
+            //make the worker context here rather than on the GL thread
+            programs.prepare();
+        }
+    }
+
+    private void setupSpecializedPrograms() {
+        int flags = GlUtil.getGlesMajorVersion() >= 3 ? EglCore.FLAG_TRY_GLES3 : 0;
+        mSpecializedPrograms = new SpecializedPrograms(EGL14.eglGetCurrentContext(), flags,
+                SpecializedPrograms.DEFAULT_CAPACITY);
+        mSessionConstantsChanged = true;
+    }
+
+    /**
+     * at a frame boundary, after any swap: draw with the variant for the current session
+     * constants if it's built, otherwise the generic program
+     */
+    private void applySpecialization() {
+        if (mSessionConstantsChanged) {
+            mSessionConstantsChanged = false;
+            TreeMap<String, float[]> constants;
+            synchronized (mSessionConstants) {
+                constants = new TreeMap<>(mSessionConstants);
+            }
+            useProgram(mGenericProgram);
+            mSpecializationKey = constants.isEmpty() ? null : mSpecializedPrograms
+                    .request(vertexShaderCode, mCompiledFragmentShader, constants);
+        }
+        if (mSpecializationKey == null) {
+            return;
+        }
+        int program = mSpecializedPrograms.getProgram(mSpecializationKey);
+        if (program != 0) {
+            useProgram(program);
+            mSpecializationKey = null;
+        } else if (!mSpecializedPrograms.isPending(mSpecializationKey)) {
+            //failed to build, already logged, stay generic
+            mSpecializationKey = null;
+        }
+    }
+
+    private void useProgram(int program) {
+        if (program != mCameraShaderProgram) {
+            mCameraShaderProgram = program;
+            mLocationsProgram = 0;
+        }
+    }
+
+    private String selectPrecision(String fragmentPath, String fragmentSource) {
+        PrecisionSelector selector = mPrecisionSelector;
+        if (selector == null) {
+            return fragmentSource;
+        }
+        return selector.select(fragmentPath, fragmentSource,
+                new PrecisionCalibrator.UniformBinder() {
+                    @Override
+                    public void bind(int program) {
+                        onBindCalibrationUniforms(program);
+                    }
+                });
+    }
+
+    private void analyzeShader() {
+        mShaderCost = null;
+        if (mShaderCostAnalyzer == null || fragmentShaderCode == null) {
+            return;
+        }
+        try {
+            mShaderCost = mShaderCostAnalyzer.analyze(fragmentShaderCode);
+            Log.d(TAG, mFragmentShaderPath + ": " + mShaderCost);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Couldn't estimate cost of " + mFragmentShaderPath + ": " + e.getMessage());
+        }
+    }
+
+    private void checkShaderBudget(int width, int height) {
+        if (mShaderCost == null) {
+            return;
+        }
+        for (String warning : mShaderCostAnalyzer.check(mShaderCost, width, height)) {
+            Log.w(TAG, mFragmentShaderPath + ": " + warning);
+        }
+    }
+
 
     protected void setupVertexBuffer() {
         // Draw list buffer
@@ -287,7 +634,7 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
         textureBuffer.position(0);
 
         // Generate the max amount texture ids
-        GLES20.glGenTextures(MAX_TEXTURES, mTexturesIds, 0);
+        Gl.glGenTextures(MAX_TEXTURES, mTexturesIds, 0);
         checkGlError("Texture generate");
     }
 
@@ -297,8 +644,8 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
      */
     protected void setupCameraTexture() {
         //set texture[0] to camera texture
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTexturesIds[0]);
+        Gl.glActiveTexture(GLES20.GL_TEXTURE0);
+        Gl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTexturesIds[0]);
         checkGlError("Texture bind");
     }
 
@@ -314,32 +661,72 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
      * Handling this manually here but check out another impl at {@link GlUtil#createProgram(String, String)}
      */
     protected void setupShaders() {
-        int vertexShaderHandle = GLES20.glCreateShader(GLES20.GL_VERTEX_SHADER);
-        GLES20.glShaderSource(vertexShaderHandle, vertexShaderCode);
-        GLES20.glCompileShader(vertexShaderHandle);
+        int vertexShaderHandle = Gl.glCreateShader(GLES20.GL_VERTEX_SHADER);
+        Gl.glShaderSource(vertexShaderHandle, vertexShaderCode);
+        Gl.glCompileShader(vertexShaderHandle);
         checkGlError("Vertex shader compile");
 
-        Log.d(TAG, "vertexShader info log:\n " + GLES20.glGetShaderInfoLog(vertexShaderHandle));
+        Log.d(TAG, "vertexShader info log:\n " + Gl.glGetShaderInfoLog(vertexShaderHandle));
 
-        int fragmentShaderHandle = GLES20.glCreateShader(GLES20.GL_FRAGMENT_SHADER);
-        GLES20.glShaderSource(fragmentShaderHandle, fragmentShaderCode);
-        GLES20.glCompileShader(fragmentShaderHandle);
+        String fragmentSource = selectPrecision(mFragmentShaderPath, fragmentShaderCode);
+        int fragmentShaderHandle = Gl.glCreateShader(GLES20.GL_FRAGMENT_SHADER);
+        Gl.glShaderSource(fragmentShaderHandle, fragmentSource);
+        Gl.glCompileShader(fragmentShaderHandle);
         checkGlError("Pixel shader compile");
 
-        Log.d(TAG, "fragmentShader info log:\n " + GLES20.glGetShaderInfoLog(fragmentShaderHandle));
+        Log.d(TAG, "fragmentShader info log:\n " + Gl.glGetShaderInfoLog(fragmentShaderHandle));
 
-        mCameraShaderProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(mCameraShaderProgram, vertexShaderHandle);
-        GLES20.glAttachShader(mCameraShaderProgram, fragmentShaderHandle);
-        GLES20.glLinkProgram(mCameraShaderProgram);
+        mCameraShaderProgram = Gl.glCreateProgram();
+        //names get reused, so a new program never counts as already resolved
+        mLocationsProgram = 0;
+        Gl.glAttachShader(mCameraShaderProgram, vertexShaderHandle);
+        Gl.glAttachShader(mCameraShaderProgram, fragmentShaderHandle);
+        Gl.glLinkProgram(mCameraShaderProgram);
         checkGlError("Shader program compile");
 
         int[] status = new int[1];
-        GLES20.glGetProgramiv(mCameraShaderProgram, GLES20.GL_LINK_STATUS, status, 0);
+        Gl.glGetProgramiv(mCameraShaderProgram, GLES20.GL_LINK_STATUS, status, 0);
         if (status[0] != GLES20.GL_TRUE) {
-            String error = GLES20.glGetProgramInfoLog(mCameraShaderProgram);
+            String error = Gl.glGetProgramInfoLog(mCameraShaderProgram);
             Log.e("SurfaceTest", "Error while linking program:\n" + error);
         }
+        mCompiledFragmentShader = fragmentSource;
+    }
+
+    protected void setupStages() {
+        for (int i = 0; i < mStages.size(); i++) {
+            mStages.get(i).onSetup(this);
+        }
+    }
+
+    /**
+     * Hooks a {@link RenderStage} into our frame. Add stages before the surface is created,
+     * they are set up along with the rest of our GL components.
+     */
+    public void addStage(RenderStage stage) {
+        if (!mStages.contains(stage)) {
+            mStages.add(stage);
+        }
+    }
+
+    /**
+     * Pool of offscreen framebuffers for stages to share
+     */
+    public FramebufferPool getFramebufferPool() {
+        return mFramebufferPool;
+    }
+
+    /**
+     * Hands out a texture unit (ex: {@link GLES20#GL_TEXTURE15}) that won't be used by
+     * {@link #addTexture(Bitmap, String)}. Meant for {@link RenderStage#onSetup(VideoRenderer)},
+     * reservations are reset every time the surface is recreated.
+     */
+    public int reserveTextureUnit() {
+        if (mTextureArray.size() + 1 + mReservedTextureUnits >= MAX_TEXTURES) {
+            throw new IllegalStateException("Too many textures! Please don't use so many :(");
+        }
+        mReservedTextureUnits++;
+        return GLES20.GL_TEXTURE0 + MAX_TEXTURES - mReservedTextureUnits;
     }
 
     /**
@@ -370,32 +757,46 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
      * base amount of attributes needed for rendering camera to screen
      */
     protected void setUniformsAndAttribs() {
-        int textureParamHandle = GLES20.glGetUniformLocation(mCameraShaderProgram, "camTexture");
-
-        int textureTranformHandle = GLES20
-                .glGetUniformLocation(mCameraShaderProgram, "camTextureTransform");
-        int positionMatrixHandle = GLES20
-                .glGetUniformLocation(mCameraShaderProgram, "uPMatrix");
-
-        textureCoordinateHandle = GLES20
-                .glGetAttribLocation(mCameraShaderProgram, "camTexCoordinate");
-        positionHandle = GLES20.glGetAttribLocation(mCameraShaderProgram, "position");
+        if (mCameraShaderProgram != mLocationsProgram) {
+            resolveLocations();
+        }
 
-        GLES20.glEnableVertexAttribArray(positionHandle);
-        GLES20.glVertexAttribPointer(positionHandle, 2, GLES20.GL_FLOAT, false, 4 * 2,
+        Gl.glEnableVertexAttribArray(positionHandle);
+        Gl.glVertexAttribPointer(positionHandle, 2, GLES20.GL_FLOAT, false, 4 * 2,
                 vertexBuffer);
 
         //camera texture
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTexturesIds[0]);
-        GLES20.glUniform1i(textureParamHandle, 0);
+        Gl.glActiveTexture(GLES20.GL_TEXTURE0);
+        Gl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+                mSourceTexture != 0 ? mSourceTexture : mTexturesIds[0]);
+        Gl.glUniform1i(mTextureParamHandle, 0);
 
-        GLES20.glEnableVertexAttribArray(textureCoordinateHandle);
-        GLES20.glVertexAttribPointer(textureCoordinateHandle, 2, GLES20.GL_FLOAT, false, 4 * 2,
+        Gl.glEnableVertexAttribArray(textureCoordinateHandle);
+        Gl.glVertexAttribPointer(textureCoordinateHandle, 2, GLES20.GL_FLOAT, false, 4 * 2,
                 textureBuffer);
 
-        GLES20.glUniformMatrix4fv(textureTranformHandle, 1, false, mCameraTransformMatrix, 0);
-        GLES20.glUniformMatrix4fv(positionMatrixHandle, 1, false, mOrthoMatrix, 0);
+        Gl.glUniformMatrix4fv(mTextureTransformHandle, 1, false,
+                mSourceTransform != null ? mSourceTransform : mCameraTransformMatrix, 0);
+        Gl.glUniformMatrix4fv(mPositionMatrixHandle, 1, false, mOrthoMatrix, 0);
+    }
+
+    /**
+     * look up everything we bind per frame, once per linked program instead of every frame.
+     * Override to look up your own uniforms along with ours, and make sure to call super
+     */
+    protected void resolveLocations() {
+        mLocationsProgram = mCameraShaderProgram;
+        mTextureParamHandle = Gl.glGetUniformLocation(mCameraShaderProgram, "camTexture");
+        mTextureTransformHandle = Gl.glGetUniformLocation(mCameraShaderProgram,
+                "camTextureTransform");
+        mPositionMatrixHandle = Gl.glGetUniformLocation(mCameraShaderProgram, "uPMatrix");
+        textureCoordinateHandle = Gl.glGetAttribLocation(mCameraShaderProgram,
+                "camTexCoordinate");
+        positionHandle = Gl.glGetAttribLocation(mCameraShaderProgram, "position");
+        for (int i = 0; i < mTextureArray.size(); i++) {
+            Texture tex = mTextureArray.get(i);
+            tex.location = Gl.glGetUniformLocation(mCameraShaderProgram, tex.uniformName);
+        }
     }
 
     /**
@@ -404,7 +805,7 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
      */
     public int addTexture(int resource_id, String uniformName) {
         int texId = mTextureConsts[mTextureArray.size()];
-        if (mTextureArray.size() + 1 >= MAX_TEXTURES) {
+        if (mTextureArray.size() + 1 + mReservedTextureUnits >= MAX_TEXTURES) {
             throw new IllegalStateException("Too many textures! Please don't use so many :(");
         }
 
@@ -416,7 +817,7 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
 
     public int addTexture(Bitmap bitmap, String uniformName) {
         int texId = mTextureConsts[mTextureArray.size()];
-        if (mTextureArray.size() + 1 >= MAX_TEXTURES) {
+        if (mTextureArray.size() + 1 + mReservedTextureUnits >= MAX_TEXTURES) {
             throw new IllegalStateException("Too many textures! Please don't use so many :(");
         }
 
@@ -426,13 +827,13 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
     public int addTexture(int texId, Bitmap bitmap, String uniformName, boolean recycle) {
         int num = mTextureArray.size() + 1;
 
-        GLES20.glActiveTexture(texId);
+        Gl.glActiveTexture(texId);
         checkGlError("Texture generate");
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexturesIds[num]);
+        Gl.glBindTexture(GLES20.GL_TEXTURE_2D, mTexturesIds[num]);
         checkGlError("Texture bind");
-        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+        Gl.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
                 GLES20.GL_NEAREST);
-        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+        Gl.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
                 GLES20.GL_NEAREST);
         GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
 
@@ -444,6 +845,8 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
 
         if (!mTextureArray.contains(tex)) {
             mTextureArray.add(tex);
+            //picked up by resolveLocations on the next frame
+            mLocationsProgram = 0;
             Log.d(TAG, "addedTexture() " + mTexturesIds[num] + " : " + tex);
         }
 
@@ -454,9 +857,9 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
      * updates specific texture and recycles bitmap used for updating
      */
     public void updateTexture(int texNum, Bitmap drawingCache) {
-        GLES20.glActiveTexture(mTextureConsts[texNum - 1]);
+        Gl.glActiveTexture(mTextureConsts[texNum - 1]);
         checkGlError("Texture generate");
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexturesIds[texNum]);
+        Gl.glBindTexture(GLES20.GL_TEXTURE_2D, mTexturesIds[texNum]);
         checkGlError("Texture bind");
         GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, drawingCache);
         checkGlError("Tex Sub Image");
@@ -473,24 +876,22 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
 
         for (int i = 0; i < mTextureArray.size(); i++) {
             Texture tex = mTextureArray.get(i);
-            int imageParamHandle = GLES20
-                    .glGetUniformLocation(mCameraShaderProgram, tex.uniformName);
 
-            GLES20.glActiveTexture(tex.texId);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexturesIds[tex.texNum]);
-            GLES20.glUniform1i(imageParamHandle, tex.texNum);
+            Gl.glActiveTexture(tex.texId);
+            Gl.glBindTexture(GLES20.GL_TEXTURE_2D, mTexturesIds[tex.texNum]);
+            Gl.glUniform1i(tex.location, tex.texNum);
         }
     }
 
     protected void drawElements() {
 
-        GLES20.glDrawElements(GLES20.GL_TRIANGLES, drawOrder.length, GLES20.GL_UNSIGNED_SHORT,
+        Gl.glDrawElements(GLES20.GL_TRIANGLES, drawOrder.length, GLES20.GL_UNSIGNED_SHORT,
                 drawListBuffer);
     }
 
     protected void onDrawCleanup() {
-        GLES20.glDisableVertexAttribArray(positionHandle);
-        GLES20.glDisableVertexAttribArray(textureCoordinateHandle);
+        Gl.glDisableVertexAttribArray(positionHandle);
+        Gl.glDisableVertexAttribArray(textureCoordinateHandle);
     }
 
     /**
@@ -498,7 +899,7 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
      */
     public void checkGlError(String op) {
         int error;
-        while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
+        while ((error = Gl.glGetError()) != GLES20.GL_NO_ERROR) {
             Log.e("SurfaceTest", op + ": glError " + GLUtils.getEGLErrorString(error));
         }
     }
@@ -518,6 +919,7 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
     public void onSurfaceCreated() {
         deinitGL();
         mTextureArray = new ArrayList<>();
+        mReservedTextureUnits = 0;
         initGLComponents();
     }
 
@@ -529,6 +931,7 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
         mViewportWidth = width;
 
         mAspectRatio = 1.0f * mViewportWidth / mViewportHeight;
+        checkShaderBudget(width, height);
     }
 
     @Override
@@ -561,32 +964,163 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
 
     @Override
     public void onDrawFrame() {
+        latchPreviewSize();
+        applyShaderSwap();
+        applySpecialization();
+
+        //latch everything that came in since the last draw but only draw the newest, so a
+        //camera running faster than the display (ex: high speed sessions) gets decimated to
+        //display rate instead of piling up
+        int pending = mNeedsRefreshCount.getAndSet(0);
+        for (int i = 0; i < pending; i++) {
+            mSurfaceTexture.updateTexImage();
+            mFrameNumber++;
+        }
+        if (pending > 0) {
+            mSurfaceTexture.getTransformMatrix(mCameraTransformMatrix);
+            mFrameTimestampNs = mSurfaceTexture.getTimestamp();
+            mSkippedFrames += pending - 1;
+        }
 
-        Matrix.orthoM(mOrthoMatrix, 0, -mAspectRatio, mAspectRatio,  -1,  1 ,-1, 1);
+        for (int i = 0; i < mStages.size(); i++) {
+            mStages.get(i).onPreDraw(this);
+        }
 
-        if (mNeedsRefreshCount > 0) {
-            for (int i = 0; i < mNeedsRefreshCount; i++) {
-                mSurfaceTexture.updateTexImage();
-                mSurfaceTexture.getTransformMatrix(mCameraTransformMatrix);
-                mNeedsRefreshCount--;
-            }
+        //after the stages, which may have drawn tiles with their own projection
+        if (mAspectRatio != mOrthoAspect) {
+            Matrix.orthoM(mOrthoMatrix, 0, -mAspectRatio, mAspectRatio, -1, 1, -1, 1);
+            mOrthoAspect = mAspectRatio;
+        }
+        Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,
+                mRenderTarget != null ? mRenderTarget.getFramebufferId() : 0);
+        Gl.glViewport(0, 0, mViewportWidth, mViewportHeight);
+        drawMainPass();
 
+        for (int i = 0; i < mStages.size(); i++) {
+            mStages.get(i).onPostDraw(this);
         }
+    }
 
-        GLES20.glViewport(0, 0, mViewportWidth, mViewportHeight);
+    /**
+     * Draws part of a frame from another external texture through our program instead of the
+     * camera frame, ex: a full resolution still too big to draw in one go. The region is in 0-1
+     * of the whole frame from the top left, and gets stretched over all of target.
+     *
+     * Stages only get {@link RenderStage#onBindUniforms}, so anything they computed offscreen
+     * still comes from the last preview frame. Shaders that use gl_FragCoord will see tile
+     * coordinates. Call on the GL thread.
+     */
+    public void drawTile(int texture, float[] transform, float left, float top, float right,
+            float bottom, Framebuffer target) {
+        Matrix.orthoM(mOrthoMatrix, 0, -1.f + 2.f * left, -1.f + 2.f * right,
+                1.f - 2.f * bottom, 1.f - 2.f * top, -1, 1);
+        mOrthoAspect = Float.NaN;
+        mSourceTexture = texture;
+        mSourceTransform = transform;
+        try {
+            target.bind();
+            drawMainPass();
+        } finally {
+            mSourceTexture = 0;
+            mSourceTransform = null;
+        }
+    }
 
-        GLES20.glClearColor(0.329412f, 0.329412f, 0.329412f, 0.0f);
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+    /**
+     * our program's draw into whatever is bound
+     */
+    private void drawMainPass() {
+        Gl.glClearColor(0.329412f, 0.329412f, 0.329412f, 0.0f);
+        Gl.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
         //set shader
-        GLES20.glUseProgram(mCameraShaderProgram);
+        Gl.glUseProgram(mCameraShaderProgram);
 
         setUniformsAndAttribs();
         setExtraTextures();
+        for (int i = 0; i < mStages.size(); i++) {
+            mStages.get(i).onBindUniforms(this, mCameraShaderProgram);
+        }
         drawElements();
         onDrawCleanup();
     }
 
+    /**
+     * Called by {@link VideoFragment} with the size of the camera buffers it asked for, so stages
+     * can size offscreen targets to match the camera rather than the screen.
+     */
+    public void setPreviewSize(int width, int height) {
+        mRequestedPreviewSize = (long) width << 32 | (height & 0xffffffffL);
+    }
+
+    /**
+     * render thread, so stages see the same size for a whole frame
+     */
+    private void latchPreviewSize() {
+        long size = mRequestedPreviewSize;
+        mPreviewWidth = (int) (size >>> 32);
+        mPreviewHeight = (int) size;
+    }
+
+    /**
+     * @return width of the camera buffers, or of our surface if we don't know it yet
+     */
+    public int getPreviewWidth() {
+        return mPreviewWidth > 0 ? mPreviewWidth : mSurfaceWidth;
+    }
+
+    /**
+     * @return height of the camera buffers, or of our surface if we don't know it yet
+     */
+    public int getPreviewHeight() {
+        return mPreviewHeight > 0 ? mPreviewHeight : mSurfaceHeight;
+    }
+
+    /**
+     * @return {@link SurfaceTexture#getTimestamp()} of the camera frame currently in our texture
+     */
+    public long getFrameTimestamp() {
+        return mFrameTimestampNs;
+    }
+
+    /**
+     * @return number of camera frames we've latched so far, stages can compare this between
+     * draws to tell whether the camera texture actually changed
+     */
+    public long getFrameNumber() {
+        return mFrameNumber;
+    }
+
+    /**
+     * @return camera frames latched but never drawn because the camera outran our draws
+     */
+    public long getSkippedFrames() {
+        return mSkippedFrames;
+    }
+
+    /**
+     * Draw into an offscreen framebuffer instead of the current EGL surface, ex: when running
+     * headless. Pass null to go back to the surface. Call on the GL thread.
+     */
+    public void setRenderTarget(Framebuffer target) {
+        mRenderTarget = target;
+    }
+
+    public Framebuffer getRenderTarget() {
+        return mRenderTarget;
+    }
+
+    public Context getContext() {
+        return mContextWeakReference.get();
+    }
+
+    /**
+     * matrix for transforming our camera texture, updated along with the camera frame
+     */
+    public float[] getCameraTransformMatrix() {
+        return mCameraTransformMatrix;
+    }
+
     public void setSurfaceTexture(SurfaceTexture surfaceTexture) {
         mSurfaceTexture = surfaceTexture;
         mSurfaceTexture.setOnFrameAvailableListener(this);
@@ -594,7 +1128,7 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
 
     @Override
     public void onFrameAvailable(SurfaceTexture surfaceTexture) {
-        mNeedsRefreshCount++;
+        mNeedsRefreshCount.incrementAndGet();
         if (mSurfaceTexture != null) {
         } else {
             if (mVideoFragment.getSurfaceTexture() != null) {
@@ -614,6 +1148,11 @@ public class VideoRenderer implements RecordableSurfaceView.RendererCallbacks,
 
         public String uniformName;
 
+        /**
+         * uniformName's location in the current program
+         */
+        public int location = -1;
+
         private Texture(int texNum, int texId, String uniformName) {
             this.texNum = texNum;
             this.texId = texId;
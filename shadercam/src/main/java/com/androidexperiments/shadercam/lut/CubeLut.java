@@ -0,0 +1,92 @@
+package com.androidexperiments.shadercam.lut;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A parsed 3D color lookup table. Values are stored as a flat primitive array of rgb triplets,
+ * red varying fastest, then green, then blue - the same order the .cube format uses and the same
+ * order {@code glTexImage3D} expects, so the data can be uploaded without any reshuffling.
+ */
+public class CubeLut {
+
+    /**
+     * optional TITLE from the .cube file, may be null
+     */
+    private final String mTitle;
+
+    /**
+     * edge length of the cube, ex: 33 for a 33x33x33 lut
+     */
+    private final int mSize;
+
+    /**
+     * size * size * size * 3 floats, already normalized against the domain to 0..1
+     */
+    private final float[] mData;
+
+    public CubeLut(String title, int size, float[] data) {
+        if (size < 2) {
+            throw new IllegalArgumentException("LUT size must be at least 2, was " + size);
+        }
+        if (data.length != size * size * size * 3) {
+            throw new IllegalArgumentException("Expected " + (size * size * size * 3)
+                    + " values for a " + size + "^3 LUT but got " + data.length);
+        }
+        mTitle = title;
+        mSize = size;
+        mData = data;
+    }
+
+    public String getTitle() {
+        return mTitle;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public float[] getData() {
+        return mData;
+    }
+
+    /**
+     * Quantizes the table to 8 bits per channel, which is what we upload as GL_RGB8 and what
+     * {@link LutCache} stores on disk.
+     *
+     * @param out direct buffer of at least {@link #getQuantizedByteCount(int)} bytes, or null to
+     *            allocate a new one
+     * @return the buffer holding the quantized data, positioned at 0
+     */
+    public ByteBuffer quantize(ByteBuffer out) {
+        int count = mData.length;
+        if (out == null || out.capacity() < count) {
+            out = ByteBuffer.allocateDirect(count).order(ByteOrder.nativeOrder());
+        }
+        out.clear();
+        for (int i = 0; i < count; i++) {
+            float v = mData[i];
+            if (v <= 0.f) {
+                out.put((byte) 0);
+            } else if (v >= 1.f) {
+                out.put((byte) 255);
+            } else {
+                out.put((byte) (int) (v * 255.f + 0.5f));
+            }
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * @return number of bytes needed to hold an RGB8 lut of the given edge size
+     */
+    public static int getQuantizedByteCount(int size) {
+        return size * size * size * 3;
+    }
+
+    @Override
+    public String toString() {
+        return "[CubeLut] title: " + mTitle + " size: " + mSize;
+    }
+}
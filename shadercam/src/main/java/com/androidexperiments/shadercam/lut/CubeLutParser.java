@@ -0,0 +1,334 @@
+package com.androidexperiments.shadercam.lut;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * Parser for Adobe/Resolve style .cube 3D luts.
+ *
+ * Large luts (65^3) are ~275k lines of text, so rather than going through readLine() and
+ * String.split() for every row we scan a reusable char buffer by hand and parse the floats
+ * ourselves straight into the primitive array handed to {@link CubeLut}. The only allocations
+ * are the buffer, the output array and the TITLE string.
+ *
+ * This class is pure java so it can run off-device (see the benchmark module). It is not thread
+ * safe, but is cheap to create - use one per loading thread.
+ */
+public class CubeLutParser {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * powers of ten for fraction and exponent scaling, ex: POW10[3] == 1000
+     */
+    private static final double[] POW10 = new double[23];
+
+    static {
+        POW10[0] = 1.0;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10.0;
+        }
+    }
+
+    private final char[] mBuffer = new char[BUFFER_SIZE];
+
+    private Reader mReader;
+
+    private int mPos;
+
+    private int mLimit;
+
+    private int mLine;
+
+    /**
+     * scratch for the three values of a single row, and a domain min/max pair
+     */
+    private final float[] mRow = new float[3];
+
+    public CubeLut parse(InputStream is) throws IOException {
+        return parse(new InputStreamReader(is, ASCII));
+    }
+
+    /**
+     * Parses a complete .cube file. The reader is not closed.
+     *
+     * @throws IOException if the stream fails or the file is malformed, with the offending line
+     */
+    public CubeLut parse(Reader reader) throws IOException {
+        mReader = reader;
+        mPos = 0;
+        mLimit = 0;
+        mLine = 1;
+
+        String title = null;
+        int size = -1;
+        float[] data = null;
+        int written = 0;
+        float minR = 0.f, minG = 0.f, minB = 0.f;
+        float maxR = 1.f, maxG = 1.f, maxB = 1.f;
+
+        int c;
+        while ((c = peek()) != -1) {
+            if (c == '\n') {
+                mPos++;
+                mLine++;
+            } else if (c == ' ' || c == '\t' || c == '\r') {
+                mPos++;
+            } else if (c == '#') {
+                skipLine();
+            } else if (isNumberStart(c)) {
+                if (data == null) {
+                    throw error("Data found before LUT_3D_SIZE");
+                }
+                if (written >= data.length) {
+                    throw error("More rows than LUT_3D_SIZE " + size + " allows");
+                }
+                readRow();
+                data[written++] = mRow[0];
+                data[written++] = mRow[1];
+                data[written++] = mRow[2];
+                skipLine();
+            } else {
+                String keyword = readWord();
+                if ("TITLE".equals(keyword)) {
+                    title = readTitle();
+                } else if ("LUT_3D_SIZE".equals(keyword)) {
+                    size = (int) readFloat();
+                    if (size < 2 || size > 256) {
+                        throw error("Unsupported LUT_3D_SIZE " + size);
+                    }
+                    data = new float[size * size * size * 3];
+                    skipLine();
+                } else if ("DOMAIN_MIN".equals(keyword)) {
+                    readRow();
+                    minR = mRow[0];
+                    minG = mRow[1];
+                    minB = mRow[2];
+                    skipLine();
+                } else if ("DOMAIN_MAX".equals(keyword)) {
+                    readRow();
+                    maxR = mRow[0];
+                    maxG = mRow[1];
+                    maxB = mRow[2];
+                    skipLine();
+                } else if ("LUT_3D_INPUT_RANGE".equals(keyword)) {
+                    //resolve flavor, a single min/max for all channels
+                    minR = minG = minB = readFloat();
+                    maxR = maxG = maxB = readFloat();
+                    skipLine();
+                } else if ("LUT_1D_SIZE".equals(keyword)) {
+                    throw error("1D luts are not supported");
+                } else {
+                    //unknown keywords are allowed by the spec, skip them
+                    skipLine();
+                }
+            }
+        }
+
+        mReader = null;
+
+        if (data == null) {
+            throw error("Missing LUT_3D_SIZE");
+        }
+        if (written != data.length) {
+            throw error("Expected " + (data.length / 3) + " rows but found " + (written / 3));
+        }
+
+        if (minR != 0.f || minG != 0.f || minB != 0.f
+                || maxR != 1.f || maxG != 1.f || maxB != 1.f) {
+            normalize(data, minR, minG, minB, maxR, maxG, maxB);
+        }
+
+        return new CubeLut(title, size, data);
+    }
+
+    private static void normalize(float[] data, float minR, float minG, float minB,
+            float maxR, float maxG, float maxB) {
+        float sr = scale(minR, maxR);
+        float sg = scale(minG, maxG);
+        float sb = scale(minB, maxB);
+        for (int i = 0; i < data.length; i += 3) {
+            data[i] = (data[i] - minR) * sr;
+            data[i + 1] = (data[i + 1] - minG) * sg;
+            data[i + 2] = (data[i + 2] - minB) * sb;
+        }
+    }
+
+    /**
+     * 0 for an empty domain, ex: DOMAIN_MIN equal to DOMAIN_MAX, so that channel comes out 0
+     * instead of NaN or infinity
+     */
+    private static float scale(float min, float max) {
+        float range = max - min;
+        return range != 0.f ? 1.f / range : 0.f;
+    }
+
+    // ------------------------------------------------------------
+    // scanning
+    // ------------------------------------------------------------
+
+    private int peek() throws IOException {
+        if (mPos >= mLimit) {
+            mLimit = mReader.read(mBuffer, 0, mBuffer.length);
+            mPos = 0;
+            if (mLimit <= 0) {
+                mLimit = 0;
+                return -1;
+            }
+        }
+        return mBuffer[mPos];
+    }
+
+    private void skipSpaces() throws IOException {
+        int c;
+        while ((c = peek()) == ' ' || c == '\t') {
+            mPos++;
+        }
+    }
+
+    /**
+     * skips everything up to and including the next newline
+     */
+    private void skipLine() throws IOException {
+        int c;
+        while ((c = peek()) != -1) {
+            mPos++;
+            if (c == '\n') {
+                mLine++;
+                return;
+            }
+        }
+    }
+
+    private String readWord() throws IOException {
+        StringBuilder sb = new StringBuilder(20);
+        int c;
+        while ((c = peek()) != -1 && c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+            sb.append((char) c);
+            mPos++;
+        }
+        return sb.toString();
+    }
+
+    private String readTitle() throws IOException {
+        skipSpaces();
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = peek()) != -1 && c != '\r' && c != '\n') {
+            if (c != '"') {
+                sb.append((char) c);
+            }
+            mPos++;
+        }
+        return sb.toString().trim();
+    }
+
+    private void readRow() throws IOException {
+        mRow[0] = readFloat();
+        mRow[1] = readFloat();
+        mRow[2] = readFloat();
+    }
+
+    private static boolean isNumberStart(int c) {
+        return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.';
+    }
+
+    /**
+     * Reads a decimal float such as {@code -0.0123}, {@code 1} or {@code 1.5e-3}. Anything more
+     * exotic (nan, inf, hex floats) is handed off to {@link Float#parseFloat(String)}.
+     */
+    private float readFloat() throws IOException {
+        skipSpaces();
+
+        int c = peek();
+        boolean negative = false;
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            mPos++;
+            c = peek();
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean any = false;
+
+        while (c >= '0' && c <= '9') {
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                scale--;
+            }
+            any = true;
+            mPos++;
+            c = peek();
+        }
+        if (c == '.') {
+            mPos++;
+            c = peek();
+            while (c >= '0' && c <= '9') {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    scale++;
+                }
+                any = true;
+                mPos++;
+                c = peek();
+            }
+        }
+        if (!any) {
+            if (c == 'n' || c == 'N' || c == 'i' || c == 'I') {
+                String word = readWord();
+                try {
+                    return Float.parseFloat((negative ? "-" : "") + word);
+                } catch (NumberFormatException e) {
+                    throw error("Bad number '" + word + "'");
+                }
+            }
+            throw error("Expected a number");
+        }
+        if (c == 'e' || c == 'E') {
+            mPos++;
+            c = peek();
+            boolean negativeExp = false;
+            if (c == '-' || c == '+') {
+                negativeExp = c == '-';
+                mPos++;
+                c = peek();
+            }
+            int exp = 0;
+            while (c >= '0' && c <= '9') {
+                exp = exp * 10 + (c - '0');
+                if (exp > 99) {
+                    throw error("Exponent out of range");
+                }
+                mPos++;
+                c = peek();
+            }
+            scale += negativeExp ? exp : -exp;
+        }
+
+        double value = mantissa;
+        if (scale > 0) {
+            value = scale < POW10.length ? value / POW10[scale] : value / Math.pow(10, scale);
+        } else if (scale < 0) {
+            value = -scale < POW10.length ? value * POW10[-scale] : value * Math.pow(10, -scale);
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    private IOException error(String msg) {
+        return new IOException("Malformed .cube at line " + mLine + ": " + msg);
+    }
+}
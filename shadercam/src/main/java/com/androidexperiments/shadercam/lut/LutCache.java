@@ -0,0 +1,171 @@
+package com.androidexperiments.shadercam.lut;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * On-disk cache of parsed and quantized luts, so switching between looks we've seen before is
+ * just a file map instead of a text parse.
+ *
+ * File layout, little endian:
+ * <pre>
+ *   int   magic   'SCLT'
+ *   int   version
+ *   int   size    edge length of the cube
+ *   int   keyLength
+ *   byte  key[keyLength]                utf-8, guards against file name hash collisions
+ *   byte  rgb[size * size * size * 3]   red fastest, same order as {@link CubeLut}
+ * </pre>
+ *
+ * The rgb block is mapped read-only and can be passed directly to glTexImage3D / glTexSubImage2D.
+ */
+public class LutCache {
+
+    private static final int MAGIC = 0x544C4353; //'SCLT' read as a little endian int
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final String EXTENSION = ".sclut";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+
+    public LutCache(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Builds a cache key for a lut file that changes whenever the file does, without having
+     * to read it.
+     */
+    public static String keyFor(File cubeFile) {
+        return cubeFile.getAbsolutePath() + "@" + cubeFile.length() + "@" + cubeFile.lastModified();
+    }
+
+    /**
+     * Returns the cached rgb data for this key, or null if we don't have it (or it's corrupt,
+     * in which case it is deleted).
+     *
+     * @param outSize single element array that receives the edge size of the cube
+     */
+    public ByteBuffer read(String key, int[] outSize) {
+        File file = fileFor(key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (mapped.remaining() < HEADER_SIZE
+                    || mapped.getInt() != MAGIC || mapped.getInt() != VERSION) {
+                throw new IOException("bad header");
+            }
+            int size = mapped.getInt();
+            int keyLength = mapped.getInt();
+            byte[] keyBytes = key.getBytes(UTF8);
+            if (keyLength != keyBytes.length || mapped.remaining() < keyLength) {
+                throw new IOException("key mismatch");
+            }
+            for (int i = 0; i < keyLength; i++) {
+                if (mapped.get() != keyBytes[i]) {
+                    throw new IOException("key mismatch");
+                }
+            }
+
+            if (size < 2 || mapped.remaining() != CubeLut.getQuantizedByteCount(size)) {
+                throw new IOException("bad size " + size);
+            }
+
+            outSize[0] = size;
+            return mapped.slice();
+        } catch (IOException e) {
+            //treat as a miss (collision or corrupt), next write() will replace it
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Writes quantized rgb data for this key. The buffer's position is left untouched.
+     */
+    public void write(String key, int size, ByteBuffer rgb) throws IOException {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create lut cache dir " + mDirectory);
+        }
+
+        File file = fileFor(key);
+        File temp = new File(file.getPath() + ".tmp");
+
+        byte[] keyBytes = key.getBytes(UTF8);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(keyBytes.length).put(keyBytes);
+        header.flip();
+
+        ByteBuffer data = rgb.duplicate();
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(temp, "rw");
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        } finally {
+            closeQuietly(raf);
+        }
+
+        //write-then-rename so a crash never leaves a half written entry behind
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not move lut into cache: " + file);
+        }
+    }
+
+    public void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.getName().endsWith(EXTENSION)) {
+                f.delete();
+            }
+        }
+    }
+
+    private File fileFor(String key) {
+        //keys are paths, so hash them into something filesystem friendly
+        return new File(mDirectory, Integer.toHexString(key.hashCode()) + "_"
+                + Integer.toHexString(key.length()) + EXTENSION);
+    }
+
+    private static void closeQuietly(RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
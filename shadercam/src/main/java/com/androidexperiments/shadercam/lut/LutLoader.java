@@ -0,0 +1,200 @@
+package com.androidexperiments.shadercam.lut;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Loads .cube luts on a background thread. Results are quantized to RGB8 and kept both in a
+ * small in-memory LRU and in a {@link LutCache} on disk, so a look only ever gets parsed once.
+ */
+public class LutLoader {
+
+    private static final String TAG = LutLoader.class.getSimpleName();
+
+    private static final String THREAD_NAME = "LutLoaderThread";
+
+    private static final String CACHE_DIR = "luts";
+
+    /**
+     * number of quantized luts we keep around in memory, a 65^3 lut is ~800kb
+     */
+    private static final int MEMORY_CACHE_ENTRIES = 4;
+
+    private final HandlerThread mThread;
+
+    private final Handler mHandler;
+
+    private final LutCache mDiskCache;
+
+    private final CubeLutParser mParser = new CubeLutParser();
+
+    private final Context mContext;
+
+    /**
+     * only touched on {@link #mThread}
+     */
+    private final LinkedHashMap<String, Entry> mMemoryCache =
+            new LinkedHashMap<String, Entry>(MEMORY_CACHE_ENTRIES + 1, 1.f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MEMORY_CACHE_ENTRIES;
+                }
+            };
+
+    public LutLoader(Context context) {
+        mContext = context.getApplicationContext();
+        mDiskCache = new LutCache(new File(mContext.getCacheDir(), CACHE_DIR));
+
+        mThread = new HandlerThread(THREAD_NAME);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Loads a .cube file from storage. The listener is called on the loader thread.
+     */
+    public void load(final File cubeFile, final OnLutLoadedListener listener) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                deliver(LutCache.keyFor(cubeFile), cubeFile, null, listener);
+            }
+        });
+    }
+
+    /**
+     * Loads a .cube file from the /assets/ folder. The listener is called on the loader thread.
+     */
+    public void loadAsset(final String assetPath, final OnLutLoadedListener listener) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                deliver(assetKey(assetPath), null, assetPath, listener);
+            }
+        });
+    }
+
+    /**
+     * Drops everything we've cached, in memory and on disk.
+     */
+    public void clearCache() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mMemoryCache.clear();
+                mDiskCache.clear();
+            }
+        });
+    }
+
+    /**
+     * Stops the loader thread once any pending loads are done.
+     */
+    public void release() {
+        mThread.quitSafely();
+    }
+
+    /**
+     * memory, then disk, then parse. exactly one of file or assetPath is non-null
+     */
+    private void deliver(String key, File file, String assetPath, OnLutLoadedListener listener) {
+        Entry entry;
+        try {
+            entry = mMemoryCache.get(key);
+            if (entry == null) {
+                entry = loadCached(key);
+            }
+            if (entry == null) {
+                InputStream is = file != null
+                        ? new FileInputStream(file)
+                        : mContext.getAssets().open(assetPath);
+                try {
+                    entry = parseAndStore(key, is);
+                } finally {
+                    is.close();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            //runtime exceptions are what a malformed .cube file parses to
+            Log.e(TAG, "Failed to load lut " + key, e);
+            listener.onLutLoadFailed(key, e);
+            return;
+        }
+        mMemoryCache.put(key, entry);
+        listener.onLutLoaded(key, entry.size, entry.rgb.duplicate());
+    }
+
+    private Entry loadCached(String key) {
+        int[] size = new int[1];
+        ByteBuffer rgb = mDiskCache.read(key, size);
+        if (rgb == null) {
+            return null;
+        }
+        return new Entry(size[0], rgb);
+    }
+
+    private Entry parseAndStore(String key, InputStream is) throws IOException {
+        long start = System.nanoTime();
+        CubeLut lut = mParser.parse(is);
+        ByteBuffer rgb = lut.quantize(null);
+        Log.d(TAG, "parsed " + lut + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+
+        try {
+            mDiskCache.write(key, lut.getSize(), rgb);
+        } catch (IOException e) {
+            //not fatal, we just parse it again next time
+            Log.w(TAG, "Could not cache lut " + key, e);
+        }
+        return new Entry(lut.getSize(), rgb);
+    }
+
+    /**
+     * assets only change with the apk, so key them off the install time
+     */
+    private String assetKey(String assetPath) {
+        long updated = 0;
+        try {
+            updated = mContext.getPackageManager()
+                    .getPackageInfo(mContext.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException ignored) {
+        }
+        return "asset:" + assetPath + "@" + updated;
+    }
+
+    private static class Entry {
+
+        private final int size;
+
+        private final ByteBuffer rgb;
+
+        private Entry(int size, ByteBuffer rgb) {
+            this.size = size;
+            this.rgb = rgb;
+        }
+    }
+
+    /**
+     * Callbacks for {@link #load(File, OnLutLoadedListener)}, both are called on the loader thread.
+     */
+    public interface OnLutLoadedListener {
+
+        /**
+         * @param rgb quantized RGB8 data positioned at 0. Shared with the cache, so hold on to
+         *            it as long as u like but don't write to it.
+         */
+        void onLutLoaded(String key, int size, ByteBuffer rgb);
+
+        void onLutLoadFailed(String key, Exception e);
+    }
+}
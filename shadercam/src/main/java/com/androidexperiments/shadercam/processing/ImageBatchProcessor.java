@@ -0,0 +1,852 @@
+package com.androidexperiments.shadercam.processing;
+
+import com.androidexperiments.shadercam.gl.EglCore;
+import com.androidexperiments.shadercam.gl.Framebuffer;
+import com.androidexperiments.shadercam.gl.Gl;
+import com.androidexperiments.shadercam.gl.OffscreenSurface;
+import com.androidexperiments.shadercam.gl.VideoRenderer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import android.graphics.SurfaceTexture;
+import android.media.ExifInterface;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs every image in a directory through a {@link VideoRenderer}'s shaders and writes the
+ * results to another directory, ex: applying a preview effect to a whole event's photo dump.
+ *
+ * Images go through the same path camera frames do - drawn into the renderer's camera texture
+ * through a SurfaceTexture, then through its fragment shader and stages - so they come out
+ * looking exactly like the preview. The work is split in four stages:
+ * <ul>
+ * <li>decode, on {@link #setDecodeThreads(int)} threads, into pooled bitmaps. EXIF orientation
+ * is applied when the image is drawn into the camera texture, so portrait photos come out
+ * upright</li>
+ * <li>render, on the thread calling {@link #process()}, the only one that touches GL</li>
+ * <li>readback, also on the GL thread. On GLES 3 pixels are read into one of two pixel pack
+ * buffers right after drawing and only mapped one image later, so neither the read nor the map
+ * waits on the GPU. On GLES 2 it's a plain glReadPixels one image behind</li>
+ * <li>encode, on {@link #setEncodeThreads(int)} threads, from pooled pixel buffers</li>
+ * </ul>
+ * The queues between them hold {@link #setQueueCapacity(int)} images, so a slow stage holds the
+ * others back instead of piling decoded images up in memory. {@link #getStats()} shows which
+ * stage that is.
+ *
+ * The renderer must be a fresh one, not also attached to a RecordableSurfaceView.
+ */
+public class ImageBatchProcessor {
+
+    private static final String TAG = ImageBatchProcessor.class.getSimpleName();
+
+    /**
+     * how long we wait for a drawn image to show up in our SurfaceTexture
+     */
+    private static final long FRAME_TIMEOUT_MS = 2500;
+
+    private static final String[] EXTENSIONS = {".jpg", ".jpeg", ".png", ".webp"};
+
+    /**
+     * marks the end of a stage's output, one per producing thread
+     */
+    private static final Job END = new Job(null);
+
+    private final VideoRenderer mRenderer;
+
+    private final File mInputDir;
+
+    private final File mOutputDir;
+
+    private int mDecodeThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    private int mEncodeThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    private int mQueueCapacity = 4;
+
+    private int mMaxWidth = 4096, mMaxHeight = 4096;
+
+    private Bitmap.CompressFormat mFormat = Bitmap.CompressFormat.JPEG;
+
+    private int mQuality = 90;
+
+    private OnProgressListener mListener;
+
+    private volatile boolean mCancelled = false;
+
+    private File[] mInputs;
+
+    private final AtomicInteger mNextInput = new AtomicInteger();
+
+    private final AtomicInteger mDone = new AtomicInteger();
+
+    private final AtomicInteger mFailed = new AtomicInteger();
+
+    private ArrayBlockingQueue<Job> mDecoded, mRendered;
+
+    private final Pool<Bitmap> mBitmaps = new Pool<>();
+
+    private final Pool<ByteBuffer> mPixels = new Pool<>();
+
+    private StageStats mDecodeStats, mRenderStats, mReadbackStats, mEncodeStats;
+
+    /**
+     * the pair of pixel pack buffers readback alternates between, and their sizes. Empty on GLES 2
+     */
+    private final int[] mPackBuffers = new int[2];
+
+    private final int[] mPackBufferSizes = new int[2];
+
+    private int mNextPackBuffer;
+
+    /**
+     * scratch for orienting images as they're drawn, GL thread only
+     */
+    private final Matrix mOrientMatrix = new Matrix();
+
+    private final RectF mOrientBounds = new RectF();
+
+    private final Object mFrameLock = new Object();
+
+    private boolean mFrameAvailable;
+
+    private long mStartTime, mEndTime;
+
+    public ImageBatchProcessor(VideoRenderer renderer, File inputDir, File outputDir) {
+        mRenderer = renderer;
+        mInputDir = inputDir;
+        mOutputDir = outputDir;
+    }
+
+    public void setDecodeThreads(int threads) {
+        mDecodeThreads = Math.max(1, threads);
+    }
+
+    public void setEncodeThreads(int threads) {
+        mEncodeThreads = Math.max(1, threads);
+    }
+
+    /**
+     * Images allowed to wait between two stages, defaults to 4. Memory use is roughly
+     * (2 * capacity + threads) full size images.
+     */
+    public void setQueueCapacity(int capacity) {
+        mQueueCapacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Larger images are decoded at a power of two downsample to fit, defaults to 4096x4096 which
+     * every GLES 3 device can render
+     */
+    public void setMaxSize(int width, int height) {
+        mMaxWidth = width;
+        mMaxHeight = height;
+    }
+
+    /**
+     * Output format and quality, defaults to JPEG at 90. Files keep their input name with the
+     * format's extension.
+     */
+    public void setOutputFormat(Bitmap.CompressFormat format, int quality) {
+        mFormat = format;
+        mQuality = quality;
+    }
+
+    public void setOnProgressListener(OnProgressListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Stops after the images already decoded, everything written so far stays
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Processes on a new thread, reporting back through the {@link OnProgressListener}
+     */
+    public void start() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    process();
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Processing " + mInputDir + " failed", e);
+                    if (mListener != null) {
+                        mListener.onError(e);
+                    }
+                }
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Processes the whole directory, rendering on the calling thread which must not have a GL
+     * context current. Images that fail to decode or encode are reported and skipped.
+     *
+     * @return number of images written
+     */
+    public int process() throws IOException {
+        mInputs = listInputs();
+        if (!mOutputDir.isDirectory() && !mOutputDir.mkdirs()) {
+            throw new IOException("Could not create " + mOutputDir);
+        }
+        mCancelled = false;
+        mNextInput.set(0);
+        mDone.set(0);
+        mFailed.set(0);
+        mDecoded = new ArrayBlockingQueue<>(mQueueCapacity + mDecodeThreads);
+        mRendered = new ArrayBlockingQueue<>(mQueueCapacity + mEncodeThreads);
+        mDecodeStats = new StageStats("decode", mDecodeThreads);
+        mRenderStats = new StageStats("render", 1);
+        mReadbackStats = new StageStats("readback", 1);
+        mEncodeStats = new StageStats("encode", mEncodeThreads);
+        mStartTime = SystemClock.elapsedRealtime();
+        mEndTime = 0;
+
+        ArrayList<Thread> decoders = new ArrayList<>();
+        ArrayList<Thread> encoders = new ArrayList<>();
+        EglCore eglCore = null;
+        OffscreenSurface pbuffer = null;
+        SurfaceTexture surfaceTexture = null;
+        Surface inputSurface = null;
+        HandlerThread frameThread = null;
+        boolean rendererCreated = false;
+        boolean finished = false;
+
+        try {
+            for (int i = 0; i < mEncodeThreads; i++) {
+                Thread thread = new Thread(mEncodeRunnable, TAG + "Encode-" + i);
+                thread.start();
+                encoders.add(thread);
+            }
+            for (int i = 0; i < mDecodeThreads; i++) {
+                Thread thread = new Thread(mDecodeRunnable, TAG + "Decode-" + i);
+                thread.start();
+                decoders.add(thread);
+            }
+
+            eglCore = new EglCore(null, EglCore.FLAG_TRY_GLES3);
+            pbuffer = new OffscreenSurface(eglCore, 1, 1);
+            pbuffer.makeCurrent();
+            if (eglCore.getGlVersion() >= 3) {
+                Gl.glGenBuffers(mPackBuffers.length, mPackBuffers, 0);
+                Arrays.fill(mPackBufferSizes, 0);
+                mNextPackBuffer = 0;
+            }
+            mRenderer.onSurfaceCreated();
+            rendererCreated = true;
+            //fill the whole image, there's no view to letterbox into
+            mRenderer.setAspectRatio(1.f);
+
+            frameThread = new HandlerThread(TAG + "Frames");
+            frameThread.start();
+            surfaceTexture = new SurfaceTexture(mRenderer.getCameraTexture());
+            mRenderer.setSurfaceTexture(surfaceTexture);
+            //take over frame callbacks so we know when to draw, we pass them on to the renderer
+            surfaceTexture.setOnFrameAvailableListener(mOnFrameAvailableListener,
+                    new Handler(frameThread.getLooper()));
+            inputSurface = new Surface(surfaceTexture);
+
+            int width = 0, height = 0;
+            int decodersDone = 0;
+            Job pending = null;
+            while (decodersDone < mDecodeThreads) {
+                long waitStart = System.nanoTime();
+                Job job = mDecoded.take();
+                long start = System.nanoTime();
+                mRenderStats.addWait(start - waitStart);
+                if (job == END) {
+                    decodersDone++;
+                    continue;
+                }
+
+                if (job.width != width || job.height != height) {
+                    width = job.width;
+                    height = job.height;
+                    surfaceTexture.setDefaultBufferSize(width, height);
+                    mRenderer.onSurfaceChanged(width, height);
+                    mRenderer.setPreviewSize(width, height);
+                }
+                render(job, inputSurface);
+                mRenderStats.add(System.nanoTime() - start, 0);
+                startReadback(job);
+
+                //finish the previous image, which the GPU has had a whole upload to draw and copy
+                if (pending != null) {
+                    finishReadback(pending);
+                }
+                pending = job;
+            }
+            if (pending != null) {
+                finishReadback(pending);
+            }
+            for (int i = 0; i < mEncodeThreads; i++) {
+                mRendered.put(END);
+            }
+            for (Thread thread : encoders) {
+                thread.join();
+            }
+            finished = true;
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted processing " + mInputDir);
+        } finally {
+            if (!finished) {
+                mCancelled = true;
+                for (Thread thread : decoders) {
+                    thread.interrupt();
+                }
+                for (Thread thread : encoders) {
+                    thread.interrupt();
+                }
+            }
+            mEndTime = SystemClock.elapsedRealtime();
+            if (rendererCreated) {
+                mRenderer.setRenderTarget(null);
+                mRenderer.onSurfaceDestroyed();
+            }
+            if (mPackBuffers[0] != 0) {
+                Gl.glDeleteBuffers(mPackBuffers.length, mPackBuffers, 0);
+                Arrays.fill(mPackBuffers, 0);
+            }
+            if (inputSurface != null) {
+                inputSurface.release();
+            }
+            if (surfaceTexture != null) {
+                surfaceTexture.release();
+            }
+            if (frameThread != null) {
+                frameThread.quitSafely();
+            }
+            if (pbuffer != null) {
+                pbuffer.release();
+            }
+            if (eglCore != null) {
+                eglCore.release();
+            }
+            mBitmaps.clear();
+            mPixels.clear();
+        }
+
+        int done = mDone.get();
+        Log.d(TAG, "Processed " + done + " of " + mInputs.length + " images in "
+                + (mEndTime - mStartTime) + " ms, " + mFailed.get() + " failed");
+        for (StageStats stats : getStats()) {
+            Log.d(TAG, "  " + stats);
+        }
+        if (mListener != null) {
+            mListener.onComplete(done, mFailed.get(), getStats());
+        }
+        return done;
+    }
+
+    /**
+     * @return decode, render, readback and encode stats of the current or last run
+     */
+    public StageStats[] getStats() {
+        return new StageStats[]{mDecodeStats, mRenderStats, mReadbackStats, mEncodeStats};
+    }
+
+    /**
+     * @return images written per second of wall time so far
+     */
+    public float getImagesPerSecond() {
+        long end = mEndTime > 0 ? mEndTime : SystemClock.elapsedRealtime();
+        long elapsed = end - mStartTime;
+        return elapsed > 0 ? mDone.get() * 1000.f / elapsed : 0.f;
+    }
+
+    private File[] listInputs() throws IOException {
+        File[] files = mInputDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                if (!file.isFile()) {
+                    return false;
+                }
+                String name = file.getName().toLowerCase(Locale.US);
+                for (String extension : EXTENSIONS) {
+                    if (name.endsWith(extension)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+        if (files == null) {
+            throw new IOException("Could not list " + mInputDir);
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * draws the decoded image into the camera texture, then the renderer into the job's target
+     */
+    private void render(Job job, Surface inputSurface) {
+        orient(job);
+        Canvas canvas = inputSurface.lockHardwareCanvas();
+        try {
+            canvas.drawBitmap(job.bitmap, mOrientMatrix, null);
+        } finally {
+            inputSurface.unlockCanvasAndPost(canvas);
+        }
+        awaitFrame();
+        mBitmaps.release(job.bitmap);
+        job.bitmap = null;
+
+        job.target = mRenderer.getFramebufferPool().acquire(job.width, job.height);
+        mRenderer.setRenderTarget(job.target);
+        mRenderer.onDrawFrame();
+        //get the GPU going on it while we upload the next image
+        Gl.glFlush();
+    }
+
+    /**
+     * sets mOrientMatrix to draw the job's bitmap upright, filling job.width x job.height
+     */
+    private void orient(Job job) {
+        Matrix matrix = mOrientMatrix;
+        matrix.reset();
+        switch (job.orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+            default:
+                return;
+        }
+        //move whatever quadrant that landed in back to the origin
+        mOrientBounds.set(0, 0, job.bitmap.getWidth(), job.bitmap.getHeight());
+        matrix.mapRect(mOrientBounds);
+        matrix.postTranslate(-mOrientBounds.left, -mOrientBounds.top);
+    }
+
+    /**
+     * Starts reading the job's pixels back. With pack buffers that's just queueing a copy the GPU
+     * does once it's drawn, the framebuffer goes straight back to the pool. Without, the read
+     * is left for {@link #finishReadback(Job)}.
+     */
+    private void startReadback(Job job) {
+        if (mPackBuffers[0] == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        int size = job.width * job.height * 4;
+        int index = mNextPackBuffer;
+        mNextPackBuffer = (index + 1) % mPackBuffers.length;
+
+        Gl.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPackBuffers[index]);
+        if (mPackBufferSizes[index] < size) {
+            Gl.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+            mPackBufferSizes[index] = size;
+        }
+        Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, job.target.getFramebufferId());
+        Gl.glReadPixels(0, 0, job.width, job.height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        Gl.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        //submit the copy now rather than with the next image
+        Gl.glFlush();
+        //reads are ordered before whatever draws into it next, no need to hold on to it
+        mRenderer.getFramebufferPool().release(job.target);
+        job.target = null;
+        job.packBuffer = index;
+        job.readbackTime = System.nanoTime() - start;
+    }
+
+    /**
+     * copies the job's pixels into a pooled buffer and hands it to the encoders
+     */
+    private void finishReadback(Job job) throws InterruptedException {
+        long start = System.nanoTime();
+        int size = job.width * job.height * 4;
+        ByteBuffer pixels = mPixels.acquire(size);
+        if (pixels == null) {
+            pixels = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        }
+        pixels.clear();
+        if (job.target == null) {
+            Gl.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPackBuffers[job.packBuffer]);
+            ByteBuffer mapped = (ByteBuffer) Gl.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0,
+                    size, GLES30.GL_MAP_READ_BIT);
+            if (mapped == null) {
+                Gl.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+                throw new RuntimeException("Could not map pixel pack buffer, error "
+                        + Gl.glGetError());
+            }
+            pixels.put(mapped);
+            pixels.clear();
+            Gl.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+            Gl.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        } else {
+            Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, job.target.getFramebufferId());
+            Gl.glReadPixels(0, 0, job.width, job.height, GLES20.GL_RGBA,
+                    GLES20.GL_UNSIGNED_BYTE, pixels);
+            Gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            mRenderer.getFramebufferPool().release(job.target);
+            job.target = null;
+        }
+        job.pixels = pixels;
+        long waitStart = System.nanoTime();
+        mRendered.put(job);
+        mReadbackStats.add(job.readbackTime + waitStart - start, System.nanoTime() - waitStart);
+    }
+
+    private Job decode(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int orientation = readOrientation(file);
+        boolean transposed = isTransposed(orientation);
+        //the limits apply to the image upright
+        int maxWidth = transposed ? mMaxHeight : mMaxWidth;
+        int maxHeight = transposed ? mMaxWidth : mMaxHeight;
+        int sample = 1;
+        while (options.outWidth / sample > maxWidth || options.outHeight / sample > maxHeight) {
+            sample *= 2;
+        }
+        int width = options.outWidth / sample;
+        int height = options.outHeight / sample;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sample;
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inBitmap = mBitmaps.acquire(width * height * 4);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        } catch (IllegalArgumentException e) {
+            //pooled bitmap didn't suit this image after all
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        }
+        if (bitmap == null) {
+            return null;
+        }
+        Job job = new Job(file);
+        job.bitmap = bitmap;
+        job.orientation = orientation;
+        job.width = transposed ? bitmap.getHeight() : bitmap.getWidth();
+        job.height = transposed ? bitmap.getWidth() : bitmap.getHeight();
+        return job;
+    }
+
+    /**
+     * @return the file's EXIF orientation, normal if it has none or it can't be read
+     */
+    private static int readOrientation(File file) {
+        try {
+            ExifInterface exif = new ExifInterface(file.getAbsolutePath());
+            return exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not read EXIF of " + file + ", assuming upright", e);
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    /**
+     * @return whether the orientation swaps width and height
+     */
+    private static boolean isTransposed(int orientation) {
+        return orientation == ExifInterface.ORIENTATION_TRANSPOSE
+                || orientation == ExifInterface.ORIENTATION_ROTATE_90
+                || orientation == ExifInterface.ORIENTATION_TRANSVERSE
+                || orientation == ExifInterface.ORIENTATION_ROTATE_270;
+    }
+
+    /**
+     * @param flipped scratch for the image turned right side up, GL reads bottom row first
+     * @return the reusable bitmap it was encoded from
+     */
+    private Bitmap encode(Job job, Bitmap bitmap, ByteBuffer flipped) throws IOException {
+        if (bitmap == null || bitmap.getWidth() != job.width
+                || bitmap.getHeight() != job.height) {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            bitmap = Bitmap.createBitmap(job.width, job.height, Bitmap.Config.ARGB_8888);
+        }
+        int stride = job.width * 4;
+        ByteBuffer pixels = job.pixels;
+        flipped.clear();
+        for (int row = job.height - 1; row >= 0; row--) {
+            pixels.limit(row * stride + stride);
+            pixels.position(row * stride);
+            flipped.put(pixels);
+        }
+        flipped.flip();
+        mPixels.release(pixels);
+        job.pixels = null;
+        bitmap.copyPixelsFromBuffer(flipped);
+
+        File output = new File(mOutputDir, outputName(job.input));
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(output));
+        try {
+            if (!bitmap.compress(mFormat, mQuality, out)) {
+                throw new IOException("Could not encode " + output);
+            }
+        } finally {
+            out.close();
+        }
+        return bitmap;
+    }
+
+    private String outputName(File input) {
+        String name = input.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        switch (mFormat) {
+            case PNG:
+                return base + ".png";
+            case JPEG:
+                return base + ".jpg";
+            default:
+                return base + ".webp";
+        }
+    }
+
+    private void reportFailure(File file, Exception e) {
+        mFailed.incrementAndGet();
+        Log.e(TAG, "Skipping " + file, e);
+        if (mListener != null) {
+            mListener.onImageFailed(file, e);
+        }
+    }
+
+    private void awaitFrame() {
+        synchronized (mFrameLock) {
+            long deadline = SystemClock.elapsedRealtime() + FRAME_TIMEOUT_MS;
+            while (!mFrameAvailable) {
+                long wait = deadline - SystemClock.elapsedRealtime();
+                if (wait <= 0) {
+                    throw new RuntimeException("Timed out waiting for image to reach the camera"
+                            + " texture");
+                }
+                try {
+                    mFrameLock.wait(wait);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("Interrupted waiting for image");
+                }
+            }
+            mFrameAvailable = false;
+        }
+    }
+
+    private final Runnable mDecodeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (!mCancelled) {
+                    int index = mNextInput.getAndIncrement();
+                    if (index >= mInputs.length) {
+                        break;
+                    }
+                    File file = mInputs[index];
+                    long start = System.nanoTime();
+                    Job job;
+                    try {
+                        job = decode(file);
+                        if (job == null) {
+                            throw new IOException("Could not decode " + file);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        reportFailure(file, e);
+                        continue;
+                    }
+                    long waitStart = System.nanoTime();
+                    mDecoded.put(job);
+                    mDecodeStats.add(waitStart - start, System.nanoTime() - waitStart);
+                }
+                mDecoded.put(END);
+            } catch (InterruptedException e) {
+                //torn down, nobody is waiting on us anymore
+            }
+        }
+    };
+
+    private final Runnable mEncodeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Bitmap bitmap = null;
+            ByteBuffer flipped = null;
+            try {
+                while (true) {
+                    long waitStart = System.nanoTime();
+                    Job job = mRendered.take();
+                    long start = System.nanoTime();
+                    if (job == END) {
+                        break;
+                    }
+                    int size = job.width * job.height * 4;
+                    if (flipped == null || flipped.capacity() < size) {
+                        flipped = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+                    }
+                    try {
+                        bitmap = encode(job, bitmap, flipped);
+                    } catch (IOException | RuntimeException e) {
+                        reportFailure(job.input, e);
+                        continue;
+                    }
+                    mEncodeStats.add(System.nanoTime() - start, start - waitStart);
+                    int done = mDone.incrementAndGet();
+                    if (mListener != null) {
+                        mListener.onProgress(done, mInputs.length);
+                    }
+                }
+            } catch (InterruptedException e) {
+                //torn down
+            } finally {
+                if (bitmap != null) {
+                    bitmap.recycle();
+                }
+            }
+        }
+    };
+
+    private final SurfaceTexture.OnFrameAvailableListener mOnFrameAvailableListener
+            = new SurfaceTexture.OnFrameAvailableListener() {
+        @Override
+        public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+            mRenderer.onFrameAvailable(surfaceTexture);
+            synchronized (mFrameLock) {
+                mFrameAvailable = true;
+                mFrameLock.notifyAll();
+            }
+        }
+    };
+
+    /**
+     * one image on its way through the pipeline, holding whichever buffer the current stage needs
+     */
+    private static class Job {
+
+        final File input;
+
+        int width, height;
+
+        /**
+         * EXIF orientation of the input, width and height are of the image upright
+         */
+        int orientation;
+
+        Bitmap bitmap;
+
+        Framebuffer target;
+
+        /**
+         * index of the pack buffer its pixels were read into, once target is null
+         */
+        int packBuffer;
+
+        /**
+         * time spent starting the readback, counted with finishing it
+         */
+        long readbackTime;
+
+        ByteBuffer pixels;
+
+        Job(File input) {
+            this.input = input;
+        }
+    }
+
+    /**
+     * free bitmaps or pixel buffers, handed back out when they're big enough
+     */
+    private static class Pool<T> {
+
+        private final ArrayList<T> mFree = new ArrayList<>();
+
+        synchronized T acquire(int bytes) {
+            for (int i = mFree.size() - 1; i >= 0; i--) {
+                T item = mFree.get(i);
+                if (sizeOf(item) >= bytes) {
+                    return mFree.remove(i);
+                }
+            }
+            return null;
+        }
+
+        synchronized void release(T item) {
+            if (item != null) {
+                mFree.add(item);
+            }
+        }
+
+        synchronized void clear() {
+            for (T item : mFree) {
+                if (item instanceof Bitmap) {
+                    ((Bitmap) item).recycle();
+                }
+            }
+            mFree.clear();
+        }
+
+        private static int sizeOf(Object item) {
+            return item instanceof Bitmap ? ((Bitmap) item).getAllocationByteCount()
+                    : ((ByteBuffer) item).capacity();
+        }
+    }
+
+    /**
+     * Progress and failures are reported from the decode and encode threads, completion and
+     * errors from the thread running {@link #process()}
+     */
+    public interface OnProgressListener {
+
+        void onProgress(int done, int total);
+
+        void onImageFailed(File input, Exception e);
+
+        void onComplete(int done, int failed, StageStats[] stats);
+
+        void onError(Exception e);
+    }
+}
@@ -0,0 +1,82 @@
+package com.androidexperiments.shadercam.processing;
+
+import java.util.Locale;
+
+/**
+ * Throughput numbers for one stage of a pipeline, ex: the decode threads of an
+ * {@link ImageBatchProcessor}. Busy time is time spent doing the stage's own work, wait time is
+ * time blocked on a full or empty queue on either side of it - a stage that's mostly waiting
+ * isn't the bottleneck.
+ *
+ * Updated from the stage's threads, read from anywhere.
+ */
+public class StageStats {
+
+    private final String mName;
+
+    private final int mThreads;
+
+    private int mCount;
+
+    private long mBusyNs;
+
+    private long mWaitNs;
+
+    public StageStats(String name, int threads) {
+        mName = name;
+        mThreads = threads;
+    }
+
+    synchronized void add(long busyNs, long waitNs) {
+        mCount++;
+        mBusyNs += busyNs;
+        mWaitNs += waitNs;
+    }
+
+    synchronized void addWait(long waitNs) {
+        mWaitNs += waitNs;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getThreads() {
+        return mThreads;
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    public synchronized long getBusyMillis() {
+        return mBusyNs / 1000000;
+    }
+
+    public synchronized long getWaitMillis() {
+        return mWaitNs / 1000000;
+    }
+
+    /**
+     * @return how fast this stage could go on its own, items per second of busy time across its
+     * threads
+     */
+    public synchronized float getCapacityPerSecond() {
+        return mBusyNs > 0 ? mCount * 1e9f * mThreads / mBusyNs : 0.f;
+    }
+
+    /**
+     * @return fraction of the stage's thread time that was busy over the given wall time
+     */
+    public synchronized float getUtilization(long wallMillis) {
+        return wallMillis > 0 ? mBusyNs / 1e6f / (wallMillis * mThreads) : 0.f;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%s x%d: %d items, %.1f ms/item busy, %d ms waiting,"
+                        + " up to %.1f/s", mName, mThreads, mCount,
+                mCount > 0 ? mBusyNs / 1e6f / mCount : 0.f, mWaitNs / 1000000,
+                getCapacityPerSecond());
+    }
+}
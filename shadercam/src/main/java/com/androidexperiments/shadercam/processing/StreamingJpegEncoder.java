@@ -0,0 +1,543 @@
+package com.androidexperiments.shadercam.processing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Baseline JPEG encoder (YCbCr 4:2:0, standard Huffman tables) that takes its image a few rows
+ * at a time, so an image can be written out as it's produced without ever existing in memory as
+ * a whole. Only 16 rows worth of color planes are kept, whatever the image size.
+ *
+ * Rows come in as RGBA bytes, as read back from GL, either top down or bottom up. Alpha is
+ * ignored. Not thread safe, feed it from one thread at a time.
+ */
+public class StreamingJpegEncoder {
+
+    /**
+     * rows per MCU, rows are buffered until we have this many
+     */
+    public static final int STRIP_HEIGHT = 16;
+
+    /**
+     * natural order index of each zigzag position
+     */
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63,
+    };
+
+    private static final int[] LUMINANCE_QUANT = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99,
+    };
+
+    private static final int[] CHROMINANCE_QUANT = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+    };
+
+    private static final int[] DC_LUMINANCE_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+
+    private static final int[] DC_LUMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+
+    private static final int[] DC_CHROMINANCE_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+
+    private static final int[] DC_CHROMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+
+    private static final int[] AC_LUMINANCE_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+
+    private static final int[] AC_LUMINANCE_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51,
+            0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1,
+            0x15, 0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18,
+            0x19, 0x1a, 0x25, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57,
+            0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75,
+            0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92,
+            0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8,
+            0xd9, 0xda, 0xe1, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa,
+    };
+
+    private static final int[] AC_CHROMINANCE_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+
+    private static final int[] AC_CHROMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07,
+            0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09,
+            0x23, 0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25,
+            0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56,
+            0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74,
+            0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba,
+            0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6,
+            0xd7, 0xd8, 0xd9, 0xda, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa,
+    };
+
+    /**
+     * row and column scale factors of the AAN float DCT
+     */
+    private static final double[] AAN_SCALE = {
+            1.0, 1.387039845, 1.306562965, 1.175875602,
+            1.0, 0.785694958, 0.541196100, 0.275899379,
+    };
+
+    private final OutputStream mOut;
+
+    private final int mWidth, mHeight;
+
+    /**
+     * width rounded up to whole MCUs
+     */
+    private final int mPaddedWidth;
+
+    private final int[] mLuminanceQuant = new int[64];
+
+    private final int[] mChrominanceQuant = new int[64];
+
+    /**
+     * quant tables folded together with the DCT scale factors, natural order
+     */
+    private final float[] mLuminanceDivisors = new float[64];
+
+    private final float[] mChrominanceDivisors = new float[64];
+
+    private final HuffmanTable mDcLuminance, mAcLuminance, mDcChrominance, mAcChrominance;
+
+    /**
+     * full resolution planes for one strip of {@link #STRIP_HEIGHT} rows
+     */
+    private final float[] mY, mCb, mCr;
+
+    private int mStripRows;
+
+    private int mRowsWritten;
+
+    private final float[] mBlock = new float[64];
+
+    private final int[] mCoefficients = new int[64];
+
+    private int mLastDcY, mLastDcCb, mLastDcCr;
+
+    private int mBitBuffer, mBitCount;
+
+    private boolean mFinished = false;
+
+    /**
+     * Writes the headers right away
+     *
+     * @param quality 1-100, same scale as {@link android.graphics.Bitmap#compress}
+     */
+    public StreamingJpegEncoder(OutputStream out, int width, int height, int quality)
+            throws IOException {
+        if (width <= 0 || height <= 0 || width > 65535 || height > 65535) {
+            throw new IllegalArgumentException("Bad JPEG size " + width + "x" + height);
+        }
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mPaddedWidth = (width + 15) / 16 * 16;
+        mY = new float[mPaddedWidth * STRIP_HEIGHT];
+        mCb = new float[mPaddedWidth * STRIP_HEIGHT];
+        mCr = new float[mPaddedWidth * STRIP_HEIGHT];
+
+        scaleQuant(LUMINANCE_QUANT, quality, mLuminanceQuant, mLuminanceDivisors);
+        scaleQuant(CHROMINANCE_QUANT, quality, mChrominanceQuant, mChrominanceDivisors);
+        mDcLuminance = new HuffmanTable(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+        mAcLuminance = new HuffmanTable(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+        mDcChrominance = new HuffmanTable(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+        mAcChrominance = new HuffmanTable(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+        writeHeaders();
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return rows taken so far
+     */
+    public int getRowsWritten() {
+        return mRowsWritten;
+    }
+
+    /**
+     * Adds the next rows of the image, top to bottom. The buffer's position and limit aren't
+     * touched.
+     *
+     * @param offset    byte offset of the first row in memory, which is the last row we take if
+     *                  bottomUp
+     * @param rowStride bytes from one row to the next in memory
+     * @param bottomUp  true if rows are stored bottom first, like glReadPixels gives them
+     */
+    public void writeRows(ByteBuffer rgba, int offset, int rowStride, int rows, boolean bottomUp)
+            throws IOException {
+        if (mFinished) {
+            throw new IllegalStateException("Already finished");
+        }
+        if (mRowsWritten + rows > mHeight) {
+            throw new IllegalArgumentException("Image is only " + mHeight + " rows");
+        }
+        for (int i = 0; i < rows; i++) {
+            int row = bottomUp ? rows - 1 - i : i;
+            convertRow(rgba, offset + row * rowStride, mStripRows * mPaddedWidth);
+            mStripRows++;
+            mRowsWritten++;
+            if (mStripRows == STRIP_HEIGHT) {
+                encodeStrip();
+                mStripRows = 0;
+            }
+        }
+    }
+
+    /**
+     * Pads out the last strip and writes the end of image marker. Doesn't close the stream.
+     */
+    public void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        if (mRowsWritten != mHeight) {
+            throw new IllegalStateException("Got " + mRowsWritten + " of " + mHeight + " rows");
+        }
+        if (mStripRows > 0) {
+            //repeat the last row, so the padding doesn't bleed into the edge when decoded
+            int last = (mStripRows - 1) * mPaddedWidth;
+            for (int row = mStripRows; row < STRIP_HEIGHT; row++) {
+                System.arraycopy(mY, last, mY, row * mPaddedWidth, mPaddedWidth);
+                System.arraycopy(mCb, last, mCb, row * mPaddedWidth, mPaddedWidth);
+                System.arraycopy(mCr, last, mCr, row * mPaddedWidth, mPaddedWidth);
+            }
+            encodeStrip();
+            mStripRows = 0;
+        }
+        //fill the last byte with ones
+        if (mBitCount > 0) {
+            writeBits(0x7f, 7);
+        }
+        mOut.write(0xff);
+        mOut.write(0xd9);
+        mOut.flush();
+        mFinished = true;
+    }
+
+    private void convertRow(ByteBuffer rgba, int offset, int dest) {
+        for (int x = 0; x < mPaddedWidth; x++) {
+            int p = offset + Math.min(x, mWidth - 1) * 4;
+            float r = rgba.get(p) & 0xff;
+            float g = rgba.get(p + 1) & 0xff;
+            float b = rgba.get(p + 2) & 0xff;
+            mY[dest + x] = 0.299f * r + 0.587f * g + 0.114f * b - 128.f;
+            mCb[dest + x] = -0.168736f * r - 0.331264f * g + 0.5f * b;
+            mCr[dest + x] = 0.5f * r - 0.418688f * g - 0.081312f * b;
+        }
+    }
+
+    private void encodeStrip() throws IOException {
+        for (int x = 0; x < mPaddedWidth; x += 16) {
+            for (int by = 0; by < 16; by += 8) {
+                for (int bx = 0; bx < 16; bx += 8) {
+                    loadBlock(mY, x + bx, by);
+                    mLastDcY = encodeBlock(mLuminanceDivisors, mLastDcY, mDcLuminance,
+                            mAcLuminance);
+                }
+            }
+            loadSubsampledBlock(mCb, x);
+            mLastDcCb = encodeBlock(mChrominanceDivisors, mLastDcCb, mDcChrominance,
+                    mAcChrominance);
+            loadSubsampledBlock(mCr, x);
+            mLastDcCr = encodeBlock(mChrominanceDivisors, mLastDcCr, mDcChrominance,
+                    mAcChrominance);
+        }
+    }
+
+    private void loadBlock(float[] plane, int x, int y) {
+        for (int row = 0; row < 8; row++) {
+            System.arraycopy(plane, (y + row) * mPaddedWidth + x, mBlock, row * 8, 8);
+        }
+    }
+
+    /**
+     * averages 2x2 pixels of the 16x16 MCU at x into one 8x8 block
+     */
+    private void loadSubsampledBlock(float[] plane, int x) {
+        for (int row = 0; row < 8; row++) {
+            int top = row * 2 * mPaddedWidth + x;
+            int bottom = top + mPaddedWidth;
+            for (int col = 0; col < 8; col++) {
+                int i = col * 2;
+                mBlock[row * 8 + col] = 0.25f * (plane[top + i] + plane[top + i + 1]
+                        + plane[bottom + i] + plane[bottom + i + 1]);
+            }
+        }
+    }
+
+    /**
+     * @return this block's DC value, for the next block's difference
+     */
+    private int encodeBlock(float[] divisors, int lastDc, HuffmanTable dc, HuffmanTable ac)
+            throws IOException {
+        forwardDct(mBlock);
+        for (int i = 0; i < 64; i++) {
+            float v = mBlock[i] / divisors[i];
+            mCoefficients[i] = (int) (v > 0 ? v + 0.5f : v - 0.5f);
+        }
+
+        int dcValue = mCoefficients[0];
+        writeValue(dcValue - lastDc, 0, dc);
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int value = mCoefficients[ZIGZAG[k]];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                writeBits(ac.codes[0xf0], ac.sizes[0xf0]);
+                run -= 16;
+            }
+            writeValue(value, run, ac);
+            run = 0;
+        }
+        if (run > 0) {
+            writeBits(ac.codes[0x00], ac.sizes[0x00]);
+        }
+        return dcValue;
+    }
+
+    /**
+     * huffman code for (run, size of value) followed by the value's bits
+     */
+    private void writeValue(int value, int run, HuffmanTable table) throws IOException {
+        int magnitude = value < 0 ? -value : value;
+        int size = 0;
+        while (magnitude > 0) {
+            size++;
+            magnitude >>= 1;
+        }
+        int symbol = (run << 4) | size;
+        writeBits(table.codes[symbol], table.sizes[symbol]);
+        if (size > 0) {
+            int bits = value < 0 ? value - 1 : value;
+            writeBits(bits & ((1 << size) - 1), size);
+        }
+    }
+
+    private void writeBits(int bits, int count) throws IOException {
+        mBitBuffer = (mBitBuffer << count) | (bits & ((1 << count) - 1));
+        mBitCount += count;
+        while (mBitCount >= 8) {
+            int b = (mBitBuffer >> (mBitCount - 8)) & 0xff;
+            mOut.write(b);
+            if (b == 0xff) {
+                //byte stuffing, so data is never mistaken for a marker
+                mOut.write(0);
+            }
+            mBitCount -= 8;
+        }
+        mBitBuffer &= (1 << mBitCount) - 1;
+    }
+
+    /**
+     * AAN float DCT in place, output is scaled by {@link #AAN_SCALE} which the divisors undo
+     */
+    private static void forwardDct(float[] data) {
+        for (int pass = 0; pass < 2; pass++) {
+            int step = pass == 0 ? 1 : 8;
+            int next = pass == 0 ? 8 : 1;
+            for (int i = 0; i < 8; i++) {
+                int p = i * next;
+                float tmp0 = data[p] + data[p + 7 * step];
+                float tmp7 = data[p] - data[p + 7 * step];
+                float tmp1 = data[p + step] + data[p + 6 * step];
+                float tmp6 = data[p + step] - data[p + 6 * step];
+                float tmp2 = data[p + 2 * step] + data[p + 5 * step];
+                float tmp5 = data[p + 2 * step] - data[p + 5 * step];
+                float tmp3 = data[p + 3 * step] + data[p + 4 * step];
+                float tmp4 = data[p + 3 * step] - data[p + 4 * step];
+
+                //even part
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+                data[p] = tmp10 + tmp11;
+                data[p + 4 * step] = tmp10 - tmp11;
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                data[p + 2 * step] = tmp13 + z1;
+                data[p + 6 * step] = tmp13 - z1;
+
+                //odd part
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+                data[p + 5 * step] = z13 + z2;
+                data[p + 3 * step] = z13 - z2;
+                data[p + step] = z11 + z4;
+                data[p + 7 * step] = z11 - z4;
+            }
+        }
+    }
+
+    /**
+     * IJG quality scaling, plus the divisors for our DCT's output scale
+     */
+    private static void scaleQuant(int[] base, int quality, int[] table, float[] divisors) {
+        quality = Math.max(1, Math.min(100, quality));
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        for (int i = 0; i < 64; i++) {
+            table[i] = Math.max(1, Math.min(255, (base[i] * scale + 50) / 100));
+        }
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                int i = row * 8 + col;
+                divisors[i] = (float) (table[i] * AAN_SCALE[row] * AAN_SCALE[col] * 8.0);
+            }
+        }
+    }
+
+    private void writeHeaders() throws IOException {
+        //SOI
+        writeMarker(0xd8);
+
+        //APP0 JFIF 1.1, no thumbnail
+        writeMarker(0xe0);
+        writeShort(16);
+        mOut.write(new byte[]{'J', 'F', 'I', 'F', 0, 1, 1, 0});
+        writeShort(1);
+        writeShort(1);
+        mOut.write(0);
+        mOut.write(0);
+
+        //DQT, both tables in zigzag order
+        writeMarker(0xdb);
+        writeShort(2 + 2 * 65);
+        mOut.write(0);
+        for (int k = 0; k < 64; k++) {
+            mOut.write(mLuminanceQuant[ZIGZAG[k]]);
+        }
+        mOut.write(1);
+        for (int k = 0; k < 64; k++) {
+            mOut.write(mChrominanceQuant[ZIGZAG[k]]);
+        }
+
+        //SOF0, Y at 2x2, Cb and Cr at 1x1
+        writeMarker(0xc0);
+        writeShort(17);
+        mOut.write(8);
+        writeShort(mHeight);
+        writeShort(mWidth);
+        mOut.write(3);
+        mOut.write(1);
+        mOut.write(0x22);
+        mOut.write(0);
+        mOut.write(2);
+        mOut.write(0x11);
+        mOut.write(1);
+        mOut.write(3);
+        mOut.write(0x11);
+        mOut.write(1);
+
+        //DHT
+        writeMarker(0xc4);
+        writeShort(2 + 4 * 17 + DC_LUMINANCE_VALUES.length + AC_LUMINANCE_VALUES.length
+                + DC_CHROMINANCE_VALUES.length + AC_CHROMINANCE_VALUES.length);
+        writeHuffman(0x00, DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+        writeHuffman(0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+        writeHuffman(0x01, DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+        writeHuffman(0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+        //SOS
+        writeMarker(0xda);
+        writeShort(12);
+        mOut.write(3);
+        mOut.write(1);
+        mOut.write(0x00);
+        mOut.write(2);
+        mOut.write(0x11);
+        mOut.write(3);
+        mOut.write(0x11);
+        mOut.write(0);
+        mOut.write(63);
+        mOut.write(0);
+    }
+
+    private void writeHuffman(int classAndId, int[] bits, int[] values) throws IOException {
+        mOut.write(classAndId);
+        for (int b : bits) {
+            mOut.write(b);
+        }
+        for (int v : values) {
+            mOut.write(v);
+        }
+    }
+
+    private void writeMarker(int marker) throws IOException {
+        mOut.write(0xff);
+        mOut.write(marker);
+    }
+
+    private void writeShort(int value) throws IOException {
+        mOut.write((value >> 8) & 0xff);
+        mOut.write(value & 0xff);
+    }
+
+    /**
+     * code and length per symbol, built from the usual bits-per-length and symbol lists
+     */
+    private static class HuffmanTable {
+
+        final int[] codes = new int[256];
+
+        final int[] sizes = new int[256];
+
+        HuffmanTable(int[] bits, int[] values) {
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++) {
+                    codes[values[k]] = code;
+                    sizes[values[k]] = length;
+                    code++;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,503 @@
+package com.androidexperiments.shadercam.processing;
+
+import com.androidexperiments.shadercam.gl.EglCore;
+import com.androidexperiments.shadercam.gl.VideoRenderer;
+import com.androidexperiments.shadercam.gl.WindowSurface;
+
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Runs a recorded video through a {@link VideoRenderer}'s shaders and re-encodes it to a new
+ * mp4, instead of the live camera.
+ *
+ * Decoded frames go into the renderer's camera texture exactly like camera frames would, and the
+ * renderer draws straight into the encoder's input surface. Nothing is paced to the display, so
+ * we go as fast as the decoder and encoder let us - usually well past realtime. Every frame keeps
+ * its original presentation time, and the audio track, if any, is copied over untouched.
+ *
+ * The renderer must be a fresh one, not also attached to a RecordableSurfaceView - we drive its
+ * whole lifecycle from our own thread and GL context.
+ */
+public class VideoFileProcessor {
+
+    private static final String TAG = VideoFileProcessor.class.getSimpleName();
+
+    private static final String OUTPUT_MIME = MediaFormat.MIMETYPE_VIDEO_AVC;
+
+    private static final long CODEC_TIMEOUT_US = 10000;
+
+    /**
+     * how long we wait for a decoded frame to show up in our SurfaceTexture
+     */
+    private static final long FRAME_TIMEOUT_MS = 2500;
+
+    /**
+     * how often {@link OnProgressListener#onProgress} fires
+     */
+    private static final long PROGRESS_INTERVAL_MS = 500;
+
+    private static final int DEFAULT_FRAME_RATE = 30;
+
+    private final VideoRenderer mRenderer;
+
+    private final File mInput;
+
+    private final File mOutput;
+
+    private int mBitRate = 0;
+
+    private boolean mCopyAudio = true;
+
+    private volatile boolean mCancelled = false;
+
+    private OnProgressListener mListener;
+
+    private final Object mFrameLock = new Object();
+
+    private boolean mFrameAvailable;
+
+    private final MediaCodec.BufferInfo mDecoderInfo = new MediaCodec.BufferInfo();
+
+    private final MediaCodec.BufferInfo mEncoderInfo = new MediaCodec.BufferInfo();
+
+    private final MediaCodec.BufferInfo mAudioInfo = new MediaCodec.BufferInfo();
+
+    private MediaMuxer mMuxer;
+
+    private int mVideoTrack = -1, mAudioTrack = -1;
+
+    private boolean mMuxerStarted = false;
+
+    private MediaExtractor mAudioExtractor;
+
+    private MediaFormat mAudioFormat;
+
+    private ByteBuffer mAudioBuffer;
+
+    private boolean mAudioDone = true;
+
+    private int mFramesRendered;
+
+    private long mStartTime;
+
+    public VideoFileProcessor(VideoRenderer renderer, File input, File output) {
+        mRenderer = renderer;
+        mInput = input;
+        mOutput = output;
+    }
+
+    /**
+     * Bitrate of the new video in bits/sec. Defaults to roughly what the camera would record at
+     * the same size.
+     */
+    public void setBitRate(int bitRate) {
+        mBitRate = bitRate;
+    }
+
+    /**
+     * Copy the input's audio track into the output as is, defaults to true
+     */
+    public void setCopyAudio(boolean copyAudio) {
+        mCopyAudio = copyAudio;
+    }
+
+    public void setOnProgressListener(OnProgressListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Stops processing as soon as possible, leaving a partial but playable output
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Processes on a new thread, reporting back through the {@link OnProgressListener}
+     */
+    public void start() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    process();
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Processing " + mInput + " failed", e);
+                    if (mListener != null) {
+                        mListener.onError(e);
+                    }
+                }
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Processes the whole file on the calling thread, which must not have a GL context current.
+     *
+     * @return average throughput in frames per second
+     */
+    public float process() throws IOException {
+        MediaExtractor extractor = null;
+        MediaCodec decoder = null;
+        MediaCodec encoder = null;
+        EglCore eglCore = null;
+        WindowSurface encoderSurface = null;
+        SurfaceTexture surfaceTexture = null;
+        Surface decoderSurface = null;
+        HandlerThread frameThread = null;
+        boolean rendererCreated = false;
+
+        mCancelled = false;
+        mFramesRendered = 0;
+        mVideoTrack = mAudioTrack = -1;
+        mMuxerStarted = false;
+
+        try {
+            extractor = new MediaExtractor();
+            extractor.setDataSource(mInput.getAbsolutePath());
+            int inputTrack = selectTrack(extractor, "video/");
+            if (inputTrack < 0) {
+                throw new IOException("No video track in " + mInput);
+            }
+            extractor.selectTrack(inputTrack);
+            MediaFormat inputFormat = extractor.getTrackFormat(inputTrack);
+            int width = inputFormat.getInteger(MediaFormat.KEY_WIDTH);
+            int height = inputFormat.getInteger(MediaFormat.KEY_HEIGHT);
+            long durationUs = inputFormat.containsKey(MediaFormat.KEY_DURATION)
+                    ? inputFormat.getLong(MediaFormat.KEY_DURATION) : 0;
+            //frames stay as stored and the muxer gets the rotation as a hint instead, a decoder
+            //rendering to a Surface would otherwise rotate them too, and players rotate twice
+            int rotation = inputFormat.containsKey(MediaFormat.KEY_ROTATION)
+                    ? inputFormat.getInteger(MediaFormat.KEY_ROTATION) : 0;
+            inputFormat.setInteger(MediaFormat.KEY_ROTATION, 0);
+
+            encoder = createEncoder(inputFormat, width, height);
+            eglCore = new EglCore(null, EglCore.FLAG_RECORDABLE);
+            encoderSurface = new WindowSurface(eglCore, encoder.createInputSurface(), true);
+            encoderSurface.makeCurrent();
+            encoder.start();
+
+            mRenderer.onSurfaceCreated();
+            rendererCreated = true;
+            mRenderer.onSurfaceChanged(width, height);
+            mRenderer.setPreviewSize(width, height);
+            //fill the whole frame, there's no view to letterbox into
+            mRenderer.setAspectRatio(1.f);
+
+            frameThread = new HandlerThread(TAG + "Frames");
+            frameThread.start();
+            surfaceTexture = new SurfaceTexture(mRenderer.getCameraTexture());
+            mRenderer.setSurfaceTexture(surfaceTexture);
+            //take over frame callbacks so we know when to draw, we pass them on to the renderer
+            surfaceTexture.setOnFrameAvailableListener(mOnFrameAvailableListener,
+                    new Handler(frameThread.getLooper()));
+            decoderSurface = new Surface(surfaceTexture);
+
+            decoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+            decoder.configure(inputFormat, decoderSurface, null, 0);
+            decoder.start();
+
+            mMuxer = new MediaMuxer(mOutput.getAbsolutePath(),
+                    MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            mMuxer.setOrientationHint(rotation);
+            openAudio();
+
+            mStartTime = SystemClock.elapsedRealtime();
+            long lastProgress = mStartTime;
+            boolean inputDone = false;
+            boolean decoderDone = false;
+            boolean encoderDone = false;
+
+            while (!encoderDone) {
+                if (!inputDone) {
+                    inputDone = feedDecoder(extractor, decoder);
+                }
+
+                if (!decoderDone) {
+                    int index = decoder.dequeueOutputBuffer(mDecoderInfo, CODEC_TIMEOUT_US);
+                    if (index >= 0) {
+                        boolean render = mDecoderInfo.size != 0;
+                        boolean end = (mDecoderInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0
+                                || mCancelled;
+                        long ptsUs = mDecoderInfo.presentationTimeUs;
+
+                        //make room in the encoder before we push it another frame
+                        drainEncoder(encoder, false);
+                        decoder.releaseOutputBuffer(index, render);
+                        if (render) {
+                            awaitFrame();
+                            mRenderer.onDrawFrame();
+                            encoderSurface.setPresentationTime(ptsUs * 1000);
+                            encoderSurface.swapBuffers();
+                            mFramesRendered++;
+
+                            long now = SystemClock.elapsedRealtime();
+                            if (mListener != null && now - lastProgress >= PROGRESS_INTERVAL_MS) {
+                                lastProgress = now;
+                                mListener.onProgress(mFramesRendered, ptsUs, durationUs,
+                                        getFramesPerSecond());
+                            }
+                        }
+                        if (end) {
+                            encoder.signalEndOfInputStream();
+                            decoderDone = true;
+                        }
+                    }
+                }
+
+                encoderDone = drainEncoder(encoder, decoderDone);
+            }
+
+            writeAudio(Long.MAX_VALUE);
+
+            float fps = getFramesPerSecond();
+            Log.d(TAG, "Processed " + mFramesRendered + " frames of " + mInput + " at " + fps
+                    + " fps");
+            if (mListener != null) {
+                mListener.onComplete(mOutput, mFramesRendered, fps);
+            }
+            return fps;
+        } finally {
+            if (decoder != null) {
+                decoder.stop();
+                decoder.release();
+            }
+            if (encoder != null) {
+                encoder.release();
+            }
+            if (extractor != null) {
+                extractor.release();
+            }
+            if (mAudioExtractor != null) {
+                mAudioExtractor.release();
+                mAudioExtractor = null;
+            }
+            if (mMuxer != null) {
+                if (mMuxerStarted) {
+                    mMuxer.stop();
+                }
+                mMuxer.release();
+                mMuxer = null;
+            }
+            if (rendererCreated) {
+                mRenderer.onSurfaceDestroyed();
+            }
+            if (decoderSurface != null) {
+                decoderSurface.release();
+            }
+            if (surfaceTexture != null) {
+                surfaceTexture.release();
+            }
+            if (frameThread != null) {
+                frameThread.quitSafely();
+            }
+            if (encoderSurface != null) {
+                encoderSurface.release();
+            }
+            if (eglCore != null) {
+                eglCore.release();
+            }
+        }
+    }
+
+    /**
+     * @return frames rendered per second of wall time so far
+     */
+    public float getFramesPerSecond() {
+        long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+        return elapsed > 0 ? mFramesRendered * 1000.f / elapsed : 0.f;
+    }
+
+    private MediaCodec createEncoder(MediaFormat inputFormat, int width, int height)
+            throws IOException {
+        int frameRate = inputFormat.containsKey(MediaFormat.KEY_FRAME_RATE)
+                ? inputFormat.getInteger(MediaFormat.KEY_FRAME_RATE) : DEFAULT_FRAME_RATE;
+        int bitRate = mBitRate > 0 ? mBitRate : (int) (width * height * frameRate * 0.25f);
+
+        MediaFormat format = MediaFormat.createVideoFormat(OUTPUT_MIME, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+
+        MediaCodec encoder = MediaCodec.createEncoderByType(OUTPUT_MIME);
+        encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        return encoder;
+    }
+
+    /**
+     * @return true once the extractor is out of samples
+     */
+    private boolean feedDecoder(MediaExtractor extractor, MediaCodec decoder) {
+        int index = decoder.dequeueInputBuffer(CODEC_TIMEOUT_US);
+        if (index < 0) {
+            return false;
+        }
+        int size = extractor.readSampleData(decoder.getInputBuffer(index), 0);
+        if (size < 0 || mCancelled) {
+            decoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return true;
+        }
+        decoder.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+        extractor.advance();
+        return false;
+    }
+
+    /**
+     * Writes out whatever the encoder has ready. Only blocks when we're waiting on the end of
+     * stream.
+     *
+     * @return true once the encoder hit end of stream
+     */
+    private boolean drainEncoder(MediaCodec encoder, boolean endOfStream) {
+        while (true) {
+            int index = encoder.dequeueOutputBuffer(mEncoderInfo,
+                    endOfStream ? CODEC_TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                return false;
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                if (mMuxerStarted) {
+                    throw new RuntimeException("Encoder format changed twice");
+                }
+                mVideoTrack = mMuxer.addTrack(encoder.getOutputFormat());
+                if (mAudioExtractor != null) {
+                    mAudioTrack = mMuxer.addTrack(mAudioFormat);
+                }
+                mMuxer.start();
+                mMuxerStarted = true;
+            } else if (index >= 0) {
+                ByteBuffer data = encoder.getOutputBuffer(index);
+                if ((mEncoderInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    //already handed to the muxer through the output format
+                    mEncoderInfo.size = 0;
+                }
+                if (mEncoderInfo.size != 0 && mMuxerStarted) {
+                    data.position(mEncoderInfo.offset);
+                    data.limit(mEncoderInfo.offset + mEncoderInfo.size);
+                    mMuxer.writeSampleData(mVideoTrack, data, mEncoderInfo);
+                    writeAudio(mEncoderInfo.presentationTimeUs);
+                }
+                encoder.releaseOutputBuffer(index, false);
+                if ((mEncoderInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private void openAudio() throws IOException {
+        mAudioDone = true;
+        if (!mCopyAudio) {
+            return;
+        }
+        MediaExtractor audio = new MediaExtractor();
+        audio.setDataSource(mInput.getAbsolutePath());
+        int track = selectTrack(audio, "audio/");
+        if (track < 0) {
+            audio.release();
+            return;
+        }
+        audio.selectTrack(track);
+        MediaFormat format = audio.getTrackFormat(track);
+        int maxSize = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : 256 * 1024;
+        if (mAudioBuffer == null || mAudioBuffer.capacity() < maxSize) {
+            mAudioBuffer = ByteBuffer.allocateDirect(maxSize);
+        }
+        mAudioExtractor = audio;
+        mAudioFormat = format;
+        mAudioDone = false;
+    }
+
+    /**
+     * copies audio samples up to the given time, keeping the two tracks roughly interleaved
+     */
+    private void writeAudio(long untilUs) {
+        if (mAudioDone || !mMuxerStarted || mAudioTrack < 0) {
+            return;
+        }
+        while (mAudioExtractor.getSampleTime() >= 0 && mAudioExtractor.getSampleTime() <= untilUs) {
+            mAudioBuffer.clear();
+            int size = mAudioExtractor.readSampleData(mAudioBuffer, 0);
+            if (size < 0) {
+                break;
+            }
+            mAudioInfo.set(0, size, mAudioExtractor.getSampleTime(),
+                    (mAudioExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                            ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            mMuxer.writeSampleData(mAudioTrack, mAudioBuffer, mAudioInfo);
+            mAudioExtractor.advance();
+        }
+        if (mAudioExtractor.getSampleTime() < 0) {
+            mAudioDone = true;
+        }
+    }
+
+    private void awaitFrame() {
+        synchronized (mFrameLock) {
+            long deadline = SystemClock.elapsedRealtime() + FRAME_TIMEOUT_MS;
+            while (!mFrameAvailable) {
+                long wait = deadline - SystemClock.elapsedRealtime();
+                if (wait <= 0) {
+                    throw new RuntimeException("Timed out waiting for decoded frame "
+                            + mFramesRendered);
+                }
+                try {
+                    mFrameLock.wait(wait);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("Interrupted waiting for decoded frame");
+                }
+            }
+            mFrameAvailable = false;
+        }
+    }
+
+    private static int selectTrack(MediaExtractor extractor, String mimePrefix) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith(mimePrefix)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private final SurfaceTexture.OnFrameAvailableListener mOnFrameAvailableListener
+            = new SurfaceTexture.OnFrameAvailableListener() {
+        @Override
+        public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+            mRenderer.onFrameAvailable(surfaceTexture);
+            synchronized (mFrameLock) {
+                mFrameAvailable = true;
+                mFrameLock.notifyAll();
+            }
+        }
+    };
+
+    /**
+     * Called on the processing thread
+     */
+    public interface OnProgressListener {
+
+        void onProgress(int frames, long presentationTimeUs, long durationUs, float fps);
+
+        void onComplete(File output, int frames, float fps);
+
+        void onError(Exception e);
+    }
+}
@@ -0,0 +1,483 @@
+package com.androidexperiments.shadercam.profile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything we'd otherwise probe on every launch: GL version, limits and extensions, encoders and
+ * camera sizes. Built by {@link DeviceProfiler}, kept on disk by {@link DeviceProfiles}. Also
+ * carries choices measured later on, ex: each effect's shader precision, which stay with the
+ * profile until the device changes under it.
+ *
+ * File layout, big endian via DataOutputStream:
+ * <pre>
+ *   int    magic    'SCDP'
+ *   int    version
+ *   utf    fingerprint, glRenderer, glVersion, glExtensions
+ *   int    glMajorVersion, maxTextureSize, maxViewportSize, programBinaryFormats
+ *   long   probedAt (ms since epoch), probeMillis
+ *   int    encoder count, then per encoder: utf name, utf mime, int maxWidth, int maxHeight
+ *   int    camera count, then per camera: utf id, int facing, int hardwareLevel,
+ *          int sensorOrientation, boolean highSpeed,
+ *          int size count, then per size: int width, int height, long minFrameDuration
+ *   int    precision count, then per effect: utf key, utf precision
+ * </pre>
+ */
+public class DeviceProfile {
+
+    static final int MAGIC = 0x53434450; //'SCDP'
+
+    static final int VERSION = 2;
+
+    /**
+     * One video encoder
+     */
+    public static class Encoder {
+
+        private final String mName;
+
+        private final String mMime;
+
+        private final int mMaxWidth;
+
+        private final int mMaxHeight;
+
+        public Encoder(String name, String mime, int maxWidth, int maxHeight) {
+            mName = name;
+            mMime = mime;
+            mMaxWidth = maxWidth;
+            mMaxHeight = maxHeight;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public String getMime() {
+            return mMime;
+        }
+
+        public int getMaxWidth() {
+            return mMaxWidth;
+        }
+
+        public int getMaxHeight() {
+            return mMaxHeight;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Encoder)) {
+                return false;
+            }
+            Encoder other = (Encoder) o;
+            return mName.equals(other.mName) && mMime.equals(other.mMime)
+                    && mMaxWidth == other.mMaxWidth && mMaxHeight == other.mMaxHeight;
+        }
+
+        @Override
+        public int hashCode() {
+            return mName.hashCode() * 31 + mMime.hashCode();
+        }
+    }
+
+    /**
+     * One camera and its preview (SurfaceTexture) sizes
+     */
+    public static class Camera {
+
+        private final String mId;
+
+        private final int mFacing;
+
+        private final int mHardwareLevel;
+
+        private final int mSensorOrientation;
+
+        private final boolean mHighSpeed;
+
+        private final int[] mWidths;
+
+        private final int[] mHeights;
+
+        private final long[] mMinFrameDurations;
+
+        public Camera(String id, int facing, int hardwareLevel, int sensorOrientation,
+                boolean highSpeed, int[] widths, int[] heights, long[] minFrameDurations) {
+            mId = id;
+            mFacing = facing;
+            mHardwareLevel = hardwareLevel;
+            mSensorOrientation = sensorOrientation;
+            mHighSpeed = highSpeed;
+            mWidths = widths;
+            mHeights = heights;
+            mMinFrameDurations = minFrameDurations;
+        }
+
+        public String getId() {
+            return mId;
+        }
+
+        /**
+         * @return one of CameraMetadata.LENS_FACING_*
+         */
+        public int getFacing() {
+            return mFacing;
+        }
+
+        public int getHardwareLevel() {
+            return mHardwareLevel;
+        }
+
+        public int getSensorOrientation() {
+            return mSensorOrientation;
+        }
+
+        public boolean isHighSpeedSupported() {
+            return mHighSpeed;
+        }
+
+        public int getSizeCount() {
+            return mWidths.length;
+        }
+
+        public int getWidth(int index) {
+            return mWidths[index];
+        }
+
+        public int getHeight(int index) {
+            return mHeights[index];
+        }
+
+        public long getMinFrameDuration(int index) {
+            return mMinFrameDurations[index];
+        }
+
+        /**
+         * parallel arrays, ready for SizeNegotiator.choose
+         */
+        public int[] getWidths() {
+            return mWidths.clone();
+        }
+
+        public int[] getHeights() {
+            return mHeights.clone();
+        }
+
+        public long[] getMinFrameDurations() {
+            return mMinFrameDurations.clone();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Camera)) {
+                return false;
+            }
+            Camera other = (Camera) o;
+            return mId.equals(other.mId) && mFacing == other.mFacing
+                    && mHardwareLevel == other.mHardwareLevel
+                    && mSensorOrientation == other.mSensorOrientation
+                    && mHighSpeed == other.mHighSpeed
+                    && java.util.Arrays.equals(mWidths, other.mWidths)
+                    && java.util.Arrays.equals(mHeights, other.mHeights)
+                    && java.util.Arrays.equals(mMinFrameDurations, other.mMinFrameDurations);
+        }
+
+        @Override
+        public int hashCode() {
+            return mId.hashCode();
+        }
+    }
+
+    String mFingerprint = "";
+
+    String mGlRenderer = "";
+
+    String mGlVersion = "";
+
+    String mGlExtensions = "";
+
+    int mGlMajorVersion;
+
+    int mMaxTextureSize;
+
+    int mMaxViewportSize;
+
+    int mProgramBinaryFormats;
+
+    long mProbedAt;
+
+    long mProbeMillis;
+
+    final List<Encoder> mEncoders = new ArrayList<>();
+
+    final List<Camera> mCameras = new ArrayList<>();
+
+    /**
+     * effect key to PrecisionVariants.MEDIUMP or HIGHP, guarded by this
+     */
+    private final HashMap<String, String> mPrecisions = new HashMap<>();
+
+    DeviceProfile() {
+    }
+
+    /**
+     * @return Build.FINGERPRINT of the build this was probed on
+     */
+    public String getFingerprint() {
+        return mFingerprint;
+    }
+
+    public String getGlRenderer() {
+        return mGlRenderer;
+    }
+
+    public String getGlVersion() {
+        return mGlVersion;
+    }
+
+    /**
+     * @return 3 if a GLES3 context could be made, otherwise 2
+     */
+    public int getGlMajorVersion() {
+        return mGlMajorVersion;
+    }
+
+    /**
+     * whole name match against GL_EXTENSIONS, like GlUtil.hasExtension but without a context
+     */
+    public boolean hasExtension(String name) {
+        for (String extension : mGlExtensions.split(" ")) {
+            if (extension.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getMaxTextureSize() {
+        return mMaxTextureSize;
+    }
+
+    /**
+     * @return smaller of GL_MAX_VIEWPORT_DIMS
+     */
+    public int getMaxViewportSize() {
+        return mMaxViewportSize;
+    }
+
+    /**
+     * @return GL_NUM_PROGRAM_BINARY_FORMATS, 0 when program binaries can't be cached
+     */
+    public int getProgramBinaryFormats() {
+        return mProgramBinaryFormats;
+    }
+
+    /**
+     * @return when this was probed, ms since epoch
+     */
+    public long getProbedAt() {
+        return mProbedAt;
+    }
+
+    /**
+     * @return how long probing took, what loading this saves
+     */
+    public long getProbeMillis() {
+        return mProbeMillis;
+    }
+
+    public List<Encoder> getEncoders() {
+        return Collections.unmodifiableList(mEncoders);
+    }
+
+    /**
+     * @return first encoder for this mime type, ex: "video/avc", or null
+     */
+    public Encoder getEncoder(String mime) {
+        for (Encoder encoder : mEncoders) {
+            if (encoder.getMime().equals(mime)) {
+                return encoder;
+            }
+        }
+        return null;
+    }
+
+    public List<Camera> getCameras() {
+        return Collections.unmodifiableList(mCameras);
+    }
+
+    public Camera getCamera(String id) {
+        for (Camera camera : mCameras) {
+            if (camera.getId().equals(id)) {
+                return camera;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param key identifies an effect and its source, see PrecisionSelector
+     * @return the precision picked for it on this device, null if it hasn't been calibrated
+     */
+    public synchronized String getPrecision(String key) {
+        return mPrecisions.get(key);
+    }
+
+    synchronized void putPrecision(String key, String precision) {
+        mPrecisions.put(key, precision);
+    }
+
+    /**
+     * same build, GL renderer and GL version, so what was measured on the GPU still holds, ex:
+     * precision picks, even if a camera or encoder changed
+     */
+    boolean sameGpu(DeviceProfile other) {
+        return other != null && mFingerprint.equals(other.mFingerprint)
+                && mGlRenderer.equals(other.mGlRenderer) && mGlVersion.equals(other.mGlVersion);
+    }
+
+    /**
+     * keep the precisions picked on other, only if {@link #sameGpu}
+     */
+    void copyPrecisionsFrom(DeviceProfile other) {
+        HashMap<String, String> precisions;
+        synchronized (other) {
+            precisions = new HashMap<>(other.mPrecisions);
+        }
+        synchronized (this) {
+            mPrecisions.putAll(precisions);
+        }
+    }
+
+    /**
+     * same device as far as any configuration choice goes, ignores when and how fast it was probed
+     * and what was measured on it since
+     */
+    public boolean sameAs(DeviceProfile other) {
+        return other != null && mFingerprint.equals(other.mFingerprint)
+                && mGlRenderer.equals(other.mGlRenderer) && mGlVersion.equals(other.mGlVersion)
+                && mGlExtensions.equals(other.mGlExtensions)
+                && mGlMajorVersion == other.mGlMajorVersion
+                && mMaxTextureSize == other.mMaxTextureSize
+                && mMaxViewportSize == other.mMaxViewportSize
+                && mProgramBinaryFormats == other.mProgramBinaryFormats
+                && mEncoders.equals(other.mEncoders) && mCameras.equals(other.mCameras);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(mFingerprint);
+        out.writeUTF(mGlRenderer);
+        out.writeUTF(mGlVersion);
+        out.writeUTF(mGlExtensions);
+        out.writeInt(mGlMajorVersion);
+        out.writeInt(mMaxTextureSize);
+        out.writeInt(mMaxViewportSize);
+        out.writeInt(mProgramBinaryFormats);
+        out.writeLong(mProbedAt);
+        out.writeLong(mProbeMillis);
+
+        out.writeInt(mEncoders.size());
+        for (Encoder encoder : mEncoders) {
+            out.writeUTF(encoder.mName);
+            out.writeUTF(encoder.mMime);
+            out.writeInt(encoder.mMaxWidth);
+            out.writeInt(encoder.mMaxHeight);
+        }
+
+        out.writeInt(mCameras.size());
+        for (Camera camera : mCameras) {
+            out.writeUTF(camera.mId);
+            out.writeInt(camera.mFacing);
+            out.writeInt(camera.mHardwareLevel);
+            out.writeInt(camera.mSensorOrientation);
+            out.writeBoolean(camera.mHighSpeed);
+            out.writeInt(camera.mWidths.length);
+            for (int i = 0; i < camera.mWidths.length; i++) {
+                out.writeInt(camera.mWidths[i]);
+                out.writeInt(camera.mHeights[i]);
+                out.writeLong(camera.mMinFrameDurations[i]);
+            }
+        }
+
+        synchronized (this) {
+            out.writeInt(mPrecisions.size());
+            for (Map.Entry<String, String> entry : mPrecisions.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+        }
+    }
+
+    static DeviceProfile read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("bad header");
+        }
+        DeviceProfile profile = new DeviceProfile();
+        profile.mFingerprint = in.readUTF();
+        profile.mGlRenderer = in.readUTF();
+        profile.mGlVersion = in.readUTF();
+        profile.mGlExtensions = in.readUTF();
+        profile.mGlMajorVersion = in.readInt();
+        profile.mMaxTextureSize = in.readInt();
+        profile.mMaxViewportSize = in.readInt();
+        profile.mProgramBinaryFormats = in.readInt();
+        profile.mProbedAt = in.readLong();
+        profile.mProbeMillis = in.readLong();
+
+        int encoders = readCount(in);
+        for (int i = 0; i < encoders; i++) {
+            profile.mEncoders.add(new Encoder(in.readUTF(), in.readUTF(), in.readInt(),
+                    in.readInt()));
+        }
+
+        int cameras = readCount(in);
+        for (int i = 0; i < cameras; i++) {
+            String id = in.readUTF();
+            int facing = in.readInt();
+            int level = in.readInt();
+            int orientation = in.readInt();
+            boolean highSpeed = in.readBoolean();
+            int sizes = readCount(in);
+            int[] widths = new int[sizes];
+            int[] heights = new int[sizes];
+            long[] durations = new long[sizes];
+            for (int j = 0; j < sizes; j++) {
+                widths[j] = in.readInt();
+                heights[j] = in.readInt();
+                durations[j] = in.readLong();
+            }
+            profile.mCameras.add(new Camera(id, facing, level, orientation, highSpeed, widths,
+                    heights, durations));
+        }
+
+        int precisions = readCount(in);
+        for (int i = 0; i < precisions; i++) {
+            profile.mPrecisions.put(in.readUTF(), in.readUTF());
+        }
+        return profile;
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > 4096) {
+            throw new IOException("bad count " + count);
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return mGlRenderer + " GLES" + mGlMajorVersion + ", max texture " + mMaxTextureSize
+                + ", " + mProgramBinaryFormats + " binary formats, " + mEncoders.size()
+                + " encoders, " + mCameras.size() + " cameras, probed in " + mProbeMillis + "ms";
+    }
+}
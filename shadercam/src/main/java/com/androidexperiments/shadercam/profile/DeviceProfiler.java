@@ -0,0 +1,137 @@
+package com.androidexperiments.shadercam.profile;
+
+import android.content.Context;
+import android.hardware.camera2.CameraAccessException;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import com.androidexperiments.shadercam.camera.CameraCapabilities;
+import com.androidexperiments.shadercam.camera.CameraCapabilityCache;
+import com.androidexperiments.shadercam.gl.EglCore;
+import com.androidexperiments.shadercam.gl.Gl;
+import com.androidexperiments.shadercam.gl.GlUtil;
+import com.androidexperiments.shadercam.gl.OffscreenSurface;
+
+/**
+ * Builds a {@link DeviceProfile} the slow way: a throwaway EGL context on a 1x1 pbuffer for the
+ * GL side, MediaCodecList for encoders and {@link CameraCapabilityCache} for cameras. Takes
+ * anywhere from tens to hundreds of ms, never call it on the main thread.
+ */
+public class DeviceProfiler {
+
+    private static final String TAG = DeviceProfiler.class.getSimpleName();
+
+    /**
+     * GL_NUM_PROGRAM_BINARY_FORMATS, same value as GL_NUM_PROGRAM_BINARY_FORMATS_OES
+     */
+    private static final int GL_NUM_PROGRAM_BINARY_FORMATS = GLES30.GL_NUM_PROGRAM_BINARY_FORMATS;
+
+    private final Context mContext;
+
+    public DeviceProfiler(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    public DeviceProfile probe() {
+        long start = System.nanoTime();
+        DeviceProfile profile = new DeviceProfile();
+        profile.mFingerprint = Build.FINGERPRINT;
+        profile.mProbedAt = System.currentTimeMillis();
+
+        probeGl(profile);
+        probeEncoders(profile);
+        probeCameras(profile);
+
+        profile.mProbeMillis = (System.nanoTime() - start) / 1000000;
+        Log.d(TAG, "probed " + profile);
+        return profile;
+    }
+
+    private void probeGl(DeviceProfile profile) {
+        //ignore any version hint, this is where the hint comes from
+        EglCore eglCore = new EglCore(null,
+                EglCore.FLAG_TRY_GLES3 | EglCore.FLAG_IGNORE_VERSION_HINT);
+        OffscreenSurface surface = null;
+        try {
+            surface = new OffscreenSurface(eglCore, 1, 1);
+            surface.makeCurrent();
+
+            profile.mGlRenderer = nonNull(Gl.glGetString(GLES20.GL_RENDERER));
+            profile.mGlVersion = nonNull(Gl.glGetString(GLES20.GL_VERSION));
+            profile.mGlExtensions = nonNull(Gl.glGetString(GLES20.GL_EXTENSIONS));
+            profile.mGlMajorVersion = Math.min(eglCore.getGlVersion(),
+                    GlUtil.getGlesMajorVersion());
+
+            int[] values = new int[2];
+            Gl.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, values, 0);
+            profile.mMaxTextureSize = values[0];
+            Gl.glGetIntegerv(GLES20.GL_MAX_VIEWPORT_DIMS, values, 0);
+            profile.mMaxViewportSize = Math.min(values[0], values[1]);
+
+            if (profile.mGlMajorVersion >= 3 || GlUtil.hasExtension("GL_OES_get_program_binary")) {
+                values[0] = 0;
+                Gl.glGetIntegerv(GL_NUM_PROGRAM_BINARY_FORMATS, values, 0);
+                profile.mProgramBinaryFormats = Gl.glGetError() == GLES20.GL_NO_ERROR
+                        ? values[0] : 0;
+            }
+        } finally {
+            if (surface != null) {
+                surface.release();
+            }
+            eglCore.release();
+        }
+    }
+
+    private static void probeEncoders(DeviceProfile profile) {
+        MediaCodecInfo[] infos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        for (MediaCodecInfo info : infos) {
+            if (!info.isEncoder()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (!type.startsWith("video/")) {
+                    continue;
+                }
+                try {
+                    MediaCodecInfo.VideoCapabilities video = info.getCapabilitiesForType(type)
+                            .getVideoCapabilities();
+                    if (video != null) {
+                        profile.mEncoders.add(new DeviceProfile.Encoder(info.getName(), type,
+                                video.getSupportedWidths().getUpper(),
+                                video.getSupportedHeights().getUpper()));
+                    }
+                } catch (IllegalArgumentException e) {
+                    //some vendor codecs list types they then refuse to describe
+                    Log.w(TAG, "No capabilities for " + info.getName() + " " + type);
+                }
+            }
+        }
+    }
+
+    private void probeCameras(DeviceProfile profile) {
+        CameraCapabilityCache cache = CameraCapabilityCache.getInstance(mContext);
+        try {
+            for (String id : cache.getCameraIds()) {
+                CameraCapabilities capabilities = cache.get(id);
+                CameraCapabilities.Outputs preview = capabilities.getPreviewOutputs();
+                profile.mCameras.add(new DeviceProfile.Camera(id,
+                        capabilities.getLensFacing(), capabilities.getHardwareLevel(),
+                        capabilities.getSensorOrientation(),
+                        capabilities.isHighSpeedSupported(), preview.getWidths(),
+                        preview.getHeights(), preview.getMinFrameDurations()));
+            }
+        } catch (CameraAccessException | RuntimeException e) {
+            //no permission yet, or the camera service is down: profile without cameras
+            Log.w(TAG, "Couldn't probe cameras", e);
+            profile.mCameras.clear();
+        }
+    }
+
+    private static String nonNull(String s) {
+        return s != null ? s : "";
+    }
+}
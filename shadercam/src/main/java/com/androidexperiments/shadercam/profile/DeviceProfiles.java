@@ -0,0 +1,229 @@
+package com.androidexperiments.shadercam.profile;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.androidexperiments.shadercam.gl.EglCore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Keeps the {@link DeviceProfile} on disk so startup doesn't have to probe for it.
+ *
+ * The first {@link #getInstance} reads the profile file, a few hundred bytes, on the calling
+ * thread and hands its answers to whatever can use them right away, ex: EglCore stops trying
+ * for a GLES3 context on devices that don't have one. It then re-probes on a background thread
+ * and rewrites the file if anything changed, so a profile is at most one launch stale.
+ *
+ * A profile from a different Build.FINGERPRINT, which is what an OTA looks like, is never used.
+ * A different GL renderer on the same build, ex: an updated GPU driver, only shows up once
+ * probed, so that's caught by the revalidation.
+ */
+public class DeviceProfiles {
+
+    private static final String TAG = DeviceProfiles.class.getSimpleName();
+
+    private static final String FILE_NAME = "device_profile.bin";
+
+    private static DeviceProfiles __instance;
+
+    private final File mFile;
+
+    private final DeviceProfiler mProfiler;
+
+    private final Handler mHandler;
+
+    private volatile DeviceProfile mProfile;
+
+    private boolean mFromDisk;
+
+    public static synchronized DeviceProfiles getInstance(Context context) {
+        if (__instance == null) {
+            __instance = new DeviceProfiles(context);
+        }
+        return __instance;
+    }
+
+    private DeviceProfiles(Context context) {
+        Context app = context.getApplicationContext();
+        mFile = new File(app.getCacheDir(), FILE_NAME);
+        mProfiler = new DeviceProfiler(app);
+
+        long start = System.nanoTime();
+        DeviceProfile profile = read(mFile);
+        if (profile != null && !profile.getFingerprint().equals(Build.FINGERPRINT)) {
+            Log.d(TAG, "profile is from another build, reprobing");
+            profile = null;
+        }
+        if (profile != null) {
+            Log.d(TAG, "loaded profile in " + (System.nanoTime() - start) / 1000000
+                    + "ms instead of probing for " + profile.getProbeMillis() + "ms");
+            apply(profile);
+            mProfile = profile;
+            mFromDisk = true;
+        }
+
+        HandlerThread thread = new HandlerThread("DeviceProfile");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        revalidate();
+    }
+
+    /**
+     * @return the current profile, null until the first probe finishes on a device without one
+     */
+    public DeviceProfile getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * whether {@link #getProfile()} was read from disk instead of probed this launch
+     */
+    public synchronized boolean isFromDisk() {
+        return mFromDisk;
+    }
+
+    /**
+     * Probe again in the background, replacing the profile and its file if anything changed.
+     * Already done once by {@link #getInstance}.
+     */
+    public void revalidate() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                DeviceProfile probed;
+                try {
+                    probed = mProfiler.probe();
+                } catch (RuntimeException e) {
+                    //keep whatever we had, next launch tries again
+                    Log.e(TAG, "Failed to probe device", e);
+                    return;
+                }
+                DeviceProfile old = mProfile;
+                if (probed.sameAs(old)) {
+                    return;
+                }
+                Log.d(TAG, old == null ? "new profile" : "profile changed, rewriting");
+                if (probed.sameGpu(old)) {
+                    //nothing the picks were measured on changed, ex: only a camera did. Safe
+                    //against a putPrecision racing us, those run on this thread too
+                    probed.copyPrecisionsFrom(old);
+                }
+                apply(probed);
+                synchronized (DeviceProfiles.this) {
+                    mProfile = probed;
+                    mFromDisk = false;
+                }
+                try {
+                    write(probed, mFile);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write device profile", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Remember the precision picked for an effect and rewrite the file, in the background. Runs
+     * after any pending probe, so it lands on a first launch's profile too. Kept when a
+     * revalidation replaces the profile, unless the build, GL renderer or GL version changed,
+     * since then the pick has to be made again.
+     *
+     * @param precision PrecisionVariants.MEDIUMP or HIGHP
+     */
+    public void putPrecision(final String key, final String precision) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                DeviceProfile profile = mProfile;
+                if (profile == null) {
+                    //probe failed, calibrating again next launch is the best we can do
+                    return;
+                }
+                profile.putPrecision(key, precision);
+                try {
+                    write(profile, mFile);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write device profile", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * drop the file, ex: from a debug menu. The in memory profile stays until the next launch
+     */
+    public void clear() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mFile.delete();
+            }
+        });
+    }
+
+    /**
+     * push the choices the profile already answers to where they're made
+     */
+    private static void apply(DeviceProfile profile) {
+        EglCore.setGlVersionHint(profile.getGlMajorVersion());
+    }
+
+    private static DeviceProfile read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            return DeviceProfile.read(in);
+        } catch (IOException e) {
+            //old version or corrupt, the revalidation replaces it
+            Log.w(TAG, "Dropping unreadable device profile: " + e.getMessage());
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void write(DeviceProfile profile, File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            profile.write(out);
+            //close here so a failed flush throws instead of renaming a short file
+            out.close();
+            out = null;
+        } finally {
+            closeQuietly(out);
+        }
+
+        //write-then-rename so a crash never leaves a half written profile behind
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not move device profile to " + file);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.androidexperiments.shadercam.shader;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * mediump and highp variants of a fragment shader, made by rewriting its default float precision
+ * statement. Explicit precision qualifiers on single declarations are left alone, the author put
+ * them there for a reason.
+ *
+ * Pick between the variants on a device with PrecisionCalibrator, or PrecisionSelector which
+ * also remembers the pick.
+ */
+public class PrecisionVariants {
+
+    public static final String MEDIUMP = "mediump";
+
+    public static final String HIGHP = "highp";
+
+    private static final Pattern DEFAULT_FLOAT = Pattern.compile(
+            "^[ \\t]*precision\\s+(lowp|mediump|highp)\\s+float\\s*;", Pattern.MULTILINE);
+
+    /**
+     * #version and #extension have to come before any declaration
+     */
+    private static final Pattern HEADER_LINE = Pattern.compile(
+            "^[ \\t]*#[ \\t]*(version|extension)\\b.*$", Pattern.MULTILINE);
+
+    /**
+     * @return the default float precision, ex: {@link #MEDIUMP}, or null if there's no statement
+     */
+    public static String getDefaultPrecision(String source) {
+        Matcher matcher = DEFAULT_FLOAT.matcher(source);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    /**
+     * @param precision {@link #MEDIUMP} or {@link #HIGHP}
+     * @return source with that default float precision, replacing the existing statement or
+     * adding one after the #version and #extension lines
+     */
+    public static String withPrecision(String source, String precision) {
+        if (!MEDIUMP.equals(precision) && !HIGHP.equals(precision)) {
+            throw new IllegalArgumentException("Unsupported precision " + precision);
+        }
+        String statement = "precision " + precision + " float;";
+        Matcher matcher = DEFAULT_FLOAT.matcher(source);
+        if (matcher.find()) {
+            return source.substring(0, matcher.start()) + statement
+                    + source.substring(matcher.end());
+        }
+
+        int insert = 0;
+        Matcher header = HEADER_LINE.matcher(source);
+        while (header.find()) {
+            insert = header.end();
+        }
+        if (insert == 0) {
+            return statement + "\n" + source;
+        }
+        return source.substring(0, insert) + "\n" + statement + source.substring(insert);
+    }
+}
@@ -0,0 +1,101 @@
+package com.androidexperiments.shadercam.shader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Static per-fragment cost of a fragment shader, as estimated by {@link ShaderCostAnalyzer}.
+ * Counts are per fragment with loops already multiplied out, so they can be fractional when a
+ * loop bound had to be guessed.
+ */
+public class ShaderCost {
+
+    float mAluOps;
+
+    float mTextureFetches;
+
+    float mDependentReads;
+
+    int mLoops;
+
+    int mUnresolvedLoops;
+
+    float mMaxIterations;
+
+    boolean mHighp;
+
+    final List<String> mNotes = new ArrayList<>();
+
+    ShaderCost() {
+    }
+
+    /**
+     * @return scalar ALU operations, a vec4 multiply is 4 and a sin is a few
+     */
+    public float getAluOps() {
+        return mAluOps;
+    }
+
+    public float getTextureFetches() {
+        return mTextureFetches;
+    }
+
+    /**
+     * @return fetches whose coordinate isn't a plain varying, these can't be prefetched before the
+     * shader runs and stall on some GPUs
+     */
+    public float getDependentReads() {
+        return mDependentReads;
+    }
+
+    public int getLoopCount() {
+        return mLoops;
+    }
+
+    /**
+     * @return loops whose trip count couldn't be worked out and was guessed
+     */
+    public int getUnresolvedLoopCount() {
+        return mUnresolvedLoops;
+    }
+
+    /**
+     * @return most times any one statement runs per fragment, nested loops multiplied
+     */
+    public float getMaxIterations() {
+        return mMaxIterations;
+    }
+
+    /**
+     * @return true if the default float precision is highp
+     */
+    public boolean usesHighp() {
+        return mHighp;
+    }
+
+    /**
+     * @return one line per loop and dependent read, with the source line it's on
+     */
+    public List<String> getNotes() {
+        return Collections.unmodifiableList(mNotes);
+    }
+
+    void add(ShaderCost other, float times) {
+        mAluOps += other.mAluOps * times;
+        mTextureFetches += other.mTextureFetches * times;
+        mDependentReads += other.mDependentReads * times;
+        mLoops += other.mLoops;
+        mUnresolvedLoops += other.mUnresolvedLoops;
+        mMaxIterations = Math.max(mMaxIterations, other.mMaxIterations * times);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%.0f alu, %.1f fetches (%.1f dependent), %d loops"
+                        + " (%d unresolved), up to %.0f iterations%s", mAluOps, mTextureFetches,
+                mDependentReads, mLoops, mUnresolvedLoops, mMaxIterations,
+                mHighp ? ", highp" : "");
+    }
+}
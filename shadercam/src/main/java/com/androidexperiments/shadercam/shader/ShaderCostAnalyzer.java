@@ -0,0 +1,1094 @@
+package com.androidexperiments.shadercam.shader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Estimates what a GLSL ES fragment shader costs per fragment without compiling it: ALU ops,
+ * texture fetches, dependent reads and loop trip counts, see {@link ShaderCost}. Multiplied by
+ * an output size and a rough GPU throughput that says whether an effect is likely to blow the
+ * frame budget, before it ever runs on a device.
+ *
+ * This is a token level estimate, not a compiler. It walks main() once, inlines user functions,
+ * multiplies loop bodies by their trip count and counts both sides of every branch, so it errs
+ * high. Types are only tracked as far as component counts, to size vector ops. Loop bounds are
+ * resolved from literals, #defines and consts, anything else is guessed at
+ * {@link #DEFAULT_LOOP_TRIPS} and reported.
+ *
+ * Usable at load time, see VideoRenderer.setShaderCostAnalyzer, or at build time from the
+ * command line, it doesn't reference any android classes:
+ * <pre>
+ *   java com.androidexperiments.shadercam.shader.ShaderCostAnalyzer -size 1920x1080 a.frag.glsl
+ * </pre>
+ */
+public class ShaderCostAnalyzer {
+
+    /**
+     * trip count assumed for loops we can't resolve
+     */
+    public static final int DEFAULT_LOOP_TRIPS = 16;
+
+    /**
+     * rough numbers for a mid range phone GPU, replace with something measured where it matters
+     */
+    private static final double DEFAULT_ALU_OPS_PER_SECOND = 50e9;
+
+    private static final double DEFAULT_FETCHES_PER_SECOND = 4e9;
+
+    /**
+     * many mobile GPUs run mediump at twice the rate of highp
+     */
+    private static final float DEFAULT_HIGHP_FACTOR = 2.f;
+
+    /**
+     * a dependent read can't be prefetched, count it as one more fetch worth of latency
+     */
+    private static final float DEPENDENT_READ_PENALTY = 1.f;
+
+    private static final String[] TEXTURE_FUNCTIONS = {
+            "texture2D", "texture2DProj", "texture2DLod", "texture2DProjLod", "textureCube",
+            "textureCubeLod", "texture3D", "texture", "textureProj", "textureLod", "textureOffset",
+            "textureProjOffset", "textureLodOffset", "textureGrad", "textureGradOffset",
+            "texelFetch", "texelFetchOffset", "texture2DLodEXT", "texture2DGradEXT"
+    };
+
+    /**
+     * builtin name to {ops per component, fixed ops}, for the width of the first argument
+     */
+    private static final HashMap<String, float[]> BUILTINS = new HashMap<>();
+
+    /**
+     * type name to components, samplers and void are 0
+     */
+    private static final HashMap<String, Integer> TYPES = new HashMap<>();
+
+    /**
+     * builtins whose result is a scalar whatever they're given
+     */
+    private static final HashSet<String> SCALAR_BUILTINS = new HashSet<>();
+
+    private static final HashSet<String> TEXTURES = new HashSet<>();
+
+    private static final String[] ASSIGNMENTS = {"=", "+=", "-=", "*=", "/="};
+
+    private static final String[] OPERATORS_2 = {
+            "++", "--", "+=", "-=", "*=", "/=", "<=", ">=", "==", "!=", "&&", "||", "^^", "<<",
+            ">>"
+    };
+
+    static {
+        for (String name : TEXTURE_FUNCTIONS) {
+            TEXTURES.add(name);
+        }
+
+        for (String name : new String[]{"abs", "sign", "floor", "ceil", "fract", "min", "max",
+                "clamp", "step", "dot", "round", "trunc", "dFdx", "dFdy", "not"}) {
+            BUILTINS.put(name, new float[]{1, 0});
+        }
+        for (String name : new String[]{"mod", "mix", "fwidth", "faceforward"}) {
+            BUILTINS.put(name, new float[]{2, 0});
+        }
+        BUILTINS.put("reflect", new float[]{3, 0});
+        BUILTINS.put("refract", new float[]{4, 6});
+        BUILTINS.put("smoothstep", new float[]{4, 0});
+        //transcendentals go through the special function unit at a fraction of the rate
+        for (String name : new String[]{"sin", "cos", "asin", "acos", "atan", "exp", "exp2",
+                "log", "log2", "sqrt", "inversesqrt", "radians", "degrees"}) {
+            BUILTINS.put(name, new float[]{4, 0});
+        }
+        BUILTINS.put("tan", new float[]{8, 0});
+        BUILTINS.put("pow", new float[]{9, 0});
+        BUILTINS.put("length", new float[]{1, 4});
+        BUILTINS.put("distance", new float[]{2, 4});
+        BUILTINS.put("normalize", new float[]{2, 4});
+        BUILTINS.put("cross", new float[]{0, 6});
+
+        SCALAR_BUILTINS.add("dot");
+        SCALAR_BUILTINS.add("length");
+        SCALAR_BUILTINS.add("distance");
+
+        for (String prefix : new String[]{"", "i", "u", "b"}) {
+            TYPES.put(prefix + "vec2", 2);
+            TYPES.put(prefix + "vec3", 3);
+            TYPES.put(prefix + "vec4", 4);
+        }
+        TYPES.put("float", 1);
+        TYPES.put("int", 1);
+        TYPES.put("uint", 1);
+        TYPES.put("bool", 1);
+        TYPES.put("mat2", 4);
+        TYPES.put("mat3", 9);
+        TYPES.put("mat4", 16);
+        TYPES.put("void", 0);
+        for (String sampler : new String[]{"sampler2D", "sampler3D", "samplerCube",
+                "samplerExternalOES", "sampler2DArray", "sampler2DShadow", "isampler2D",
+                "usampler2D"}) {
+            TYPES.put(sampler, 0);
+        }
+    }
+
+    private double mAluOpsPerSecond = DEFAULT_ALU_OPS_PER_SECOND;
+
+    private double mFetchesPerSecond = DEFAULT_FETCHES_PER_SECOND;
+
+    private float mHighpFactor = DEFAULT_HIGHP_FACTOR;
+
+    private int mTargetFps = 30;
+
+    private float mBudget = 0.75f;
+
+    /**
+     * per analysis state
+     */
+    private final ArrayList<String> mTokens = new ArrayList<>();
+
+    private int[] mLines = new int[256];
+
+    private final HashMap<String, Float> mConstants = new HashMap<>();
+
+    private final HashMap<String, Integer> mWidths = new HashMap<>();
+
+    private final HashSet<String> mVaryings = new HashSet<>();
+
+    /**
+     * locals that are just a copy of a varying so far, reading through them isn't dependent
+     */
+    private final HashSet<String> mAliases = new HashSet<>();
+
+    private final HashMap<String, Function> mFunctions = new HashMap<>();
+
+    private final ArrayList<String> mNotes = new ArrayList<>();
+
+    private static class Function {
+
+        int returnWidth;
+
+        int bodyStart, bodyEnd;
+
+        ShaderCost cost;
+
+        boolean costing;
+    }
+
+    /**
+     * GPU throughput to compare against, the defaults are a rough mid range phone
+     *
+     * @param aluOpsPerSecond scalar ALU ops per second across the whole GPU
+     * @param fetchesPerSecond bilinear texture fetches per second
+     */
+    public void setThroughput(double aluOpsPerSecond, double fetchesPerSecond) {
+        if (aluOpsPerSecond <= 0 || fetchesPerSecond <= 0) {
+            throw new IllegalArgumentException("Bad throughput " + aluOpsPerSecond + "/"
+                    + fetchesPerSecond);
+        }
+        mAluOpsPerSecond = aluOpsPerSecond;
+        mFetchesPerSecond = fetchesPerSecond;
+    }
+
+    /**
+     * how much slower highp ALU is than mediump, 1 for GPUs that don't care. Defaults to 2
+     */
+    public void setHighpFactor(float factor) {
+        if (factor < 1.f) {
+            throw new IllegalArgumentException("highp factor must be >= 1, was " + factor);
+        }
+        mHighpFactor = factor;
+    }
+
+    /**
+     * frame budget a shader is checked against, defaults to 75% of a 30fps frame, same meaning
+     * as SizeNegotiator.setShaderCost
+     */
+    public void setFrameBudget(int fps, float budget) {
+        if (fps <= 0 || budget <= 0) {
+            throw new IllegalArgumentException("Bad frame budget " + fps + "/" + budget);
+        }
+        mTargetFps = fps;
+        mBudget = budget;
+    }
+
+    public ShaderCost analyze(InputStream is) throws IOException {
+        Reader reader = new InputStreamReader(is, StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[4096];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            sb.append(buffer, 0, read);
+        }
+        return analyze(sb.toString());
+    }
+
+    /**
+     * @throws IllegalArgumentException if there's no main() or the braces don't match
+     */
+    public ShaderCost analyze(String source) {
+        mTokens.clear();
+        mConstants.clear();
+        mWidths.clear();
+        mVaryings.clear();
+        mAliases.clear();
+        mFunctions.clear();
+        mNotes.clear();
+        mWidths.put("gl_FragCoord", 4);
+        mWidths.put("gl_FragColor", 4);
+        mWidths.put("gl_PointCoord", 2);
+
+        tokenize(source);
+        boolean highp = scanGlobals();
+
+        Function main = mFunctions.get("main");
+        if (main == null) {
+            throw new IllegalArgumentException("No main() found");
+        }
+        ShaderCost cost = new ShaderCost();
+        cost.add(cost(main), 1.f);
+        cost.mMaxIterations = Math.max(cost.mMaxIterations, 1.f);
+        cost.mHighp = highp;
+        cost.mNotes.addAll(mNotes);
+        return cost;
+    }
+
+    /**
+     * @return estimated GPU time per output pixel, ready for SizeNegotiator.setShaderCost. ALU
+     * and texture time are added rather than overlapped, which errs high
+     */
+    public float getNsPerPixel(ShaderCost cost) {
+        double alu = cost.mAluOps * (cost.mHighp ? mHighpFactor : 1.f);
+        double fetches = cost.mTextureFetches + cost.mDependentReads * DEPENDENT_READ_PENALTY;
+        return (float) (alu * 1e9 / mAluOpsPerSecond + fetches * 1e9 / mFetchesPerSecond);
+    }
+
+    /**
+     * @return estimated GPU time for one full screen pass at this size
+     */
+    public float getFrameMillis(ShaderCost cost, int width, int height) {
+        return getNsPerPixel(cost) * width * height / 1e6f;
+    }
+
+    public boolean exceedsBudget(ShaderCost cost, int width, int height) {
+        return getFrameMillis(cost, width, height) > getBudgetMillis();
+    }
+
+    /**
+     * @return GPU time a shader gets per frame, from {@link #setFrameBudget(int, float)}
+     */
+    public float getBudgetMillis() {
+        return 1000.f / mTargetFps * mBudget;
+    }
+
+    /**
+     * @return warnings for this cost at this output size, empty if it looks fine. The first one,
+     * if any, is about the frame budget
+     */
+    public List<String> check(ShaderCost cost, int width, int height) {
+        List<String> warnings = new ArrayList<>();
+        if (exceedsBudget(cost, width, height)) {
+            warnings.add(String.format(Locale.US, "estimated %.1fms per frame at %dx%d, over the"
+                            + " %.1fms budget for %dfps (%s)", getFrameMillis(cost, width, height),
+                    width, height, getBudgetMillis(), mTargetFps, cost));
+        }
+        if (cost.mUnresolvedLoops > 0) {
+            warnings.add(cost.mUnresolvedLoops + " loop(s) with unknown trip count, assumed "
+                    + DEFAULT_LOOP_TRIPS);
+        }
+        if (cost.mDependentReads > 0) {
+            warnings.add(String.format(Locale.US, "%.0f dependent texture read(s) per fragment",
+                    cost.mDependentReads));
+        }
+        if (cost.mHighp) {
+            warnings.add("default float precision is highp, mediump is often twice as fast");
+        }
+        return warnings;
+    }
+
+    // ------------------------------------------------------------
+    // tokens
+    // ------------------------------------------------------------
+
+    private void tokenize(String s) {
+        int n = s.length();
+        int line = 1;
+        boolean lineStart = true;
+        int i = 0;
+        while (i < n) {
+            char c = s.charAt(i);
+            if (c == '\n') {
+                line++;
+                lineStart = true;
+                i++;
+            } else if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '/' && i + 1 < n && s.charAt(i + 1) == '/') {
+                while (i < n && s.charAt(i) != '\n') {
+                    i++;
+                }
+            } else if (c == '/' && i + 1 < n && s.charAt(i + 1) == '*') {
+                int end = s.indexOf("*/", i + 2);
+                end = end < 0 ? n : end + 2;
+                for (int j = i; j < end; j++) {
+                    if (s.charAt(j) == '\n') {
+                        line++;
+                    }
+                }
+                i = end;
+            } else if (c == '#' && lineStart) {
+                int end = i;
+                while (end < n && (s.charAt(end) != '\n' || s.charAt(end - 1) == '\\')) {
+                    end++;
+                }
+                directive(s.substring(i + 1, end));
+                i = end;
+            } else if (Character.isLetter(c) || c == '_') {
+                int start = i;
+                while (i < n && (Character.isLetterOrDigit(s.charAt(i)) || s.charAt(i) == '_')) {
+                    i++;
+                }
+                addToken(s.substring(start, i), line);
+                lineStart = false;
+            } else if (Character.isDigit(c)
+                    || (c == '.' && i + 1 < n && Character.isDigit(s.charAt(i + 1)))) {
+                int start = i;
+                while (i < n && (Character.isLetterOrDigit(s.charAt(i)) || s.charAt(i) == '.'
+                        || ((s.charAt(i) == '+' || s.charAt(i) == '-')
+                        && (s.charAt(i - 1) == 'e' || s.charAt(i - 1) == 'E')))) {
+                    i++;
+                }
+                addToken(s.substring(start, i), line);
+                lineStart = false;
+            } else {
+                String op = String.valueOf(c);
+                if (i + 1 < n) {
+                    String two = s.substring(i, i + 2);
+                    for (String candidate : OPERATORS_2) {
+                        if (candidate.equals(two)) {
+                            op = two;
+                            break;
+                        }
+                    }
+                }
+                addToken(op, line);
+                i += op.length();
+                lineStart = false;
+            }
+        }
+    }
+
+    private void addToken(String token, int line) {
+        if (mTokens.size() == mLines.length) {
+            int[] lines = new int[mLines.length * 2];
+            System.arraycopy(mLines, 0, lines, 0, mLines.length);
+            mLines = lines;
+        }
+        mLines[mTokens.size()] = line;
+        mTokens.add(token);
+    }
+
+    /**
+     * only object-like #defines of a number matter, for loop bounds. Both sides of an #if are
+     * counted like any other branch
+     */
+    private void directive(String directive) {
+        String[] parts = directive.trim().split("\\s+");
+        if (parts.length == 3 && parts[0].equals("define")) {
+            Float value = parseNumber(parts[2]);
+            if (value != null) {
+                mConstants.put(parts[1], value);
+            }
+        }
+    }
+
+    private String tok(int i) {
+        return i >= 0 && i < mTokens.size() ? mTokens.get(i) : "";
+    }
+
+    private static boolean isIdentifier(String token) {
+        return !token.isEmpty()
+                && (Character.isLetter(token.charAt(0)) || token.charAt(0) == '_');
+    }
+
+    private static Float parseNumber(String token) {
+        if (token.isEmpty() || !(Character.isDigit(token.charAt(0)) || token.charAt(0) == '.'
+                || token.charAt(0) == '-')) {
+            return null;
+        }
+        String digits = token;
+        char last = digits.charAt(digits.length() - 1);
+        if (last == 'u' || last == 'U' || last == 'f' || last == 'F') {
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        try {
+            if (digits.startsWith("0x") || digits.startsWith("0X")) {
+                return (float) Long.parseLong(digits.substring(2), 16);
+            }
+            return Float.parseFloat(digits);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return index of the bracket closing the one at open
+     */
+    private int match(int open) {
+        String o = tok(open);
+        String c = o.equals("(") ? ")" : o.equals("{") ? "}" : "]";
+        int depth = 0;
+        for (int i = open; i < mTokens.size(); i++) {
+            String t = mTokens.get(i);
+            if (t.equals(o)) {
+                depth++;
+            } else if (t.equals(c) && --depth == 0) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unmatched " + o + " on line " + mLines[open]);
+    }
+
+    /**
+     * @return index of the first ; or , at this nesting level at or after from, or to
+     */
+    private int find(int from, int to, String what) {
+        int depth = 0;
+        for (int i = from; i < to; i++) {
+            String t = mTokens.get(i);
+            if (t.equals("(") || t.equals("[") || t.equals("{")) {
+                depth++;
+            } else if (t.equals(")") || t.equals("]") || t.equals("}")) {
+                depth--;
+            } else if (depth == 0 && t.equals(what)) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    // ------------------------------------------------------------
+    // globals
+    // ------------------------------------------------------------
+
+    /**
+     * records declarations, constants, varyings and function bodies at file scope
+     *
+     * @return whether the default float precision is highp
+     */
+    private boolean scanGlobals() {
+        boolean highp = false;
+        int i = 0;
+        int n = mTokens.size();
+        while (i < n) {
+            String t = mTokens.get(i);
+            if (t.equals("precision")) {
+                if (tok(i + 1).equals("highp") && tok(i + 2).equals("float")) {
+                    highp = true;
+                }
+                i = find(i, n, ";") + 1;
+            } else if (t.equals("struct")) {
+                //struct fields are costed as scalars, not worth tracking
+                i = find(i, n, ";") + 1;
+            } else if (t.equals(";")) {
+                i++;
+            } else {
+                int end = find(i, n, ";");
+                int paren = -1;
+                for (int j = i; j < end; j++) {
+                    if (tok(j).equals("(")) {
+                        paren = j;
+                        break;
+                    }
+                }
+                if (paren > i + 1 && isIdentifier(tok(paren - 1))
+                        && TYPES.containsKey(tok(paren - 2))) {
+                    i = function(paren);
+                } else {
+                    declaration(i, end);
+                    i = end + 1;
+                }
+            }
+        }
+        return highp;
+    }
+
+    /**
+     * @param paren the ( after the function's name
+     * @return index after the definition, or the prototype
+     */
+    private int function(int paren) {
+        int close = match(paren);
+        for (int j = paren + 1; j < close; j = find(j, close, ",") + 1) {
+            declaration(j, find(j, close, ","));
+        }
+        if (!tok(close + 1).equals("{")) {
+            return find(close, mTokens.size(), ";") + 1;
+        }
+        Function function = new Function();
+        function.returnWidth = TYPES.get(tok(paren - 2));
+        function.bodyStart = close + 2;
+        function.bodyEnd = match(close + 1);
+        mFunctions.put(tok(paren - 1), function);
+        return function.bodyEnd + 1;
+    }
+
+    /**
+     * records the component count of every name declared between from and to, a full statement
+     * or one parameter, plus varyings, aliases of varyings and numeric consts
+     */
+    private void declaration(int from, int to) {
+        int type = -1;
+        boolean varying = false;
+        boolean constant = false;
+        for (int j = from; j < to; j++) {
+            String t = mTokens.get(j);
+            if (t.equals("varying") || (t.equals("in") && !inParens(from))) {
+                varying = true;
+            } else if (t.equals("const")) {
+                constant = true;
+            } else if (t.equals("layout") && tok(j + 1).equals("(")) {
+                j = match(j + 1);
+            } else if (TYPES.containsKey(t)) {
+                type = j;
+                break;
+            } else if (t.equals("(") || t.equals("=") || t.equals("{")) {
+                //an expression, or an interface block
+                return;
+            }
+        }
+        if (type < 0) {
+            return;
+        }
+        int width = TYPES.get(tok(type));
+        int j = type + 1;
+        while (j < to) {
+            if (!isIdentifier(tok(j))) {
+                return;
+            }
+            String name = tok(j);
+            mWidths.put(name, width);
+            if (varying) {
+                mVaryings.add(name);
+            }
+            int end = find(j, to, ",");
+            if (tok(j + 1).equals("=")) {
+                if (constant) {
+                    Float value = value(j + 2, end);
+                    if (value != null) {
+                        mConstants.put(name, value);
+                    }
+                }
+                if (isPlainVarying(j + 2, end)) {
+                    mAliases.add(name);
+                } else {
+                    mAliases.remove(name);
+                }
+            }
+            j = end + 1;
+        }
+    }
+
+    /**
+     * whether from is inside a parameter list, where in is a qualifier rather than a varying
+     */
+    private boolean inParens(int from) {
+        return tok(from - 1).equals("(") || tok(from - 1).equals(",");
+    }
+
+    /**
+     * @return the number or constant between from and to, optionally negated, or null
+     */
+    private Float value(int from, int to) {
+        boolean negate = tok(from).equals("-");
+        if (negate) {
+            from++;
+        }
+        if (to - from != 1) {
+            return null;
+        }
+        Float value = mConstants.get(tok(from));
+        if (value == null) {
+            value = parseNumber(tok(from));
+        }
+        return value != null && negate ? -value : value;
+    }
+
+    /**
+     * a varying or an alias of one, optionally swizzled: what GPUs can prefetch
+     */
+    private boolean isPlainVarying(int from, int to) {
+        if (to - from != 1 && to - from != 3) {
+            return false;
+        }
+        String name = tok(from);
+        if (!mVaryings.contains(name) && !mAliases.contains(name)) {
+            return false;
+        }
+        return to - from == 1 || tok(from + 1).equals(".");
+    }
+
+    // ------------------------------------------------------------
+    // cost
+    // ------------------------------------------------------------
+
+    private ShaderCost cost(Function function) {
+        if (function.cost != null) {
+            return function.cost;
+        }
+        if (function.costing) {
+            throw new IllegalArgumentException("Recursive function calls aren't allowed in GLSL");
+        }
+        function.costing = true;
+        ShaderCost cost = new ShaderCost();
+        cost(function.bodyStart, function.bodyEnd, 1.f, cost);
+        function.costing = false;
+        function.cost = cost;
+        return cost;
+    }
+
+    private void cost(int from, int to, float times, ShaderCost out) {
+        int i = from;
+        while (i < to) {
+            String t = mTokens.get(i);
+            if (t.equals("for") || t.equals("while") || t.equals("do")) {
+                i = loop(i, times, out);
+                continue;
+            }
+            if (TYPES.containsKey(t) && isIdentifier(tok(i + 1)) && !tok(i + 2).equals("(")) {
+                declaration(i, find(i, to, ";"));
+            } else if (isIdentifier(t) && tok(i + 1).equals("(")) {
+                call(i, times, out);
+            } else if (isIdentifier(t) && isAssignment(assignmentAfter(i))) {
+                if (!tok(assignmentAfter(i)).equals("=") || !TYPES.containsKey(tok(i - 1))) {
+                    mAliases.remove(t);
+                }
+            }
+            out.mAluOps += operator(i) * times;
+            i++;
+        }
+    }
+
+    /**
+     * @return the token after a name and its swizzle, where an assignment would be
+     */
+    private int assignmentAfter(int i) {
+        return tok(i + 1).equals(".") ? i + 3 : i + 1;
+    }
+
+    private boolean isAssignment(int i) {
+        String t = tok(i);
+        for (String assignment : ASSIGNMENTS) {
+            if (assignment.equals(t)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return scalar ops for the operator at i, 0 if it isn't one that costs anything
+     */
+    private int operator(int i) {
+        String t = mTokens.get(i);
+        switch (t) {
+            case "+":
+            case "-":
+                if (isUnary(i)) {
+                    return 0;
+                }
+                //fall through
+            case "*":
+            case "/":
+            case "+=":
+            case "-=":
+            case "*=":
+            case "/=":
+                return Math.max(1, Math.max(leftWidth(i - 1), rightWidth(i + 1)));
+            case "++":
+            case "--":
+            case "<":
+            case ">":
+            case "<=":
+            case ">=":
+            case "==":
+            case "!=":
+            case "&&":
+            case "||":
+            case "^^":
+            case "?":
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    private boolean isUnary(int i) {
+        String prev = tok(i - 1);
+        return prev.isEmpty() || prev.equals("(") || prev.equals(",") || prev.equals("[")
+                || prev.equals("?") || prev.equals(":") || prev.equals("return")
+                || isAssignment(i - 1) || operator(i - 1) > 0 || prev.equals("*")
+                || prev.equals("/") || prev.equals("+") || prev.equals("-");
+    }
+
+    /**
+     * component count of the operand ending at i
+     */
+    private int leftWidth(int i) {
+        String t = tok(i);
+        if (t.equals(")")) {
+            int open = findOpen(i, "(", ")");
+            return isIdentifier(tok(open - 1)) ? callWidth(open - 1) : width(open + 1, i);
+        }
+        if (t.equals("]")) {
+            return leftWidth(findOpen(i, "[", "]") - 1);
+        }
+        if (isIdentifier(t) && tok(i - 1).equals(".")) {
+            return swizzleWidth(t);
+        }
+        return nameWidth(t);
+    }
+
+    /**
+     * component count of the operand starting at i
+     */
+    private int rightWidth(int i) {
+        String t = tok(i);
+        if (t.equals("-") || t.equals("+")) {
+            return rightWidth(i + 1);
+        }
+        if (t.equals("(")) {
+            return width(i + 1, match(i));
+        }
+        if (isIdentifier(t) && tok(i + 1).equals("(")) {
+            return callWidth(i);
+        }
+        if (isIdentifier(t) && tok(i + 1).equals(".") && !TYPES.containsKey(t)) {
+            return swizzleWidth(tok(i + 2));
+        }
+        return nameWidth(t);
+    }
+
+    private int findOpen(int close, String open, String closing) {
+        int depth = 0;
+        for (int i = close; i >= 0; i--) {
+            String t = mTokens.get(i);
+            if (t.equals(closing)) {
+                depth++;
+            } else if (t.equals(open) && --depth == 0) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * widest operand at the top level of an expression
+     */
+    private int width(int from, int to) {
+        int width = 1;
+        int i = from;
+        while (i < to) {
+            String t = mTokens.get(i);
+            if (t.equals("(")) {
+                width = Math.max(width, width(i + 1, match(i)));
+                i = match(i) + 1;
+            } else if (isIdentifier(t) && tok(i + 1).equals("(")) {
+                width = Math.max(width, callWidth(i));
+                i = match(i + 1) + 1;
+            } else if (isIdentifier(t) && tok(i + 1).equals(".")) {
+                width = Math.max(width, swizzleWidth(tok(i + 2)));
+                i += 3;
+            } else if (t.equals("[")) {
+                i = match(i) + 1;
+            } else {
+                if (isIdentifier(t)) {
+                    width = Math.max(width, nameWidth(t));
+                }
+                i++;
+            }
+        }
+        return width;
+    }
+
+    private int callWidth(int name) {
+        String t = tok(name);
+        Integer type = TYPES.get(t);
+        if (type != null) {
+            return type;
+        }
+        if (TEXTURES.contains(t)) {
+            return 4;
+        }
+        if (SCALAR_BUILTINS.contains(t)) {
+            return 1;
+        }
+        Function function = mFunctions.get(t);
+        if (function != null) {
+            return function.returnWidth;
+        }
+        int open = name + 1;
+        return width(open + 1, find(open + 1, match(open), ","));
+    }
+
+    private int nameWidth(String name) {
+        Integer width = mWidths.get(name);
+        return width != null ? width : 1;
+    }
+
+    private static int swizzleWidth(String swizzle) {
+        for (int i = 0; i < swizzle.length(); i++) {
+            if ("xyzwrgbastpq".indexOf(swizzle.charAt(i)) < 0) {
+                //a struct field
+                return 1;
+            }
+        }
+        return swizzle.length();
+    }
+
+    private void call(int name, float times, ShaderCost out) {
+        String t = tok(name);
+        int open = name + 1;
+        int close = match(open);
+        if (TEXTURES.contains(t)) {
+            out.mTextureFetches += times;
+            int coordStart = find(open + 1, close, ",") + 1;
+            int coordEnd = find(coordStart, close, ",");
+            if (coordStart < close && !isPlainVarying(coordStart, coordEnd)) {
+                out.mDependentReads += times;
+                mNotes.add("line " + mLines[name] + ": dependent " + t
+                        + (times != 1.f ? ", " + format(times) + " times" : ""));
+            }
+            return;
+        }
+        float[] builtin = BUILTINS.get(t);
+        if (builtin != null) {
+            int width = width(open + 1, find(open + 1, close, ","));
+            out.mAluOps += (builtin[0] * width + builtin[1]) * times;
+            return;
+        }
+        Function function = mFunctions.get(t);
+        if (function != null) {
+            out.add(cost(function), times);
+        }
+    }
+
+    /**
+     * costs a loop and its body
+     *
+     * @return index after the loop
+     */
+    private int loop(int keyword, float times, ShaderCost out) {
+        String t = tok(keyword);
+        int line = mLines[keyword];
+        int headerStart, headerEnd, bodyStart, bodyEnd, end;
+        if (t.equals("do")) {
+            bodyStart = keyword + 1;
+            bodyEnd = statementEnd(bodyStart);
+            headerStart = bodyEnd + 2;
+            headerEnd = match(bodyEnd + 2);
+            end = find(headerEnd, mTokens.size(), ";") + 1;
+        } else {
+            headerStart = keyword + 1;
+            headerEnd = match(headerStart);
+            bodyStart = headerEnd + 1;
+            bodyEnd = statementEnd(bodyStart);
+            end = bodyEnd + 1;
+        }
+        if (tok(bodyStart).equals("{")) {
+            bodyStart++;
+        }
+
+        float trips = -1;
+        int condStart = headerStart + 1;
+        if (t.equals("for")) {
+            int initEnd = find(headerStart + 1, headerEnd, ";");
+            cost(headerStart + 1, initEnd, times, out);
+            condStart = initEnd + 1;
+            trips = trips(headerStart + 1, initEnd, headerEnd);
+        }
+
+        out.mLoops++;
+        if (trips < 0) {
+            trips = DEFAULT_LOOP_TRIPS;
+            out.mUnresolvedLoops++;
+            mNotes.add("line " + line + ": " + t + " loop, trip count unknown, assuming "
+                    + DEFAULT_LOOP_TRIPS);
+        } else {
+            mNotes.add("line " + line + ": " + t + " loop runs " + format(trips) + " times");
+        }
+        float inner = times * trips;
+        out.mMaxIterations = Math.max(out.mMaxIterations, inner);
+        cost(condStart, headerEnd, inner, out);
+        cost(bodyStart, bodyEnd, inner, out);
+        return end;
+    }
+
+    /**
+     * @return index of the } or ; ending the statement starting at i
+     */
+    private int statementEnd(int i) {
+        if (tok(i).equals("{")) {
+            return match(i);
+        }
+        if (tok(i).equals("for") || tok(i).equals("while")) {
+            return statementEnd(match(i + 1) + 1);
+        }
+        if (tok(i).equals("if")) {
+            int end = statementEnd(match(i + 1) + 1);
+            return tok(end + 1).equals("else") ? statementEnd(end + 2) : end;
+        }
+        return find(i, mTokens.size(), ";");
+    }
+
+    /**
+     * trip count of for (init; cond; step) with a literal or constant start, bound and step
+     *
+     * @return trips, or -1 if it can't be worked out
+     */
+    private float trips(int initStart, int initEnd, int headerEnd) {
+        int condStart = initEnd + 1;
+        int condEnd = find(condStart, headerEnd, ";");
+        int stepStart = condEnd + 1;
+
+        //init: [type] i = start
+        int assign = find(initStart, initEnd, "=");
+        if (assign >= initEnd) {
+            return -1;
+        }
+        String counter = tok(assign - 1);
+        Float start = value(assign + 1, initEnd);
+
+        //cond: i < bound, or bound > i
+        String op;
+        Float bound;
+        if (tok(condStart).equals(counter)) {
+            op = tok(condStart + 1);
+            bound = value(condStart + 2, condEnd);
+        } else if (tok(condEnd - 1).equals(counter)) {
+            op = flip(tok(condEnd - 2));
+            bound = value(condStart, condEnd - 2);
+        } else {
+            return -1;
+        }
+
+        //step: i++, ++i, i--, --i, i += n, i -= n
+        Float step = null;
+        int stepLength = headerEnd - stepStart;
+        if (stepLength == 2 && (tok(stepStart).equals(counter)
+                || tok(stepStart + 1).equals(counter))) {
+            String inc = tok(stepStart).equals(counter) ? tok(stepStart + 1) : tok(stepStart);
+            step = inc.equals("++") ? 1.f : inc.equals("--") ? -1.f : null;
+        } else if (stepLength >= 3 && tok(stepStart).equals(counter)) {
+            Float amount = value(stepStart + 2, headerEnd);
+            if (amount != null && tok(stepStart + 1).equals("+=")) {
+                step = amount;
+            } else if (amount != null && tok(stepStart + 1).equals("-=")) {
+                step = -amount;
+            }
+        }
+        if (start == null || bound == null || step == null || step == 0) {
+            return -1;
+        }
+
+        double span;
+        switch (op) {
+            case "<":
+                span = bound - start;
+                break;
+            case "<=":
+                span = bound - start + Math.abs(step);
+                break;
+            case ">":
+                span = start - bound;
+                break;
+            case ">=":
+                span = start - bound + Math.abs(step);
+                break;
+            default:
+                return -1;
+        }
+        if ((op.startsWith("<") && step < 0) || (op.startsWith(">") && step > 0)) {
+            //runs until something else breaks out, if ever
+            return -1;
+        }
+        return (float) Math.max(0, Math.ceil(span / Math.abs(step) - 1e-4));
+    }
+
+    private static String flip(String op) {
+        switch (op) {
+            case "<":
+                return ">";
+            case ">":
+                return "<";
+            case "<=":
+                return ">=";
+            case ">=":
+                return "<=";
+            default:
+                return op;
+        }
+    }
+
+    private static String format(float value) {
+        return value == (int) value ? String.valueOf((int) value)
+                : String.format(Locale.US, "%.1f", value);
+    }
+
+    /**
+     * prints each shader's cost and warnings, exits with 1 if any is over budget
+     */
+    public static void main(String[] args) throws IOException {
+        int width = 1920;
+        int height = 1080;
+        int fps = 30;
+        ShaderCostAnalyzer analyzer = new ShaderCostAnalyzer();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-size") && i + 1 < args.length) {
+                String[] size = args[++i].split("x");
+                width = Integer.parseInt(size[0]);
+                height = Integer.parseInt(size[1]);
+            } else if (args[i].equals("-fps") && i + 1 < args.length) {
+                fps = Integer.parseInt(args[++i]);
+            } else {
+                files.add(new File(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("usage: ShaderCostAnalyzer [-size WxH] [-fps N] <shader>...");
+            System.exit(1);
+        }
+        analyzer.setFrameBudget(fps, 0.75f);
+
+        boolean over = false;
+        for (File file : files) {
+            ShaderCost cost;
+            InputStream is = new FileInputStream(file);
+            try {
+                cost = analyzer.analyze(is);
+            } catch (IllegalArgumentException e) {
+                System.out.println(file.getName() + ": skipped, " + e.getMessage());
+                continue;
+            } finally {
+                is.close();
+            }
+            System.out.println(String.format(Locale.US, "%s: %s, %.2fms at %dx%d",
+                    file.getName(), cost, analyzer.getFrameMillis(cost, width, height), width,
+                    height));
+            for (String note : cost.getNotes()) {
+                System.out.println("    " + note);
+            }
+            for (String warning : analyzer.check(cost, width, height)) {
+                System.out.println("  warning: " + warning);
+            }
+            over |= analyzer.exceedsBudget(cost, width, height);
+        }
+        System.exit(over ? 1 : 0);
+    }
+}
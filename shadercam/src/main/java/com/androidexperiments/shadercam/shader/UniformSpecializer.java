@@ -0,0 +1,136 @@
+package com.androidexperiments.shadercam.shader;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Folds uniforms that stay the same for a whole session into a shader as #defines, so the
+ * compiler can constant fold them, ex:
+ * <pre>
+ *   uniform vec3 iResolution;   becomes   #define iResolution (vec3(1.0, 1.0, 1.0))
+ * </pre>
+ * The define takes the declaration's line so compile errors still point at the right place,
+ * and code that sets the uniform keeps working against the specialized program, where its
+ * location is just -1.
+ *
+ * Only single, non array declarations of float, int, bool and their vector types can be
+ * folded.
+ */
+public class UniformSpecializer {
+
+    private static final Pattern TYPE = Pattern.compile("(float|int|bool|[ib]?vec([234]))");
+
+    /**
+     * Specialize a fragment or vertex shader
+     *
+     * @param constants uniform name to its value, one entry per component
+     * @throws IllegalArgumentException if a uniform isn't declared in a way we can fold, or a
+     *                                  value doesn't fit its type
+     */
+    public static String specialize(String source, Map<String, float[]> constants) {
+        String specialized = source;
+        for (Map.Entry<String, float[]> entry : constants.entrySet()) {
+            specialized = specialize(specialized, entry.getKey(), entry.getValue());
+        }
+        return specialized;
+    }
+
+    /**
+     * @return identifies a program's sources and set of constants, sorted so the order they were
+     * set in doesn't matter. The sources go in as a SHA-256 of both, so two programs sharing a
+     * fragment shader get different keys and a collision isn't a practical concern
+     */
+    public static String getKey(String vertexSource, String fragmentSource,
+            SortedMap<String, float[]> constants) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("No SHA-256 on this platform", e);
+        }
+        update(digest, vertexSource);
+        update(digest, fragmentSource);
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        for (Map.Entry<String, float[]> entry : constants.entrySet()) {
+            key.append(';').append(entry.getKey()).append('=')
+                    .append(Arrays.toString(entry.getValue()));
+        }
+        return key.toString();
+    }
+
+    /**
+     * length first, so where one source ends and the next starts is part of the digest
+     */
+    private static void update(MessageDigest digest, String source) {
+        byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+        int length = bytes.length;
+        digest.update(new byte[]{(byte) (length >>> 24), (byte) (length >>> 16),
+                (byte) (length >>> 8), (byte) length});
+        digest.update(bytes);
+    }
+
+    private static String specialize(String source, String name, float[] values) {
+        if (!name.matches("[A-Za-z_]\\w*")) {
+            throw new IllegalArgumentException("Not a uniform name: " + name);
+        }
+        Pattern declaration = Pattern.compile("^[ \\t]*uniform\\s+(?:(?:lowp|mediump|highp)\\s+)?"
+                + "(\\w+)\\s+" + name + "\\s*;[ \\t]*(//.*)?$", Pattern.MULTILINE);
+        Matcher matcher = declaration.matcher(source);
+        if (!matcher.find()) {
+            throw new IllegalArgumentException("No single declaration of uniform " + name);
+        }
+        String define = "#define " + name + " " + toLiteral(name, matcher.group(1), values);
+        return source.substring(0, matcher.start()) + define + source.substring(matcher.end());
+    }
+
+    private static String toLiteral(String name, String type, float[] values) {
+        Matcher matcher = TYPE.matcher(type);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Can't fold " + type + " " + name);
+        }
+        int components = matcher.group(2) == null ? 1 : Integer.parseInt(matcher.group(2));
+        if (values.length != components) {
+            throw new IllegalArgumentException(type + " " + name + " needs " + components
+                    + " values, got " + values.length);
+        }
+
+        boolean isInt = type.startsWith("i");
+        boolean isBool = type.startsWith("b");
+        StringBuilder literal = new StringBuilder();
+        if (components > 1) {
+            literal.append(type).append('(');
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                literal.append(", ");
+            }
+            float value = values[i];
+            if (Float.isNaN(value) || Float.isInfinite(value)) {
+                throw new IllegalArgumentException(name + " has no GLSL literal for " + value);
+            }
+            if (isBool) {
+                literal.append(value != 0);
+            } else if (isInt) {
+                literal.append(Math.round(value));
+            } else {
+                //Float.toString always has a '.', which GLSL needs to make it a float
+                literal.append(Float.toString(value));
+            }
+        }
+        if (components > 1) {
+            literal.append(')');
+        }
+        //parens so a negative value still binds right inside expressions
+        return "(" + literal + ")";
+    }
+}
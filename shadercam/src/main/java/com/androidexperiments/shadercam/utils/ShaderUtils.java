@@ -28,16 +28,31 @@ public class ShaderUtils
 
     public static String getStringFromFileInAssets(Context ctx, String filename, boolean useNewline) throws IOException
     {
-        InputStream is = ctx.getAssets().open(filename);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-        StringBuilder builder = new StringBuilder();
-        String line;
-        while((line = reader.readLine()) != null)
-        {
-            builder.append(line + (useNewline ? "\n" : ""));
+        return getStringFromStream(ctx.getAssets().open(filename), useNewline);
+    }
+
+    /**
+     * What {@link #getStringFromFileInAssets} does once the asset is open, split out so it can run
+     * off device. Closes the stream.
+     */
+    public static String getStringFromStream(InputStream is, boolean useNewline) throws IOException
+    {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+            StringBuilder builder = new StringBuilder(Math.max(is.available(), 256));
+            String line;
+            while((line = reader.readLine()) != null)
+            {
+                //append separately, line + "\n" makes a throwaway string per line
+                builder.append(line);
+                if (useNewline) {
+                    builder.append('\n');
+                }
+            }
+            return builder.toString();
+        } finally {
+            is.close();
         }
-        is.close();
-        return builder.toString();
     }
 
 
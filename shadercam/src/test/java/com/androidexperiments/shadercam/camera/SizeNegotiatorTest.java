@@ -0,0 +1,176 @@
+package com.androidexperiments.shadercam.camera;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SizeNegotiatorTest {
+
+    private static final long FRAME_30 = 33333333L;
+
+    private static final long FRAME_15 = 66666666L;
+
+    /**
+     * a typical back camera, 4:3 and 16:9 sizes mixed
+     */
+    private static final int[] WIDTHS = {4032, 1920, 1440, 1280, 640, 3840};
+
+    private static final int[] HEIGHTS = {3024, 1080, 1080, 720, 480, 2160};
+
+    private SizeNegotiator mNegotiator;
+
+    @Before
+    public void setUp() {
+        mNegotiator = new SizeNegotiator();
+    }
+
+    @Test
+    public void exactMatchWins() {
+        long[] durations = fill(FRAME_30);
+
+        SizeNegotiator.Choice choice = mNegotiator.choose(1920, 1080, WIDTHS, HEIGHTS,
+                durations, null);
+
+        assertEquals(1, choice.getIndex());
+        assertEquals(1920, choice.getWidth());
+        assertEquals(1080, choice.getHeight());
+        assertTrue(choice.meetsTargetFps());
+        assertTrue(choice.fitsShaderBudget());
+    }
+
+    @Test
+    public void targetOrientationDoesNotMatter() {
+        SizeNegotiator.Choice choice = mNegotiator.choose(1080, 1920, WIDTHS, HEIGHTS,
+                fill(FRAME_30), null);
+
+        assertEquals(1, choice.getIndex());
+    }
+
+    @Test
+    public void fallsBackToOtherAspectWhenMatchCantKeepUp() {
+        long[] durations = fill(FRAME_30);
+        //every 16:9 size is too slow for 30fps
+        durations[1] = FRAME_15;
+        durations[3] = FRAME_15;
+        durations[5] = FRAME_15;
+
+        SizeNegotiator.Choice choice = mNegotiator.choose(1920, 1080, WIDTHS, HEIGHTS,
+                durations, null);
+
+        //closest area of the 4:3 sizes, undersized is preferred to a 4032x3024 overshoot
+        assertEquals(2, choice.getIndex());
+        assertTrue(choice.meetsTargetFps());
+    }
+
+    @Test
+    public void stallDurationCountsAgainstFps() {
+        long[] stalls = new long[WIDTHS.length];
+        stalls[1] = FRAME_30;
+
+        SizeNegotiator.Choice choice = mNegotiator.choose(1920, 1080, WIDTHS, HEIGHTS,
+                fill(FRAME_30), stalls);
+
+        assertTrue(choice.getIndex() != 1);
+        assertTrue(choice.meetsTargetFps());
+    }
+
+    @Test
+    public void nothingMeetsFpsStillPicksClosest() {
+        mNegotiator.setTargetFps(60);
+
+        SizeNegotiator.Choice choice = mNegotiator.choose(1920, 1080, WIDTHS, HEIGHTS,
+                fill(FRAME_30), null);
+
+        assertEquals(1, choice.getIndex());
+        assertFalse(choice.meetsTargetFps());
+        assertEquals(30.f, choice.getMaxFps(), 0.01f);
+    }
+
+    @Test
+    public void nothingFitsShaderBudgetPicksCheapestMiss() {
+        //100ns per pixel is over a 25ms budget even at 640x480
+        mNegotiator.setShaderCost(100.f, 0.75f);
+
+        SizeNegotiator.Choice choice = mNegotiator.choose(1920, 1080, WIDTHS, HEIGHTS,
+                fill(FRAME_30), null);
+
+        //the overshoot grows with area, so the 16:9 size below the target beats the target
+        assertEquals(3, choice.getIndex());
+        assertTrue(choice.meetsTargetFps());
+        assertFalse(choice.fitsShaderBudget());
+    }
+
+    @Test
+    public void tiesGoToFewerPixelsThenEarlierIndex() {
+        int[] widths = {1280, 720, 1280};
+        int[] heights = {720, 1280, 720};
+
+        SizeNegotiator.Choice choice = mNegotiator.choose(1280, 720, widths, heights, null,
+                null);
+
+        assertEquals(0, choice.getIndex());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mismatchedArraysThrow() {
+        mNegotiator.choose(1920, 1080, new int[]{1920}, new int[]{1080, 720}, null, null);
+    }
+
+    @Test
+    public void fpsRangeExactMatch() {
+        int[] lowers = {15, 7, 24, 30, 60};
+        int[] uppers = {30, 30, 30, 30, 60};
+
+        assertEquals(3, mNegotiator.chooseFpsRange(lowers, uppers));
+    }
+
+    @Test
+    public void fpsRangeTopsOutAtTargetWithHighestFloor() {
+        int[] lowers = {15, 7, 24, 30};
+        int[] uppers = {30, 30, 30, 60};
+
+        assertEquals(2, mNegotiator.chooseFpsRange(lowers, uppers));
+    }
+
+    @Test
+    public void fpsRangeReachesPastTarget() {
+        mNegotiator.setTargetFps(24);
+        int[] lowers = {7, 15, 30};
+        int[] uppers = {60, 30, 60};
+
+        assertEquals(1, mNegotiator.chooseFpsRange(lowers, uppers));
+    }
+
+    @Test
+    public void fpsRangeNothingFitsTakesFastestSteadiest() {
+        mNegotiator.setTargetFps(120);
+        int[] lowers = {15, 30, 60};
+        int[] uppers = {30, 60, 60};
+
+        assertEquals(2, mNegotiator.chooseFpsRange(lowers, uppers));
+    }
+
+    @Test
+    public void fpsRangeTiesGoToEarlierIndex() {
+        int[] lowers = {15, 30, 30};
+        int[] uppers = {30, 30, 30};
+
+        assertEquals(1, mNegotiator.chooseFpsRange(lowers, uppers));
+    }
+
+    @Test
+    public void fpsRangeEmpty() {
+        assertEquals(-1, mNegotiator.chooseFpsRange(new int[0], new int[0]));
+    }
+
+    private static long[] fill(long duration) {
+        long[] durations = new long[WIDTHS.length];
+        for (int i = 0; i < durations.length; i++) {
+            durations[i] = duration;
+        }
+        return durations;
+    }
+}
@@ -0,0 +1,156 @@
+package com.androidexperiments.shadercam.gl;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.graphics.SurfaceTexture;
+
+import com.androidexperiments.shadercam.utils.ShaderUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.objenesis.ObjenesisStd;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs {@link CameraRenderer}'s frame loop against {@link RecordingGlBackend} while recording
+ * on GLES 3, so every frame goes through the shader swap and specialization checks, the draw
+ * and the blit to the recording surface, and checks it doesn't allocate once warmed up. See
+ * {@link FrameAllocations}.
+ *
+ * The renderer makes its EGL objects on its own thread, which can't run here. Instead its GL
+ * components are set up directly around an EglCore that claims GLES 3 and surfaces that never
+ * touch EGL, neither made through their constructors.
+ */
+public class CameraRendererAllocationTest {
+
+    private static final int WIDTH = 1080, HEIGHT = 1920;
+
+    /**
+     * relative to the module, which is where gradle runs unit tests from
+     */
+    private static final File ASSETS = new File("src/main/assets");
+
+    private GlBackend mOldBackend;
+
+    private RecordingGlBackend mBackend;
+
+    private CameraRenderer mRenderer;
+
+    private SurfaceTexture mSurfaceTexture;
+
+    @Before
+    public void setUp() throws Exception {
+        mOldBackend = Gl.getBackend();
+        mBackend = new RecordingGlBackend();
+        Gl.setBackend(mBackend);
+
+        AssetManager assets = mock(AssetManager.class);
+        when(assets.open(anyString())).thenAnswer(new Answer<InputStream>() {
+            @Override
+            public InputStream answer(InvocationOnMock invocation) throws Throwable {
+                return new FileInputStream(new File(ASSETS, (String) invocation.getArgument(0)));
+            }
+        });
+        Context context = mock(Context.class);
+        when(context.getAssets()).thenReturn(assets);
+
+        //not a mock, mocks record every call made on them
+        mSurfaceTexture = new SurfaceTexture(0);
+        mRenderer = new CameraRenderer(context, mSurfaceTexture, WIDTH, HEIGHT);
+        mRenderer.setOnRendererReadyListener(mock(CameraRenderer.OnRendererReadyListener.class));
+        mRenderer.setViewport(WIDTH, HEIGHT);
+        mRenderer.fragmentShaderCode = ShaderUtils.getStringFromFileInAssets(context,
+                mRenderer.DEFAULT_FRAGMENT_SHADER);
+        mRenderer.vertexShaderCode = ShaderUtils.getStringFromFileInAssets(context,
+                mRenderer.DEFAULT_VERTEX_SHADER);
+
+        ObjenesisStd objenesis = new ObjenesisStd();
+        EglCore eglCore = objenesis.newInstance(EglCore.class);
+        set(eglCore, "mGlVersion", 3);
+        set(mRenderer, "mEglCore", eglCore);
+        set(mRenderer, "mWindowSurface", objenesis.newInstance(StubSurface.class));
+        set(mRenderer, "mRecordSurface", objenesis.newInstance(StubSurface.class));
+        set(mRenderer, "mTextureArray", new ArrayList<>());
+        mRenderer.initGLComponents();
+        set(mRenderer, "mIsRecording", true);
+    }
+
+    @After
+    public void tearDown() {
+        mRenderer.deinitGLComponents();
+        Gl.setBackend(mOldBackend);
+    }
+
+    @Test
+    public void steadyStateFramesDontAllocate() {
+        long allocated = FrameAllocations.measure(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.onFrameAvailable(mSurfaceTexture);
+            }
+        });
+
+        //make sure it was the recording path we measured
+        assertTrue(mBackend.getCount(GlCall.BLIT_FRAMEBUFFER) >= FrameAllocations.FRAMES);
+        assertEquals("bytes allocated over " + FrameAllocations.FRAMES + " frames", 0,
+                allocated);
+    }
+
+    private static void set(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    /**
+     * a window surface with no EGL surface behind it, every swap succeeds
+     */
+    private static class StubSurface extends WindowSurface {
+
+        StubSurface() {
+            //never runs, made through objenesis
+            super(null, (SurfaceTexture) null);
+        }
+
+        @Override
+        public int getWidth() {
+            return WIDTH;
+        }
+
+        @Override
+        public int getHeight() {
+            return HEIGHT;
+        }
+
+        @Override
+        public void makeCurrent() {
+        }
+
+        @Override
+        public void makeCurrentReadFrom(EglSurfaceBase readSurface) {
+        }
+
+        @Override
+        public boolean swapBuffers() {
+            return true;
+        }
+
+        @Override
+        public void setPresentationTime(long nsecs) {
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.androidexperiments.shadercam.gl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Counts what a frame loop allocates on the calling thread once it's warmed up, for the
+ * allocation tests. Skips the test on JVMs that can't count per thread.
+ */
+final class FrameAllocations {
+
+    /**
+     * enough for the frame's methods to get to the optimizing compiler
+     */
+    static final int WARM_UP_FRAMES = 20000;
+
+    static final int FRAMES = 1000;
+
+    /**
+     * Asking for a compile resolves the string constants of the method's class on the asking
+     * thread, a few hundred bytes that have nothing to do with the frame, and the compiler can
+     * still be at it after warm up. A frame that really allocates does so in every window
+     */
+    private static final int WINDOWS = 5;
+
+    private FrameAllocations() {
+    }
+
+    /**
+     * @return fewest bytes allocated over {@link #FRAMES} frames, in up to {@link #WINDOWS}
+     * tries
+     */
+    static long measure(Runnable frame) {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue("needs a JVM that counts allocations per thread",
+                bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARM_UP_FRAMES; i++) {
+            frame.run();
+        }
+
+        //whatever measuring itself costs
+        long before = threads.getThreadAllocatedBytes(thread);
+        long overhead = threads.getThreadAllocatedBytes(thread) - before;
+
+        long fewest = Long.MAX_VALUE;
+        for (int window = 0; window < WINDOWS && fewest > 0; window++) {
+            before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < FRAMES; i++) {
+                frame.run();
+            }
+            fewest = Math.min(fewest, threads.getThreadAllocatedBytes(thread) - before - overhead);
+        }
+        return fewest;
+    }
+}
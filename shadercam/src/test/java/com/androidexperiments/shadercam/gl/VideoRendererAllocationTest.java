@@ -0,0 +1,82 @@
+package com.androidexperiments.shadercam.gl;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.graphics.SurfaceTexture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs {@link VideoRenderer}'s frame loop against {@link RecordingGlBackend} and checks that
+ * once it's warmed up, a frame doesn't allocate anything, see {@link FrameAllocations}. Relies
+ * on the android.jar stubs returning default values, see testOptions in build.gradle.
+ */
+public class VideoRendererAllocationTest {
+
+    /**
+     * relative to the module, which is where gradle runs unit tests from
+     */
+    private static final File ASSETS = new File("src/main/assets");
+
+    private GlBackend mOldBackend;
+
+    private VideoRenderer mRenderer;
+
+    private SurfaceTexture mSurfaceTexture;
+
+    @Before
+    public void setUp() throws Exception {
+        mOldBackend = Gl.getBackend();
+        Gl.setBackend(new RecordingGlBackend());
+
+        AssetManager assets = mock(AssetManager.class);
+        when(assets.open(anyString())).thenAnswer(new Answer<InputStream>() {
+            @Override
+            public InputStream answer(InvocationOnMock invocation) throws Throwable {
+                return new FileInputStream(new File(ASSETS, (String) invocation.getArgument(0)));
+            }
+        });
+        Context context = mock(Context.class);
+        when(context.getAssets()).thenReturn(assets);
+
+        mRenderer = new VideoRenderer(context);
+        mRenderer.onSurfaceCreated();
+        mRenderer.onSurfaceChanged(1080, 1920);
+        //not a mock, mocks record every call made on them
+        mSurfaceTexture = new SurfaceTexture(0);
+        mRenderer.setSurfaceTexture(mSurfaceTexture);
+    }
+
+    @After
+    public void tearDown() {
+        mRenderer.onSurfaceDestroyed();
+        Gl.setBackend(mOldBackend);
+    }
+
+    @Test
+    public void steadyStateFramesDontAllocate() {
+        long allocated = FrameAllocations.measure(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.onFrameAvailable(mSurfaceTexture);
+                mRenderer.onDrawFrame();
+            }
+        });
+
+        assertEquals("bytes allocated over " + FrameAllocations.FRAMES + " frames", 0,
+                allocated);
+    }
+}
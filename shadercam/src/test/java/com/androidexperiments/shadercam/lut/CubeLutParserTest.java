@@ -0,0 +1,42 @@
+package com.androidexperiments.shadercam.lut;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+
+public class CubeLutParserTest {
+
+    private static final String ROWS = "0 0 0\n1 0 0\n0 1 0\n1 1 0\n"
+            + "0 0 1\n1 0 1\n0 1 1\n1 1 1\n";
+
+    @Test
+    public void domainIsNormalized() throws IOException {
+        CubeLut lut = parse("LUT_3D_SIZE 2\nDOMAIN_MIN 0 0 0\nDOMAIN_MAX 2 2 2\n"
+                + ROWS.replace('1', '2'));
+
+        float[] data = lut.getData();
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(i + ": " + data[i], ROWS.charAt(i * 2) - '0', data[i], 0.f);
+        }
+    }
+
+    @Test
+    public void emptyDomainGivesZeroNotNaN() throws IOException {
+        CubeLut lut = parse("LUT_3D_SIZE 2\nDOMAIN_MIN 0 1 0\nDOMAIN_MAX 1 1 1\n" + ROWS);
+
+        float[] data = lut.getData();
+        for (int i = 1; i < data.length; i += 3) {
+            assertEquals(0.f, data[i], 0.f);
+        }
+        //the other channels still normalize
+        assertEquals(1.f, data[3], 0.f);
+        assertEquals(1.f, data[data.length - 1], 0.f);
+    }
+
+    private static CubeLut parse(String cube) throws IOException {
+        return new CubeLutParser().parse(new StringReader(cube));
+    }
+}
@@ -0,0 +1,46 @@
+package com.androidexperiments.shadercam.shader;
+
+import org.junit.Test;
+
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class UniformSpecializerTest {
+
+    private static final String VERTEX = "attribute vec4 position;\n"
+            + "void main() { gl_Position = position; }\n";
+
+    private static final String FRAGMENT = "uniform float iGain;\n"
+            + "void main() { gl_FragColor = vec4(iGain); }\n";
+
+    @Test
+    public void keyDependsOnVertexSource() {
+        String other = VERTEX.replace("position;", "position;\nattribute vec2 uv;");
+
+        assertNotEquals(UniformSpecializer.getKey(VERTEX, FRAGMENT, gain(2.f)),
+                UniformSpecializer.getKey(other, FRAGMENT, gain(2.f)));
+    }
+
+    @Test
+    public void keyDependsOnWhereSourcesSplit() {
+        //same text overall, split differently between the two shaders
+        assertNotEquals(UniformSpecializer.getKey(VERTEX + "//", FRAGMENT, gain(2.f)),
+                UniformSpecializer.getKey(VERTEX, "//" + FRAGMENT, gain(2.f)));
+    }
+
+    @Test
+    public void keyDependsOnConstants() {
+        assertEquals(UniformSpecializer.getKey(VERTEX, FRAGMENT, gain(2.f)),
+                UniformSpecializer.getKey(VERTEX, FRAGMENT, gain(2.f)));
+        assertNotEquals(UniformSpecializer.getKey(VERTEX, FRAGMENT, gain(2.f)),
+                UniformSpecializer.getKey(VERTEX, FRAGMENT, gain(3.f)));
+    }
+
+    private static TreeMap<String, float[]> gain(float value) {
+        TreeMap<String, float[]> constants = new TreeMap<>();
+        constants.put("iGain", new float[]{value});
+        return constants;
+    }
+}